@@ -211,6 +211,7 @@ import com.android.internal.policy.PhoneLayoutInflater;
 import com.android.internal.util.Preconditions;
 
 import android.app.mirror.IMirrorMediaService;
+import android.app.mirror.MirrorDataManager;
 import android.app.mirror.MirrorMediaManager;
 import android.os.IBinder;
 import android.os.ServiceManager;
@@ -361,6 +362,14 @@ public final class SystemServiceRegistry {
                 return new MirrorMediaManager(b);
             }});
 
+	registerService(Context.MIRROR_DATA_SERVICE, MirrorDataManager.class,
+                new CachedServiceFetcher<MirrorDataManager>() {
+            @Override
+            public MirrorDataManager createService(ContextImpl ctx) throws ServiceNotFoundException {
+                IBinder b = ServiceManager.waitForService(Context.MIRROR_DATA_SERVICE);
+                return new MirrorDataManager(b);
+            }});
+
         registerService(Context.CONNECTIVITY_SERVICE, ConnectivityManager.class,
                 new StaticApplicationContextServiceFetcher<ConnectivityManager>() {
             @Override
@@ -0,0 +1,134 @@
+// frameworks/base/core/java/android/app/mirror/MirrorDataManager.java
+package android.app.mirror;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Itemized backup/restore on top of the mirror services.
+ *
+ * A session lists the items of a category (a window of SMS rows, one app's data, one media
+ * folder...), then each item is exported or imported on its own. Items can be transferred in
+ * parallel from several threads, retried one by one, and since item ids are stable across
+ * sessions a new session can resume with the items a previous one did not finish.
+ *
+ * @hide
+ */
+public final class MirrorDataManager {
+    private final IMirrorDataService mService;
+
+    // ================= Categories =================
+    public static final String CATEGORY_SMS = "sms";
+    public static final String CATEGORY_CALLLOG = "calllog";
+    public static final String CATEGORY_CALENDAR = "calendar";
+    public static final String CATEGORY_CONTACTS = "contacts";
+    public static final String CATEGORY_MEDIA = "media";        // items: dcim / pictures
+    public static final String CATEGORY_APP = "app";            // /data/data, one item per package
+    public static final String CATEGORY_APP_EXTERNAL = "appext"; // /sdcard/Android/data
+    public static final String CATEGORY_APP_PREFIX = "app:";    // "app:<pkg>", a single package
+
+    // Session options (plus MirrorMediaManager export filters, applied to app categories)
+    public static final String OPT_ITEM_ROWS = "itemRows";      // int, rows per sms/calllog/... item
+    public static final int DEFAULT_ITEM_ROWS = 2000;
+
+    // ================= Item bundle keys =================
+    public static final String ITEM_ID = "id";                  // String, stable across sessions
+    public static final String ITEM_CATEGORY = "category";      // String
+    public static final String ITEM_PATH = "path";              // String, logical path (files only)
+    public static final String ITEM_SIZE = "size";              // long, bytes; -1 = unknown
+    public static final String ITEM_COUNT = "count";            // long, rows or files
+    public static final String ITEM_ID_MIN = "idMin";           // long, first _id (inclusive)
+    public static final String ITEM_ID_MAX = "idMax";           // long, last _id (exclusive)
+    public static final String ITEM_STATE = "state";            // int, STATE_*
+    public static final String ITEM_ATTEMPTS = "attempts";      // int
+    public static final String ITEM_ERROR = "error";            // String, last failure
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+
+    // SystemServiceRegistry 里用 IBinder 构造
+    public MirrorDataManager(IBinder binder) {
+        mService = IMirrorDataService.Stub.asInterface(binder);
+    }
+
+    // ---------------- 会话 ----------------
+    public String beginBackupSession(int userId, Bundle options) throws RemoteException {
+        return mService.beginBackupSession(userId, options);
+    }
+
+    public void endBackupSession(String sessionId) throws RemoteException {
+        mService.endBackupSession(sessionId);
+    }
+
+    public String beginRestoreSession(int userId, Bundle options) throws RemoteException {
+        return mService.beginRestoreSession(userId, options);
+    }
+
+    public void endRestoreSession(String sessionId) throws RemoteException {
+        mService.endRestoreSession(sessionId);
+    }
+
+    // ---------------- 列举 / 状态 ----------------
+    public List<Bundle> listItems(String sessionId, String category) throws RemoteException {
+        return mService.listItems(sessionId, category);
+    }
+
+    public List<Bundle> getSessionItems(String sessionId) throws RemoteException {
+        return mService.getSessionItems(sessionId);
+    }
+
+    // ---------------- 单项导出 / 导入 ----------------
+    /**
+     * Blocks until the item is fully written. If out is a pipe, read the other end on another
+     * thread.
+     */
+    public void exportItem(String sessionId, String category, String itemId, FileDescriptor out)
+            throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(out);
+        try {
+            mService.exportItem(sessionId, category, itemId, pfd);
+        } finally {
+            try { pfd.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** targetHint is the itemId the data was exported as. */
+    public boolean importItem(String sessionId, String category, String targetHint,
+            FileDescriptor in) throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(in);
+        try {
+            return mService.importItem(sessionId, category, targetHint, pfd);
+        } finally {
+            try { pfd.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ---------------- 整类导出 / 导入 ----------------
+    public void exportCategory(String sessionId, String category, FileDescriptor out)
+            throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(out);
+        try {
+            mService.exportCategory(sessionId, category, pfd);
+        } finally {
+            try { pfd.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public boolean importCategory(String sessionId, String category, FileDescriptor in)
+            throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(in);
+        try {
+            return mService.importCategory(sessionId, category, pfd);
+        } finally {
+            try { pfd.close(); } catch (IOException ignored) {}
+        }
+    }
+}
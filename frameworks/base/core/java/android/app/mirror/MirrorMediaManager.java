@@ -22,13 +22,95 @@ public final class MirrorMediaManager {
     public static final int TYPE_SMS      = 1 << 2;
     public static final int TYPE_CALENDAR = 1 << 3;
     public static final int TYPE_MEDIA    = 1 << 4; // reserved
+    public static final int TYPE_MMS      = 1 << 5; // pdu + addr + part（正文随归档）
 
-    public static final int TYPE_PIM_BASIC = TYPE_CALLLOG | TYPE_SMS | TYPE_CALENDAR;
-    public static final int TYPE_ALL      = TYPE_CONTACTS | TYPE_CALLLOG | TYPE_SMS | TYPE_CALENDAR | TYPE_MEDIA;
+    public static final int TYPE_PIM_BASIC = TYPE_CALLLOG | TYPE_SMS | TYPE_MMS | TYPE_CALENDAR;
+    public static final int TYPE_ALL      = TYPE_CONTACTS | TYPE_CALLLOG | TYPE_SMS | TYPE_MMS | TYPE_CALENDAR | TYPE_MEDIA;
 
     // Bundle opts keys
     public static final String OPT_USER_ID = "userId"; // int
     public static final String OPT_CLEAR_BEFORE_RESTORE = "clearBeforeRestore"; // boolean
+    // backupPersonalData 只导出 _id 在 [OPT_ID_MIN, OPT_ID_MAX) 内的行（媒体不受影响）
+    public static final String OPT_ID_MIN = "idMin"; // long, inclusive
+    public static final String OPT_ID_MAX = "idMax"; // long, exclusive
+    // SMS / 通话记录 / 日历按 _id 分页导出，每页行数；缺省 1000
+    public static final String OPT_PAGE_SIZE = "pageSize"; // int
+    // restoreSmsDbLive：调用方另行恢复彩信（TYPE_MMS 归档），快照里有彩信也只重放 sms 表，不要求退回整库替换
+    public static final String OPT_SMS_ONLY = "smsOnly"; // boolean
+    // 媒体增量导出：按 MediaStore _id + GENERATION_MODIFIED 与上次导出的索引比较，只导出新增/变化的
+    // 图片、视频、音频（media/{images,video,audio}/ 条目 + 各自的 *_meta.jsonl，删除以 op=delete 记录）；
+    // 缺省走 daemon 整目录 zip（只含 DCIM/Pictures）
+    public static final String OPT_MEDIA_INCREMENTAL = "mediaIncremental"; // boolean
+    // 与 OPT_MEDIA_INCREMENTAL 同用：丢弃本地索引，导出全部媒体（新基线）
+    public static final String OPT_MEDIA_RESET_INDEX = "mediaResetIndex"; // boolean
+    // 与 OPT_MEDIA_INCREMENTAL 同用：>= 64MB 的文件按 range 导出，备份中断时已提交的 range 记入索引，
+    // 下次从断点接着导。调用方必须保留中断的归档并按顺序恢复（恢复端跨归档续写同一个文件）
+    public static final String OPT_MEDIA_RESUMABLE = "mediaResumable"; // boolean
+    // 与 OPT_MEDIA_INCREMENTAL 同用：先为 JPEG 照片导出低清代理图（media/thumbs/），原图按拍摄时间从新到旧排在后面；
+    // 恢复时代理图先以原文件名写入相册立即可见，原图到达后原地覆盖
+    public static final String OPT_MEDIA_THUMBNAILS = "mediaThumbnails"; // boolean
+    // restorePersonalData：media/images/ 条目交给 N 个写线程（上限 4）并行写入 MediaStore，
+    // IS_PENDING 清除按批 applyBatch；缺省 0 = 逐个顺序恢复
+    public static final String OPT_MEDIA_RESTORE_THREADS = "mediaRestoreThreads"; // int
+
+    // Export filter keys (streamFolderZip / streamFolderRaw with filters)
+    // 路径 glob 匹配的是逻辑根下的相对路径，app 数据总是以包名开头（如 "com.foo/cache/a"），
+    // '*' 可跨越 '/'；目录命中排除规则时整棵子树跳过，不会被打开。
+    public static final String OPT_INCLUDE_PACKAGES = "includePackages"; // String[]
+    public static final String OPT_EXCLUDE_PACKAGES = "excludePackages"; // String[]
+    public static final String OPT_INCLUDE_GLOBS = "includeGlobs";       // String[]
+    public static final String OPT_EXCLUDE_GLOBS = "excludeGlobs";       // String[]
+    public static final String OPT_MAX_FILE_SIZE = "maxFileSize";        // long, bytes; 0 = no limit
+
+    // ZIP 压缩策略（streamFolderZip 的 filters、backupPersonalData 的 opts）
+    // auto：每个文件先试压首块（64K），压不动（jpeg/mp4/apk/加密数据）就改为存储，其余按 OPT_ZIP_LEVEL 压缩
+    public static final String OPT_ZIP_LEVEL = "zipLevel";   // int 0–9；缺省为 deflate 默认级别
+    public static final String OPT_ZIP_AUTO = "zipAuto";     // boolean
+    // 大文件（>= 1MB）按 128K 分块多线程 deflate（pigz 方式），输出仍是普通 deflate 条目；
+    // 缺省/1 = 单线程，0 = 自动（最多 4），上限 8。只对 daemon 导出的文件生效
+    public static final String OPT_ZIP_THREADS = "zipThreads"; // int
+
+    // RAW（MM01）导出的 zstd 选项（streamFolderRaw 的 filters）：每个文件的 payload 单独压成一个 zstd 帧，
+    // 流本身仍是 MM01，restoreFromRaw 直接接受。缺省不压缩
+    public static final String OPT_RAW_ZSTD_LEVEL = "rawZstdLevel"; // int 1–19（zstd 级别），0 = 不压缩
+    public static final String OPT_RAW_ZSTD_LONG = "rawZstdLong";   // boolean，long distance matching
+    // 同一目录下 <= 4K 的文件打成 'P' 记录（格式见下方 RAW 续传注释），可与 zstd 同用
+    public static final String OPT_RAW_PACK = "rawPack";            // boolean
+
+    // scan() result keys
+    public static final String SCAN_TOTAL_BYTES = "totalBytes";   // long, sum of st_size
+    public static final String SCAN_FILE_COUNT = "fileCount";     // long, regular files
+    public static final String SCAN_DIR_COUNT = "dirCount";       // long
+    // 分组统计：app 数据按包名，其它路径按顶层目录名；三个数组下标一一对应
+    public static final String SCAN_GROUP_NAMES = "groupNames";   // String[]
+    public static final String SCAN_GROUP_BYTES = "groupBytes";   // long[]
+    public static final String SCAN_GROUP_FILES = "groupFiles";   // long[]
+
+    // getBlacklist() result keys：daemon 对这些包的导出/还原一律跳过
+    public static final String BLACKLIST_VERSION = "version";     // int，名单内容变化时改变
+    public static final String BLACKLIST_INTERNAL = "internal";   // String[]，/data/data
+    public static final String BLACKLIST_EXTERNAL = "external";   // String[]，/sdcard/Android/data
+
+    // getCapabilities() result keys
+    public static final String CAPS_RAW_FORMATS = "rawFormats";  // String[]，PUTRAW 接受的流魔数和可选记录
+    public static final String RAW_FORMAT_MM01 = "MM01";
+    public static final String RAW_FORMAT_MM02 = "MM02";
+    public static final String RAW_FORMAT_PACK = "PACK";         // 接受 'P' 记录，不是魔数
+
+    // backupSmsDb() result keys
+    public static final String SMS_DB_PAGES = "pages";          // int，快照的数据库页数
+    public static final String SMS_DB_PAGE_SIZE = "pageSize";   // int，页大小
+    public static final String SMS_DB_BYTES = "bytes";          // long，写入的字节数 = 页数 × 页大小
+
+    // getRawCheckpoint() result keys；没有检查点时 Bundle 为空
+    public static final String RAW_CHECKPOINT_FILES = "files";    // long，已落盘的 'F' 记录数（从流开头算）
+    public static final String RAW_CHECKPOINT_BYTES = "bytes";    // long，这些文件的 payload 字节数
+    public static final String RAW_CHECKPOINT_PATH = "path";      // String，最后一个已落盘文件的相对路径
+
+    /** Excludes for regenerable app state: caches and no_backup. */
+    public static final String[] CACHE_EXCLUDE_GLOBS = {
+            "*/cache/*", "*/code_cache/*", "*/no_backup/*"
+    };
 
     // SystemServiceRegistry 里用 IBinder 构造
     public MirrorMediaManager(IBinder binder) {
@@ -127,12 +209,48 @@ public final class MirrorMediaManager {
         }
     }
 
+    // ---------------- 预扫描：大小 / 文件数 / 分组统计 ----------------
+    /**
+     * Size an export before running it. Same logical paths and filters as
+     * {@link #streamFolderZip(String, FileDescriptor, android.os.Bundle)}; returns SCAN_* keys,
+     * or null if the daemon could not scan the path.
+     */
+    public android.os.Bundle scan(String logicalPath, android.os.Bundle filters)
+            throws RemoteException {
+        return mService.scan(logicalPath, filters);
+    }
+
+    // ---------------- 黑名单查询 ----------------
+    /**
+     * Packages the daemon skips for app data (BLACKLIST_* keys), so callers can avoid reading
+     * and sending them at all. Returns null if the daemon could not be reached.
+     */
+    public android.os.Bundle getBlacklist() throws RemoteException {
+        return mService.getBlacklist();
+    }
+
+    // ---------------- 能力查询 ----------------
+    /** CAPS_* keys; null if the daemon could not be reached or is too old to answer (assume MM01). */
+    public android.os.Bundle getCapabilities() throws RemoteException {
+        return mService.getCapabilities();
+    }
+
     // ---------------- ZIP 导出（FD 版本） ----------------
     public void streamFolderZip(String logicalPath, FileDescriptor out)
             throws RemoteException, IOException {
+        streamFolderZip(logicalPath, out, null);
+    }
+
+    /** ZIP export with filters (OPT_INCLUDE_PACKAGES, OPT_EXCLUDE_GLOBS, ...) and OPT_ZIP_*. */
+    public void streamFolderZip(String logicalPath, FileDescriptor out, android.os.Bundle filters)
+            throws RemoteException, IOException {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(out);
         try {
-            mService.streamFolderZip(logicalPath, pfd);
+            if (filters == null) {
+                mService.streamFolderZip(logicalPath, pfd);
+            } else {
+                mService.streamFolderZipWithOptions(logicalPath, pfd, filters);
+            }
         } finally {
             try { pfd.close(); } catch (IOException ignored) {}
         }
@@ -141,11 +259,16 @@ public final class MirrorMediaManager {
     // ---------------- ZIP 导出（OutputStream 版本） ----------------
     public void streamFolderZip(String logicalPath, OutputStream os)
             throws RemoteException, IOException {
+        streamFolderZip(logicalPath, os, null);
+    }
+
+    public void streamFolderZip(String logicalPath, OutputStream os, android.os.Bundle filters)
+            throws RemoteException, IOException {
 
         // 如果是 FileOutputStream，直接透传底层 FD，避免走 pipe
         if (os instanceof FileOutputStream) {
             FileDescriptor fd = ((FileOutputStream) os).getFD();
-            streamFolderZip(logicalPath, fd);
+            streamFolderZip(logicalPath, fd, filters);
             return;
         }
 
@@ -156,7 +279,11 @@ public final class MirrorMediaManager {
 
         try {
             // 把写端交给服务 / daemon
-            mService.streamFolderZip(logicalPath, writeEnd);
+            if (filters == null) {
+                mService.streamFolderZip(logicalPath, writeEnd);
+            } else {
+                mService.streamFolderZipWithOptions(logicalPath, writeEnd, filters);
+            }
         } finally {
             // 关键点：app 这边必须尽早关闭自己的写端引用，
             // 否则管道上永远还有一个 writer，read() 永远读不到 EOF。
@@ -190,6 +317,13 @@ public final class MirrorMediaManager {
     // ---------------- ZIP 导入（InputStream 版本） ----------------
     public boolean restoreFromZip(String logicalTarget, InputStream in)
             throws RemoteException, IOException {
+
+        // 从头读的 FileInputStream：直接透传 FD，daemon 原地随机访问，不走 pipe
+        if (in instanceof FileInputStream
+                && ((FileInputStream) in).getChannel().position() == 0) {
+            return restoreFromZip(logicalTarget, ((FileInputStream) in).getFD());
+        }
+
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe(); // [0]=read, [1]=write
         ParcelFileDescriptor readEnd  = pipe[0];
         ParcelFileDescriptor writeEnd = pipe[1];
@@ -231,9 +365,19 @@ public final class MirrorMediaManager {
     // ---------------- RAW 导出（FD 版本） ----------------
     public void streamFolderRaw(String logicalPath, FileDescriptor out)
             throws RemoteException, IOException {
+        streamFolderRaw(logicalPath, out, null);
+    }
+
+    /** RAW export with filters (OPT_INCLUDE_PACKAGES, OPT_EXCLUDE_GLOBS, ...). */
+    public void streamFolderRaw(String logicalPath, FileDescriptor out, android.os.Bundle filters)
+            throws RemoteException, IOException {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(out);
         try {
-            mService.streamFolderRaw(logicalPath, pfd);
+            if (filters == null) {
+                mService.streamFolderRaw(logicalPath, pfd);
+            } else {
+                mService.streamFolderRawWithOptions(logicalPath, pfd, filters);
+            }
         } finally {
             try { pfd.close(); } catch (IOException ignored) {}
         }
@@ -242,11 +386,16 @@ public final class MirrorMediaManager {
     // ---------------- RAW 导出（OutputStream 版本） ----------------
     public void streamFolderRaw(String logicalPath, OutputStream os)
             throws RemoteException, IOException {
+        streamFolderRaw(logicalPath, os, null);
+    }
+
+    public void streamFolderRaw(String logicalPath, OutputStream os, android.os.Bundle filters)
+            throws RemoteException, IOException {
 
         // 同样优先处理 FileOutputStream 直通 FD 的情况
         if (os instanceof FileOutputStream) {
             FileDescriptor fd = ((FileOutputStream) os).getFD();
-            streamFolderRaw(logicalPath, fd);
+            streamFolderRaw(logicalPath, fd, filters);
             return;
         }
 
@@ -255,7 +404,11 @@ public final class MirrorMediaManager {
         ParcelFileDescriptor writeEnd = pipe[1];
 
         try {
-            mService.streamFolderRaw(logicalPath, writeEnd);
+            if (filters == null) {
+                mService.streamFolderRaw(logicalPath, writeEnd);
+            } else {
+                mService.streamFolderRawWithOptions(logicalPath, writeEnd, filters);
+            }
         } finally {
             // 及时关闭 app 侧写端
             try { writeEnd.close(); } catch (IOException ignored) {}
@@ -287,6 +440,55 @@ public final class MirrorMediaManager {
     // ---------------- RAW 导入（InputStream 版本） ----------------
     public boolean restoreFromRaw(String logicalTarget, InputStream in)
             throws RemoteException, IOException {
+        return putRaw(logicalTarget, in, false);
+    }
+
+    // ---------------- RAW 续传 ----------------
+    //
+    // MM01 流里可以穿插检查点记录（头部与 D/F/E 相同，无 payload）：
+    //   'C' u16 pathLen, u32 0, u64 files, u64 bytes, path
+    // files/bytes 从流开头累计，path 是其前最后一个 'F'。daemon 读到 'C' 时把之前的文件落盘并记日志，
+    // 传输中断（管道断开、binder 超时、daemon 崩溃）后可用 getRawCheckpoint() 查到已落盘的位置。
+    // 'F' 的 mode 最高位（0x80000000）表示 payload 后跟 u32 CRC32；'E' 带该位时 mtime/size 为本流内
+    // 'F' payload 的总字节数与拼接 CRC32。daemon 校验不通过即中止，已落盘部分仍可续传。
+    // 'F' 的 mode 次高位（0x40000000）表示 payload 是 zstd 分块：[u32 len][len 字节]...[u32 0]，
+    // 分块拼起来是一个 zstd 帧；size 和 CRC32 仍按原始数据计算（只有 OPT_RAW_ZSTD_LEVEL 的导出会产生）。
+    // 'P' 是同一目录下的一批小文件（<= 4K，最多 512 个、共 256K）：
+    //   'P' u16 pathLen, u32 mode, u64 indexLen, u64 size, path（目录）
+    //   mode 低 16 位为文件数，高两位同 'F'；随后 index（每个文件 u16 nameLen, u16 perm, u32 mtime,
+    //   u32 size, name）和 data（各文件内容依次拼接，共 size 字节），zstd 时两者整体是一个帧；
+    //   最后 u32 CRC32(index)、u32 CRC32(data)。摘要和检查点都按其中的文件计，'C' 不会落在包中间。
+    //   CAPS_RAW_FORMATS 含 RAW_FORMAT_PACK 时才能写 'P'，否则小文件也按 'F' 发送。
+    // MM02（魔数 "MM02"）与 MM01 只差路径字段：u16 shared, u16 suffixLen 取代 u16 pathLen，
+    //   路径 = 上一条记录（任何类型）路径的前 shared 字节 + suffix。先查 CAPS_RAW_FORMATS 再用，
+    //   daemon 不支持时写 MM01。
+    //
+    // 续传时写端按与原流相同的顺序重新生成：'D' 记录照常发送，跳过前 RAW_CHECKPOINT_FILES 个 'F'
+    // （第 N 个应与 RAW_CHECKPOINT_PATH 相同，否则说明源已变化，应改用 restoreFromRaw 从头来），
+    // 之后的 'C' 仍从流开头计数。
+
+    /** Checkpoint of an interrupted RAW restore into logicalTarget; empty if none, null on error. */
+    public android.os.Bundle getRawCheckpoint(String logicalTarget) throws RemoteException {
+        return mService.getRawCheckpoint(logicalTarget);
+    }
+
+    public boolean resumeFromRaw(String logicalTarget, FileDescriptor inFd)
+            throws RemoteException, IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(inFd);
+        try {
+            return mService.resumeFromRaw(logicalTarget, pfd);
+        } finally {
+            try { pfd.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public boolean resumeFromRaw(String logicalTarget, InputStream in)
+            throws RemoteException, IOException {
+        return putRaw(logicalTarget, in, true);
+    }
+
+    private boolean putRaw(String logicalTarget, InputStream in, boolean resume)
+            throws RemoteException, IOException {
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe(); // [0]=read, [1]=write
         ParcelFileDescriptor readEnd  = pipe[0];
         ParcelFileDescriptor writeEnd = pipe[1];
@@ -313,8 +515,12 @@ public final class MirrorMediaManager {
             }, "mm-raw-writer");
             t.start();
 
-            boolean ok = mService.restoreFromRaw(logicalTarget, readEnd);
+            boolean ok = resume
+                    ? mService.resumeFromRaw(logicalTarget, readEnd)
+                    : mService.restoreFromRaw(logicalTarget, readEnd);
 
+            // daemon 中途失败时不再读管道：先关读端让写线程拿到 EPIPE 退出，否则 join 会一直等
+            try { readEnd.close(); } catch (IOException ignored) {}
             try { t.join(); } catch (InterruptedException ignored) {}
             return ok;
         } finally {
@@ -328,10 +534,11 @@ public final class MirrorMediaManager {
     // =====================================================================
 
     /**
-     * 暴力备份 SMS 数据库 (mmssms.db) 到指定文件。
+     * 备份 SMS 数据库 (mmssms.db) 的一致性快照到指定文件（含 -wal 中已提交的事务）。
+     * 同步调用，返回时文件已写完；失败返回 null，成功返回 SMS_DB_* 统计。
      */
-    public boolean backupSmsDb(java.io.File destFile) {
-        if (destFile == null) return false;
+    public android.os.Bundle backupSmsDb(java.io.File destFile) {
+        if (destFile == null) return null;
         if (destFile.getParentFile() != null) destFile.getParentFile().mkdirs();
 
         try {
@@ -344,7 +551,7 @@ public final class MirrorMediaManager {
             return mService.backupSmsDb(pfd);
         } catch (Exception e) {
             // Log.e("MirrorMediaManager", "backupSmsDb failed", e);
-            return false;
+            return null;
         }
     }
 
@@ -364,4 +571,21 @@ public final class MirrorMediaManager {
             return false;
         }
     }
+
+    /**
+     * 从 backupSmsDb() 得到的快照恢复短信，经 Telephony provider 批量插入，电话进程不重启。
+     * 只恢复 sms 表（会话由 provider 重新归并）；快照含彩信时返回 false，调用方应退回 restoreSmsDb()，
+     * 除非设置了 OPT_SMS_ONLY（彩信由 TYPE_MMS 归档另行恢复）。
+     * opts 支持 OPT_USER_ID、OPT_CLEAR_BEFORE_RESTORE（缺省 true）、OPT_SMS_ONLY（缺省 false）。
+     */
+    public boolean restoreSmsDbLive(java.io.File srcFile, android.os.Bundle opts) {
+        if (srcFile == null || !srcFile.exists()) return false;
+
+        try {
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(srcFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            return mService.restoreSmsDbLive(pfd, opts);
+        } catch (Exception e) {
+            return false;
+        }
+    }
 }
@@ -5094,6 +5094,14 @@ public abstract class Context {
     @SuppressLint("ServiceName")
     public static final String MIRROR_MEDIA_SERVICE = "mirrormedia";
 
+    /**
+     * Add by dtl
+     * Itemized, resumable backup/restore sessions, see MirrorDataManager
+     * @hide
+     */
+    @SuppressLint("ServiceName")
+    public static final String MIRROR_DATA_SERVICE = "mirrordata";
+
     /**
      * Use with {@link #getSystemService(String)} to retrieve a {@link
      * android.app.blob.BlobStoreManager} for contributing and accessing data blobs
@@ -0,0 +1,341 @@
+// frameworks/base/services/core/java/com/android/server/mirror/MirrorDaemonConnection.java
+package com.android.server.mirror;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.server.mirror.MirrorDaemonProtocol.Frame;
+import com.android.server.mirror.MirrorDaemonProtocol.Result;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared, multiplexed command channel to the native daemon "mirrormediad".
+ *
+ * One {@link LocalSocket} is reused for every command. Each request is a
+ * {@link MirrorDaemonProtocol} frame carrying an id and any number of FDs; the daemon runs
+ * requests concurrently and answers with zero or more STATUS frames followed by exactly one
+ * RESULT frame for that id.
+ *
+ * If the socket breaks (e.g. the oneshot daemon exited), pending requests fail and the next
+ * request reconnects, asking init to start the daemon again when nobody is listening.
+ */
+final class MirrorDaemonConnection {
+
+    private static final String TAG = "MirrorDaemonConnection";
+    private static final String SERVICE_NAME = "mirrormediad";
+
+    private static final int CONNECT_ATTEMPTS = 5;
+    private static final long CONNECT_RETRY_DELAY_MS = 200;
+    // 超时/中断后放弃的请求最多记这么多个, 只用于给迟到的 RESULT 打日志
+    private static final int MAX_ABANDONED = 64;
+
+    /** Receives STATUS frames for one request. Called on the reader thread. */
+    interface StatusListener {
+        void onStatus(Result status);
+    }
+
+    /** One in-flight daemon request. */
+    static final class Request {
+        final int id;
+        final String command;
+        final StatusListener listener;
+        private final MirrorDaemonConnection mOwner;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Result mResult;
+
+        Request(MirrorDaemonConnection owner, int id, String command, StatusListener listener) {
+            mOwner = owner;
+            this.id = id;
+            this.command = command;
+            this.listener = listener;
+        }
+
+        synchronized void complete(Result result) {
+            if (mResult != null) return;
+            mResult = result;
+            mDone.countDown();
+        }
+
+        boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Wait for the daemon's RESULT. A broken connection or timeout yields
+         * {@link MirrorDaemonProtocol#ERR_DISCONNECTED}. A timeout of 0 or less waits forever.
+         * A request that times out or is interrupted is abandoned: it leaves the pending table
+         * and a RESULT the daemon sends later is only logged.
+         */
+        Result awaitResult(long timeoutMs) {
+            try {
+                if (timeoutMs > 0) {
+                    if (!mDone.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                        Slog.w(TAG, "request " + id + " timed out: " + command);
+                        return abandon("timeout");
+                    }
+                } else {
+                    mDone.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return abandon("interrupted");
+            }
+            return mResult;
+        }
+
+        private Result abandon(String reason) {
+            mOwner.abandon(this);
+            // RESULT 可能恰好在超时和 abandon() 之间到达, 那就用真实结果
+            complete(Result.disconnected(id, reason));
+            return mResult;
+        }
+
+        /** Same as {@link #awaitResult} but only reports success. */
+        boolean await(long timeoutMs) {
+            final Result r = awaitResult(timeoutMs);
+            if (!r.ok()) {
+                Slog.w(TAG, command + " failed: " + r);
+            }
+            return r.ok();
+        }
+    }
+
+    private final String mSocketName;
+    private final Object mLock = new Object();
+    // Serializes (re)connects, including the retry sleeps, so they never run under mLock.
+    // Lock order: mConnectLock before mLock.
+    private final Object mConnectLock = new Object();
+
+    // Guarded by mLock
+    private LocalSocket mSocket;
+    private OutputStream mOut;
+    private final SparseArray<Request> mPending = new SparseArray<>();
+    // id -> command of requests abandoned by their caller, for logging late RESULTs
+    private final SparseArray<String> mAbandoned = new SparseArray<>();
+    private int mNextId = 1;
+
+    MirrorDaemonConnection(String socketName) {
+        mSocketName = socketName;
+    }
+
+    /**
+     * Send one request frame without waiting for its completion. The request id and FD count
+     * are filled in here. FDs are duplicated into the daemon by the kernel, so callers may
+     * close their copies as soon as this returns.
+     */
+    Request submit(Frame frame, FileDescriptor[] fds, StatusListener listener)
+            throws IOException {
+        final int nfds = (fds != null) ? fds.length : 0;
+        final int id;
+        synchronized (mLock) {
+            id = mNextId++;
+            if (mNextId <= 0) mNextId = 1;
+        }
+        frame.requestId = id;
+        frame.fdCount = nfds;
+        if (listener != null) {
+            frame.flags |= MirrorDaemonProtocol.FLAG_WANT_STATUS;
+        }
+        final String command = frame.toString();
+        final Request req = new Request(this, id, command, listener);
+        final byte[] bytes = MirrorDaemonProtocol.encode(frame);
+
+        IOException last = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final LocalSocket socket = ensureConnected();
+            synchronized (mLock) {
+                if (mSocket != socket) {
+                    // 连接在拿到之后又断了 (reader 线程已清理), 重连再试
+                    last = new IOException("connection lost before send");
+                    continue;
+                }
+                try {
+                    mPending.put(id, req);
+                    mSocket.setFileDescriptorsForSend(nfds > 0 ? fds : null);
+                    try {
+                        // One write() so the FDs ride on the first bytes of this frame.
+                        mOut.write(bytes);
+                        mOut.flush();
+                    } finally {
+                        // LocalSocket re-sends pending FDs on every write until cleared.
+                        mSocket.setFileDescriptorsForSend(null);
+                    }
+                    return req;
+                } catch (IOException e) {
+                    last = e;
+                    mPending.remove(id);
+                    Slog.w(TAG, "send failed (attempt " + attempt + "), reconnecting: " + command, e);
+                    disconnectLocked();
+                }
+            }
+        }
+        throw last;
+    }
+
+    /** Send one request and block until the daemon reports its RESULT. */
+    Result call(Frame frame, FileDescriptor[] fds, long timeoutMs) {
+        try {
+            return submit(frame, fds, null).awaitResult(timeoutMs);
+        } catch (IOException e) {
+            Slog.e(TAG, "daemon call failed: " + frame, e);
+            return Result.disconnected(frame.requestId, e.getMessage());
+        }
+    }
+
+    /**
+     * Return the live socket, connecting first if needed. The connect attempts and retry
+     * sleeps run under {@link #mConnectLock} only, so the reader thread and in-flight
+     * requests are never blocked behind a reconnect; the new socket is published under
+     * {@link #mLock}.
+     */
+    private LocalSocket ensureConnected() throws IOException {
+        synchronized (mConnectLock) {
+            synchronized (mLock) {
+                if (mSocket != null) return mSocket;
+            }
+
+            IOException last = null;
+            for (int i = 0; i < CONNECT_ATTEMPTS; i++) {
+                final LocalSocket socket = new LocalSocket();
+                try {
+                    socket.connect(new LocalSocketAddress(mSocketName,
+                            LocalSocketAddress.Namespace.ABSTRACT));
+                    final OutputStream out = socket.getOutputStream();
+                    synchronized (mLock) {
+                        mSocket = socket;
+                        mOut = out;
+                        startReaderLocked(socket);
+                    }
+                    Slog.i(TAG, "connected to @" + mSocketName);
+                    return socket;
+                } catch (IOException e) {
+                    last = e;
+                    try { socket.close(); } catch (IOException ignored) {}
+                    synchronized (mLock) {
+                        if (mSocket == socket) {
+                            mSocket = null;
+                            mOut = null;
+                        }
+                    }
+                    // Nobody listening: the oneshot daemon has exited, ask init to start it again.
+                    if (i == 0) {
+                        Slog.w(TAG, "connect failed, starting " + SERVICE_NAME);
+                        try {
+                            SystemProperties.set("ctl.start", SERVICE_NAME);
+                        } catch (RuntimeException re) {
+                            Slog.w(TAG, "ctl.start " + SERVICE_NAME + " failed", re);
+                        }
+                    }
+                    SystemClock.sleep(CONNECT_RETRY_DELAY_MS * (i + 1));
+                }
+            }
+            throw last;
+        }
+    }
+
+    private void startReaderLocked(final LocalSocket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final Thread t = new Thread(() -> readLoop(socket, in), "mirrormediad-reader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void readLoop(LocalSocket socket, InputStream in) {
+        try {
+            Frame f;
+            while ((f = MirrorDaemonProtocol.read(in)) != null) {
+                dispatch(f);
+            }
+            Slog.w(TAG, "daemon closed the connection");
+        } catch (IOException e) {
+            // Includes ProtocolException: framing is lost, the connection cannot be reused.
+            Slog.w(TAG, "daemon connection broken", e);
+        } finally {
+            synchronized (mLock) {
+                if (mSocket == socket) {
+                    disconnectLocked();
+                }
+            }
+        }
+    }
+
+    private void dispatch(Frame f) {
+        final boolean isStatus = f.opcode == MirrorDaemonProtocol.RSP_STATUS;
+        if (!isStatus && f.opcode != MirrorDaemonProtocol.RSP_RESULT) {
+            Slog.w(TAG, "unexpected frame from daemon: " + f);
+            return;
+        }
+
+        final Request req;
+        String abandoned = null;
+        synchronized (mLock) {
+            req = mPending.get(f.requestId);
+            if (req != null && !isStatus) {
+                mPending.remove(f.requestId);
+            } else if (req == null) {
+                abandoned = mAbandoned.get(f.requestId);
+                if (abandoned != null && !isStatus) {
+                    mAbandoned.remove(f.requestId);
+                }
+            }
+        }
+        if (req == null) {
+            if (abandoned == null) {
+                Slog.w(TAG, "response for unknown request: " + f);
+            } else if (!isStatus) {
+                Slog.w(TAG, "late result for abandoned request " + f.requestId + " ("
+                        + abandoned + "): " + Result.from(f));
+            }
+            return;
+        }
+
+        final Result r = Result.from(f);
+        if (isStatus) {
+            if (req.listener != null) {
+                req.listener.onStatus(r);
+            }
+        } else {
+            req.complete(r);
+        }
+    }
+
+    /** Drop a request whose caller stopped waiting (timeout or interrupt). */
+    private void abandon(Request req) {
+        synchronized (mLock) {
+            if (mPending.get(req.id) != req) return;  // already answered or failed
+            mPending.remove(req.id);
+            if (mAbandoned.size() >= MAX_ABANDONED) {
+                mAbandoned.removeAt(0);
+            }
+            mAbandoned.put(req.id, req.command);
+        }
+    }
+
+    private void disconnectLocked() {
+        if (mSocket != null) {
+            try { mSocket.close(); } catch (IOException ignored) {}
+        }
+        mSocket = null;
+        mOut = null;
+        // Anything still pending will never be answered on this connection.
+        for (int i = 0; i < mPending.size(); i++) {
+            final Request req = mPending.valueAt(i);
+            Slog.w(TAG, "failing pending request " + req.id + ": " + req.command);
+            req.complete(Result.disconnected(req.id, "connection lost"));
+        }
+        mPending.clear();
+        // Late RESULTs can only arrive on the connection that carried the request.
+        mAbandoned.clear();
+    }
+}
@@ -0,0 +1,419 @@
+// frameworks/base/services/core/java/com/android/server/mirror/MirrorDaemonProtocol.java
+package com.android.server.mirror;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary framing spoken with mirrormediad. Pure Java (streams and byte arrays only), so it
+ * can be exercised against a local stand-in without a device.
+ *
+ * All integers are little-endian, same as the MM01 raw stream:
+ *
+ * <pre>
+ *   u32 len                  bytes that follow this field
+ *   u8  version              {@link #VERSION}
+ *   u8  opcode               OP_* (request) / RSP_* (response)
+ *   u16 flags                FLAG_*
+ *   u32 requestId
+ *   u8  fdCount              FDs sent via SCM_RIGHTS together with this frame
+ *   u8  reserved
+ *   TLV*                     u16 tag, u32 len, value; a tag may repeat
+ * </pre>
+ *
+ * Each request is answered by zero or more {@link #RSP_STATUS} frames and exactly one
+ * {@link #RSP_RESULT} frame carrying the same requestId.
+ */
+final class MirrorDaemonProtocol {
+
+    private MirrorDaemonProtocol() {}
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 10;                 // version .. reserved
+    static final int MAX_FRAME_SIZE = 1024 * 1024;     // daemon 侧同样的上限
+    static final int MAX_FDS = 8;
+
+    // ---- request opcodes ----
+    static final int OP_ZIP = 1;
+    static final int OP_UNZIP = 2;
+    static final int OP_DUMP = 3;
+    static final int OP_PUTRAW = 4;
+    static final int OP_BACKUP_SMS_DB = 5;
+    static final int OP_RESTORE_SMS_DB = 6;
+    static final int OP_SCAN = 7;          // metadata only, no FD
+    static final int OP_BLACKLIST = 8;     // daemon's package blacklists, no FD
+    static final int OP_CHECKPOINT = 9;    // PUTRAW checkpoint journal of a target, no FD
+    static final int OP_CAPS = 10;         // stream formats the daemon accepts, no FD
+
+    // ---- response opcodes ----
+    static final int RSP_RESULT = 0x80;
+    static final int RSP_STATUS = 0x81;
+
+    // ---- flags ----
+    /** Request: send RSP_STATUS progress frames while running. */
+    static final int FLAG_WANT_STATUS = 1;
+
+    // ---- TLV tags: arguments ----
+    static final int TAG_PATH = 1;       // utf-8 logical path
+    static final int TAG_UID = 2;        // u32 target uid
+    static final int TAG_INCLUDE_PKG = 3;    // utf-8, repeated
+    static final int TAG_EXCLUDE_PKG = 4;    // utf-8, repeated
+    static final int TAG_INCLUDE_GLOB = 5;   // utf-8, repeated; a file must match one
+    static final int TAG_EXCLUDE_GLOB = 6;   // utf-8, repeated; prunes whole directories
+    static final int TAG_MAX_FILE_SIZE = 7;  // u64, 0 = no limit
+    static final int TAG_RESUME = 8;         // u32 != 0: PUTRAW continues from the journal
+    static final int TAG_ZIP_LEVEL = 9;      // u32 0-9 deflate level, absent = zlib default
+    static final int TAG_ZIP_AUTO = 10;      // u32 != 0: store files whose first block won't compress
+    static final int TAG_RAW_ZSTD_LEVEL = 11; // u32 zstd level for DUMP 'F' payloads, absent = plain
+    static final int TAG_RAW_ZSTD_LONG = 12;  // u32 != 0: zstd long distance matching
+    static final int TAG_ZIP_THREADS = 13;    // u32 parallel deflate workers, 0 = auto, absent = 1
+    static final int TAG_RAW_PACK = 14;       // u32 != 0: DUMP packs small files into 'P' records
+
+    // ---- TLV tags: results / status ----
+    static final int TAG_ERROR = 0x10;   // u32 ERR_*
+    static final int TAG_BYTES = 0x11;   // u64 payload bytes processed
+    static final int TAG_FILES = 0x12;   // u64 files processed
+    static final int TAG_MESSAGE = 0x13; // utf-8 human readable detail
+    static final int TAG_ERRNO = 0x14;   // u32 errno of the failing syscall, if any
+    static final int TAG_DIRS = 0x15;    // u64 directories walked (SCAN)
+    /** Repeated (SCAN): u64 files, u64 bytes, utf-8 package / top-level directory name. */
+    static final int TAG_GROUP_STAT = 0x16;
+    static final int TAG_BLACKLIST_INTERNAL = 0x17; // utf-8, repeated (BLACKLIST)
+    static final int TAG_BLACKLIST_EXTERNAL = 0x18; // utf-8, repeated (BLACKLIST)
+    static final int TAG_BLACKLIST_VERSION = 0x19;  // u32 stamp of the list contents
+    static final int TAG_CKPT_FILES = 0x1A;  // u64 'F' records durable, counted from stream start
+    static final int TAG_CKPT_BYTES = 0x1B;  // u64 payload bytes of those files
+    static final int TAG_CKPT_PATH = 0x1C;   // utf-8 relative path of the last durable file
+    static final int TAG_RAW_FORMAT = 0x1D;  // utf-8, repeated: stream magics PUTRAW accepts (CAPS)
+    static final int TAG_DB_PAGES = 0x1E;      // u32 pages in the database snapshot (BACKUP_SMS_DB)
+    static final int TAG_DB_PAGE_SIZE = 0x1F;  // u32 page size of that snapshot
+
+    // ---- error codes ----
+    static final int ERR_NONE = 0;
+    static final int ERR_FAILED = 1;       // generic failure, see TAG_MESSAGE / logcat
+    static final int ERR_BAD_REQUEST = 2;  // malformed frame, missing argument or FD
+    static final int ERR_UNKNOWN_OP = 3;
+    static final int ERR_VERSION = 4;
+    static final int ERR_IO = 5;
+    static final int ERR_PATH = 6;         // logical path not allowed / not mapped
+    /** Local only: the connection broke or the wait timed out before a RESULT arrived. */
+    static final int ERR_DISCONNECTED = -1;
+
+    static String opName(int op) {
+        switch (op) {
+            case OP_ZIP: return "ZIP";
+            case OP_UNZIP: return "UNZIP";
+            case OP_DUMP: return "DUMP";
+            case OP_PUTRAW: return "PUTRAW";
+            case OP_BACKUP_SMS_DB: return "BACKUP_SMS_DB";
+            case OP_RESTORE_SMS_DB: return "RESTORE_SMS_DB";
+            case OP_SCAN: return "SCAN";
+            case OP_BLACKLIST: return "BLACKLIST";
+            case OP_CHECKPOINT: return "CHECKPOINT";
+            case OP_CAPS: return "CAPS";
+            case RSP_RESULT: return "RESULT";
+            case RSP_STATUS: return "STATUS";
+            default: return "OP" + op;
+        }
+    }
+
+    /** One TLV entry. */
+    static final class Tlv {
+        final int tag;
+        final byte[] value;
+
+        Tlv(int tag, byte[] value) {
+            this.tag = tag;
+            this.value = value;
+        }
+    }
+
+    /** One frame, request or response. */
+    static final class Frame {
+        int version = VERSION;
+        int opcode;
+        int flags;
+        int requestId;
+        int fdCount;
+        final List<Tlv> tlvs = new ArrayList<>();
+
+        Frame() {}
+
+        Frame(int opcode) {
+            this.opcode = opcode;
+        }
+
+        Frame putBytes(int tag, byte[] value) {
+            tlvs.add(new Tlv(tag, value));
+            return this;
+        }
+
+        Frame putString(int tag, String value) {
+            return putBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Frame putInt(int tag, int value) {
+            final byte[] b = new byte[4];
+            putLe(b, 0, value, 4);
+            return putBytes(tag, b);
+        }
+
+        Frame putLong(int tag, long value) {
+            final byte[] b = new byte[8];
+            putLe(b, 0, value, 8);
+            return putBytes(tag, b);
+        }
+
+        /** First value for tag, or null. */
+        byte[] getBytes(int tag) {
+            for (Tlv t : tlvs) {
+                if (t.tag == tag) return t.value;
+            }
+            return null;
+        }
+
+        /** All values for a repeated tag, in order. */
+        List<byte[]> getAll(int tag) {
+            final List<byte[]> out = new ArrayList<>();
+            for (Tlv t : tlvs) {
+                if (t.tag == tag) out.add(t.value);
+            }
+            return out;
+        }
+
+        String getString(int tag) {
+            final byte[] b = getBytes(tag);
+            return (b == null) ? null : new String(b, StandardCharsets.UTF_8);
+        }
+
+        /** All values for a repeated utf-8 tag, in order. */
+        String[] getStrings(int tag) {
+            final List<byte[]> all = getAll(tag);
+            final String[] out = new String[all.size()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = new String(all.get(i), StandardCharsets.UTF_8);
+            }
+            return out;
+        }
+
+        int getInt(int tag, int def) {
+            final byte[] b = getBytes(tag);
+            return (b == null || b.length < 4) ? def : (int) getLe(b, 0, 4);
+        }
+
+        long getLong(int tag, long def) {
+            final byte[] b = getBytes(tag);
+            if (b == null) return def;
+            if (b.length >= 8) return getLe(b, 0, 8);
+            if (b.length >= 4) return getLe(b, 0, 4) & 0xffffffffL;
+            return def;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(opName(opcode)).append(" id=").append(requestId);
+            if (flags != 0) sb.append(" flags=0x").append(Integer.toHexString(flags));
+            if (fdCount != 0) sb.append(" fds=").append(fdCount);
+            final String path = getString(TAG_PATH);
+            if (path != null) sb.append(" path=").append(path);
+            final byte[] uid = getBytes(TAG_UID);
+            if (uid != null) sb.append(" uid=").append(getInt(TAG_UID, -1));
+            return sb.toString();
+        }
+    }
+
+    /** Structured view of a RSP_RESULT / RSP_STATUS frame. */
+    static final class Result {
+        final int requestId;
+        final int error;
+        final int errno;
+        final long bytes;
+        final long files;
+        final String message;
+        /** The frame this was parsed from, for op-specific TLVs; null if never received. */
+        final Frame frame;
+
+        Result(int requestId, int error, int errno, long bytes, long files, String message,
+                Frame frame) {
+            this.requestId = requestId;
+            this.error = error;
+            this.errno = errno;
+            this.bytes = bytes;
+            this.files = files;
+            this.message = message;
+            this.frame = frame;
+        }
+
+        static Result from(Frame f) {
+            return new Result(f.requestId,
+                    f.getInt(TAG_ERROR, f.opcode == RSP_RESULT ? ERR_FAILED : ERR_NONE),
+                    f.getInt(TAG_ERRNO, 0),
+                    f.getLong(TAG_BYTES, 0),
+                    f.getLong(TAG_FILES, 0),
+                    f.getString(TAG_MESSAGE),
+                    f);
+        }
+
+        static Result disconnected(int requestId, String why) {
+            return new Result(requestId, ERR_DISCONNECTED, 0, 0, 0, why, null);
+        }
+
+        boolean ok() {
+            return error == ERR_NONE;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("id=").append(requestId)
+                    .append(" err=").append(error)
+                    .append(" files=").append(files)
+                    .append(" bytes=").append(bytes);
+            if (errno != 0) sb.append(" errno=").append(errno);
+            if (message != null) sb.append(" msg=").append(message);
+            return sb.toString();
+        }
+    }
+
+    /** One TAG_GROUP_STAT entry of a SCAN result. */
+    static final class GroupStat {
+        final String name;
+        final long files;
+        final long bytes;
+
+        GroupStat(String name, long files, long bytes) {
+            this.name = name;
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        static GroupStat decode(byte[] v) throws ProtocolException {
+            if (v.length < 16) {
+                throw new ProtocolException("short group stat: " + v.length);
+            }
+            return new GroupStat(new String(v, 16, v.length - 16, StandardCharsets.UTF_8),
+                    getLe(v, 0, 8), getLe(v, 8, 8));
+        }
+    }
+
+    // ================== encode / decode ==================
+
+    /** Encode a frame including its leading u32 length. */
+    static byte[] encode(Frame f) throws ProtocolException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        final byte[] hdr = new byte[4 + HEADER_SIZE];
+        bos.write(hdr, 0, hdr.length); // placeholder, patched below
+
+        final byte[] tl = new byte[6];
+        for (Tlv t : f.tlvs) {
+            putLe(tl, 0, t.tag, 2);
+            putLe(tl, 2, t.value.length, 4);
+            bos.write(tl, 0, tl.length);
+            bos.write(t.value, 0, t.value.length);
+        }
+
+        final byte[] out = bos.toByteArray();
+        final int len = out.length - 4;
+        if (len > MAX_FRAME_SIZE) {
+            throw new ProtocolException("frame too large: " + len);
+        }
+        if (f.fdCount < 0 || f.fdCount > MAX_FDS) {
+            throw new ProtocolException("bad fd count: " + f.fdCount);
+        }
+        putLe(out, 0, len, 4);
+        out[4] = (byte) f.version;
+        out[5] = (byte) f.opcode;
+        putLe(out, 6, f.flags, 2);
+        putLe(out, 8, f.requestId, 4);
+        out[12] = (byte) f.fdCount;
+        out[13] = 0;
+        return out;
+    }
+
+    /**
+     * Read one frame. Returns null on a clean EOF before the first byte; throws on a
+     * truncated or malformed frame.
+     */
+    static Frame read(InputStream in) throws IOException {
+        final byte[] lenBuf = new byte[4];
+        final int first = in.read(lenBuf, 0, 4);
+        if (first < 0) return null;
+        readFully(in, lenBuf, first, 4 - first);
+
+        final long len = getLe(lenBuf, 0, 4) & 0xffffffffL;
+        if (len < HEADER_SIZE || len > MAX_FRAME_SIZE) {
+            throw new ProtocolException("bad frame length: " + len);
+        }
+        final byte[] body = new byte[(int) len];
+        readFully(in, body, 0, body.length);
+        return decodeBody(body);
+    }
+
+    /** Decode a frame body (everything after the u32 length). */
+    static Frame decodeBody(byte[] body) throws ProtocolException {
+        if (body.length < HEADER_SIZE) {
+            throw new ProtocolException("short frame: " + body.length);
+        }
+        final Frame f = new Frame();
+        f.version = body[0] & 0xff;
+        f.opcode = body[1] & 0xff;
+        f.flags = (int) getLe(body, 2, 2) & 0xffff;
+        f.requestId = (int) getLe(body, 4, 4);
+        f.fdCount = body[8] & 0xff;
+        if (f.version != VERSION) {
+            throw new ProtocolException("unsupported protocol version " + f.version);
+        }
+
+        int p = HEADER_SIZE;
+        while (p < body.length) {
+            if (body.length - p < 6) {
+                throw new ProtocolException("truncated TLV header at " + p);
+            }
+            final int tag = (int) getLe(body, p, 2) & 0xffff;
+            final long vlen = getLe(body, p + 2, 4) & 0xffffffffL;
+            p += 6;
+            if (vlen > body.length - p) {
+                throw new ProtocolException("TLV " + tag + " overruns frame");
+            }
+            final byte[] v = new byte[(int) vlen];
+            System.arraycopy(body, p, v, 0, v.length);
+            f.tlvs.add(new Tlv(tag, v));
+            p += v.length;
+        }
+        return f;
+    }
+
+    // ================== little-endian helpers ==================
+
+    private static void putLe(byte[] b, int off, long v, int n) {
+        for (int i = 0; i < n; i++) {
+            b[off + i] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    private static long getLe(byte[] b, int off, int n) {
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            v |= (long) (b[off + i] & 0xff) << (8 * i);
+        }
+        if (n == 4) v = (int) v;   // sign-extend like a Java int
+        return v;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = in.read(b, off, len);
+            if (n < 0) throw new EOFException("EOF inside frame");
+            off += n;
+            len -= n;
+        }
+    }
+}
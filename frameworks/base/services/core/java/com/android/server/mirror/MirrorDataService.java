@@ -0,0 +1,783 @@
+// frameworks/base/services/core/java/com/android/server/mirror/MirrorDataService.java
+package com.android.server.mirror;
+
+import android.app.mirror.IMirrorDataService;
+import android.app.mirror.IMirrorMediaService;
+import android.app.mirror.MirrorDataManager;
+import android.app.mirror.MirrorMediaManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.CalendarContract;
+import android.provider.CallLog;
+import android.provider.ContactsContract;
+import android.provider.Telephony;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Session-based, itemized backup/restore ({@link IMirrorDataService}).
+ *
+ * Reuses the existing code paths instead of new formats:
+ * - sms/calllog/calendar/contacts: one item is an _id window [idMin, idMax) exported by
+ *   {@link IMirrorMediaService#backupPersonalData} (same zip layout, manifest records the window);
+ * - app/appext: one item per package, a daemon ZIP of /data/data/<pkg> (or /sdcard/Android/data);
+ * - media: one item per folder (DCIM, Pictures), a daemon ZIP restored as media_rw.
+ *
+ * Item ids only depend on the data (window bounds, package or folder name), so a client that
+ * lost a session can open a new one and transfer just what is missing.
+ */
+final class MirrorDataService extends IMirrorDataService.Stub {
+
+    private static final String TAG = "MirrorDataService";
+
+    private static final int MAX_SESSIONS = 8;
+    // 客户端崩溃后不会调用 end*Session，闲置超过该时间的会话在下次 begin 时回收
+    private static final long SESSION_IDLE_MS = 6 * 60 * 60 * 1000;
+
+    private static final String APP_ROOT = "/data/data";
+    private static final String APP_EXT_ROOT = "/sdcard/Android/data";
+
+    private static final String MEDIA_DCIM = "dcim";
+    private static final String MEDIA_PICTURES = "pictures";
+
+    private final Context mContext;
+    private final IMirrorMediaService mMedia;
+    private final MirrorDaemonConnection mDaemon;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final ArrayMap<String, Session> mSessions = new ArrayMap<>();
+
+    /** One item as listed or transferred in a session. Fields guarded by mLock. */
+    private static final class Item {
+        final String category;
+        final String id;
+        Bundle meta;
+        int state = MirrorDataManager.STATE_PENDING;
+        int attempts;
+        String error;
+
+        Item(String category, String id) {
+            this.category = category;
+            this.id = id;
+        }
+    }
+
+    private static final class Session {
+        final String id;
+        final boolean restore;
+        final int userId;
+        final int ownerUid;
+        final Bundle options;
+        long lastUsedMs;
+
+        // Guarded by mLock; key = category + "/" + itemId
+        final ArrayMap<String, Item> items = new ArrayMap<>();
+        // Restore: categories already cleared for OPT_CLEAR_BEFORE_RESTORE
+        final ArraySet<String> cleared = new ArraySet<>();
+
+        Session(String id, boolean restore, int userId, int ownerUid, Bundle options) {
+            this.id = id;
+            this.restore = restore;
+            this.userId = userId;
+            this.ownerUid = ownerUid;
+            this.options = options;
+        }
+
+        int itemRows() {
+            final int rows = options.getInt(MirrorDataManager.OPT_ITEM_ROWS,
+                    MirrorDataManager.DEFAULT_ITEM_ROWS);
+            return (rows > 0) ? rows : MirrorDataManager.DEFAULT_ITEM_ROWS;
+        }
+
+        @Override
+        public String toString() {
+            return (restore ? "restore " : "backup ") + id + " user=" + userId;
+        }
+    }
+
+    MirrorDataService(Context context, IMirrorMediaService media, MirrorDaemonConnection daemon) {
+        mContext = context;
+        mMedia = media;
+        mDaemon = daemon;
+    }
+
+    // =====================================================================
+    //  Sessions
+    // =====================================================================
+
+    @Override
+    public String beginBackupSession(int userId, Bundle options) {
+        return beginSession(false, userId, options);
+    }
+
+    @Override
+    public void endBackupSession(String sessionId) {
+        endSession(sessionId, false);
+    }
+
+    @Override
+    public String beginRestoreSession(int userId, Bundle options) {
+        return beginSession(true, userId, options);
+    }
+
+    @Override
+    public void endRestoreSession(String sessionId) {
+        endSession(sessionId, true);
+    }
+
+    private String beginSession(boolean restore, int userId, Bundle options) {
+        final Session s = new Session(UUID.randomUUID().toString(), restore, userId,
+                Binder.getCallingUid(), (options != null) ? new Bundle(options) : new Bundle());
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            for (int i = mSessions.size() - 1; i >= 0; i--) {
+                final Session old = mSessions.valueAt(i);
+                if (now - old.lastUsedMs > SESSION_IDLE_MS) {
+                    Slog.w(TAG, "dropping idle session " + old);
+                    mSessions.removeAt(i);
+                }
+            }
+            if (mSessions.size() >= MAX_SESSIONS) {
+                throw new IllegalStateException("too many mirror data sessions");
+            }
+            s.lastUsedMs = now;
+            mSessions.put(s.id, s);
+        }
+        Slog.i(TAG, "begin " + s + " uid=" + s.ownerUid + " options=" + options);
+        return s.id;
+    }
+
+    private void endSession(String sessionId, boolean restore) {
+        final Session s = getSession(sessionId, restore);
+        int done = 0;
+        int failed = 0;
+        synchronized (mLock) {
+            mSessions.remove(s.id);
+            for (int i = 0; i < s.items.size(); i++) {
+                final int state = s.items.valueAt(i).state;
+                if (state == MirrorDataManager.STATE_DONE) done++;
+                else if (state == MirrorDataManager.STATE_FAILED) failed++;
+            }
+        }
+        Slog.i(TAG, "end " + s + ": items=" + s.items.size() + " done=" + done
+                + " failed=" + failed);
+    }
+
+    /** Looks up a session owned by the caller; throws for unknown ids or the wrong kind. */
+    private Session getSession(String sessionId, boolean restore) {
+        final Session s;
+        synchronized (mLock) {
+            s = mSessions.get(sessionId);
+            if (s != null) s.lastUsedMs = SystemClock.elapsedRealtime();
+        }
+        if (s == null) {
+            throw new IllegalArgumentException("unknown session " + sessionId);
+        }
+        if (s.ownerUid != Binder.getCallingUid()) {
+            throw new SecurityException("session " + sessionId + " belongs to uid " + s.ownerUid);
+        }
+        if (s.restore != restore) {
+            throw new IllegalArgumentException("session " + sessionId + " is not a "
+                    + (restore ? "restore" : "backup") + " session");
+        }
+        return s;
+    }
+
+    private Session getAnySession(String sessionId) {
+        final Session s;
+        synchronized (mLock) {
+            s = mSessions.get(sessionId);
+        }
+        if (s == null) {
+            throw new IllegalArgumentException("unknown session " + sessionId);
+        }
+        return getSession(sessionId, s.restore);
+    }
+
+    // =====================================================================
+    //  Item state
+    // =====================================================================
+
+    private Item itemLocked(Session s, String category, String itemId) {
+        final String key = category + "/" + itemId;
+        Item it = s.items.get(key);
+        if (it == null) {
+            it = new Item(category, itemId);
+            s.items.put(key, it);
+        }
+        return it;
+    }
+
+    /** Marks an item running; false if another call is already transferring it. */
+    private boolean startItem(Session s, String category, String itemId) {
+        synchronized (mLock) {
+            final Item it = itemLocked(s, category, itemId);
+            if (it.state == MirrorDataManager.STATE_RUNNING) {
+                Slog.w(TAG, s.id + ": " + category + "/" + itemId + " is already running");
+                return false;
+            }
+            it.state = MirrorDataManager.STATE_RUNNING;
+            it.attempts++;
+            it.error = null;
+            return true;
+        }
+    }
+
+    private void finishItem(Session s, String category, String itemId, boolean ok, String error) {
+        synchronized (mLock) {
+            final Item it = itemLocked(s, category, itemId);
+            it.state = ok ? MirrorDataManager.STATE_DONE : MirrorDataManager.STATE_FAILED;
+            it.error = ok ? null : error;
+        }
+        if (ok) {
+            Slog.i(TAG, s.id + ": " + category + "/" + itemId + " done");
+        } else {
+            Slog.w(TAG, s.id + ": " + category + "/" + itemId + " failed: " + error);
+        }
+    }
+
+    private Bundle describeLocked(Item it) {
+        final Bundle b = (it.meta != null) ? new Bundle(it.meta) : new Bundle();
+        b.putString(MirrorDataManager.ITEM_ID, it.id);
+        b.putString(MirrorDataManager.ITEM_CATEGORY, it.category);
+        b.putInt(MirrorDataManager.ITEM_STATE, it.state);
+        b.putInt(MirrorDataManager.ITEM_ATTEMPTS, it.attempts);
+        if (it.error != null) {
+            b.putString(MirrorDataManager.ITEM_ERROR, it.error);
+        }
+        return b;
+    }
+
+    @Override
+    public List<Bundle> getSessionItems(String sessionId) {
+        final Session s = getAnySession(sessionId);
+        final List<Bundle> out = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < s.items.size(); i++) {
+                out.add(describeLocked(s.items.valueAt(i)));
+            }
+        }
+        return out;
+    }
+
+    // =====================================================================
+    //  Listing
+    // =====================================================================
+
+    @Override
+    public List<Bundle> listItems(String sessionId, String category) {
+        final Session s = getSession(sessionId, false);
+        Slog.i(TAG, s.id + ": listItems " + category);
+
+        List<Bundle> listed;
+        final long token = Binder.clearCallingIdentity();
+        try {
+            listed = listCategory(s, category);
+        } catch (RemoteException e) {
+            // In-process call into the media binder; only its own failures end up here.
+            Slog.e(TAG, "listItems " + category + " failed", e);
+            listed = new ArrayList<>();
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+
+        final List<Bundle> out = new ArrayList<>(listed.size());
+        synchronized (mLock) {
+            for (Bundle meta : listed) {
+                final Item it = itemLocked(s, category,
+                        meta.getString(MirrorDataManager.ITEM_ID));
+                it.meta = meta;
+                out.add(describeLocked(it));
+            }
+        }
+        Slog.i(TAG, s.id + ": " + category + " -> " + out.size() + " items");
+        return out;
+    }
+
+    private List<Bundle> listCategory(Session s, String category) throws RemoteException {
+        if (isPersonalCategory(category)) {
+            return listRowWindows(s, category);
+        }
+        if (MirrorDataManager.CATEGORY_APP.equals(category)) {
+            return listPackages(s, APP_ROOT);
+        }
+        if (MirrorDataManager.CATEGORY_APP_EXTERNAL.equals(category)) {
+            return listPackages(s, APP_EXT_ROOT);
+        }
+        if (category != null && category.startsWith(MirrorDataManager.CATEGORY_APP_PREFIX)) {
+            final String pkg = packageOf(category);
+            final Bundle b = fileItem(pkg, APP_ROOT + "/" + pkg, -1, -1);
+            final Bundle stat = mMedia.scan(APP_ROOT + "/" + pkg, s.options);
+            if (stat != null) {
+                b.putLong(MirrorDataManager.ITEM_SIZE,
+                        stat.getLong(MirrorMediaManager.SCAN_TOTAL_BYTES));
+                b.putLong(MirrorDataManager.ITEM_COUNT,
+                        stat.getLong(MirrorMediaManager.SCAN_FILE_COUNT));
+            }
+            final List<Bundle> out = new ArrayList<>(1);
+            out.add(b);
+            return out;
+        }
+        if (MirrorDataManager.CATEGORY_MEDIA.equals(category)) {
+            final List<Bundle> out = new ArrayList<>(2);
+            for (String id : new String[]{MEDIA_DCIM, MEDIA_PICTURES}) {
+                final String path = mediaPath(id);
+                final Bundle stat = mMedia.scan(path, null);
+                if (stat == null) continue; // folder missing or unreadable
+                out.add(fileItem(id, path, stat.getLong(MirrorMediaManager.SCAN_TOTAL_BYTES),
+                        stat.getLong(MirrorMediaManager.SCAN_FILE_COUNT)));
+            }
+            return out;
+        }
+        // settings 等类别暂无可复用的导出路径
+        Slog.w(TAG, "listItems: unsupported category " + category);
+        return new ArrayList<>();
+    }
+
+    private static Bundle fileItem(String id, String path, long size, long count) {
+        final Bundle b = new Bundle();
+        b.putString(MirrorDataManager.ITEM_ID, id);
+        b.putString(MirrorDataManager.ITEM_PATH, path);
+        b.putLong(MirrorDataManager.ITEM_SIZE, size);
+        b.putLong(MirrorDataManager.ITEM_COUNT, count);
+        return b;
+    }
+
+    /** One item per scan group: the daemon groups app data by package. */
+    private List<Bundle> listPackages(Session s, String root) throws RemoteException {
+        final List<Bundle> out = new ArrayList<>();
+        final Bundle stat = mMedia.scan(root, s.options);
+        if (stat == null) {
+            Slog.w(TAG, "listItems: scan " + root + " failed");
+            return out;
+        }
+        final String[] names = stat.getStringArray(MirrorMediaManager.SCAN_GROUP_NAMES);
+        final long[] bytes = stat.getLongArray(MirrorMediaManager.SCAN_GROUP_BYTES);
+        final long[] files = stat.getLongArray(MirrorMediaManager.SCAN_GROUP_FILES);
+        if (names == null || bytes == null || files == null) return out;
+        for (int i = 0; i < names.length; i++) {
+            if (!isValidPackageName(names[i])) continue; // "." = loose files at the root
+            out.add(fileItem(names[i], root + "/" + names[i], bytes[i], files[i]));
+        }
+        return out;
+    }
+
+    /**
+     * Splits a provider table into windows of itemRows rows by ascending _id. Windows are
+     * contiguous ([0, a), [a, b), ...) so rows whose ids fall between two windows are not lost.
+     */
+    private List<Bundle> listRowWindows(Session s, String category) {
+        final List<Bundle> out = new ArrayList<>();
+        final ContentResolver cr = mContext.createContextAsUser(UserHandle.of(s.userId), 0)
+                .getContentResolver();
+        final int rows = s.itemRows();
+
+        Cursor c = null;
+        try {
+            c = cr.query(personalUri(category), new String[]{"_id"}, personalSelection(category),
+                    null, "_id ASC");
+            if (c == null) {
+                Slog.w(TAG, "listItems: null cursor for " + category);
+                return out;
+            }
+            long lo = 0;
+            long last = -1;
+            int n = 0;
+            while (c.moveToNext()) {
+                last = c.getLong(0);
+                if (++n == rows) {
+                    out.add(windowItem(lo, last + 1, n));
+                    lo = last + 1;
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                out.add(windowItem(lo, last + 1, n));
+            }
+        } catch (Throwable t) {
+            Slog.e(TAG, "listItems: query " + category + " failed", t);
+        } finally {
+            if (c != null) c.close();
+        }
+        return out;
+    }
+
+    private static Bundle windowItem(long min, long max, int count) {
+        final Bundle b = new Bundle();
+        b.putString(MirrorDataManager.ITEM_ID, min + "-" + max);
+        b.putLong(MirrorDataManager.ITEM_ID_MIN, min);
+        b.putLong(MirrorDataManager.ITEM_ID_MAX, max);
+        b.putLong(MirrorDataManager.ITEM_COUNT, count);
+        b.putLong(MirrorDataManager.ITEM_SIZE, -1);
+        return b;
+    }
+
+    // =====================================================================
+    //  Export
+    // =====================================================================
+
+    @Override
+    public void exportItem(String sessionId, String category, String itemId,
+            ParcelFileDescriptor outFd) {
+        final Session s = getSession(sessionId, false);
+        if (outFd == null) {
+            Slog.e(TAG, "exportItem: outFd is null");
+            return;
+        }
+        if (!startItem(s, category, itemId)) {
+            closeQuietly(outFd);
+            return;
+        }
+
+        String error = null;
+        final long token = Binder.clearCallingIdentity();
+        try {
+            if (isPersonalCategory(category)) {
+                final long[] window = parseWindow(itemId);
+                if (window == null) {
+                    error = "bad item id";
+                    closeQuietly(outFd);
+                } else {
+                    final Bundle opts = new Bundle();
+                    opts.putInt(MirrorMediaManager.OPT_USER_ID, s.userId);
+                    opts.putLong(MirrorMediaManager.OPT_ID_MIN, window[0]);
+                    opts.putLong(MirrorMediaManager.OPT_ID_MAX, window[1]);
+                    copyZipCodec(s.options, opts);
+                    // Writes the whole item before returning and closes outFd.
+                    mMedia.backupPersonalData(personalType(category), outFd, opts);
+                }
+            } else {
+                final String path = itemPath(category, itemId);
+                if (path == null) {
+                    error = "unsupported item";
+                    closeQuietly(outFd);
+                } else {
+                    error = daemonExport(path, isAppCategory(category) ? s.options : null,
+                            s.options, outFd);
+                }
+            }
+        } catch (Exception e) {
+            Slog.e(TAG, "exportItem " + category + "/" + itemId + " failed", e);
+            error = String.valueOf(e.getMessage());
+            closeQuietly(outFd);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        finishItem(s, category, itemId, error == null, error);
+    }
+
+    @Override
+    public void exportCategory(String sessionId, String category, ParcelFileDescriptor outFd) {
+        final Session s = getSession(sessionId, false);
+        if (outFd == null) {
+            Slog.e(TAG, "exportCategory: outFd is null");
+            return;
+        }
+        Slog.i(TAG, s.id + ": exportCategory " + category);
+
+        final long token = Binder.clearCallingIdentity();
+        try {
+            if (isPersonalCategory(category) || MirrorDataManager.CATEGORY_MEDIA.equals(category)) {
+                final Bundle opts = new Bundle();
+                opts.putInt(MirrorMediaManager.OPT_USER_ID, s.userId);
+                copyZipCodec(s.options, opts);
+                mMedia.backupPersonalData(personalType(category), outFd, opts);
+                return;
+            }
+            final String root = categoryRoot(category);
+            if (root == null) {
+                Slog.w(TAG, "exportCategory: unsupported category " + category);
+                closeQuietly(outFd);
+                return;
+            }
+            final String error = daemonExport(root, s.options, s.options, outFd);
+            if (error != null) {
+                Slog.w(TAG, "exportCategory " + category + " failed: " + error);
+            }
+        } catch (Exception e) {
+            Slog.e(TAG, "exportCategory " + category + " failed", e);
+            closeQuietly(outFd);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /**
+     * ZIP a logical path into outFd and wait for the daemon; returns null on success.
+     * filters only apply to app data, the codec policy (OPT_ZIP_*) to every export.
+     */
+    private String daemonExport(String logicalPath, Bundle filters, Bundle codec,
+            ParcelFileDescriptor outFd) {
+        try {
+            final MirrorDaemonConnection.Request req = mDaemon.submit(
+                    MirrorMediaService.withZipCodec(MirrorMediaService.withWalkFilters(
+                            MirrorMediaService.pathRequest(MirrorDaemonProtocol.OP_ZIP,
+                                    logicalPath), filters), codec),
+                    new FileDescriptor[]{outFd.getFileDescriptor()}, null);
+            // The daemon holds its own copy; ours must go or the reader never sees EOF.
+            closeQuietly(outFd);
+            final MirrorDaemonProtocol.Result r = req.awaitResult(0);
+            return r.ok() ? null : r.toString();
+        } catch (IOException e) {
+            closeQuietly(outFd);
+            return String.valueOf(e.getMessage());
+        }
+    }
+
+    private static void copyZipCodec(Bundle from, Bundle to) {
+        if (from.containsKey(MirrorMediaManager.OPT_ZIP_LEVEL)) {
+            to.putInt(MirrorMediaManager.OPT_ZIP_LEVEL,
+                    from.getInt(MirrorMediaManager.OPT_ZIP_LEVEL));
+        }
+        if (from.containsKey(MirrorMediaManager.OPT_ZIP_AUTO)) {
+            to.putBoolean(MirrorMediaManager.OPT_ZIP_AUTO,
+                    from.getBoolean(MirrorMediaManager.OPT_ZIP_AUTO));
+        }
+        if (from.containsKey(MirrorMediaManager.OPT_ZIP_THREADS)) {
+            to.putInt(MirrorMediaManager.OPT_ZIP_THREADS,
+                    from.getInt(MirrorMediaManager.OPT_ZIP_THREADS));
+        }
+    }
+
+    // =====================================================================
+    //  Import
+    // =====================================================================
+
+    @Override
+    public boolean importItem(String sessionId, String category, String targetHint,
+            ParcelFileDescriptor inFd) {
+        final Session s = getSession(sessionId, true);
+        if (inFd == null) {
+            Slog.e(TAG, "importItem: inFd is null");
+            return false;
+        }
+        if (!startItem(s, category, targetHint)) {
+            closeQuietly(inFd);
+            return false;
+        }
+
+        boolean ok = false;
+        String error = null;
+        final long token = Binder.clearCallingIdentity();
+        try {
+            if (isPersonalCategory(category)) {
+                ok = restorePersonal(s, category, inFd, clearOnce(s, category));
+            } else if (MirrorDataManager.CATEGORY_MEDIA.equals(category)) {
+                final String path = itemPath(category, targetHint);
+                ok = (path != null) && daemonUnzip(path, MirrorMediaService.getMediaRwUid(), inFd);
+            } else if (isAppCategory(category)) {
+                // Package name, or the logical path the client wants the data in.
+                final String path = (targetHint != null && targetHint.startsWith("/"))
+                        ? targetHint : itemPath(category, targetHint);
+                if (path == null) {
+                    closeQuietly(inFd);
+                } else {
+                    ok = mMedia.restoreFromZip(path, inFd);
+                }
+            } else {
+                Slog.w(TAG, "importItem: unsupported category " + category);
+                closeQuietly(inFd);
+            }
+            if (!ok) error = "restore failed";
+        } catch (Exception e) {
+            Slog.e(TAG, "importItem " + category + "/" + targetHint + " failed", e);
+            error = String.valueOf(e.getMessage());
+            closeQuietly(inFd);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        finishItem(s, category, targetHint, ok, error);
+        return ok;
+    }
+
+    @Override
+    public boolean importCategory(String sessionId, String category, ParcelFileDescriptor inFd) {
+        final Session s = getSession(sessionId, true);
+        if (inFd == null) {
+            Slog.e(TAG, "importCategory: inFd is null");
+            return false;
+        }
+        Slog.i(TAG, s.id + ": importCategory " + category);
+
+        final long token = Binder.clearCallingIdentity();
+        try {
+            if (isPersonalCategory(category) || MirrorDataManager.CATEGORY_MEDIA.equals(category)) {
+                return restorePersonal(s, category, inFd, clearOnce(s, category));
+            }
+            if (category != null && category.startsWith(MirrorDataManager.CATEGORY_APP_PREFIX)) {
+                return mMedia.restoreFromZip(APP_ROOT + "/" + packageOf(category), inFd);
+            }
+            // app/appext 整体还原需要按包解析 uid，请使用 importItem 逐包还原
+            Slog.w(TAG, "importCategory: unsupported category " + category);
+            closeQuietly(inFd);
+            return false;
+        } catch (Exception e) {
+            Slog.e(TAG, "importCategory " + category + " failed", e);
+            closeQuietly(inFd);
+            return false;
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    private boolean restorePersonal(Session s, String category, ParcelFileDescriptor inFd,
+            boolean clearBefore) throws Exception {
+        final Bundle opts = new Bundle();
+        opts.putInt(MirrorMediaManager.OPT_USER_ID, s.userId);
+        opts.putBoolean(MirrorMediaManager.OPT_CLEAR_BEFORE_RESTORE, clearBefore);
+        return mMedia.restorePersonalData(personalType(category), inFd, opts);
+    }
+
+    /**
+     * OPT_CLEAR_BEFORE_RESTORE applies to the first import of a category in the session only,
+     * otherwise every item would wipe the ones imported before it.
+     */
+    private boolean clearOnce(Session s, String category) {
+        if (!s.options.getBoolean(MirrorMediaManager.OPT_CLEAR_BEFORE_RESTORE, false)) {
+            return false;
+        }
+        synchronized (mLock) {
+            return s.cleared.add(category);
+        }
+    }
+
+    /** Feed inFd to the daemon UNZIP of logicalTarget, files owned by uid. */
+    private boolean daemonUnzip(String logicalTarget, int uid, ParcelFileDescriptor inFd) {
+        try {
+            final MirrorDaemonProtocol.Result r = mDaemon.call(
+                    MirrorMediaService.targetRequest(MirrorDaemonProtocol.OP_UNZIP, logicalTarget,
+                            uid),
+                    new FileDescriptor[]{inFd.getFileDescriptor()}, 0);
+            Slog.i(TAG, "unzip " + logicalTarget + " -> " + r);
+            return r.ok();
+        } finally {
+            closeQuietly(inFd);
+        }
+    }
+
+    // =====================================================================
+    //  Category helpers
+    // =====================================================================
+
+    private static boolean isPersonalCategory(String category) {
+        return MirrorDataManager.CATEGORY_SMS.equals(category)
+                || MirrorDataManager.CATEGORY_CALLLOG.equals(category)
+                || MirrorDataManager.CATEGORY_CALENDAR.equals(category)
+                || MirrorDataManager.CATEGORY_CONTACTS.equals(category);
+    }
+
+    private static boolean isAppCategory(String category) {
+        return MirrorDataManager.CATEGORY_APP.equals(category)
+                || MirrorDataManager.CATEGORY_APP_EXTERNAL.equals(category)
+                || (category != null
+                        && category.startsWith(MirrorDataManager.CATEGORY_APP_PREFIX));
+    }
+
+    private static int personalType(String category) {
+        switch (category) {
+            case MirrorDataManager.CATEGORY_SMS: return MirrorMediaManager.TYPE_SMS;
+            case MirrorDataManager.CATEGORY_CALLLOG: return MirrorMediaManager.TYPE_CALLLOG;
+            case MirrorDataManager.CATEGORY_CALENDAR: return MirrorMediaManager.TYPE_CALENDAR;
+            case MirrorDataManager.CATEGORY_CONTACTS: return MirrorMediaManager.TYPE_CONTACTS;
+            case MirrorDataManager.CATEGORY_MEDIA: return MirrorMediaManager.TYPE_MEDIA;
+            default: throw new IllegalArgumentException("not a personal category: " + category);
+        }
+    }
+
+    /** Table listed by _id; must match the rows backupPersonalData exports for the type. */
+    private static Uri personalUri(String category) {
+        switch (category) {
+            case MirrorDataManager.CATEGORY_SMS: return Telephony.Sms.CONTENT_URI;
+            case MirrorDataManager.CATEGORY_CALLLOG: return CallLog.Calls.CONTENT_URI;
+            case MirrorDataManager.CATEGORY_CALENDAR: return CalendarContract.Events.CONTENT_URI;
+            default: return ContactsContract.RawContacts.CONTENT_URI;
+        }
+    }
+
+    private static String personalSelection(String category) {
+        switch (category) {
+            case MirrorDataManager.CATEGORY_CALENDAR: return CalendarContract.Events.DELETED + "=0";
+            case MirrorDataManager.CATEGORY_CONTACTS: return ContactsContract.RawContacts.DELETED + "=0";
+            default: return null;
+        }
+    }
+
+    /** "min-max" -> {min, max}, or null. */
+    private static long[] parseWindow(String itemId) {
+        if (itemId == null) return null;
+        final int dash = itemId.indexOf('-');
+        if (dash <= 0) return null;
+        try {
+            final long min = Long.parseLong(itemId.substring(0, dash));
+            final long max = Long.parseLong(itemId.substring(dash + 1));
+            return (min >= 0 && max > min) ? new long[]{min, max} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String categoryRoot(String category) {
+        if (MirrorDataManager.CATEGORY_APP.equals(category)) return APP_ROOT;
+        if (MirrorDataManager.CATEGORY_APP_EXTERNAL.equals(category)) return APP_EXT_ROOT;
+        if (category != null && category.startsWith(MirrorDataManager.CATEGORY_APP_PREFIX)) {
+            final String pkg = packageOf(category);
+            return (pkg != null) ? APP_ROOT + "/" + pkg : null;
+        }
+        return null;
+    }
+
+    /** Logical path of a file-backed item, or null for unknown/unsafe ids. */
+    private static String itemPath(String category, String itemId) {
+        if (MirrorDataManager.CATEGORY_MEDIA.equals(category)) {
+            return mediaPath(itemId);
+        }
+        if (category != null && category.startsWith(MirrorDataManager.CATEGORY_APP_PREFIX)) {
+            return categoryRoot(category);
+        }
+        final String root = categoryRoot(category);
+        if (root == null || !isValidPackageName(itemId)) return null;
+        return root + "/" + itemId;
+    }
+
+    private static String mediaPath(String itemId) {
+        if (MEDIA_DCIM.equals(itemId)) return "/sdcard/DCIM";
+        if (MEDIA_PICTURES.equals(itemId)) return "/sdcard/Pictures";
+        return null;
+    }
+
+    private static String packageOf(String category) {
+        final String pkg = category.substring(MirrorDataManager.CATEGORY_APP_PREFIX.length());
+        if (!isValidPackageName(pkg)) {
+            throw new IllegalArgumentException("bad package in category " + category);
+        }
+        return pkg;
+    }
+
+    // Item ids end up in daemon paths: no separators, no "." / ".." components.
+    private static boolean isValidPackageName(String pkg) {
+        return pkg != null && !pkg.isEmpty() && pkg.indexOf('/') < 0 && !pkg.startsWith(".");
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
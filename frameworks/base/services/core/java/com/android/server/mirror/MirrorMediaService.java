@@ -4,17 +4,22 @@ package com.android.server.mirror;
 import android.annotation.NonNull;
 import android.app.mirror.IMirrorMediaService;
 import android.app.mirror.MirrorMediaManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.FileUtils;
 import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 import android.provider.CalendarContract;
@@ -27,13 +32,17 @@ import android.system.Os;
 import android.system.StructStat;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.LongSparseArray;
+import android.util.LongSparseLongArray;
+import android.util.Size;
 import android.util.Slog;
 import android.app.ActivityManager; // 新增
 import android.os.Process; // 新增
 
 import com.android.server.SystemService;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -41,16 +50,32 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -70,20 +95,56 @@ public final class MirrorMediaService extends SystemService {
     // Personal data zip format
     private static final int PERSONAL_FORMAT_VERSION = 1;
     private static final String ENTRY_MANIFEST = "personal/manifest.json";
+    // manifest 里 "counts" 的键：导出时的行数，恢复端按它预分配 id 映射
+    private static final String MANIFEST_COUNT_RAW_CONTACTS = "rawContacts";
+    private static final String MANIFEST_COUNT_MMS = "mms";
 
     // SMS / CallLog / Calendar
     private static final String ENTRY_SMS = "sms/sms.jsonl";
+    // 快照热恢复时每次 bulkInsert 的行数
+    private static final int SMS_BULK_BATCH = 500;
     private static final String ENTRY_CALLLOG = "calllog/calls.jsonl";
+
+    // MMS：pdu 行内嵌 addr；part 行之后逐个跟随有 _data 的 part 正文
+    private static final String ENTRY_MMS_PDU = "mms/pdu.jsonl";
+    private static final String ENTRY_MMS_PART = "mms/part.jsonl";
+    private static final String ENTRY_MMS_PART_DATA_PREFIX = "mms/parts/"; // + 旧 part _id
+    // 恢复时每次 applyBatch 的消息 / part 数
+    private static final int MMS_BATCH = 100;
+    // PduHeaders 里的地址类型
+    private static final int MMS_ADDR_FROM = 137;
+    private static final int MMS_ADDR_TO = 151;
+    private static final int MMS_ADDR_CC = 130;
+    private static final int MMS_ADDR_BCC = 129;
     private static final String ENTRY_CAL_EVENTS = "calendar/events.jsonl";
 
     // Contacts
     private static final String ENTRY_CONTACTS_RAW  = "contacts/raw.jsonl";
     private static final String ENTRY_CONTACTS_DATA = "contacts/data.jsonl";
+    // 头像与 blob 列不进 JSONL，单独成条目，在 data.jsonl 里按条目名引用
+    private static final String ENTRY_CONTACTS_PHOTO_PREFIX = "contacts/photos/"; // + 旧头像 data _id
+    private static final String ENTRY_CONTACTS_BLOB_PREFIX = "contacts/blobs/";   // + 旧 data _id + "/dataN"
+    // 非头像 blob 在 provider 里受 CursorWindow 限制，超过这个大小的条目视为损坏
+    private static final int CONTACTS_BLOB_MAX = 2 * 1024 * 1024;
     private static final String MIRROR_CONTACTS_SOURCE_ID = "mirrorbackup"; // for clearBefore precise deletion
 
     // Media (images)
     private static final String ENTRY_MEDIA_IMAGES_META = "media/images_meta.jsonl";
     private static final String ENTRY_MEDIA_IMAGES_PREFIX = "media/images/"; // file entries start with this
+    // 增量导出的视频/音频：各自一份 meta JSONL 和条目前缀，与图片同构
+    private static final String ENTRY_MEDIA_VIDEO_META = "media/video_meta.jsonl";
+    private static final String ENTRY_MEDIA_VIDEO_PREFIX = "media/video/";
+    private static final String ENTRY_MEDIA_AUDIO_META = "media/audio_meta.jsonl";
+    private static final String ENTRY_MEDIA_AUDIO_PREFIX = "media/audio/";
+    // OPT_MEDIA_THUMBNAILS：JPEG 照片的低清代理图，条目名 = 本前缀 + 原图条目去掉 "media/images/"
+    private static final String ENTRY_MEDIA_THUMBS_PREFIX = "media/thumbs/";
+    private static final int MEDIA_THUMB_PX = 384;
+    private static final int MEDIA_THUMB_QUALITY = 75;
+    // >= MEDIA_RANGE_SIZE 的文件按 range 拆成多个 deflate level 0 条目 "<entry>@r<offset>"，每个 range
+    // 提交后可续传；比 rangeSize 短的 range 是最后一段。不用 STORED：本地头要事先写 CRC，
+    // 边读边写的 range 做不到（data descriptor 又被 ZipInputStream 拒绝），与 daemon 的 auto store 同理
+    private static final String MEDIA_RANGE_SEP = "@r";
+    private static final long MEDIA_RANGE_SIZE = 64L * 1024 * 1024;
     private static final String ENTRY_MEDIA_DCIM_ZIP = "media/dcim.zip";
     private static final String ENTRY_MEDIA_PICTURES_ZIP = "media/pictures.zip";
     // 旧版本曾将图片恢复到 Pictures/MirrorBackup/ 下；保留该常量用于兼容清理旧残留。
@@ -97,7 +158,7 @@ public final class MirrorMediaService extends SystemService {
     // AID_MEDIA_RW is 1023 in AOSP.
     private static final int MIRROR_AID_MEDIA_RW = 1023;
 
-    private static int getMediaRwUid() {
+    static int getMediaRwUid() {
         int uid = android.os.Process.getUidForName("media_rw");
         return (uid > 0) ? uid : MIRROR_AID_MEDIA_RW;
     }
@@ -107,6 +168,20 @@ public final class MirrorMediaService extends SystemService {
     private static final String MIRROR_CAL_ACCOUNT_TYPE = CalendarContract.ACCOUNT_TYPE_LOCAL;
     private static final String MIRROR_CAL_DISPLAY_NAME = "Mirror";
 
+    // A metadata-only walk of /data/data finishes in seconds; anything longer is a stuck daemon.
+    private static final long SCAN_TIMEOUT_MS = 2 * 60 * 1000;
+    // Requests answered from daemon memory (no file I/O).
+    private static final long QUERY_TIMEOUT_MS = 10 * 1000;
+    // 个人数据导出每页的行数（OPT_PAGE_SIZE 缺省值）
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    // 并行媒体恢复：每个排队条目的内存缓冲，超过的溢出到文件；IS_PENDING 清除每批的行数
+    private static final int MEDIA_SPOOL_BUF = 4 * 1024 * 1024;
+    private static final int MEDIA_FINALIZE_BATCH = 50;
+    private static final int MEDIA_RESTORE_MAX_THREADS = 4;
+
+    // Shared command channel to mirrormediad, reused by every request.
+    private final MirrorDaemonConnection mDaemon = new MirrorDaemonConnection(SOCK);
+
     public MirrorMediaService(Context context) {
         super(context);
     }
@@ -114,6 +189,8 @@ public final class MirrorMediaService extends SystemService {
     @Override
     public void onStart() {
         publishBinderService(Context.MIRROR_MEDIA_SERVICE, mBinder);
+        publishBinderService(Context.MIRROR_DATA_SERVICE,
+                new MirrorDataService(getContext(), mBinder, mDaemon));
         Slog.i(TAG, "MirrorMediaService started");
     }
 
@@ -121,6 +198,917 @@ public final class MirrorMediaService extends SystemService {
     // Shared helpers (safe to be static: top-level class members)
     // =========================================================
 
+    /**
+     * Optional row window [OPT_ID_MIN, OPT_ID_MAX) for personal data backups, so one category can
+     * be exported as many small, independently retried items.
+     */
+    static final class IdRange {
+        final long min;
+        final long max;
+
+        IdRange(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /** Null when opts carries no window: export everything, as before. */
+        static IdRange fromOpts(Bundle opts) {
+            if (opts == null) return null;
+            if (!opts.containsKey(MirrorMediaManager.OPT_ID_MIN)
+                    && !opts.containsKey(MirrorMediaManager.OPT_ID_MAX)) {
+                return null;
+            }
+            return new IdRange(opts.getLong(MirrorMediaManager.OPT_ID_MIN, 0L),
+                    opts.getLong(MirrorMediaManager.OPT_ID_MAX, Long.MAX_VALUE));
+        }
+
+        /** AND the window on column into selection (values are longs, no escaping needed). */
+        static String apply(IdRange r, String column, String selection) {
+            if (r == null) return selection;
+            final String w = column + ">=" + r.min + " AND " + column + "<" + r.max;
+            return (selection == null) ? w : "(" + selection + ") AND " + w;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + min + "," + max + ")";
+        }
+    }
+
+    /**
+     * Keyset-paged export query: pages of {@code idColumn > lastId ORDER BY idColumn LIMIT n}, so
+     * the provider never re-runs one huge sorted query for each CursorWindow refill. The next page
+     * is fetched on a background thread while the caller encodes the current one.
+     *
+     * 有的 provider 不认 sortOrder 里的 LIMIT：抛异常时改为不分页查一次；
+     * 返回行数多于页大小说明 LIMIT 被忽略了，这一页就是全部。两种情况结果都正确，只是没有分页。
+     */
+    static final class PagedQuery implements AutoCloseable {
+        private final ContentResolver mCr;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mIdColumn;
+        private final String mSelection;
+        private final int mPageSize;
+        private final ExecutorService mPrefetch = Executors.newSingleThreadExecutor();
+        private Future<Cursor> mNext;
+        private boolean mStarted;
+        private boolean mDone;
+        private int mPages;
+
+        PagedQuery(ContentResolver cr, Uri uri, String[] cols, String idColumn, String selection,
+                int pageSize) {
+            mCr = cr;
+            mUri = uri;
+            mIdColumn = idColumn;
+            mSelection = selection;
+            mPageSize = pageSize;
+            // 翻页要读每页最后一行的 id；cursorRowToJson 按列名取值，多一列不影响输出
+            mProjection = Arrays.copyOf(cols, cols.length + 1);
+            mProjection[cols.length] = idColumn;
+        }
+
+        /** Next non-empty page, or null when done. The caller closes each page. */
+        Cursor nextPage() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                mNext = submit(null);
+            }
+            if (mNext == null) return null;
+            final Cursor c;
+            try {
+                c = mNext.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("page query failed: " + mUri, e);
+            } finally {
+                mNext = null;
+            }
+            if (c == null) return null;
+            mPages++;
+            final int count = c.getCount();
+            if (!mDone && count == mPageSize && c.moveToLast()) {
+                final long lastId = c.getLong(c.getColumnIndexOrThrow(mIdColumn));
+                c.moveToPosition(-1);
+                mNext = submit(lastId);
+            }
+            if (count == 0) {
+                c.close();
+                return null;
+            }
+            return c;
+        }
+
+        int pages() {
+            return mPages;
+        }
+
+        private Future<Cursor> submit(Long afterId) {
+            final String keyset = (afterId == null) ? null : mIdColumn + ">" + afterId;
+            final String sel = (keyset == null) ? mSelection
+                    : (mSelection == null) ? keyset : "(" + mSelection + ") AND " + keyset;
+            return mPrefetch.submit(() -> {
+                try {
+                    return mCr.query(mUri, mProjection, sel, null,
+                            mIdColumn + " ASC LIMIT " + mPageSize);
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "PagedQuery: " + mUri + " rejects LIMIT, reading unpaged", e);
+                    mDone = true;
+                    return mCr.query(mUri, mProjection, sel, null, mIdColumn + " ASC");
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            if (mNext != null) {
+                try {
+                    final Cursor c = mNext.get();
+                    if (c != null) c.close();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+                mNext = null;
+            }
+            mPrefetch.shutdown();
+        }
+    }
+
+    static int pageSize(Bundle opts) {
+        final int n = (opts != null) ? opts.getInt(MirrorMediaManager.OPT_PAGE_SIZE, 0) : 0;
+        return (n > 0) ? n : DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Per-user index of the media rows the last incremental backup exported: MediaStore _id ->
+     * GENERATION_MODIFIED plus relative_path + display name (needed to describe deletions).
+     *
+     * 文件格式：首行 "MMIX2\t<MediaStore 版本>"，之后每行 "id\tgen\tdone\tpath"；done = -1 表示
+     * 整个文件已导出，>= 0 是按 range 导出的大文件已提交的字节数（OPT_MEDIA_RESUMABLE 续传）。
+     * generation 只在同一个 MediaStore 版本内可比（重建数据库会换版本），版本不同就当没有索引。
+     */
+    static final class MediaIndex {
+        private static final String MAGIC = "MMIX2";
+
+        // 每个用户同时只允许一个增量备份：两份归档都相对同一份旧索引求差，后保存的会覆盖先保存的
+        private static final ArraySet<Integer> sBusyUsers = new ArraySet<>();
+
+        /** Claim userId's index for one incremental backup; false if another one holds it. */
+        static boolean tryAcquire(int userId) {
+            synchronized (sBusyUsers) {
+                return sBusyUsers.add(userId);
+            }
+        }
+
+        static void release(int userId) {
+            synchronized (sBusyUsers) {
+                sBusyUsers.remove(userId);
+            }
+        }
+
+        final String version;
+        final LongSparseArray<Long> gens = new LongSparseArray<>();
+        final LongSparseArray<String> paths = new LongSparseArray<>();
+        final LongSparseArray<Long> done = new LongSparseArray<>();
+
+        MediaIndex(String version) {
+            this.version = (version == null) ? "" : version;
+        }
+
+        static File fileFor(int userId) {
+            return new File(new File(new File(Environment.getDataSystemDirectory(), "mirrormedia"),
+                    "media_index"), "u" + userId);
+        }
+
+        /** Index of the previous backup, or an empty one when missing, unreadable or stale. */
+        static MediaIndex load(int userId, String version) {
+            final MediaIndex idx = new MediaIndex(version);
+            final File f = fileFor(userId);
+            if (!f.exists()) return idx;
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+                final String head = br.readLine();
+                if (head == null || !head.equals(MAGIC + "\t" + idx.version)) {
+                    Slog.i(TAG, "MediaIndex: version changed (" + head + "), full media export");
+                    return idx;
+                }
+                String line;
+                while ((line = br.readLine()) != null) {
+                    final String[] p = line.split("\t", 4);
+                    if (p.length != 4) continue;
+                    try {
+                        idx.put(Long.parseLong(p[0]), Long.parseLong(p[1]), p[3],
+                                Long.parseLong(p[2]));
+                    } catch (NumberFormatException e) {
+                        // 文件名里带换行会把一行拆开；丢掉这行只会让那个文件下次再导出一遍
+                    }
+                }
+            } catch (IOException e) {
+                Slog.w(TAG, "MediaIndex: unreadable " + f + ", full media export", e);
+                return new MediaIndex(version);
+            }
+            return idx;
+        }
+
+        void put(long id, long gen, String path) {
+            put(id, gen, path, -1L);
+        }
+
+        void put(long id, long gen, String path, long doneBytes) {
+            gens.put(id, gen);
+            paths.put(id, path);
+            done.put(id, doneBytes);
+        }
+
+        void remove(long id) {
+            gens.remove(id);
+            paths.remove(id);
+            done.remove(id);
+        }
+
+        /** Bytes already exported for a ranged file, or -1 when the file is complete/unknown. */
+        long doneBytes(long id) {
+            return done.get(id, -1L);
+        }
+
+        int size() {
+            return gens.size();
+        }
+
+        /** Write to a temp file and rename, so a crash never leaves a half index behind. */
+        void save(int userId) throws IOException {
+            final File f = fileFor(userId);
+            final File dir = f.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs " + dir);
+            final File tmp = new File(dir, f.getName() + ".tmp");
+            try (BufferedWriter w = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                w.write(MAGIC + "\t" + version + "\n");
+                for (int i = 0; i < gens.size(); i++) {
+                    final long id = gens.keyAt(i);
+                    w.write(id + "\t" + gens.valueAt(i) + "\t" + doneBytes(id) + "\t"
+                            + paths.valueAt(i) + "\n");
+                }
+            }
+            if (!tmp.renameTo(f)) throw new IOException("rename " + tmp + " -> " + f);
+        }
+    }
+
+    /**
+     * Meta lines of one incremental media export, spooled to files under
+     * /data/system/mirrormedia/media_spool (one per collection) instead of the heap. For each
+     * "put" line only a compact record is kept (collection, _id, file offset/length, date taken);
+     * the JSONObject is parsed back from the spool file when that file is written.
+     *
+     * 首次备份或 OPT_MEDIA_RESET_INDEX 时每个媒体行都是 put，整库十万级的 JSONObject 不能留在 system_server 堆里。
+     */
+    static final class MediaMetaSpool implements AutoCloseable {
+        private final File[] mFiles;
+        private final OutputStream[] mOut;
+        private final long[] mLen;
+        private RandomAccessFile[] mIn;
+
+        // put 记录：按写入顺序
+        private int mPuts;
+        private int[] mColl = new int[256];
+        private long[] mId = new long[256];
+        private long[] mOff = new long[256];
+        private int[] mLineLen = new int[256];
+        private long[] mDate = new long[256];
+
+        MediaMetaSpool(int collections) throws IOException {
+            final File dir = new File(new File(Environment.getDataSystemDirectory(), "mirrormedia"),
+                    "media_spool");
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs " + dir);
+            mFiles = new File[collections];
+            mOut = new OutputStream[collections];
+            mLen = new long[collections];
+            try {
+                for (int i = 0; i < collections; i++) {
+                    mFiles[i] = File.createTempFile("meta", ".jsonl", dir);
+                    mOut[i] = new BufferedOutputStream(new FileOutputStream(mFiles[i]), 64 * 1024);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /** Append a delete line to a collection's meta. */
+        void addDelete(int coll, JSONObject o) throws IOException {
+            append(coll, o);
+        }
+
+        /** Append a put line and remember where it is, to read it back in {@link #put}. */
+        void addPut(int coll, long id, long dateTaken, JSONObject o) throws IOException {
+            final long off = mLen[coll];
+            final int len = append(coll, o);
+            if (mPuts == mId.length) {
+                final int n = mPuts * 2;
+                mColl = Arrays.copyOf(mColl, n);
+                mId = Arrays.copyOf(mId, n);
+                mOff = Arrays.copyOf(mOff, n);
+                mLineLen = Arrays.copyOf(mLineLen, n);
+                mDate = Arrays.copyOf(mDate, n);
+            }
+            mColl[mPuts] = coll;
+            mId[mPuts] = id;
+            mOff[mPuts] = off;
+            mLineLen[mPuts] = len;
+            mDate[mPuts] = dateTaken;
+            mPuts++;
+        }
+
+        private int append(int coll, JSONObject o) throws IOException {
+            final byte[] line = (o.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            mOut[coll].write(line);
+            mLen[coll] += line.length;
+            return line.length;
+        }
+
+        /** Stop appending; the meta lines can now be copied out and the puts read back. */
+        void finish() throws IOException {
+            mIn = new RandomAccessFile[mFiles.length];
+            for (int i = 0; i < mFiles.length; i++) {
+                mOut[i].close();
+                mOut[i] = null;
+                mIn[i] = new RandomAccessFile(mFiles[i], "r");
+            }
+        }
+
+        boolean isEmpty(int coll) {
+            return mLen[coll] == 0;
+        }
+
+        void copyTo(int coll, OutputStream out) throws IOException {
+            try (InputStream in = new FileInputStream(mFiles[coll])) {
+                FileUtils.copy(in, out);
+            }
+        }
+
+        int puts() {
+            return mPuts;
+        }
+
+        int collection(int put) {
+            return mColl[put];
+        }
+
+        long id(int put) {
+            return mId[put];
+        }
+
+        JSONObject put(int put) throws IOException, JSONException {
+            final RandomAccessFile in = mIn[mColl[put]];
+            final byte[] line = new byte[mLineLen[put]];
+            in.seek(mOff[put]);
+            in.readFully(line);
+            return new JSONObject(new String(line, StandardCharsets.UTF_8));
+        }
+
+        /** Put indexes, newest dateTaken first when byDate, otherwise in the order added. */
+        int[] order(boolean byDate) {
+            final int[] order = new int[mPuts];
+            if (!byDate) {
+                for (int i = 0; i < mPuts; i++) order[i] = i;
+                return order;
+            }
+            // 不装箱排序：日期换成名次（mPuts 以内）放高 32 位、下标放低 32 位，排一个 long[]
+            final long[] sorted = Arrays.copyOf(mDate, mPuts);
+            Arrays.sort(sorted);
+            final long[] keys = new long[mPuts];
+            for (int i = 0; i < mPuts; i++) {
+                final long rank = Arrays.binarySearch(sorted, mDate[i]);
+                keys[i] = ((mPuts - 1 - rank) << 32) | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < mPuts; i++) order[i] = (int) keys[i];
+            return order;
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < mFiles.length; i++) {
+                if (mOut[i] != null) {
+                    try { mOut[i].close(); } catch (IOException ignored) {}
+                }
+                if (mIn != null && mIn[i] != null) {
+                    try { mIn[i].close(); } catch (IOException ignored) {}
+                }
+                if (mFiles[i] != null) mFiles[i].delete();
+            }
+        }
+    }
+
+    /**
+     * One MediaStore collection in the incremental media export: its own metadata JSONL and
+     * entry prefix, plus the collection-specific columns copied into each meta line.
+     * 这些额外列（时长、宽高、艺术家…）由 MediaProvider 扫描文件得出，恢复时不回写，只做记录。
+     */
+    static final class MediaCollection {
+        final String name;
+        final Uri uri;
+        final String metaEntry;
+        final String prefix;
+        final String[] extraCols;
+
+        MediaCollection(String name, Uri uri, String metaEntry, String prefix,
+                String... extraCols) {
+            this.name = name;
+            this.uri = uri;
+            this.metaEntry = metaEntry;
+            this.prefix = prefix;
+            this.extraCols = extraCols;
+        }
+
+        static MediaCollection[] all() {
+            final String vol = MediaStore.VOLUME_EXTERNAL_PRIMARY;
+            return new MediaCollection[] {
+                    new MediaCollection("images", MediaStore.Images.Media.getContentUri(vol),
+                            ENTRY_MEDIA_IMAGES_META, ENTRY_MEDIA_IMAGES_PREFIX,
+                            MediaStore.MediaColumns.WIDTH, MediaStore.MediaColumns.HEIGHT),
+                    new MediaCollection("video", MediaStore.Video.Media.getContentUri(vol),
+                            ENTRY_MEDIA_VIDEO_META, ENTRY_MEDIA_VIDEO_PREFIX,
+                            MediaStore.MediaColumns.DURATION, MediaStore.MediaColumns.WIDTH,
+                            MediaStore.MediaColumns.HEIGHT),
+                    new MediaCollection("audio", MediaStore.Audio.Media.getContentUri(vol),
+                            ENTRY_MEDIA_AUDIO_META, ENTRY_MEDIA_AUDIO_PREFIX,
+                            MediaStore.MediaColumns.DURATION, MediaStore.Audio.Media.ARTIST,
+                            MediaStore.Audio.Media.ALBUM, MediaStore.Audio.Media.TRACK,
+                            MediaStore.Audio.Media.YEAR),
+            };
+        }
+
+        /** Collection whose file-entry prefix starts entryName, or null. */
+        static MediaCollection forEntry(MediaCollection[] all, String entryName) {
+            if (entryName == null) return null;
+            for (MediaCollection mc : all) {
+                if (entryName.startsWith(mc.prefix)) return mc;
+            }
+            return null;
+        }
+
+        static boolean isMetaEntry(MediaCollection[] all, String entryName) {
+            for (MediaCollection mc : all) {
+                if (mc.metaEntry.equals(entryName)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Restore side of ranged media entries ("<entry>@r<offset>"): the pending MediaStore row each
+     * partially restored file is being appended to. A file can span archives when the backup was
+     * interrupted and resumed (OPT_MEDIA_RESUMABLE), so what is left open at the end of a restore
+     * is persisted per user and picked up by the next one.
+     *
+     * 文件格式：每行 "bytes\turi\tentry"。
+     */
+    static final class MediaRangeState {
+        static final class Target {
+            final Uri uri;
+            long bytes;
+
+            Target(Uri uri, long bytes) {
+                this.uri = uri;
+                this.bytes = bytes;
+            }
+        }
+
+        // 同一用户的并发恢复共用一个状态文件：load/save 都在 sFileLock 下，save 只合并本次动过的文件
+        private static final Object sFileLock = new Object();
+
+        final ArrayMap<String, Target> targets = new ArrayMap<>();
+        // 本次恢复开始、续写或结束过的条目；其它条目保持文件里的样子
+        private final ArraySet<String> mTouched = new ArraySet<>();
+
+        static File fileFor(int userId) {
+            return new File(new File(new File(Environment.getDataSystemDirectory(), "mirrormedia"),
+                    "media_ranges"), "u" + userId);
+        }
+
+        static MediaRangeState load(int userId) {
+            final MediaRangeState st = new MediaRangeState();
+            synchronized (sFileLock) {
+                readInto(fileFor(userId), st.targets);
+            }
+            return st;
+        }
+
+        Target get(String entry) {
+            mTouched.add(entry);
+            return targets.get(entry);
+        }
+
+        void put(String entry, Target t) {
+            mTouched.add(entry);
+            targets.put(entry, t);
+        }
+
+        void remove(String entry) {
+            mTouched.add(entry);
+            targets.remove(entry);
+        }
+
+        /**
+         * Merge this call's changes into the current state file (temp file + rename): entries
+         * this call touched are replaced by its view, everything else is kept as another
+         * concurrent restore may have left it.
+         */
+        void save(int userId) {
+            final File f = fileFor(userId);
+            synchronized (sFileLock) {
+                final ArrayMap<String, Target> merged = new ArrayMap<>();
+                readInto(f, merged);
+                for (int i = 0; i < mTouched.size(); i++) {
+                    final String entry = mTouched.valueAt(i);
+                    merged.remove(entry);
+                    final Target t = targets.get(entry);
+                    if (t != null) merged.put(entry, t);
+                }
+                if (merged.isEmpty()) {
+                    f.delete();
+                    return;
+                }
+                final File dir = f.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    Slog.w(TAG, "MediaRangeState: mkdirs failed " + dir);
+                    return;
+                }
+                final File tmp = new File(dir, f.getName() + ".tmp");
+                try (BufferedWriter w = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                    for (int i = 0; i < merged.size(); i++) {
+                        final Target t = merged.valueAt(i);
+                        w.write(t.bytes + "\t" + t.uri + "\t" + merged.keyAt(i) + "\n");
+                    }
+                } catch (IOException e) {
+                    Slog.w(TAG, "MediaRangeState: save failed " + tmp, e);
+                    tmp.delete();
+                    return;
+                }
+                if (!tmp.renameTo(f)) Slog.w(TAG, "MediaRangeState: rename failed " + tmp);
+            }
+        }
+
+        private static void readInto(File f, ArrayMap<String, Target> out) {
+            if (!f.exists()) return;
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    final String[] p = line.split("\t", 3);
+                    if (p.length != 3) continue;
+                    try {
+                        out.put(p[2], new Target(Uri.parse(p[1]), Long.parseLong(p[0])));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } catch (IOException e) {
+                Slog.w(TAG, "MediaRangeState: unreadable " + f, e);
+            }
+        }
+    }
+
+    /**
+     * State of one restorePersonalData call: old -> new id maps and the media bookkeeping that
+     * later entries look up. Each call owns its context, so concurrent restores (different
+     * users, or the same user from two callers) never see each other's mappings.
+     *
+     * 归档清单（manifest 是第一个条目）带有各类行数时，按行数预分配 id 映射，避免边恢复边扩容。
+     */
+    static final class RestoreContext {
+        final int userId;
+        // Contacts oldRawId -> newRawId
+        LongSparseLongArray contactsRawIds = new LongSparseLongArray();
+        // blob 条目名 -> 已插入的新 data 行，条目到达后再 update 对应列
+        final ArrayMap<String, Uri> contactsBlobTargets = new ArrayMap<>();
+        // 头像条目名 -> 新 rawId；同一联系人第一张走 DisplayPhoto，其余按 data 行插入
+        final ArrayMap<String, Long> contactsPhotoTargets = new ArrayMap<>();
+        final ArraySet<Long> contactsPhotoRawIds = new ArraySet<>();
+        // MMS oldPduId -> newPduId, oldPartId -> new part uri（正文条目按旧 part id 找回）
+        LongSparseLongArray mmsIds = new LongSparseLongArray();
+        LongSparseArray<Uri> mmsPartUris = new LongSparseArray<>();
+        // Media meta: key=zip entry name, value=meta json（images/video/audio 共用）
+        final ArrayMap<String, JSONObject> mediaMeta = new ArrayMap<>();
+        // 原图条目 -> 已写入相册的低清代理行；原图到达时原地覆盖
+        final ArrayMap<String, Uri> mediaProxies = new ArrayMap<>();
+        // 跨归档续写的大文件（range 条目）；只在恢复媒体时非空
+        MediaRangeState mediaRanges;
+
+        RestoreContext(int userId) {
+            this.userId = userId;
+        }
+
+        /** Re-allocate the id maps from the manifest's row counts; only before any row is mapped. */
+        void presize(JSONObject counts) {
+            if (counts == null) return;
+            final int raw = counts.optInt(MANIFEST_COUNT_RAW_CONTACTS, 0);
+            final int mms = counts.optInt(MANIFEST_COUNT_MMS, 0);
+            if (raw > 0 && contactsRawIds.size() == 0) {
+                contactsRawIds = new LongSparseLongArray(raw);
+            }
+            if (mms > 0 && mmsIds.size() == 0) {
+                mmsIds = new LongSparseLongArray(mms);
+                // 大多数彩信是一段 SMIL 加一个附件
+                mmsPartUris = new LongSparseArray<>(mms * 2);
+            }
+        }
+    }
+
+    /**
+     * OPT_MEDIA_RESTORE_THREADS: media/images/ entries are spooled off the (single-threaded) zip
+     * stream into a bounded queue, and N writer threads do insert(IS_PENDING=1) + write. The
+     * IS_PENDING=0 updates are collected and sent as one applyBatch per MEDIA_FINALIZE_BATCH rows.
+     *
+     * 内存上限：每个排队/在写的条目占一块 MEDIA_SPOOL_BUF；放不下的大文件（视频）溢出到
+     * media_spool 下的临时文件，只占磁盘。读端拿不到空闲缓冲时阻塞，zip 读取不会跑到写端前面太多。
+     */
+    static final class MediaRestorePool implements AutoCloseable {
+        private static final Job POISON = new Job(null, null, null, null);
+
+        static final class Job {
+            final String entry;
+            final Uri collection;
+            final ContentValues values;
+            // 非空：覆盖这一行（缩略图优先模式的代理行），不 insert、不走 IS_PENDING
+            final Uri target;
+            byte[] buf;
+            int len;
+            File spill;
+
+            Job(String entry, Uri collection, ContentValues values, Uri target) {
+                this.entry = entry;
+                this.collection = collection;
+                this.values = values;
+                this.target = target;
+            }
+        }
+
+        private final ContentResolver mCr;
+        private final int mMaxBuffers;
+        private final ArrayBlockingQueue<byte[]> mFree;
+        private final ArrayBlockingQueue<Job> mQueue;
+        private final Thread[] mWriters;
+        private final File mSpoolDir;
+        private final ArrayList<Uri> mPending = new ArrayList<>();
+        private final AtomicInteger mOk = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private int mAllocated;
+
+        MediaRestorePool(ContentResolver cr, int threads) {
+            mCr = cr;
+            mMaxBuffers = threads * 2;
+            mFree = new ArrayBlockingQueue<>(mMaxBuffers);
+            mQueue = new ArrayBlockingQueue<>(mMaxBuffers);
+            mSpoolDir = new File(new File(Environment.getDataSystemDirectory(), "mirrormedia"),
+                    "media_spool");
+            mWriters = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                mWriters[i] = new Thread(this::writerLoop, "mirror-media-w" + i);
+                mWriters[i].start();
+            }
+        }
+
+        /** Read the current zip entry into a pooled buffer (or a spill file) and queue it. */
+        void submit(String entry, Uri collection, ContentValues values, Uri target, InputStream in)
+                throws IOException, InterruptedException {
+            final Job job = new Job(entry, collection, values, target);
+            final byte[] buf = acquire();
+            boolean keep = false;
+            try {
+                int len = 0;
+                int n;
+                while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) len += n;
+                if (len == buf.length && (n = in.read()) >= 0) {
+                    if (!mSpoolDir.isDirectory() && !mSpoolDir.mkdirs()) {
+                        throw new IOException("mkdirs " + mSpoolDir);
+                    }
+                    // 并发的恢复共用 media_spool 目录，文件名不能按序号取
+                    job.spill = File.createTempFile("s", null, mSpoolDir);
+                    try (OutputStream os = new FileOutputStream(job.spill)) {
+                        os.write(buf, 0, len);
+                        os.write(n);
+                        while ((n = in.read(buf)) > 0) os.write(buf, 0, n);
+                    } catch (IOException e) {
+                        job.spill.delete();
+                        throw e;
+                    }
+                } else {
+                    job.buf = buf;
+                    job.len = len;
+                    keep = true;
+                }
+            } finally {
+                // 溢出到文件的条目不占缓冲，立刻还回去
+                if (!keep) release(buf);
+            }
+            mQueue.put(job);
+        }
+
+        int ok() {
+            return mOk.get();
+        }
+
+        int failed() {
+            return mFailed.get();
+        }
+
+        /** Wait for the writers, then finalize the rows still pending. */
+        @Override
+        public void close() {
+            try {
+                for (int i = 0; i < mWriters.length; i++) mQueue.put(POISON);
+                for (Thread t : mWriters) t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final ArrayList<Uri> rest;
+            synchronized (mPending) {
+                rest = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            finalizePending(rest);
+        }
+
+        private byte[] acquire() throws InterruptedException {
+            byte[] b = mFree.poll();
+            if (b != null) return b;
+            synchronized (this) {
+                if (mAllocated < mMaxBuffers) {
+                    mAllocated++;
+                    return new byte[MEDIA_SPOOL_BUF];
+                }
+            }
+            return mFree.take();
+        }
+
+        private void release(byte[] b) {
+            if (b != null) mFree.offer(b);
+        }
+
+        private void writerLoop() {
+            final byte[] copy = new byte[256 * 1024]; // 每个线程一块，跨条目复用
+            while (true) {
+                final Job job;
+                try {
+                    job = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (job == POISON) return;
+                final boolean replace = job.target != null;
+                Uri inserted = null;
+                try {
+                    inserted = replace ? job.target : mCr.insert(job.collection, job.values);
+                    if (inserted == null) throw new IOException("insert returned null");
+                    try (OutputStream os = mCr.openOutputStream(inserted, replace ? "wt" : "w")) {
+                        if (os == null) throw new IOException("openOutputStream null");
+                        if (job.spill == null) {
+                            os.write(job.buf, 0, job.len);
+                        } else {
+                            try (InputStream in = new FileInputStream(job.spill)) {
+                                int n;
+                                while ((n = in.read(copy)) > 0) os.write(copy, 0, n);
+                            }
+                        }
+                    }
+                    mOk.incrementAndGet();
+                    if (replace) continue;
+                    ArrayList<Uri> batch = null;
+                    synchronized (mPending) {
+                        mPending.add(inserted);
+                        if (mPending.size() >= MEDIA_FINALIZE_BATCH) {
+                            batch = new ArrayList<>(mPending);
+                            mPending.clear();
+                        }
+                    }
+                    if (batch != null) finalizePending(batch);
+                } catch (Throwable t) {
+                    Slog.w(TAG, "MediaRestorePool: FAILED entry=" + job.entry + " uri=" + inserted, t);
+                    mFailed.incrementAndGet();
+                    // 写了一半的 pending 行不留给 MediaProvider 一周后再清；代理行保留，至少还能看
+                    if (inserted != null && !replace) {
+                        try { mCr.delete(inserted, null, null); } catch (Throwable ignored) {}
+                    }
+                } finally {
+                    release(job.buf);
+                    if (job.spill != null) job.spill.delete();
+                }
+            }
+        }
+
+        // IMPORTANT: pending -> not pending, or Gallery won't show it
+        private void finalizePending(ArrayList<Uri> uris) {
+            if (uris.isEmpty()) return;
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>(uris.size());
+            for (Uri u : uris) {
+                ops.add(ContentProviderOperation.newUpdate(u)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+                        .build());
+            }
+            try {
+                mCr.applyBatch(MediaStore.AUTHORITY, ops);
+                return;
+            } catch (Throwable t) {
+                Slog.w(TAG, "MediaRestorePool: batch finalize failed, per row", t);
+            }
+            final ContentValues done = new ContentValues();
+            done.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            for (Uri u : uris) {
+                try {
+                    mCr.update(u, done, null, null);
+                } catch (Throwable t) {
+                    Slog.w(TAG, "MediaRestorePool: finalize failed " + u, t);
+                    mOk.decrementAndGet();
+                    mFailed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Daemon request with a single logical path argument (ZIP / DUMP). */
+    static MirrorDaemonProtocol.Frame pathRequest(int op, String logicalPath) {
+        return new MirrorDaemonProtocol.Frame(op)
+                .putString(MirrorDaemonProtocol.TAG_PATH, logicalPath);
+    }
+
+    /**
+     * Append export filters (MirrorMediaManager.OPT_INCLUDE_PACKAGES etc.) as TLVs; the daemon
+     * evaluates them during its directory walk, before any file is opened.
+     */
+    static MirrorDaemonProtocol.Frame withWalkFilters(MirrorDaemonProtocol.Frame f,
+            Bundle filters) {
+        if (filters == null) return f;
+        appendStrings(f, MirrorDaemonProtocol.TAG_INCLUDE_PKG,
+                filters.getStringArray(MirrorMediaManager.OPT_INCLUDE_PACKAGES));
+        appendStrings(f, MirrorDaemonProtocol.TAG_EXCLUDE_PKG,
+                filters.getStringArray(MirrorMediaManager.OPT_EXCLUDE_PACKAGES));
+        appendStrings(f, MirrorDaemonProtocol.TAG_INCLUDE_GLOB,
+                filters.getStringArray(MirrorMediaManager.OPT_INCLUDE_GLOBS));
+        appendStrings(f, MirrorDaemonProtocol.TAG_EXCLUDE_GLOB,
+                filters.getStringArray(MirrorMediaManager.OPT_EXCLUDE_GLOBS));
+        final long maxSize = filters.getLong(MirrorMediaManager.OPT_MAX_FILE_SIZE, 0L);
+        if (maxSize > 0) {
+            f.putLong(MirrorDaemonProtocol.TAG_MAX_FILE_SIZE, maxSize);
+        }
+        return f;
+    }
+
+    /** Append the ZIP codec policy (MirrorMediaManager.OPT_ZIP_LEVEL / _AUTO / _THREADS) as TLVs. */
+    static MirrorDaemonProtocol.Frame withZipCodec(MirrorDaemonProtocol.Frame f, Bundle opts) {
+        if (opts == null) return f;
+        final int level = zipLevel(opts);
+        if (level != Deflater.DEFAULT_COMPRESSION) {
+            f.putInt(MirrorDaemonProtocol.TAG_ZIP_LEVEL, level);
+        }
+        if (opts.getBoolean(MirrorMediaManager.OPT_ZIP_AUTO, false)) {
+            f.putInt(MirrorDaemonProtocol.TAG_ZIP_AUTO, 1);
+        }
+        if (opts.containsKey(MirrorMediaManager.OPT_ZIP_THREADS)) {
+            f.putInt(MirrorDaemonProtocol.TAG_ZIP_THREADS,
+                    Math.max(0, opts.getInt(MirrorMediaManager.OPT_ZIP_THREADS)));
+        }
+        return f;
+    }
+
+    /** Append the DUMP encoding (MirrorMediaManager.OPT_RAW_ZSTD_* / OPT_RAW_PACK) as TLVs. */
+    static MirrorDaemonProtocol.Frame withRawCodec(MirrorDaemonProtocol.Frame f, Bundle opts) {
+        if (opts == null) return f;
+        final int level = opts.getInt(MirrorMediaManager.OPT_RAW_ZSTD_LEVEL, 0);
+        if (level > 0) {
+            f.putInt(MirrorDaemonProtocol.TAG_RAW_ZSTD_LEVEL, level);
+            if (opts.getBoolean(MirrorMediaManager.OPT_RAW_ZSTD_LONG, false)) {
+                f.putInt(MirrorDaemonProtocol.TAG_RAW_ZSTD_LONG, 1);
+            }
+        }
+        if (opts.getBoolean(MirrorMediaManager.OPT_RAW_PACK, false)) {
+            f.putInt(MirrorDaemonProtocol.TAG_RAW_PACK, 1);
+        }
+        return f;
+    }
+
+    /** OPT_ZIP_LEVEL clamped to 0-9, or Deflater.DEFAULT_COMPRESSION when absent. */
+    static int zipLevel(Bundle opts) {
+        if (opts == null || !opts.containsKey(MirrorMediaManager.OPT_ZIP_LEVEL)) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION,
+                opts.getInt(MirrorMediaManager.OPT_ZIP_LEVEL)));
+    }
+
+    private static void appendStrings(MirrorDaemonProtocol.Frame f, int tag, String[] values) {
+        if (values == null) return;
+        for (String v : values) {
+            if (!TextUtils.isEmpty(v)) f.putString(tag, v);
+        }
+    }
+
+    /** Daemon restore request: logical target plus the uid that should own restored files. */
+    static MirrorDaemonProtocol.Frame targetRequest(int op, String logicalTarget, int uid) {
+        return new MirrorDaemonProtocol.Frame(op)
+                .putString(MirrorDaemonProtocol.TAG_PATH, logicalTarget)
+                .putInt(MirrorDaemonProtocol.TAG_UID, uid);
+    }
+
     private static String normalizeRelPath(String rp) {
         if (rp == null) return "";
         String x = rp.replace('\\', '/');
@@ -167,36 +1155,32 @@ public final class MirrorMediaService extends SystemService {
      */
     private final IMirrorMediaService.Stub mBinder = new IMirrorMediaService.Stub() {
 
-        // ================== state for restore helpers ==================
-        // Contacts oldRawId -> newRawId map
-        private final LongSparseArray<Long> mContactsRawIdMap = new LongSparseArray<>();
-
-        // Image meta: key=zip entry name, value=meta json
-        private final ArrayMap<String, JSONObject> mImageMetaMap = new ArrayMap<>();
+        // 恢复状态都在每次调用自己的 RestoreContext 里，Stub 上没有可变的恢复状态
 
         // ---------- ZIP Export (daemon: ZIP) ----------
         @Override
         public void streamFolderZip(String logicalPath, ParcelFileDescriptor outPfd) {
-            Slog.i(TAG, "Starting streamFolderZip: " + logicalPath);
+            streamFolderZipWithOptions(logicalPath, outPfd, null);
+        }
+
+        @Override
+        public void streamFolderZipWithOptions(String logicalPath, ParcelFileDescriptor outPfd,
+                Bundle filters) {
+            Slog.i(TAG, "Starting streamFolderZip: " + logicalPath + " filters=" + filters);
 
             if (outPfd == null) {
                 Slog.e(TAG, "streamFolderZip: outPfd is null");
                 return;
             }
 
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{outPfd.getFileDescriptor()});
-
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
-
-                String cmd = "ZIP " + logicalPath + "\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
-
-                Slog.i(TAG, "Sent ZIP command: " + cmd.trim());
+            try {
+                // Do not wait: the caller reads the other end of outPfd after we return.
+                final MirrorDaemonConnection.Request req = mDaemon.submit(
+                        withZipCodec(withWalkFilters(
+                                pathRequest(MirrorDaemonProtocol.OP_ZIP, logicalPath), filters),
+                                filters),
+                        new FileDescriptor[]{outPfd.getFileDescriptor()}, null);
+                Slog.i(TAG, "Sent " + req.command);
             } catch (IOException e) {
                 Slog.e(TAG, "streamFolderZip failed for " + logicalPath, e);
             } finally {
@@ -226,27 +1210,12 @@ public final class MirrorMediaService extends SystemService {
                 return false;
             }
 
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{inPfd.getFileDescriptor()});
-
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
-
-                String cmd = "UNZIP " + logicalTarget + " UID " + uid + "\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
-
-                BufferedReader br = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                String response = br.readLine();
-                boolean success = "OK".equals(response);
-                Slog.i(TAG, "restoreFromZip daemon response=" + response + " => success=" + success);
-                return success;
-            } catch (IOException e) {
-                Slog.e(TAG, "restoreFromZip IO failed for " + logicalTarget, e);
-                return false;
+            try {
+                final MirrorDaemonProtocol.Result r = mDaemon.call(
+                        targetRequest(MirrorDaemonProtocol.OP_UNZIP, logicalTarget, uid),
+                        new FileDescriptor[]{inPfd.getFileDescriptor()}, 0);
+                Slog.i(TAG, "restoreFromZip daemon result: " + r);
+                return r.ok();
             } finally {
                 try {
                     inPfd.close();
@@ -259,26 +1228,27 @@ public final class MirrorMediaService extends SystemService {
         // ---------- RAW Export (daemon: DUMP) ----------
         @Override
         public void streamFolderRaw(String logicalPath, ParcelFileDescriptor outPfd) {
-            Slog.i(TAG, "Starting streamFolderRaw: " + logicalPath);
+            streamFolderRawWithOptions(logicalPath, outPfd, null);
+        }
+
+        @Override
+        public void streamFolderRawWithOptions(String logicalPath, ParcelFileDescriptor outPfd,
+                Bundle filters) {
+            Slog.i(TAG, "Starting streamFolderRaw: " + logicalPath + " filters=" + filters);
 
             if (outPfd == null) {
                 Slog.e(TAG, "streamFolderRaw: outPfd is null");
                 return;
             }
 
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{outPfd.getFileDescriptor()});
-
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
-
-                String cmd = "DUMP " + logicalPath + "\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
-
-                Slog.i(TAG, "Sent DUMP command: " + cmd.trim());
+            try {
+                // Do not wait: the caller reads the other end of outPfd after we return.
+                final MirrorDaemonConnection.Request req = mDaemon.submit(
+                        withRawCodec(withWalkFilters(
+                                pathRequest(MirrorDaemonProtocol.OP_DUMP, logicalPath), filters),
+                                filters),
+                        new FileDescriptor[]{outPfd.getFileDescriptor()}, null);
+                Slog.i(TAG, "Sent " + req.command);
             } catch (IOException e) {
                 Slog.e(TAG, "streamFolderRaw failed for " + logicalPath, e);
             } finally {
@@ -295,49 +1265,49 @@ public final class MirrorMediaService extends SystemService {
         // ---------- RAW Import (daemon: PUTRAW) ----------
         @Override
         public boolean restoreFromRaw(String logicalTarget, ParcelFileDescriptor inPfd) {
-            Slog.i(TAG, "restoreFromRaw: " + logicalTarget);
+            return putRaw("restoreFromRaw", logicalTarget, inPfd, false);
+        }
 
-            if (inPfd == null) {
-                Slog.e(TAG, "restoreFromRaw: inPfd is null");
-                return false;
-            }
+        @Override
+        public boolean resumeFromRaw(String logicalTarget, ParcelFileDescriptor inPfd) {
+            return putRaw("resumeFromRaw", logicalTarget, inPfd, true);
+        }
 
-            final String pkg = parsePkgFromLogical(logicalTarget);
-            if (pkg == null) {
-                Slog.e(TAG, "restoreFromRaw: unsupported logical target " + logicalTarget);
-                return false;
-            }
+        private boolean putRaw(String what, String logicalTarget, ParcelFileDescriptor inPfd,
+                boolean resume) {
+            Slog.i(TAG, what + ": " + logicalTarget);
 
-            final int appUid = resolveUidForLogical(logicalTarget);
-            if (appUid < 0) {
-                Slog.e(TAG, "restoreFromRaw: failed to resolve UID for " + logicalTarget);
+            if (inPfd == null) {
+                Slog.e(TAG, what + ": inPfd is null");
                 return false;
             }
 
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{inPfd.getFileDescriptor()});
-
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
-
-                String cmd = "PUTRAW " + logicalTarget + " UID " + appUid + "\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
+            try {
+                final String pkg = parsePkgFromLogical(logicalTarget);
+                if (pkg == null) {
+                    Slog.e(TAG, what + ": unsupported logical target " + logicalTarget);
+                    return false;
+                }
 
-                InputStream is = socket.getInputStream();
-                byte[] ackBuffer = new byte[16];
-                int bytesRead = is.read(ackBuffer);
-                boolean success = bytesRead > 0 &&
-                        new String(ackBuffer, 0, bytesRead, StandardCharsets.UTF_8)
-                                .trim().startsWith("OK");
+                final int appUid = resolveUidForLogical(logicalTarget);
+                if (appUid < 0) {
+                    Slog.e(TAG, what + ": failed to resolve UID for " + logicalTarget);
+                    return false;
+                }
 
-                Slog.i(TAG, "restoreFromRaw: daemon result=" + success + ", target=" + logicalTarget);
-                return success;
-            } catch (IOException e) {
-                Slog.e(TAG, "restoreFromRaw failed for " + logicalTarget, e);
-                return false;
+                final MirrorDaemonProtocol.Frame req =
+                        targetRequest(MirrorDaemonProtocol.OP_PUTRAW, logicalTarget, appUid);
+                if (resume) req.putInt(MirrorDaemonProtocol.TAG_RESUME, 1);
+                final MirrorDaemonProtocol.Result r = mDaemon.call(req,
+                        new FileDescriptor[]{inPfd.getFileDescriptor()}, 0);
+                Slog.i(TAG, what + ": target=" + logicalTarget + " daemon result: " + r);
+                if (!r.ok() && r.frame != null
+                        && r.frame.getBytes(MirrorDaemonProtocol.TAG_CKPT_FILES) != null) {
+                    Slog.i(TAG, what + ": durable up to file #"
+                            + r.frame.getLong(MirrorDaemonProtocol.TAG_CKPT_FILES, 0) + " ("
+                            + r.frame.getString(MirrorDaemonProtocol.TAG_CKPT_PATH) + ")");
+                }
+                return r.ok();
             } finally {
                 try {
                     inPfd.close();
@@ -346,77 +1316,219 @@ public final class MirrorMediaService extends SystemService {
                 }
             }
         }
-        
+
+        // ---------- RAW checkpoint (daemon: CHECKPOINT) ----------
+        @Override
+        public Bundle getRawCheckpoint(String logicalTarget) {
+            if (TextUtils.isEmpty(logicalTarget)) return null;
+            final MirrorDaemonProtocol.Result r = mDaemon.call(
+                    pathRequest(MirrorDaemonProtocol.OP_CHECKPOINT, logicalTarget), null,
+                    QUERY_TIMEOUT_MS);
+            if (!r.ok()) {
+                Slog.w(TAG, "getRawCheckpoint failed for " + logicalTarget + ": " + r);
+                return null;
+            }
+            final Bundle out = new Bundle();
+            if (r.frame.getBytes(MirrorDaemonProtocol.TAG_CKPT_FILES) != null) {
+                out.putLong(MirrorMediaManager.RAW_CHECKPOINT_FILES,
+                        r.frame.getLong(MirrorDaemonProtocol.TAG_CKPT_FILES, 0));
+                out.putLong(MirrorMediaManager.RAW_CHECKPOINT_BYTES,
+                        r.frame.getLong(MirrorDaemonProtocol.TAG_CKPT_BYTES, 0));
+                out.putString(MirrorMediaManager.RAW_CHECKPOINT_PATH,
+                        r.frame.getString(MirrorDaemonProtocol.TAG_CKPT_PATH));
+            }
+            return out;
+        }
+
         // ---------- SMS DB Direct Backup ----------
         @Override
-        public boolean backupSmsDb(ParcelFileDescriptor outPfd) {
+        public Bundle backupSmsDb(ParcelFileDescriptor outPfd) {
             Slog.i(TAG, "backupSmsDb: starting");
-            if (outPfd == null) return false;
+            if (outPfd == null) return null;
+
+            // daemon 用 SQLite 在线备份拿快照；等到整库写完再返回，调用方不用再二次确认
+            final MirrorDaemonProtocol.Result r;
+            try {
+                r = mDaemon.call(
+                        new MirrorDaemonProtocol.Frame(MirrorDaemonProtocol.OP_BACKUP_SMS_DB),
+                        new FileDescriptor[]{outPfd.getFileDescriptor()}, 0);
+            } finally {
+                try { outPfd.close(); } catch (IOException ignored) {}
+            }
+            Slog.i(TAG, "backupSmsDb result: " + r);
+            if (!r.ok()) return null;
+            final Bundle out = new Bundle();
+            out.putInt(MirrorMediaManager.SMS_DB_PAGES,
+                    r.frame.getInt(MirrorDaemonProtocol.TAG_DB_PAGES, 0));
+            out.putInt(MirrorMediaManager.SMS_DB_PAGE_SIZE,
+                    r.frame.getInt(MirrorDaemonProtocol.TAG_DB_PAGE_SIZE, 0));
+            out.putLong(MirrorMediaManager.SMS_DB_BYTES, r.bytes);
+            return out;
+        }
+
+        // ---------- SMS DB Direct Restore ----------
+        @Override
+        public boolean restoreSmsDb(ParcelFileDescriptor inPfd) {
+            Slog.i(TAG, "restoreSmsDb: starting");
+            if (inPfd == null) return false;
 
             boolean success = false;
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{outPfd.getFileDescriptor()});
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
+            try {
+                final MirrorDaemonProtocol.Result r = mDaemon.call(
+                        new MirrorDaemonProtocol.Frame(MirrorDaemonProtocol.OP_RESTORE_SMS_DB),
+                        new FileDescriptor[]{inPfd.getFileDescriptor()}, 0);
+                success = r.ok();
+                Slog.i(TAG, "restoreSmsDb result: " + r);
+            } finally {
+                try { inPfd.close(); } catch (IOException ignored) {}
+            }
 
-                String cmd = "BACKUP_SMS_DB\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
+            if (success) {
+                long token = Binder.clearCallingIdentity();
+                try {
+                    killTelephonyProcess();
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                }
+            }
+            return success;
+        }
 
-                success = true; 
+        // ---------- SMS DB Live Restore ----------
+        @Override
+        public boolean restoreSmsDbLive(ParcelFileDescriptor inPfd, Bundle opts) {
+            Slog.i(TAG, "restoreSmsDbLive: starting");
+            if (inPfd == null) return false;
 
+            final int userId = (opts != null)
+                    ? opts.getInt(MirrorMediaManager.OPT_USER_ID, UserHandle.getCallingUserId())
+                    : UserHandle.getCallingUserId();
+            // 与整库替换语义一致：缺省先清空现有短信
+            final boolean clearBefore = (opts == null)
+                    || opts.getBoolean(MirrorMediaManager.OPT_CLEAR_BEFORE_RESTORE, true);
+            // 调用方另行恢复彩信时不管快照里的 pdu
+            final boolean smsOnly = (opts != null)
+                    && opts.getBoolean(MirrorMediaManager.OPT_SMS_ONLY, false);
+
+            // SQLiteDatabase 只能按路径打开，先把快照落到本地；每次调用独立临时文件，避免并发互踩
+            File tmp = null;
+            try (InputStream in = new FileInputStream(inPfd.getFileDescriptor())) {
+                final File dir = new File(Environment.getDataSystemDirectory(), "mirrormedia");
+                dir.mkdirs();
+                tmp = File.createTempFile("sms_restore", ".db", dir);
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    FileUtils.copy(in, out);
+                }
             } catch (IOException e) {
-                Slog.e(TAG, "backupSmsDb failed", e);
-                success = false;
+                Slog.e(TAG, "restoreSmsDbLive: copy snapshot failed", e);
+                if (tmp != null) SQLiteDatabase.deleteDatabase(tmp);
+                return false;
             } finally {
-                try { outPfd.close(); } catch (IOException ignored) {}
+                try { inPfd.close(); } catch (IOException ignored) {}
+            }
+
+            final long token = Binder.clearCallingIdentity();
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(tmp.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY)) {
+                // 热恢复只重放 sms 表；快照里有彩信（pdu/part/addr 及 app_parts 附件）而调用方
+                // 又没有另行恢复彩信时返回 false，让调用方退回整库替换，避免先清空再丢掉彩信
+                if (!smsOnly && snapshotHasMms(db)) {
+                    Slog.w(TAG, "restoreSmsDbLive: snapshot contains MMS, live restore not possible");
+                    return false;
+                }
+                final ContentResolver cr = getContext()
+                        .createContextAsUser(UserHandle.of(userId), 0).getContentResolver();
+                if (clearBefore) {
+                    int n = cr.delete(Telephony.Sms.CONTENT_URI, null, null);
+                    Slog.i(TAG, "restoreSmsDbLive: cleared SMS count=" + n);
+                }
+                return restoreSmsFromDb(db, cr);
+            } catch (Throwable t) {
+                Slog.e(TAG, "restoreSmsDbLive failed", t);
+                return false;
+            } finally {
+                Binder.restoreCallingIdentity(token);
+                SQLiteDatabase.deleteDatabase(tmp);
+            }
+        }
+
+        // ---------- Blacklists (daemon: BLACKLIST) ----------
+        @Override
+        public Bundle getBlacklist() {
+            final MirrorDaemonProtocol.Result r = mDaemon.call(
+                    new MirrorDaemonProtocol.Frame(MirrorDaemonProtocol.OP_BLACKLIST), null,
+                    QUERY_TIMEOUT_MS);
+            if (!r.ok()) {
+                Slog.w(TAG, "getBlacklist failed: " + r);
+                return null;
+            }
+            final Bundle out = new Bundle();
+            out.putInt(MirrorMediaManager.BLACKLIST_VERSION,
+                    r.frame.getInt(MirrorDaemonProtocol.TAG_BLACKLIST_VERSION, 0));
+            out.putStringArray(MirrorMediaManager.BLACKLIST_INTERNAL,
+                    r.frame.getStrings(MirrorDaemonProtocol.TAG_BLACKLIST_INTERNAL));
+            out.putStringArray(MirrorMediaManager.BLACKLIST_EXTERNAL,
+                    r.frame.getStrings(MirrorDaemonProtocol.TAG_BLACKLIST_EXTERNAL));
+            return out;
+        }
+
+        // ---------- Capabilities (daemon: CAPS) ----------
+        @Override
+        public Bundle getCapabilities() {
+            final MirrorDaemonProtocol.Result r = mDaemon.call(
+                    new MirrorDaemonProtocol.Frame(MirrorDaemonProtocol.OP_CAPS), null,
+                    QUERY_TIMEOUT_MS);
+            if (!r.ok()) {
+                // 旧 daemon 回 ERR_UNKNOWN_OP，调用方按只支持 MM01 处理
+                Slog.w(TAG, "getCapabilities failed: " + r);
+                return null;
             }
-            return success;
+            final Bundle out = new Bundle();
+            out.putStringArray(MirrorMediaManager.CAPS_RAW_FORMATS,
+                    r.frame.getStrings(MirrorDaemonProtocol.TAG_RAW_FORMAT));
+            return out;
         }
 
-        // ---------- SMS DB Direct Restore ----------
+        // ---------- Pre-scan (daemon: SCAN) ----------
         @Override
-        public boolean restoreSmsDb(ParcelFileDescriptor inPfd) {
-            Slog.i(TAG, "restoreSmsDb: starting");
-            if (inPfd == null) return false;
-
-            boolean success = false;
-            try (LocalSocket socket = new LocalSocket()) {
-                socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                
-                socket.setFileDescriptorsForSend(new FileDescriptor[]{inPfd.getFileDescriptor()});
-                OutputStream os = socket.getOutputStream();
-                os.write(0); // Trigger FD send
-                os.flush();
-
-                String cmd = "RESTORE_SMS_DB\n";
-                os.write(cmd.getBytes(StandardCharsets.UTF_8));
-                os.flush();
-
-                BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                String response = br.readLine();
-                success = "OK".equals(response);
-                Slog.i(TAG, "restoreSmsDb response=" + response);
-
-            } catch (IOException e) {
-                Slog.e(TAG, "restoreSmsDb failed", e);
-                success = false;
-            } finally {
-                try { inPfd.close(); } catch (IOException ignored) {}
+        public Bundle scan(String logicalPath, Bundle filters) {
+            Slog.i(TAG, "scan: " + logicalPath + " filters=" + filters);
+
+            final MirrorDaemonProtocol.Result r = mDaemon.call(
+                    withWalkFilters(pathRequest(MirrorDaemonProtocol.OP_SCAN, logicalPath), filters),
+                    null, SCAN_TIMEOUT_MS);
+            if (!r.ok()) {
+                Slog.w(TAG, "scan failed for " + logicalPath + ": " + r);
+                return null;
             }
 
-            if (success) {
-                long token = Binder.clearCallingIdentity();
-                try {
-                    killTelephonyProcess();
-                } finally {
-                    Binder.restoreCallingIdentity(token);
+            final List<byte[]> raw = r.frame.getAll(MirrorDaemonProtocol.TAG_GROUP_STAT);
+            final String[] names = new String[raw.size()];
+            final long[] groupBytes = new long[raw.size()];
+            final long[] groupFiles = new long[raw.size()];
+            try {
+                for (int i = 0; i < raw.size(); i++) {
+                    final MirrorDaemonProtocol.GroupStat g =
+                            MirrorDaemonProtocol.GroupStat.decode(raw.get(i));
+                    names[i] = g.name;
+                    groupBytes[i] = g.bytes;
+                    groupFiles[i] = g.files;
                 }
+            } catch (IOException e) {
+                Slog.w(TAG, "scan: bad group stat from daemon", e);
+                return null;
             }
-            return success;
+
+            final Bundle out = new Bundle();
+            out.putLong(MirrorMediaManager.SCAN_TOTAL_BYTES, r.bytes);
+            out.putLong(MirrorMediaManager.SCAN_FILE_COUNT, r.files);
+            out.putLong(MirrorMediaManager.SCAN_DIR_COUNT,
+                    r.frame.getLong(MirrorDaemonProtocol.TAG_DIRS, 0));
+            out.putStringArray(MirrorMediaManager.SCAN_GROUP_NAMES, names);
+            out.putLongArray(MirrorMediaManager.SCAN_GROUP_BYTES, groupBytes);
+            out.putLongArray(MirrorMediaManager.SCAN_GROUP_FILES, groupFiles);
+            Slog.i(TAG, "scan: " + logicalPath + " -> " + r);
+            return out;
         }
 
         private void killTelephonyProcess() {
@@ -455,30 +1567,44 @@ public final class MirrorMediaService extends SystemService {
             final int userId = (opts != null)
                     ? opts.getInt(MirrorMediaManager.OPT_USER_ID, defaultUserId)
                     : defaultUserId;
+            final IdRange range = IdRange.fromOpts(opts);
 
+            boolean mediaIndexHeld = false;
             long token = Binder.clearCallingIdentity();
             try {
                 final Context userCtx = getContext().createContextAsUser(UserHandle.of(userId), 0);
                 final ContentResolver cr = userCtx.getContentResolver();
+                MediaIndex mediaIndex = null;
 
                 try (OutputStream os = new BufferedOutputStream(
                         new ParcelFileDescriptor.AutoCloseOutputStream(outFd));
                      ZipOutputStream zos = new ZipOutputStream(os)) {
 
-                    writePersonalManifest(zos, types, userId);
+                    // PIM 条目都是 JSON 文本，auto 模式下也照常压缩；只有嵌套的媒体 zip 另行处理
+                    zos.setLevel(zipLevel(opts));
+                    writePersonalManifest(zos, cr, types, userId, range);
 
                     if ((types & MirrorMediaManager.TYPE_SMS) != 0) {
                         try {
-                            int n = backupSms(zos, cr);
+                            int n = backupSms(zos, cr, range, pageSize(opts));
                             Slog.i(TAG, "backupPersonalData: SMS exported=" + n);
                         } catch (Throwable t) {
                             Slog.e(TAG, "backupPersonalData: SMS failed", t);
                         }
                     }
 
+                    if ((types & MirrorMediaManager.TYPE_MMS) != 0) {
+                        try {
+                            int n = backupMms(zos, cr, range);
+                            Slog.i(TAG, "backupPersonalData: MMS exported=" + n);
+                        } catch (Throwable t) {
+                            Slog.e(TAG, "backupPersonalData: MMS failed", t);
+                        }
+                    }
+
                     if ((types & MirrorMediaManager.TYPE_CALLLOG) != 0) {
                         try {
-                            int n = backupCallLog(zos, cr);
+                            int n = backupCallLog(zos, cr, range, pageSize(opts));
                             Slog.i(TAG, "backupPersonalData: CallLog exported=" + n);
                         } catch (Throwable t) {
                             Slog.e(TAG, "backupPersonalData: CallLog failed", t);
@@ -487,7 +1613,7 @@ public final class MirrorMediaService extends SystemService {
 
                     if ((types & MirrorMediaManager.TYPE_CALENDAR) != 0) {
                         try {
-                            int n = backupCalendarEvents(zos, cr);
+                            int n = backupCalendarEvents(zos, cr, range, pageSize(opts));
                             Slog.i(TAG, "backupPersonalData: Calendar events exported=" + n);
                         } catch (Throwable t) {
                             Slog.e(TAG, "backupPersonalData: Calendar failed", t);
@@ -496,7 +1622,7 @@ public final class MirrorMediaService extends SystemService {
 
                     if ((types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
                         try {
-                            int n = backupContacts(zos, cr);
+                            int n = backupContacts(zos, cr, range);
                             Slog.i(TAG, "backupPersonalData: Contacts exported(raw)=" + n);
                         } catch (Throwable t) {
                             Slog.e(TAG, "backupPersonalData: Contacts failed", t);
@@ -505,8 +1631,20 @@ public final class MirrorMediaService extends SystemService {
 
                     if ((types & MirrorMediaManager.TYPE_MEDIA) != 0) {
                         try {
-                            int n = backupImages(zos, cr);
-                            Slog.i(TAG, "backupPersonalData: Images exported=" + n);
+                            if (opts != null && opts.getBoolean(
+                                    MirrorMediaManager.OPT_MEDIA_INCREMENTAL, false)) {
+                                if (!MediaIndex.tryAcquire(userId)) {
+                                    Slog.e(TAG, "backupPersonalData: incremental media backup for u"
+                                            + userId + " already running, media skipped");
+                                } else {
+                                    mediaIndexHeld = true;
+                                    mediaIndex = backupMediaIncremental(zos, userCtx, cr, userId,
+                                            opts);
+                                }
+                            } else {
+                                int n = backupImages(zos, cr, opts);
+                                Slog.i(TAG, "backupPersonalData: Images exported=" + n);
+                            }
                         } catch (Throwable t) {
                             Slog.e(TAG, "backupPersonalData: Media(Images) failed", t);
                         }
@@ -514,9 +1652,20 @@ public final class MirrorMediaService extends SystemService {
 
                     zos.finish();
                 }
+
+                // 归档完整写出后才提交索引；中途失败下次仍按旧索引比较
+                if (mediaIndex != null) {
+                    try {
+                        mediaIndex.save(userId);
+                    } catch (IOException e) {
+                        // 旧索引还在：下次多导出一些重复文件，恢复端按 delta 覆盖，结果不变
+                        Slog.w(TAG, "backupPersonalData: save media index failed", e);
+                    }
+                }
             } catch (Throwable t) {
                 Slog.e(TAG, "backupPersonalData failed", t);
             } finally {
+                if (mediaIndexHeld) MediaIndex.release(userId);
                 Binder.restoreCallingIdentity(token);
             }
         }
@@ -540,6 +1689,7 @@ public final class MirrorMediaService extends SystemService {
             boolean ok = true;
 
             boolean seenSms = false;
+            boolean seenMms = false;
             boolean seenCall = false;
             boolean seenCal = false;
             boolean seenContactsRaw = false;
@@ -554,6 +1704,7 @@ public final class MirrorMediaService extends SystemService {
             int imgSeen = 0;
             int imgOk = 0;
             int imgFail = 0;
+            int proxies = 0;
 
             try {
                 final Context userCtx = getContext().createContextAsUser(UserHandle.of(userId), 0);
@@ -573,6 +1724,14 @@ public final class MirrorMediaService extends SystemService {
                             Slog.w(TAG, "restorePersonalData: clear SMS failed", t);
                         }
                     }
+                    if ((types & MirrorMediaManager.TYPE_MMS) != 0) {
+                        try {
+                            int n = cr.delete(Telephony.Mms.CONTENT_URI, null, null);
+                            Slog.i(TAG, "restorePersonalData: cleared MMS count=" + n);
+                        } catch (Throwable t) {
+                            Slog.w(TAG, "restorePersonalData: clear MMS failed", t);
+                        }
+                    }
                     if ((types & MirrorMediaManager.TYPE_CALLLOG) != 0) {
                         try {
                             int n = cr.delete(CallLog.Calls.CONTENT_URI, null, null);
@@ -609,9 +1768,19 @@ public final class MirrorMediaService extends SystemService {
                     }
                 }
 
-                // Reset state before restore
-                mImageMetaMap.clear();
-                mContactsRawIdMap.clear();
+                // 本次调用自己的恢复状态，不与并发的其它恢复共享
+                final RestoreContext ctx = new RestoreContext(userId);
+
+                final int mediaThreads = ((types & MirrorMediaManager.TYPE_MEDIA) != 0 && opts != null)
+                        ? Math.min(MEDIA_RESTORE_MAX_THREADS,
+                                opts.getInt(MirrorMediaManager.OPT_MEDIA_RESTORE_THREADS, 0))
+                        : 0;
+                final MediaRestorePool mediaPool =
+                        (mediaThreads > 0) ? new MediaRestorePool(cr, mediaThreads) : null;
+                final MediaCollection[] mediaColls = MediaCollection.all();
+                if ((types & MirrorMediaManager.TYPE_MEDIA) != 0) {
+                    ctx.mediaRanges = MediaRangeState.load(userId);
+                }
 
                 try (InputStream is = new BufferedInputStream(
                         new ParcelFileDescriptor.AutoCloseInputStream(inFd));
@@ -621,12 +1790,28 @@ public final class MirrorMediaService extends SystemService {
                     while ((e = zis.getNextEntry()) != null) {
                         final String name = e.getName();
                         try {
+                            // Manifest（第一个条目）：按导出行数预分配 id 映射
+                            if (ENTRY_MANIFEST.equals(name)) {
+                                ctx.presize(readManifestCounts(zis));
+
                             // SMS
-                            if (ENTRY_SMS.equals(name) && (types & MirrorMediaManager.TYPE_SMS) != 0) {
+                            } else if (ENTRY_SMS.equals(name) && (types & MirrorMediaManager.TYPE_SMS) != 0) {
                                 seenSms = true;
                                 ok &= restoreSmsFromEntry(zis, cr);
                                 
 
+                            // MMS
+                            } else if (ENTRY_MMS_PDU.equals(name) && (types & MirrorMediaManager.TYPE_MMS) != 0) {
+                                seenMms = true;
+                                ok &= restoreMmsPduFromEntry(ctx, zis, cr);
+
+                            } else if (ENTRY_MMS_PART.equals(name) && (types & MirrorMediaManager.TYPE_MMS) != 0) {
+                                ok &= restoreMmsPartFromEntry(ctx, zis, cr);
+
+                            } else if (name != null && name.startsWith(ENTRY_MMS_PART_DATA_PREFIX)
+                                    && (types & MirrorMediaManager.TYPE_MMS) != 0) {
+                                ok &= restoreMmsPartData(ctx, name, zis, cr);
+
                             // CallLog
                             } else if (ENTRY_CALLLOG.equals(name) && (types & MirrorMediaManager.TYPE_CALLLOG) != 0) {
                                 seenCall = true;
@@ -640,11 +1825,19 @@ public final class MirrorMediaService extends SystemService {
                             // Contacts
                             } else if (ENTRY_CONTACTS_RAW.equals(name) && (types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
                                 seenContactsRaw = true;
-                                ok &= restoreContactsRawFromEntry(zis, cr);
+                                ok &= restoreContactsRawFromEntry(ctx, zis, cr);
 
                             } else if (ENTRY_CONTACTS_DATA.equals(name) && (types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
                                 seenContactsData = true;
-                                ok &= restoreContactsDataFromEntry(zis, cr);
+                                ok &= restoreContactsDataFromEntry(ctx, zis, cr);
+
+                            } else if (name != null && name.startsWith(ENTRY_CONTACTS_PHOTO_PREFIX)
+                                    && (types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
+                                ok &= restoreContactPhoto(ctx, name, zis, cr);
+
+                            } else if (name != null && name.startsWith(ENTRY_CONTACTS_BLOB_PREFIX)
+                                    && (types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
+                                ok &= restoreContactBlob(ctx, name, zis, cr);
 
                             // Media nested zip (daemon-backed)
                             } else if (ENTRY_MEDIA_DCIM_ZIP.equals(name)
@@ -664,21 +1857,45 @@ public final class MirrorMediaService extends SystemService {
                                 ok &= one;
 
                             // Media meta
-                            } else if (ENTRY_MEDIA_IMAGES_META.equals(name) && (types & MirrorMediaManager.TYPE_MEDIA) != 0) {
+                            } else if (MediaCollection.isMetaEntry(mediaColls, name)
+                                    && (types & MirrorMediaManager.TYPE_MEDIA) != 0) {
                                 seenMediaMeta = true;
-                                ok &= restoreImagesMetaFromEntry(zis);
+                                ok &= restoreImagesMetaFromEntry(ctx, zis, cr);
+
+                            // 低清代理图（缩略图优先模式），排在所有原图之前
+                            } else if (name != null && name.startsWith(ENTRY_MEDIA_THUMBS_PREFIX)
+                                    && (types & MirrorMediaManager.TYPE_MEDIA) != 0) {
+                                if (restoreMediaProxy(ctx, name, mediaColls[0], zis, cr)) proxies++;
 
-                            // Media files
-                            } else if (name != null && name.startsWith(ENTRY_MEDIA_IMAGES_PREFIX)
+                            // Media files（images / video / audio）
+                            } else if (MediaCollection.forEntry(mediaColls, name) != null
                                     && (types & MirrorMediaManager.TYPE_MEDIA) != 0) {
                                 imgSeen++;
-                                boolean one = restoreOneImageFileEntry(name, zis, cr);
-                                if (one) imgOk++; else imgFail++;
-                                ok &= one;
+                                final int rangeSep = mediaRangeSep(ctx, name);
+                                if (rangeSep > 0) {
+                                    // 大文件的 range 直接从 zip 流写进 MediaStore，按顺序追加，不进 pool
+                                    boolean one = restoreMediaRange(ctx, name, rangeSep,
+                                            MediaCollection.forEntry(mediaColls, name), zis, cr);
+                                    if (one) imgOk++; else imgFail++;
+                                    ok &= one;
+                                } else if (mediaPool != null) {
+                                    // 写入结果在 pool 关闭后汇总；这里只统计读取/排队失败
+                                    if (!submitImageFileEntry(ctx, mediaPool, name,
+                                            MediaCollection.forEntry(mediaColls, name), zis, cr)) {
+                                        imgFail++;
+                                        ok = false;
+                                    }
+                                } else {
+                                    boolean one = restoreOneImageFileEntry(ctx, name,
+                                            MediaCollection.forEntry(mediaColls, name), zis, cr);
+                                    if (one) imgOk++; else imgFail++;
+                                    ok &= one;
+                                }
 
                                 if ((imgSeen % 10) == 0) {
                                     Slog.i(TAG, "restoreImages progress: seen=" + imgSeen
-                                            + " ok=" + imgOk + " fail=" + imgFail);
+                                            + " ok=" + (imgOk + (mediaPool != null ? mediaPool.ok() : 0))
+                                            + " fail=" + imgFail);
                                 }
 
                             } else {
@@ -688,14 +1905,31 @@ public final class MirrorMediaService extends SystemService {
                             zis.closeEntry();
                         }
                     }
+                } finally {
+                    if (mediaPool != null) {
+                        mediaPool.close();
+                        imgOk += mediaPool.ok();
+                        imgFail += mediaPool.failed();
+                        if (mediaPool.failed() > 0) ok = false;
+                    }
+                    if (ctx.mediaRanges != null) {
+                        // 没写完的大文件留给下一份（续传的）归档
+                        if (!ctx.mediaRanges.targets.isEmpty()) {
+                            Slog.i(TAG, "restorePersonalData: ranged media still open="
+                                    + ctx.mediaRanges.targets.size());
+                        }
+                        ctx.mediaRanges.save(userId);
+                        ctx.mediaRanges = null;
+                    }
                 }
 
                 // Summaries and "missing entry" checks
                 if ((types & MirrorMediaManager.TYPE_MEDIA) != 0) {
-                    Slog.i(TAG, "restoreImages summary: metaLoaded=" + mImageMetaMap.size()
+                    Slog.i(TAG, "restoreImages summary: metaLoaded=" + ctx.mediaMeta.size()
                             + " seenMetaEntry=" + seenMediaMeta
                             + " zipSeen=" + mediaZipSeen + " zipOk=" + mediaZipOk + " zipFail=" + mediaZipFail
-                            + " fileSeen=" + imgSeen + " ok=" + imgOk + " fail=" + imgFail);
+                            + " fileSeen=" + imgSeen + " ok=" + imgOk + " fail=" + imgFail
+                            + " proxies=" + proxies + " proxiesNotReplaced=" + ctx.mediaProxies.size());
 
                     // Avoid "ok=true but restored nothing" illusion
                     if (imgSeen > 0 && imgOk == 0) ok = false;
@@ -706,6 +1940,10 @@ public final class MirrorMediaService extends SystemService {
                     Slog.w(TAG, "restorePersonalData: missing entry " + ENTRY_SMS);
                     ok = false;
                 }
+                if ((types & MirrorMediaManager.TYPE_MMS) != 0 && !seenMms) {
+                    // 早于 MMS 阶段的归档没有这些条目，不算失败
+                    Slog.w(TAG, "restorePersonalData: missing entry " + ENTRY_MMS_PDU);
+                }
                 if ((types & MirrorMediaManager.TYPE_CALLLOG) != 0 && !seenCall) {
                     Slog.w(TAG, "restorePersonalData: missing entry " + ENTRY_CALLLOG);
                     ok = false;
@@ -740,13 +1978,19 @@ public final class MirrorMediaService extends SystemService {
 
         // ================= Personal data helpers =================
 
-        private void writePersonalManifest(ZipOutputStream zos, int types, int userId) throws IOException {
+        private void writePersonalManifest(ZipOutputStream zos, ContentResolver cr, int types,
+                int userId, IdRange range) throws IOException {
             final JSONObject m = new JSONObject();
             try {
                 m.put("version", PERSONAL_FORMAT_VERSION);
                 m.put("types", types);
                 m.put("userId", userId);
                 m.put("createdAtMs", System.currentTimeMillis());
+                if (range != null) {
+                    m.put("idMin", range.min);
+                    m.put("idMax", range.max);
+                }
+                m.put("counts", manifestCounts(cr, types, range));
             } catch (JSONException e) {
                 throw new IOException("manifest json", e);
             }
@@ -757,6 +2001,50 @@ public final class MirrorMediaService extends SystemService {
             zos.closeEntry();
         }
 
+        /**
+         * Row counts the restore side sizes its id maps with; an _id-only query per category, a
+         * hint only (rows can change between this count and the export).
+         */
+        private JSONObject manifestCounts(ContentResolver cr, int types, IdRange range)
+                throws JSONException {
+            final JSONObject counts = new JSONObject();
+            if ((types & MirrorMediaManager.TYPE_CONTACTS) != 0) {
+                counts.put(MANIFEST_COUNT_RAW_CONTACTS, countRows(cr,
+                        ContactsContract.RawContacts.CONTENT_URI,
+                        IdRange.apply(range, ContactsContract.RawContacts._ID,
+                                ContactsContract.RawContacts.DELETED + "=0")));
+            }
+            if ((types & MirrorMediaManager.TYPE_MMS) != 0) {
+                counts.put(MANIFEST_COUNT_MMS, countRows(cr, Telephony.Mms.CONTENT_URI,
+                        IdRange.apply(range, Telephony.Mms._ID, null)));
+            }
+            return counts;
+        }
+
+        private int countRows(ContentResolver cr, Uri uri, String selection) {
+            try (Cursor c = cr.query(uri, new String[] {"_id"}, selection, null, null)) {
+                return (c != null) ? c.getCount() : 0;
+            } catch (Throwable t) {
+                Slog.w(TAG, "countRows failed: " + uri, t);
+                return 0;
+            }
+        }
+
+        /** "counts" of the archive manifest, or null for archives written before it existed. */
+        private JSONObject readManifestCounts(ZipInputStream zis) {
+            try {
+                final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                final byte[] buf = new byte[8 * 1024];
+                int n;
+                while ((n = zis.read(buf)) > 0) bos.write(buf, 0, n);
+                return new JSONObject(new String(bos.toByteArray(), StandardCharsets.UTF_8))
+                        .optJSONObject("counts");
+            } catch (IOException | JSONException e) {
+                Slog.w(TAG, "restorePersonalData: bad manifest", e);
+                return null;
+            }
+        }
+
         private void cursorRowToJson(Cursor c, String[] cols, JSONObject out) throws JSONException {
             for (String col : cols) {
                 final int idx = c.getColumnIndex(col);
@@ -797,7 +2085,8 @@ public final class MirrorMediaService extends SystemService {
 
         // ---------------- Contacts backup/restore ----------------
 
-        private int backupContacts(ZipOutputStream zos, ContentResolver cr) throws IOException {
+        private int backupContacts(ZipOutputStream zos, ContentResolver cr, IdRange range)
+                throws IOException {
             int rawCount = 0;
 
             // raw.jsonl
@@ -813,7 +2102,8 @@ public final class MirrorMediaService extends SystemService {
                                 ContactsContract.RawContacts.ACCOUNT_TYPE,
                                 ContactsContract.RawContacts.DELETED
                         },
-                        ContactsContract.RawContacts.DELETED + "=0",
+                        IdRange.apply(range, ContactsContract.RawContacts._ID,
+                                ContactsContract.RawContacts.DELETED + "=0"),
                         null,
                         null);
 
@@ -846,7 +2136,9 @@ public final class MirrorMediaService extends SystemService {
                 zos.closeEntry();
             }
 
-            // data.jsonl
+            // data.jsonl；头像和 blob 先记下来，data.jsonl 写完后再逐个成条目
+            final ArrayList<long[]> pendingPhotos = new ArrayList<>();
+            final ArrayList<String> pendingBlobs = new ArrayList<>();
             zos.putNextEntry(new ZipEntry(ENTRY_CONTACTS_DATA));
             final BufferedWriter dataW = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
 
@@ -872,9 +2164,11 @@ public final class MirrorMediaService extends SystemService {
                                 ContactsContract.Data.DATA14,
                                 ContactsContract.Data.DATA15,
                                 ContactsContract.Data.IS_PRIMARY,
-                                ContactsContract.Data.IS_SUPER_PRIMARY
+                                ContactsContract.Data.IS_SUPER_PRIMARY,
+                                ContactsContract.Data._ID
                         },
-                        ContactsContract.Data.RAW_CONTACT_ID + " IS NOT NULL",
+                        IdRange.apply(range, ContactsContract.Data.RAW_CONTACT_ID,
+                                ContactsContract.Data.RAW_CONTACT_ID + " IS NOT NULL"),
                         null,
                         null);
 
@@ -886,15 +2180,34 @@ public final class MirrorMediaService extends SystemService {
                 while (dataCur.moveToNext()) {
                     long rawId = dataCur.getLong(0);
                     String mime = dataCur.getString(1);
+                    final long dataId = dataCur.getLong(19);
 
                     JSONObject o = new JSONObject();
                     try {
                         o.put("rawId", rawId);
                         o.put("mimetype", mime == null ? JSONObject.NULL : mime);
 
-                        for (int i = 0; i < 15; i++) {
-                            String v = dataCur.getString(2 + i);
-                            o.put("data" + (i + 1), v == null ? JSONObject.NULL : v);
+                        if (ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE.equals(mime)) {
+                            // 头像行整体由 photos/ 条目恢复（provider 会重建缩略图和 photo_file_id）；
+                            // 一个 raw contact 可以有多条头像行，条目按 data _id 命名
+                            if (!dataCur.isNull(16) || !dataCur.isNull(15)) {
+                                final String entry = ENTRY_CONTACTS_PHOTO_PREFIX + dataId;
+                                o.put("photo", entry);
+                                pendingPhotos.add(new long[]{dataId,
+                                        dataCur.isNull(15) ? -1L : dataCur.getLong(15)});
+                            }
+                        } else {
+                            for (int i = 0; i < 15; i++) {
+                                final String key = "data" + (i + 1);
+                                if (dataCur.getType(2 + i) == Cursor.FIELD_TYPE_BLOB) {
+                                    final String entry = ENTRY_CONTACTS_BLOB_PREFIX + dataId + "/" + key;
+                                    o.put(key, new JSONObject().put("blob", entry));
+                                    pendingBlobs.add(entry);
+                                    continue;
+                                }
+                                String v = dataCur.getString(2 + i);
+                                o.put(key, v == null ? JSONObject.NULL : v);
+                            }
                         }
 
                         o.put("isPrimary", dataCur.getInt(17));
@@ -908,11 +2221,80 @@ public final class MirrorMediaService extends SystemService {
                 }
 
                 dataW.flush();
-                return rawCount;
             } finally {
                 if (dataCur != null) dataCur.close();
                 zos.closeEntry();
             }
+
+            int photos = 0;
+            for (long[] p : pendingPhotos) {
+                if (writeContactPhotoEntry(zos, cr, p[0], p[1])) photos++;
+            }
+            for (String entry : pendingBlobs) {
+                writeContactBlobEntry(zos, cr, entry);
+            }
+            Slog.i(TAG, "backupContacts: photos=" + photos + "/" + pendingPhotos.size()
+                    + " blobs=" + pendingBlobs.size());
+            return rawCount;
+        }
+
+        /**
+         * 优先按该行的 photo_file_id 经 DisplayPhoto 的 FD 流式拷原图；没有原图（只有缩略图）时退回 data15。
+         * 两者都拿不到时不写条目，恢复端当作缺一张头像。
+         */
+        private boolean writeContactPhotoEntry(ZipOutputStream zos, ContentResolver cr, long dataId,
+                long photoFileId) throws IOException {
+            final String entry = ENTRY_CONTACTS_PHOTO_PREFIX + dataId;
+            if (photoFileId >= 0) {
+                final Uri display = ContentUris.withAppendedId(
+                        ContactsContract.DisplayPhoto.CONTENT_URI, photoFileId);
+                try (AssetFileDescriptor afd = cr.openAssetFileDescriptor(display, "r")) {
+                    if (afd != null) {
+                        try (InputStream in = afd.createInputStream()) {
+                            zos.putNextEntry(new ZipEntry(entry));
+                            try {
+                                final byte[] buf = new byte[64 * 1024];
+                                int n;
+                                while ((n = in.read(buf)) > 0) zos.write(buf, 0, n);
+                            } finally {
+                                zos.closeEntry();
+                            }
+                        }
+                        return true;
+                    }
+                } catch (FileNotFoundException e) {
+                    // 没有原图文件，走缩略图
+                }
+            }
+            final byte[] thumb = queryContactBlob(cr, dataId,
+                    ContactsContract.CommonDataKinds.Photo.PHOTO);
+            if (thumb == null) return false;
+            zos.putNextEntry(new ZipEntry(entry));
+            zos.write(thumb);
+            zos.closeEntry();
+            return true;
+        }
+
+        private void writeContactBlobEntry(ZipOutputStream zos, ContentResolver cr, String entry)
+                throws IOException {
+            // entry = contacts/blobs/<dataId>/dataN；一次只取一行，不把所有 blob 同时留在堆里
+            final String rest = entry.substring(ENTRY_CONTACTS_BLOB_PREFIX.length());
+            final int slash = rest.indexOf('/');
+            final byte[] v = queryContactBlob(cr, Long.parseLong(rest.substring(0, slash)),
+                    rest.substring(slash + 1));
+            if (v == null) return;
+            zos.putNextEntry(new ZipEntry(entry));
+            zos.write(v);
+            zos.closeEntry();
+        }
+
+        private byte[] queryContactBlob(ContentResolver cr, long dataId, String column) {
+            try (Cursor c = cr.query(
+                    ContentUris.withAppendedId(ContactsContract.Data.CONTENT_URI, dataId),
+                    new String[]{column}, null, null, null)) {
+                if (c == null || !c.moveToFirst() || c.isNull(0)) return null;
+                return c.getBlob(0);
+            }
         }
 
         private int clearMirrorContacts(ContentResolver cr) {
@@ -922,8 +2304,8 @@ public final class MirrorMediaService extends SystemService {
                     new String[]{MIRROR_CONTACTS_SOURCE_ID});
         }
 
-        private boolean restoreContactsRawFromEntry(ZipInputStream zis, ContentResolver cr) throws IOException {
-            mContactsRawIdMap.clear();
+        private boolean restoreContactsRawFromEntry(RestoreContext ctx, ZipInputStream zis, ContentResolver cr) throws IOException {
+            ctx.contactsRawIds.clear();
             final BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
             String line;
             int ok = 0;
@@ -949,7 +2331,7 @@ public final class MirrorMediaService extends SystemService {
                         continue;
                     }
                     long newRawId = ContentUris.parseId(u);
-                    mContactsRawIdMap.put(oldRawId, newRawId);
+                    ctx.contactsRawIds.put(oldRawId, newRawId);
                     ok++;
                 } catch (Throwable t) {
                     fail++;
@@ -961,7 +2343,7 @@ public final class MirrorMediaService extends SystemService {
             return fail == 0;
         }
 
-        private boolean restoreContactsDataFromEntry(ZipInputStream zis, ContentResolver cr) throws IOException {
+        private boolean restoreContactsDataFromEntry(RestoreContext ctx, ZipInputStream zis, ContentResolver cr) throws IOException {
             final BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
             String line;
             int ok = 0;
@@ -974,7 +2356,7 @@ public final class MirrorMediaService extends SystemService {
                 try {
                     JSONObject o = new JSONObject(line);
                     long oldRawId = o.getLong("rawId");
-                    long newRawId = mContactsRawIdMap.get(oldRawId, -1L);
+                    long newRawId = ctx.contactsRawIds.get(oldRawId, -1L);
                     if (newRawId < 0) {
                         fail++;
                         continue;
@@ -986,13 +2368,27 @@ public final class MirrorMediaService extends SystemService {
                         continue;
                     }
 
+                    // 头像行不插：photos/ 条目到达时再写，记下条目属于哪个新联系人
+                    if (o.has("photo")) {
+                        ctx.contactsPhotoTargets.put(o.getString("photo"), newRawId);
+                        ok++;
+                        continue;
+                    }
+
                     ContentValues cv = new ContentValues();
                     cv.put(ContactsContract.Data.RAW_CONTACT_ID, newRawId);
                     cv.put(ContactsContract.Data.MIMETYPE, mime);
 
+                    ArrayList<String> blobs = null;
                     for (int i = 1; i <= 15; i++) {
                         String key = "data" + i;
                         if (!o.has(key) || o.isNull(key)) continue;
+                        final JSONObject ref = o.optJSONObject(key);
+                        if (ref != null) {
+                            if (blobs == null) blobs = new ArrayList<>();
+                            blobs.add(ref.optString("blob"));
+                            continue;
+                        }
                         String v = o.optString(key, null);
                         if (v != null) cv.put("data" + i, v);
                     }
@@ -1002,6 +2398,9 @@ public final class MirrorMediaService extends SystemService {
 
                     Uri u = cr.insert(ContactsContract.Data.CONTENT_URI, cv);
                     if (u != null) ok++; else fail++;
+                    if (u != null && blobs != null) {
+                        for (String entry : blobs) ctx.contactsBlobTargets.put(entry, u);
+                    }
                 } catch (Throwable t) {
                     fail++;
                     Slog.w(TAG, "restoreContactsDataFromEntry: bad line", t);
@@ -1012,6 +2411,80 @@ public final class MirrorMediaService extends SystemService {
             return fail == 0;
         }
 
+        /**
+         * 联系人的第一张头像经 RawContacts.DisplayPhoto 流式写回，provider 据此生成缩略图并建头像 data 行；
+         * DisplayPhoto 每个联系人只有一个槽位，其余头像以 data15 插成新行，由 provider 自己拆原图和缩略图。
+         */
+        private boolean restoreContactPhoto(RestoreContext ctx, String entryName, ZipInputStream zis, ContentResolver cr)
+                throws IOException {
+            final Long target = ctx.contactsPhotoTargets.remove(entryName);
+            if (target == null) {
+                Slog.w(TAG, "restoreContactPhoto: no raw contact for " + entryName);
+                drainEntry(zis);
+                return false;
+            }
+            final long newRawId = target;
+            if (!ctx.contactsPhotoRawIds.add(newRawId)) {
+                final byte[] photo = readContactBlob(entryName, zis);
+                if (photo == null) return false;
+                final ContentValues cv = new ContentValues();
+                cv.put(ContactsContract.Data.RAW_CONTACT_ID, newRawId);
+                cv.put(ContactsContract.Data.MIMETYPE,
+                        ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE);
+                cv.put(ContactsContract.CommonDataKinds.Photo.PHOTO, photo);
+                return cr.insert(ContactsContract.Data.CONTENT_URI, cv) != null;
+            }
+            final Uri display = Uri.withAppendedPath(
+                    ContentUris.withAppendedId(ContactsContract.RawContacts.CONTENT_URI, newRawId),
+                    ContactsContract.RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+            try (AssetFileDescriptor afd = cr.openAssetFileDescriptor(display, "rw")) {
+                if (afd == null) {
+                    drainEntry(zis);
+                    return false;
+                }
+                try (OutputStream os = afd.createOutputStream()) {
+                    final byte[] buf = new byte[64 * 1024];
+                    int n;
+                    while ((n = zis.read(buf)) > 0) os.write(buf, 0, n);
+                }
+                return true;
+            } catch (Throwable t) {
+                Slog.w(TAG, "restoreContactPhoto: FAILED entry=" + entryName + " uri=" + display, t);
+                drainEntry(zis);
+                return false;
+            }
+        }
+
+        private boolean restoreContactBlob(RestoreContext ctx, String entryName, ZipInputStream zis, ContentResolver cr)
+                throws IOException {
+            final Uri target = ctx.contactsBlobTargets.remove(entryName);
+            if (target == null) {
+                drainEntry(zis);
+                return false;
+            }
+            final byte[] blob = readContactBlob(entryName, zis);
+            if (blob == null) return false;
+            final ContentValues cv = new ContentValues();
+            cv.put(entryName.substring(entryName.lastIndexOf('/') + 1), blob);
+            return cr.update(target, cv, null, null) > 0;
+        }
+
+        /** 读完整个条目；超过 CONTACTS_BLOB_MAX 视为损坏，丢弃剩余部分并返回 null。 */
+        private byte[] readContactBlob(String entryName, ZipInputStream zis) throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final byte[] buf = new byte[16 * 1024];
+            int n;
+            while ((n = zis.read(buf)) > 0) {
+                if (bos.size() + n > CONTACTS_BLOB_MAX) {
+                    Slog.w(TAG, "readContactBlob: too large " + entryName);
+                    drainEntry(zis);
+                    return null;
+                }
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        }
+
         // ---------------- Media (Images) backup/restore ----------------
 
         final class ImageMeta {
@@ -1024,7 +2497,8 @@ public final class MirrorMediaService extends SystemService {
             String entryPath;
         }
 
-        private int backupImages(ZipOutputStream zos, ContentResolver cr) throws IOException {
+        private int backupImages(ZipOutputStream zos, ContentResolver cr, Bundle opts)
+                throws IOException {
             // IMPORTANT: On some real devices (e.g., Pixel 3a XL) MediaProvider may be unable to
             // open /storage/emulated/0/DCIM/... for system_server due to SELinux policy
             // differences between emulator and device.
@@ -1034,19 +2508,326 @@ public final class MirrorMediaService extends SystemService {
             //
             // The daemon will ZIP the target folders and we embed them as nested zip blobs.
             int exported = 0;
-            if (writeDaemonZipEntry(zos, ENTRY_MEDIA_DCIM_ZIP, "/sdcard/DCIM")) exported++;
-            if (writeDaemonZipEntry(zos, ENTRY_MEDIA_PICTURES_ZIP, "/sdcard/Pictures")) exported++;
+            if (writeDaemonZipEntry(zos, ENTRY_MEDIA_DCIM_ZIP, "/sdcard/DCIM", opts)) exported++;
+            if (writeDaemonZipEntry(zos, ENTRY_MEDIA_PICTURES_ZIP, "/sdcard/Pictures", opts)) {
+                exported++;
+            }
             return exported;
         }
 
+        private final String[] MEDIA_INDEX_COLS = new String[] {
+                MediaStore.MediaColumns._ID,
+                MediaStore.MediaColumns.GENERATION_MODIFIED,
+                MediaStore.MediaColumns.RELATIVE_PATH,
+                MediaStore.MediaColumns.DISPLAY_NAME,
+                MediaStore.MediaColumns.MIME_TYPE,
+                MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.DATE_TAKEN,
+        };
+
+        /**
+         * OPT_MEDIA_INCREMENTAL: export only images/videos/audio whose _id is new or whose
+         * GENERATION_MODIFIED / path changed since the last backup. Each collection gets its own
+         * meta JSONL (written first; deletions are op=delete lines) and entry prefix. Files of
+         * MEDIA_RANGE_SIZE or more are written as level-0 range entries, see writeMediaRanges.
+         *
+         * Returns the index to commit once the whole archive has been written; the caller saves it
+         * only after zos.finish(), so an aborted backup leaves the previous index in place. With
+         * OPT_MEDIA_RESUMABLE the progress up to the last complete range is saved even on failure.
+         * Meta lines are spooled to disk (MediaMetaSpool), so the heap does not grow with the
+         * number of changed rows.
+         *
+         * 文件经 MediaStore FD 读取：部分真机上 system_server 打不开个别文件（见 backupImages 的说明），
+         * 打不开的文件不进新索引，下次备份自动重试，而不是让整个媒体阶段失败。
+         */
+        private MediaIndex backupMediaIncremental(ZipOutputStream zos, Context userCtx,
+                ContentResolver cr, int userId, Bundle opts) throws IOException, JSONException {
+            final String version = MediaStore.getVersion(userCtx,
+                    MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            final MediaIndex prev =
+                    opts.getBoolean(MirrorMediaManager.OPT_MEDIA_RESET_INDEX, false)
+                            ? new MediaIndex(version) : MediaIndex.load(userId, version);
+            final MediaIndex next = new MediaIndex(version);
+
+            final MediaCollection[] colls = MediaCollection.all();
+            try (MediaMetaSpool spool = new MediaMetaSpool(colls.length)) {
+                return writeMediaIncremental(zos, cr, userId, opts, colls, prev, next, spool);
+            }
+        }
+
+        /** Body of backupMediaIncremental; meta lines and pending puts live in spool. */
+        private MediaIndex writeMediaIncremental(ZipOutputStream zos, ContentResolver cr,
+                int userId, Bundle opts, MediaCollection[] colls, MediaIndex prev, MediaIndex next,
+                MediaMetaSpool spool) throws IOException, JSONException {
+            final boolean resumable = opts.getBoolean(MirrorMediaManager.OPT_MEDIA_RESUMABLE, false);
+            final LongSparseArray<Boolean> seen = new LongSparseArray<>();
+            int unchanged = 0;
+            int resumed = 0;
+
+            for (int ci = 0; ci < colls.length; ci++) {
+                final MediaCollection mc = colls[ci];
+                final String[] cols = Arrays.copyOf(MEDIA_INDEX_COLS,
+                        MEDIA_INDEX_COLS.length + mc.extraCols.length);
+                System.arraycopy(mc.extraCols, 0, cols, MEDIA_INDEX_COLS.length,
+                        mc.extraCols.length);
+                try (PagedQuery q = new PagedQuery(cr, mc.uri, cols,
+                        MediaStore.MediaColumns._ID, MediaStore.MediaColumns.IS_PENDING + "=0",
+                        pageSize(opts))) {
+                    Cursor c;
+                    while ((c = q.nextPage()) != null) {
+                        try {
+                            while (c.moveToNext()) {
+                                final long id = c.getLong(0);
+                                final long gen = c.getLong(1);
+                                final String rel = normalizeRelPath(c.getString(2));
+                                final String name = c.getString(3);
+                                if (TextUtils.isEmpty(name)) continue;
+                                final String path = rel + name;
+                                seen.put(id, Boolean.TRUE);
+
+                                final Long prevGen = prev.gens.get(id);
+                                final String prevPath = prev.paths.get(id);
+                                final boolean same = prevGen != null && prevGen == gen
+                                        && path.equals(prevPath);
+                                final long prevDone = same ? prev.doneBytes(id) : -1L;
+                                if (same && prevDone < 0) {
+                                    next.put(id, gen, path);
+                                    unchanged++;
+                                    continue;
+                                }
+                                // 移动/改名：旧位置那份在目标机上要先删掉
+                                if (prevPath != null && !path.equals(prevPath)) {
+                                    spool.addDelete(ci, mediaDeleteMeta(prevPath));
+                                }
+
+                                final long size = c.getLong(5);
+                                final JSONObject o = new JSONObject();
+                                o.put("op", "put");
+                                o.put("delta", true);
+                                o.put("entry", mc.prefix + sanitizeZipName(path));
+                                o.put("displayName", name);
+                                o.put("relativePath", rel);
+                                o.put("mime", c.isNull(4) ? JSONObject.NULL : c.getString(4));
+                                o.put("size", size);
+                                o.put("dateTaken", c.getLong(6));
+                                o.put("id", id);
+                                o.put("generation", gen);
+                                cursorRowToJson(c, mc.extraCols, o);
+                                if (prevDone > 0 || size >= MEDIA_RANGE_SIZE) {
+                                    o.put("rangeSize", MEDIA_RANGE_SIZE);
+                                }
+                                if (prevDone > 0) {
+                                    // 上次中断在这个文件中间：从已提交的 range 之后接着导出
+                                    o.put("rangeStart", prevDone);
+                                    next.put(id, gen, path, prevDone);
+                                    resumed++;
+                                }
+                                spool.addPut(ci, id, c.getLong(6), o);
+                            }
+                        } finally {
+                            c.close();
+                        }
+                    }
+                }
+            }
+
+            // 消失的行不知道原来属于哪个集合；deleteMirrorMedia 会查所有集合，记在图片 meta 里即可
+            int deleted = 0;
+            for (int i = 0; i < prev.size(); i++) {
+                if (seen.get(prev.gens.keyAt(i)) == null) {
+                    spool.addDelete(0, mediaDeleteMeta(prev.paths.valueAt(i)));
+                    deleted++;
+                }
+            }
+
+            // 没有任何变化的集合不写 meta 条目，恢复端只记一条 missing entry 日志
+            spool.finish();
+            for (int ci = 0; ci < colls.length; ci++) {
+                if (spool.isEmpty(ci)) continue;
+                zos.putNextEntry(new ZipEntry(colls[ci].metaEntry));
+                spool.copyTo(ci, zos);
+                zos.closeEntry();
+            }
+
+            // 缩略图优先：原图按拍摄时间从新到旧排，先写全部代理图，恢复端最近的照片最先可见
+            int thumbs = 0;
+            final boolean withThumbs =
+                    opts.getBoolean(MirrorMediaManager.OPT_MEDIA_THUMBNAILS, false);
+            final int[] order = spool.order(withThumbs);
+            if (withThumbs) {
+                for (int p : order) {
+                    // 只有图片集合（colls[0]）有代理图，其余不必从 spool 读回
+                    if (spool.collection(p) != 0) continue;
+                    final Uri uri = ContentUris.withAppendedId(colls[0].uri, spool.id(p));
+                    if (writeMediaThumb(zos, cr, uri, spool.put(p))) thumbs++;
+                }
+            }
+
+            // jpeg/mp4 已压缩，用 deflate level 0（stored block）写入，不再耗 CPU 压缩
+            int exported = 0;
+            int failed = 0;
+            final byte[] buf = new byte[256 * 1024];
+            try {
+                zos.setLevel(Deflater.NO_COMPRESSION);
+                for (int p : order) {
+                    final JSONObject o = spool.put(p);
+                    final String entry = o.getString("entry");
+                    final String path = o.getString("relativePath") + o.getString("displayName");
+                    final Uri uri = ContentUris.withAppendedId(colls[spool.collection(p)].uri,
+                            spool.id(p));
+                    try (ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "r")) {
+                        if (pfd == null) throw new FileNotFoundException("null fd");
+                        if (o.has("rangeSize")) {
+                            if (writeMediaRanges(zos, pfd, o, next, buf)) exported++; else failed++;
+                            continue;
+                        }
+                        zos.putNextEntry(new ZipEntry(entry));
+                        boolean readOk = true;
+                        try (InputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+                            int n;
+                            while ((n = in.read(buf)) > 0) zos.write(buf, 0, n);
+                        } catch (IOException e) {
+                            // 条目已开始写，只能截断收尾；不进索引，下次整份重导覆盖
+                            Slog.w(TAG, "backupMediaIncremental: read failed " + entry, e);
+                            readOk = false;
+                        }
+                        zos.closeEntry();
+                        if (readOk) {
+                            next.put(o.getLong("id"), o.getLong("generation"), path);
+                            exported++;
+                        } else {
+                            failed++;
+                        }
+                    } catch (FileNotFoundException | SecurityException e) {
+                        Slog.w(TAG, "backupMediaIncremental: cannot open " + entry + ": " + e);
+                        failed++;
+                    }
+                }
+            } catch (IOException e) {
+                // 写端断了（调用方取消/管道关闭）。可续传模式下保留已提交的进度，调用方保留这份不完整的归档
+                if (resumable) {
+                    try {
+                        next.save(userId);
+                        Slog.i(TAG, "backupMediaIncremental: interrupted, progress saved ("
+                                + next.size() + " rows)");
+                    } catch (IOException se) {
+                        Slog.w(TAG, "backupMediaIncremental: save progress failed", se);
+                    }
+                }
+                throw e;
+            } finally {
+                zos.setLevel(zipLevel(opts));
+            }
+
+            Slog.i(TAG, "backupMediaIncremental: prevIndex=" + prev.size() + " unchanged=" + unchanged
+                    + " exported=" + exported + " resumed=" + resumed + " failed=" + failed
+                    + " deleted=" + deleted + " thumbs=" + thumbs);
+            return next;
+        }
+
+        /**
+         * Low-resolution JPEG proxy of a changed JPEG photo, from MediaProvider's thumbnail cache.
+         * Only image/jpeg originals get one: the proxy is written into the original's file name
+         * on restore, so its content type has to match. A missing thumbnail is not an error, the
+         * original is still exported.
+         */
+        private boolean writeMediaThumb(ZipOutputStream zos, ContentResolver cr, Uri uri,
+                JSONObject o) throws IOException, JSONException {
+            final String entry = o.getString("entry");
+            if (!entry.startsWith(ENTRY_MEDIA_IMAGES_PREFIX)
+                    || !"image/jpeg".equals(o.optString("mime"))
+                    || o.has("rangeSize")) {
+                return false;
+            }
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(32 * 1024);
+            try {
+                final Bitmap bmp = cr.loadThumbnail(uri,
+                        new Size(MEDIA_THUMB_PX, MEDIA_THUMB_PX), null);
+                try {
+                    if (!bmp.compress(Bitmap.CompressFormat.JPEG, MEDIA_THUMB_QUALITY, bos)) {
+                        return false;
+                    }
+                } finally {
+                    bmp.recycle();
+                }
+            } catch (IOException | RuntimeException e) {
+                Slog.w(TAG, "writeMediaThumb: no thumbnail for " + entry + ": " + e);
+                return false;
+            }
+            zos.putNextEntry(new ZipEntry(ENTRY_MEDIA_THUMBS_PREFIX
+                    + entry.substring(ENTRY_MEDIA_IMAGES_PREFIX.length())));
+            bos.writeTo(zos);
+            zos.closeEntry();
+            return true;
+        }
+
+        /**
+         * Write one large file as range entries "<entry>@r<offset>" of MEDIA_RANGE_SIZE, starting
+         * at meta "rangeStart". The caller has set deflate level 0, so each range is a DEFLATED
+         * entry of stored blocks rather than a STORED entry: the CRC is only known once the range
+         * has been streamed. Each range is flushed to the output before the index records it, so
+         * a resumed backup never skips bytes the receiver does not have. A range shorter than
+         * rangeSize ends the file (an exact multiple gets an empty last range).
+         */
+        private boolean writeMediaRanges(ZipOutputStream zos, ParcelFileDescriptor pfd,
+                JSONObject o, MediaIndex next, byte[] buf) throws IOException, JSONException {
+            final String entry = o.getString("entry");
+            final long id = o.getLong("id");
+            final long gen = o.getLong("generation");
+            final String path = o.getString("relativePath") + o.getString("displayName");
+            long off = o.optLong("rangeStart", 0L);
+            try (FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+                if (off > 0) in.getChannel().position(off);
+                while (true) {
+                    zos.putNextEntry(new ZipEntry(entry + MEDIA_RANGE_SEP + off));
+                    long got = 0;
+                    try {
+                        int n;
+                        while (got < MEDIA_RANGE_SIZE && (n = in.read(buf, 0,
+                                (int) Math.min(buf.length, MEDIA_RANGE_SIZE - got))) > 0) {
+                            zos.write(buf, 0, n);
+                            got += n;
+                        }
+                    } catch (IOException e) {
+                        // 读失败：截断的 range 会被恢复端当成最后一段。把文件移出索引，下次从头重导，
+                        // 恢复端按 delta 先删掉这份不完整的副本
+                        Slog.w(TAG, "writeMediaRanges: read failed " + entry + " at " + (off + got), e);
+                        zos.closeEntry();
+                        next.remove(id);
+                        return false;
+                    }
+                    zos.closeEntry();
+                    zos.flush();
+                    off += got;
+                    if (got < MEDIA_RANGE_SIZE) {
+                        next.put(id, gen, path);
+                        return true;
+                    }
+                    next.put(id, gen, path, off);
+                }
+            }
+        }
+
+        private JSONObject mediaDeleteMeta(String path) throws JSONException {
+            final int slash = path.lastIndexOf('/');
+            final JSONObject o = new JSONObject();
+            o.put("op", "delete");
+            o.put("delta", true);
+            o.put("relativePath", path.substring(0, slash + 1));
+            o.put("displayName", path.substring(slash + 1));
+            return o;
+        }
+
         private int clearMirrorImages(ContentResolver cr) {
             // clearBefore 只清理“本工具恢复产生”的图片：
             // 1) 旧版通过 MediaStore 写入 DCIM/Camera 时，用 TITLE 打标记。
             // 2) 兼容旧版残留（Pictures/MirrorBackup/%）。
             //
-            // 说明：当前版本媒体备份/恢复走 mirrormediad（文件系统层），不会为每张图片写入 MediaStore 标记。
-            // 因此这里主要用于清理旧版本遗留数据，避免误删用户真实相册内容。
+            // 说明：缺省的媒体备份/恢复走 mirrormediad（文件系统层），不会为每张图片写入 MediaStore 标记；
+            // 只有 media/images/ 条目（含增量归档）经 MediaStore 恢复时才打标记。不会误删用户真实相册内容。
             final Uri imagesUri = MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            final Uri videoUri = MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            final Uri audioUri = MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
             final String where = "(" + MediaStore.MediaColumns.TITLE + "=? OR "
                     + MediaStore.MediaColumns.RELATIVE_PATH + " LIKE ?)";
             final String[] args = new String[]{
@@ -1054,7 +2835,9 @@ public final class MirrorMediaService extends SystemService {
                     MIRROR_MEDIA_BASE_RELATIVE + "%"
             };
             try {
-                return cr.delete(imagesUri, where, args);
+                // 增量恢复的视频/音频同样带 TITLE 标记
+                return cr.delete(imagesUri, where, args) + cr.delete(videoUri, where, args)
+                        + cr.delete(audioUri, where, args);
             } catch (Throwable t) {
                 Slog.w(TAG, "clearMirrorImages failed", t);
                 return 0;
@@ -1064,11 +2847,16 @@ public final class MirrorMediaService extends SystemService {
         /**
          * Ask mirrormediad to ZIP <logicalPath> into a pipe, and store it as a single zip entry
          * inside the current personal-data zip (nested zip).
+         *
+         * The codec policy in opts applies to the inner zip; the outer entry is written with
+         * deflate level 0 because deflating an already compressed zip only burns CPU.
          */
-        private boolean writeDaemonZipEntry(ZipOutputStream zos, String zipEntryName, String logicalPath) {
+        private boolean writeDaemonZipEntry(ZipOutputStream zos, String zipEntryName,
+                String logicalPath, Bundle opts) {
             ParcelFileDescriptor[] pipe = null;
             boolean entryOpened = false;
             try {
+                zos.setLevel(Deflater.NO_COMPRESSION);
                 zos.putNextEntry(new ZipEntry(zipEntryName));
                 entryOpened = true;
 
@@ -1076,28 +2864,23 @@ public final class MirrorMediaService extends SystemService {
                 final ParcelFileDescriptor read = pipe[0];
                 final ParcelFileDescriptor write = pipe[1];
 
-                try (LocalSocket socket = new LocalSocket()) {
-                    socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                    socket.setFileDescriptorsForSend(new FileDescriptor[]{write.getFileDescriptor()});
-
-                    final OutputStream sockOut = socket.getOutputStream();
-                    sockOut.write(0); // dummy byte to attach FD
-                    sockOut.flush();
-                    final String cmd = "ZIP " + logicalPath + "\n";
-                    sockOut.write(cmd.getBytes(StandardCharsets.UTF_8));
-                    sockOut.flush();
+                final MirrorDaemonConnection.Request req = mDaemon.submit(
+                        withZipCodec(pathRequest(MirrorDaemonProtocol.OP_ZIP, logicalPath), opts),
+                        new FileDescriptor[]{write.getFileDescriptor()}, null);
 
-                    // Close our local copy of write-end; daemon still holds it
-                    try { write.close(); } catch (Throwable ignored) {}
+                // Close our local copy of write-end; daemon still holds it
+                try { write.close(); } catch (Throwable ignored) {}
 
-                    try (InputStream in = new BufferedInputStream(new ParcelFileDescriptor.AutoCloseInputStream(read))) {
-                        byte[] buf = new byte[256 * 1024];
-                        int n;
-                        while ((n = in.read(buf)) >= 0) {
-                            if (n > 0) zos.write(buf, 0, n);
-                        }
+                try (InputStream in = new BufferedInputStream(new ParcelFileDescriptor.AutoCloseInputStream(read))) {
+                    byte[] buf = new byte[256 * 1024];
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        if (n > 0) zos.write(buf, 0, n);
                     }
                 }
+                if (!req.await(0)) {
+                    Slog.w(TAG, "writeDaemonZipEntry: daemon reported failure for " + logicalPath);
+                }
 
                 zos.closeEntry();
                 return true;
@@ -1111,6 +2894,8 @@ public final class MirrorMediaService extends SystemService {
                     try { pipe[1].close(); } catch (Throwable ignored) {}
                 }
                 return false;
+            } finally {
+                zos.setLevel(zipLevel(opts));
             }
         }
 
@@ -1124,37 +2909,26 @@ public final class MirrorMediaService extends SystemService {
                 final ParcelFileDescriptor read = pipe[0];
                 final ParcelFileDescriptor write = pipe[1];
 
-                try (LocalSocket socket = new LocalSocket()) {
-                    socket.connect(new LocalSocketAddress(SOCK, LocalSocketAddress.Namespace.ABSTRACT));
-                    socket.setFileDescriptorsForSend(new FileDescriptor[]{read.getFileDescriptor()});
+                final MirrorDaemonConnection.Request req = mDaemon.submit(
+                        targetRequest(MirrorDaemonProtocol.OP_UNZIP, logicalTarget, uid),
+                        new FileDescriptor[]{read.getFileDescriptor()}, null);
 
-                    final OutputStream sockOut = socket.getOutputStream();
-                    sockOut.write(0);
-                    sockOut.flush();
-                    final String cmd = "UNZIP " + logicalTarget + " UID " + uid + "\n";
-                    sockOut.write(cmd.getBytes(StandardCharsets.UTF_8));
-                    sockOut.flush();
+                // Close our local copy of read-end; daemon still holds it
+                try { read.close(); } catch (Throwable ignored) {}
 
-                    // Close our local copy of read-end; daemon still holds it
-                    try { read.close(); } catch (Throwable ignored) {}
-
-                    // Stream nested zip bytes into the pipe (daemon reads until EOF)
-                    try (OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(write))) {
-                        byte[] buf = new byte[256 * 1024];
-                        int n;
-                        while ((n = zis.read(buf)) > 0) {
-                            out.write(buf, 0, n);
-                        }
-                        out.flush();
+                // Stream nested zip bytes into the pipe (daemon reads until EOF)
+                try (OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(write))) {
+                    byte[] buf = new byte[256 * 1024];
+                    int n;
+                    while ((n = zis.read(buf)) > 0) {
+                        out.write(buf, 0, n);
                     }
-
-                    final BufferedReader br = new BufferedReader(
-                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                    final String resp = br.readLine();
-                    final boolean ok = "OK".equals(resp);
-                    Slog.i(TAG, "restoreDaemonUnzipFromZipEntry: target=" + logicalTarget + " resp=" + resp);
-                    return ok;
+                    out.flush();
                 }
+
+                final boolean ok = req.await(0);
+                Slog.i(TAG, "restoreDaemonUnzipFromZipEntry: target=" + logicalTarget + " ok=" + ok);
+                return ok;
             } catch (Throwable t) {
                 Slog.e(TAG, "restoreDaemonUnzipFromZipEntry failed: target=" + logicalTarget, t);
                 if (pipe != null) {
@@ -1165,11 +2939,13 @@ public final class MirrorMediaService extends SystemService {
             }
         }
 
-        private boolean restoreImagesMetaFromEntry(ZipInputStream zis) throws IOException {
-            mImageMetaMap.clear();
+        private boolean restoreImagesMetaFromEntry(RestoreContext ctx, ZipInputStream zis, ContentResolver cr)
+                throws IOException {
+            // images/video/audio 各有一份 meta，累加进同一张表（restorePersonalData 开头已清空）
             BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
             String line;
             int loaded = 0;
+            int deleted = 0;
 
             while ((line = br.readLine()) != null) {
                 line = line.trim();
@@ -1178,6 +2954,13 @@ public final class MirrorMediaService extends SystemService {
                 try {
                     JSONObject o = new JSONObject(line);
 
+                    // 增量归档：源端已删除（或移走）的媒体，删掉本工具上次恢复的那一份
+                    if ("delete".equals(o.optString("op"))) {
+                        deleted += deleteMirrorMedia(cr, normalizeRelPath(o.optString("relativePath")),
+                                o.optString("displayName"));
+                        continue;
+                    }
+
                     String key = o.optString("entry", null);
                     if (TextUtils.isEmpty(key)) key = o.optString("path", null);
                     if (TextUtils.isEmpty(key)) key = o.optString("zipEntry", null);
@@ -1200,19 +2983,49 @@ public final class MirrorMediaService extends SystemService {
                     while (key.startsWith("/")) key = key.substring(1);
                     key = key.replace('\\', '/');
 
-                    mImageMetaMap.put(key, o);
+                    ctx.mediaMeta.put(key, o);
                     loaded++;
                 } catch (Throwable t) {
                     Slog.w(TAG, "restoreImagesMetaFromEntry: bad json line", t);
                 }
             }
 
-            Slog.i(TAG, "restoreImagesMetaFromEntry: meta loaded=" + loaded);
-            return loaded > 0;
+            Slog.i(TAG, "restoreImagesMetaFromEntry: meta loaded=" + loaded + " deleted=" + deleted);
+            return loaded > 0 || deleted > 0;
         }
 
-        private boolean restoreOneImageFileEntry(String entryName, ZipInputStream zis, ContentResolver cr) {
-            JSONObject meta = mImageMetaMap.get(entryName);
+        /**
+         * Delete the copy of relativePath + displayName that this tool restored earlier (TITLE
+         * mark), in the image, video and audio collections. User-owned rows are never touched.
+         */
+        private int deleteMirrorMedia(ContentResolver cr, String relativePath, String displayName) {
+            if (TextUtils.isEmpty(displayName)) return 0;
+            final String where = MediaStore.MediaColumns.RELATIVE_PATH + "=? AND "
+                    + MediaStore.MediaColumns.DISPLAY_NAME + "=? AND "
+                    + MediaStore.MediaColumns.TITLE + "=?";
+            final String[] args = new String[] {relativePath, displayName, MIRROR_IMAGE_MARK_TITLE};
+            int n = 0;
+            try {
+                n += cr.delete(MediaStore.Images.Media.getContentUri(
+                        MediaStore.VOLUME_EXTERNAL_PRIMARY), where, args);
+                n += cr.delete(MediaStore.Video.Media.getContentUri(
+                        MediaStore.VOLUME_EXTERNAL_PRIMARY), where, args);
+                n += cr.delete(MediaStore.Audio.Media.getContentUri(
+                        MediaStore.VOLUME_EXTERNAL_PRIMARY), where, args);
+            } catch (Throwable t) {
+                Slog.w(TAG, "deleteMirrorMedia failed: " + relativePath + displayName, t);
+            }
+            return n;
+        }
+
+        /**
+         * MediaStore row (IS_PENDING=1, TITLE mark) for a media/images/ entry, from its
+         * images_meta.jsonl line or, without one, from the entry name. For delta entries the copy
+         * restored earlier is deleted first.
+         */
+        private ContentValues imageInsertValues(RestoreContext ctx, String entryName, MediaCollection mc,
+                ContentResolver cr) {
+            JSONObject meta = ctx.mediaMeta.get(entryName);
             if (meta == null) {
                 // fallback from entryName (still restore, do not silently skip)
                 Slog.w(TAG, "restoreOneImageFileEntry: missing meta, fallback by entryName=" + entryName);
@@ -1224,7 +3037,7 @@ public final class MirrorMediaService extends SystemService {
             // 目标：尽可能恢复到原相对目录（例如 DCIM/Camera/），从而落到 /sdcard/DCIM/Camera/。
             // meta 优先，其次从 zip entryName 推导，最后兜底 DCIM/Camera/。
             String rp = (meta != null) ? meta.optString("relativePath", "") : "";
-            if (TextUtils.isEmpty(rp)) rp = relDirFromEntry(entryName, ENTRY_MEDIA_IMAGES_PREFIX);
+            if (TextUtils.isEmpty(rp)) rp = relDirFromEntry(entryName, mc.prefix);
             rp = normalizeRelPath(rp);
             String targetRel = rp;
             if (TextUtils.isEmpty(targetRel)) {
@@ -1236,23 +3049,65 @@ public final class MirrorMediaService extends SystemService {
 
             long dateTaken = (meta != null) ? meta.optLong("dateTaken", 0L) : 0L;
 
-            Uri imagesUri = MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            // 增量归档里的变更文件：先删掉上次恢复的旧版本，否则 MediaProvider 会另起 "name (1)"
+            if (meta != null && meta.optBoolean("delta", false)) {
+                deleteMirrorMedia(cr, targetRel, displayName);
+            }
+
+            ContentValues cv = new ContentValues();
+            cv.put(MediaStore.MediaColumns.DISPLAY_NAME, displayName);
+            cv.put(MediaStore.MediaColumns.RELATIVE_PATH, targetRel);
+            // Android 11 没有 MediaColumns.DESCRIPTION 常量，使用 TITLE 做轻量标记，便于 clearBefore 精准清理。
+            cv.put(MediaStore.MediaColumns.TITLE, MIRROR_IMAGE_MARK_TITLE);
+            cv.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            if (!TextUtils.isEmpty(mime)) cv.put(MediaStore.MediaColumns.MIME_TYPE, mime);
+            if (dateTaken > 0) cv.put(MediaStore.Images.Media.DATE_TAKEN, dateTaken);
+            return cv;
+        }
+
+        /** video/audio 条目按前缀；media/images/ 下按 mime（早先的增量归档把视频也放在这里） */
+        private Uri mediaCollectionFor(MediaCollection mc, ContentValues cv) {
+            if (!ENTRY_MEDIA_IMAGES_PREFIX.equals(mc.prefix)) return mc.uri;
+            final String mime = cv.getAsString(MediaStore.MediaColumns.MIME_TYPE);
+            return (mime != null && mime.startsWith("video/"))
+                    ? MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY)
+                    : mc.uri;
+        }
+
+        /** Pooled variant of restoreOneImageFileEntry: the row is written by a pool thread. */
+        private boolean submitImageFileEntry(RestoreContext ctx, MediaRestorePool pool, String entryName,
+                MediaCollection mc, ZipInputStream zis, ContentResolver cr) {
+            try {
+                final Uri proxy = ctx.mediaProxies.remove(entryName);
+                if (proxy != null) {
+                    pool.submit(entryName, null, null, proxy, zis);
+                    return true;
+                }
+                final ContentValues cv = imageInsertValues(ctx, entryName, mc, cr);
+                pool.submit(entryName, mediaCollectionFor(mc, cv), cv, null, zis);
+                return true;
+            } catch (Throwable t) {
+                Slog.w(TAG, "submitImageFileEntry: FAILED entry=" + entryName, t);
+                drainEntry(zis);
+                return false;
+            }
+        }
+
+        private boolean restoreOneImageFileEntry(RestoreContext ctx, String entryName, MediaCollection mc,
+                ZipInputStream zis, ContentResolver cr) {
+            final Uri proxy = ctx.mediaProxies.remove(entryName);
+            if (proxy != null) return replaceMediaProxy(entryName, proxy, zis, cr);
 
-            ContentValues cv = new ContentValues();
-            cv.put(MediaStore.MediaColumns.DISPLAY_NAME, displayName);
-            cv.put(MediaStore.MediaColumns.RELATIVE_PATH, targetRel);
-            // Android 11 没有 MediaColumns.DESCRIPTION 常量，使用 TITLE 做轻量标记，便于 clearBefore 精准清理。
-            cv.put(MediaStore.MediaColumns.TITLE, MIRROR_IMAGE_MARK_TITLE);
-            cv.put(MediaStore.MediaColumns.IS_PENDING, 1);
-            if (!TextUtils.isEmpty(mime)) cv.put(MediaStore.MediaColumns.MIME_TYPE, mime);
-            if (dateTaken > 0) cv.put(MediaStore.Images.Media.DATE_TAKEN, dateTaken);
+            final ContentValues cv = imageInsertValues(ctx, entryName, mc, cr);
+            final Uri imagesUri = mediaCollectionFor(mc, cv);
+            final String targetRel = cv.getAsString(MediaStore.MediaColumns.RELATIVE_PATH);
 
             Uri inserted = null;
             try {
                 inserted = cr.insert(imagesUri, cv);
                 if (inserted == null) {
                     Slog.w(TAG, "restoreOneImageFileEntry: insert returned null, entry=" + entryName
-                            + " rel=" + targetRel + " name=" + displayName + " mime=" + mime);
+                            + " values=" + cv);
                     drainEntry(zis);
                     return false;
                 }
@@ -1293,6 +3148,143 @@ public final class MirrorMediaService extends SystemService {
             }
         }
 
+        /**
+         * Thumbnail-first restore: write the low-resolution proxy under the original's name and
+         * make it visible right away (IS_PENDING=0). The original entry later overwrites the same
+         * row in place, and MediaProvider rescans it when the write closes.
+         */
+        private boolean restoreMediaProxy(RestoreContext ctx, String thumbEntry, MediaCollection mc,
+                ZipInputStream zis, ContentResolver cr) {
+            final String original = ENTRY_MEDIA_IMAGES_PREFIX
+                    + thumbEntry.substring(ENTRY_MEDIA_THUMBS_PREFIX.length());
+            Uri inserted = null;
+            try {
+                final ContentValues cv = imageInsertValues(ctx, original, mc, cr);
+                inserted = cr.insert(mediaCollectionFor(mc, cv), cv);
+                if (inserted == null) throw new IOException("insert returned null");
+                try (OutputStream os = cr.openOutputStream(inserted, "w")) {
+                    if (os == null) throw new IOException("openOutputStream null");
+                    final byte[] buf = new byte[64 * 1024];
+                    int n;
+                    while ((n = zis.read(buf)) > 0) os.write(buf, 0, n);
+                }
+                ContentValues done = new ContentValues();
+                done.put(MediaStore.MediaColumns.IS_PENDING, 0);
+                cr.update(inserted, done, null, null);
+                ctx.mediaProxies.put(original, inserted);
+                return true;
+            } catch (Throwable t) {
+                // 代理图只是提前预览，失败了原图照常恢复
+                Slog.w(TAG, "restoreMediaProxy: FAILED entry=" + thumbEntry, t);
+                if (inserted != null) {
+                    try { cr.delete(inserted, null, null); } catch (Throwable ignored) {}
+                }
+                drainEntry(zis);
+                return false;
+            }
+        }
+
+        /** Overwrite a proxy row with the original ("wt"); on failure the proxy stays visible. */
+        private boolean replaceMediaProxy(String entryName, Uri proxy, ZipInputStream zis,
+                ContentResolver cr) {
+            try (OutputStream os = cr.openOutputStream(proxy, "wt")) {
+                if (os == null) throw new IOException("openOutputStream null");
+                final byte[] buf = new byte[256 * 1024];
+                int n;
+                while ((n = zis.read(buf)) > 0) os.write(buf, 0, n);
+                Slog.i(TAG, "restoreOneImageFileEntry: OK entry=" + entryName + " -> " + proxy
+                        + " (replaced proxy)");
+                return true;
+            } catch (Throwable t) {
+                Slog.w(TAG, "replaceMediaProxy: FAILED entry=" + entryName + " uri=" + proxy, t);
+                drainEntry(zis);
+                return false;
+            }
+        }
+
+        /** Index of MEDIA_RANGE_SEP in a ranged media entry name ("...@r<digits>"), or -1. */
+        private int mediaRangeSep(RestoreContext ctx, String entryName) {
+            final int sep = entryName.lastIndexOf(MEDIA_RANGE_SEP);
+            if (sep <= 0 || sep + MEDIA_RANGE_SEP.length() == entryName.length()) return -1;
+            for (int i = sep + MEDIA_RANGE_SEP.length(); i < entryName.length(); i++) {
+                final char ch = entryName.charAt(i);
+                if (ch < '0' || ch > '9') return -1;
+            }
+            // 文件名本身恰好以 "@r<数字>" 结尾时，只有 meta 标了 rangeSize 的才当 range
+            final JSONObject meta = ctx.mediaMeta.get(entryName.substring(0, sep));
+            return (meta != null && meta.has("rangeSize")) ? sep : -1;
+        }
+
+        /**
+         * Restore one range of a large media file. Offset 0 inserts the pending row; later ranges
+         * must continue exactly where the previous one ended (possibly in an earlier archive, see
+         * MediaRangeState) and are appended with mode "wa". A range shorter than rangeSize
+         * completes the file and clears IS_PENDING.
+         */
+        private boolean restoreMediaRange(RestoreContext ctx, String entryName, int sep, MediaCollection mc,
+                ZipInputStream zis, ContentResolver cr) {
+            final String base = entryName.substring(0, sep);
+            final long off = Long.parseLong(entryName.substring(sep + MEDIA_RANGE_SEP.length()));
+            final long rangeSize = ctx.mediaMeta.get(base).optLong("rangeSize", MEDIA_RANGE_SIZE);
+
+            MediaRangeState.Target t = ctx.mediaRanges.get(base);
+            try {
+                if (off == 0) {
+                    if (t != null) {
+                        // 上一次没写完的副本作废，重新开始
+                        try { cr.delete(t.uri, null, null); } catch (Throwable ignored) {}
+                    }
+                    final ContentValues cv = imageInsertValues(ctx, base, mc, cr);
+                    final Uri inserted = cr.insert(mediaCollectionFor(mc, cv), cv);
+                    if (inserted == null) {
+                        Slog.w(TAG, "restoreMediaRange: insert returned null, entry=" + base);
+                        ctx.mediaRanges.remove(base);
+                        drainEntry(zis);
+                        return false;
+                    }
+                    t = new MediaRangeState.Target(inserted, 0);
+                    ctx.mediaRanges.put(base, t);
+                } else if (t == null || t.bytes != off) {
+                    Slog.w(TAG, "restoreMediaRange: gap at " + entryName + " have="
+                            + (t == null ? "none" : String.valueOf(t.bytes)));
+                    drainEntry(zis);
+                    return false;
+                }
+
+                long got = 0;
+                try (OutputStream os = cr.openOutputStream(t.uri, (off == 0) ? "w" : "wa")) {
+                    if (os == null) throw new IOException("openOutputStream null");
+                    final byte[] buf = new byte[256 * 1024];
+                    int n;
+                    while ((n = zis.read(buf)) > 0) {
+                        os.write(buf, 0, n);
+                        got += n;
+                    }
+                }
+                t.bytes += got;
+
+                if (got < rangeSize) {
+                    // IMPORTANT: pending -> not pending, or Gallery won't show it
+                    ContentValues done = new ContentValues();
+                    done.put(MediaStore.MediaColumns.IS_PENDING, 0);
+                    cr.update(t.uri, done, null, null);
+                    ctx.mediaRanges.remove(base);
+                    Slog.i(TAG, "restoreMediaRange: OK entry=" + base + " -> " + t.uri
+                            + " bytes=" + t.bytes);
+                }
+                return true;
+            } catch (Throwable e) {
+                // 写到一半不知道落了多少字节，这个文件只能等下次从头来
+                Slog.w(TAG, "restoreMediaRange: FAILED entry=" + entryName, e);
+                if (t != null) {
+                    try { cr.delete(t.uri, null, null); } catch (Throwable ignored) {}
+                    ctx.mediaRanges.remove(base);
+                }
+                drainEntry(zis);
+                return false;
+            }
+        }
+
         // -------- SMS --------
 
         private final String[] SMS_COLS = new String[] {
@@ -1308,36 +3300,44 @@ public final class MirrorMediaService extends SystemService {
                 "sub_id"
         };
 
-        private int backupSms(ZipOutputStream zos, ContentResolver cr) throws IOException {
-            int count = 0;
+        private int backupSms(ZipOutputStream zos, ContentResolver cr, IdRange range, int pageSize)
+                throws IOException {
             zos.putNextEntry(new ZipEntry(ENTRY_SMS));
-            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+            try (PagedQuery q = new PagedQuery(cr, Telephony.Sms.CONTENT_URI, SMS_COLS,
+                    Telephony.Sms._ID, IdRange.apply(range, Telephony.Sms._ID, null), pageSize)) {
+                return writePagedJsonl(zos, q, SMS_COLS, "backupSms");
+            } finally {
+                zos.closeEntry();
+            }
+        }
 
-            Cursor c = null;
-            try {
-                c = cr.query(Telephony.Sms.CONTENT_URI, SMS_COLS, null, null, "date ASC");
-                if (c == null) {
-                    Slog.w(TAG, "backupSms: query returned null cursor");
-                    return 0;
-                }
-                while (c.moveToNext()) {
-                    final JSONObject o = new JSONObject();
-                    try {
-                        cursorRowToJson(c, SMS_COLS, o);
-                    } catch (JSONException je) {
-                        Slog.w(TAG, "backupSms: json error, skip one row", je);
-                        continue;
+        /** 逐页编码为 JSONL；按 _id 顺序导出（恢复时 provider 按插入顺序分配新 _id）。 */
+        private int writePagedJsonl(ZipOutputStream zos, PagedQuery q, String[] cols, String what)
+                throws IOException {
+            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+            int count = 0;
+            Cursor c;
+            while ((c = q.nextPage()) != null) {
+                try {
+                    while (c.moveToNext()) {
+                        final JSONObject o = new JSONObject();
+                        try {
+                            cursorRowToJson(c, cols, o);
+                        } catch (JSONException je) {
+                            Slog.w(TAG, what + ": json error, skip one row", je);
+                            continue;
+                        }
+                        w.write(o.toString());
+                        w.write('\n');
+                        count++;
                     }
-                    w.write(o.toString());
-                    w.write('\n');
-                    count++;
+                } finally {
+                    c.close();
                 }
-                w.flush();
-                return count;
-            } finally {
-                if (c != null) c.close();
-                zos.closeEntry();
             }
+            w.flush();
+            Slog.i(TAG, what + ": rows=" + count + " pages=" + q.pages());
+            return count;
         }
 
         private boolean restoreSmsFromEntry(ZipInputStream zis, ContentResolver cr) throws IOException {
@@ -1371,34 +3371,147 @@ public final class MirrorMediaService extends SystemService {
             return fail == 0;
         }
 
-        // -------- CallLog --------
+        /** 快照的 pdu 表里是否有彩信（没有 pdu 表也算没有）。 */
+        private boolean snapshotHasMms(SQLiteDatabase db) {
+            try (Cursor t = db.rawQuery(
+                    "SELECT 1 FROM sqlite_master WHERE type='table' AND name='pdu'", null)) {
+                if (!t.moveToFirst()) return false;
+            }
+            try (Cursor c = db.rawQuery("SELECT 1 FROM pdu LIMIT 1", null)) {
+                return c.moveToFirst();
+            }
+        }
 
-        private final String[] CALL_COLS = new String[] {
-                CallLog.Calls.NUMBER,
-                CallLog.Calls.DATE,
-                CallLog.Calls.DURATION,
-                CallLog.Calls.TYPE,
-                CallLog.Calls.NEW
+        /**
+         * 从 mmssms.db 快照的 sms 表批量写回 Telephony provider。provider 按 address 重新分配
+         * thread_id，所以只取 SMS_COLS 里快照确实有的列，不带 _id / thread_id。
+         */
+        private boolean restoreSmsFromDb(SQLiteDatabase db, ContentResolver cr) {
+            final ArrayList<String> cols = new ArrayList<>();
+            try (Cursor ti = db.rawQuery("PRAGMA table_info(sms)", null)) {
+                final ArrayList<String> have = new ArrayList<>();
+                while (ti.moveToNext()) have.add(ti.getString(ti.getColumnIndexOrThrow("name")));
+                for (String k : SMS_COLS) if (have.contains(k)) cols.add(k);
+            }
+            if (cols.isEmpty()) {
+                Slog.e(TAG, "restoreSmsFromDb: snapshot has no sms table");
+                return false;
+            }
+
+            int total = 0;
+            int ok = 0;
+            final ArrayList<ContentValues> batch = new ArrayList<>(SMS_BULK_BATCH);
+            try (Cursor c = db.query("sms", cols.toArray(new String[0]), null, null, null, null,
+                    "date ASC")) {
+                while (c.moveToNext()) {
+                    final ContentValues cv = new ContentValues();
+                    cursorRowToCv(c, cv);
+                    batch.add(cv);
+                    if (batch.size() == SMS_BULK_BATCH) {
+                        ok += cr.bulkInsert(Telephony.Sms.CONTENT_URI,
+                                batch.toArray(new ContentValues[0]));
+                        total += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                ok += cr.bulkInsert(Telephony.Sms.CONTENT_URI, batch.toArray(new ContentValues[0]));
+                total += batch.size();
+            }
+            Slog.i(TAG, "restoreSmsFromDb: ok=" + ok + " total=" + total);
+            return ok == total;
+        }
+
+        private void cursorRowToCv(Cursor c, ContentValues cv) {
+            for (int i = 0; i < c.getColumnCount(); i++) {
+                final String k = c.getColumnName(i);
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER: cv.put(k, c.getLong(i)); break;
+                    case Cursor.FIELD_TYPE_FLOAT: cv.put(k, c.getDouble(i)); break;
+                    case Cursor.FIELD_TYPE_STRING: cv.put(k, c.getString(i)); break;
+                    case Cursor.FIELD_TYPE_BLOB: cv.put(k, c.getBlob(i)); break;
+                    default: cv.putNull(k); break;
+                }
+            }
+        }
+
+        // -------- MMS --------
+
+        private final String[] MMS_PDU_COLS = new String[] {
+                Telephony.BaseMmsColumns.DATE,
+                Telephony.BaseMmsColumns.DATE_SENT,
+                Telephony.BaseMmsColumns.MESSAGE_BOX,
+                Telephony.BaseMmsColumns.READ,
+                Telephony.BaseMmsColumns.SEEN,
+                Telephony.BaseMmsColumns.SUBJECT,
+                Telephony.BaseMmsColumns.SUBJECT_CHARSET,
+                Telephony.BaseMmsColumns.CONTENT_TYPE,
+                Telephony.BaseMmsColumns.CONTENT_LOCATION,
+                Telephony.BaseMmsColumns.EXPIRY,
+                Telephony.BaseMmsColumns.MESSAGE_CLASS,
+                Telephony.BaseMmsColumns.MESSAGE_ID,
+                Telephony.BaseMmsColumns.MESSAGE_TYPE,
+                Telephony.BaseMmsColumns.MMS_VERSION,
+                Telephony.BaseMmsColumns.MESSAGE_SIZE,
+                Telephony.BaseMmsColumns.PRIORITY,
+                Telephony.BaseMmsColumns.READ_REPORT,
+                Telephony.BaseMmsColumns.DELIVERY_REPORT,
+                Telephony.BaseMmsColumns.RESPONSE_STATUS,
+                Telephony.BaseMmsColumns.STATUS,
+                Telephony.BaseMmsColumns.TRANSACTION_ID,
+                Telephony.BaseMmsColumns.TEXT_ONLY,
+                Telephony.BaseMmsColumns.LOCKED,
+                Telephony.BaseMmsColumns.SUBSCRIPTION_ID
         };
 
-        private int backupCallLog(ZipOutputStream zos, ContentResolver cr) throws IOException {
-            int count = 0;
-            zos.putNextEntry(new ZipEntry(ENTRY_CALLLOG));
-            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+        private final String[] MMS_ADDR_COLS = new String[] {
+                Telephony.Mms.Addr.ADDRESS,
+                Telephony.Mms.Addr.TYPE,
+                Telephony.Mms.Addr.CHARSET
+        };
+
+        private final String[] MMS_PART_COLS = new String[] {
+                Telephony.Mms.Part.SEQ,
+                Telephony.Mms.Part.CONTENT_TYPE,
+                Telephony.Mms.Part.NAME,
+                Telephony.Mms.Part.CHARSET,
+                Telephony.Mms.Part.FILENAME,
+                Telephony.Mms.Part.CONTENT_DISPOSITION,
+                Telephony.Mms.Part.CONTENT_ID,
+                Telephony.Mms.Part.CONTENT_LOCATION,
+                Telephony.Mms.Part.TEXT
+        };
 
+        /**
+         * pdu.jsonl（每行带旧 _id 和 addr 数组）→ part.jsonl（旧 _id / mid，正文在 _data 的标 data=true）
+         * → 每个有 _data 的 part 一个 mms/parts/&lt;旧 _id&gt; 条目。正文经 provider 的 FD 流式拷贝，不进内存。
+         */
+        private int backupMms(ZipOutputStream zos, ContentResolver cr, IdRange range)
+                throws IOException {
+            int count = 0;
+            zos.putNextEntry(new ZipEntry(ENTRY_MMS_PDU));
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
             Cursor c = null;
             try {
-                c = cr.query(CallLog.Calls.CONTENT_URI, CALL_COLS, null, null, "date ASC");
+                final String[] proj = new String[MMS_PDU_COLS.length + 1];
+                proj[0] = Telephony.Mms._ID;
+                System.arraycopy(MMS_PDU_COLS, 0, proj, 1, MMS_PDU_COLS.length);
+                c = cr.query(Telephony.Mms.CONTENT_URI, proj,
+                        IdRange.apply(range, Telephony.Mms._ID, null), null, "_id ASC");
                 if (c == null) {
-                    Slog.w(TAG, "backupCallLog: query returned null cursor");
+                    Slog.w(TAG, "backupMms: query returned null cursor");
                     return 0;
                 }
                 while (c.moveToNext()) {
+                    final long id = c.getLong(0);
                     final JSONObject o = new JSONObject();
                     try {
-                        cursorRowToJson(c, CALL_COLS, o);
+                        o.put("_id", id);
+                        cursorRowToJson(c, MMS_PDU_COLS, o);
+                        o.put("addr", queryMmsAddrs(cr, id));
                     } catch (JSONException je) {
-                        Slog.w(TAG, "backupCallLog: json error, skip one row", je);
+                        Slog.w(TAG, "backupMms: json error, skip pdu " + id, je);
                         continue;
                     }
                     w.write(o.toString());
@@ -1406,11 +3519,307 @@ public final class MirrorMediaService extends SystemService {
                     count++;
                 }
                 w.flush();
-                return count;
             } finally {
                 if (c != null) c.close();
                 zos.closeEntry();
             }
+
+            // part 行；有 _data 的 part 记下来，写完 part.jsonl 再逐个拷正文
+            final ArrayList<Long> withData = new ArrayList<>();
+            zos.putNextEntry(new ZipEntry(ENTRY_MMS_PART));
+            w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+            c = null;
+            try {
+                final String[] proj = new String[MMS_PART_COLS.length + 3];
+                proj[0] = Telephony.Mms.Part._ID;
+                proj[1] = Telephony.Mms.Part.MSG_ID;
+                proj[2] = Telephony.Mms.Part._DATA;
+                System.arraycopy(MMS_PART_COLS, 0, proj, 3, MMS_PART_COLS.length);
+                c = cr.query(Telephony.Mms.Part.CONTENT_URI, proj,
+                        IdRange.apply(range, Telephony.Mms.Part.MSG_ID, null), null, "_id ASC");
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        final long id = c.getLong(0);
+                        final boolean hasData = !c.isNull(2);
+                        final JSONObject o = new JSONObject();
+                        try {
+                            o.put("_id", id);
+                            o.put("mid", c.getLong(1));
+                            o.put("data", hasData);
+                            cursorRowToJson(c, MMS_PART_COLS, o);
+                        } catch (JSONException je) {
+                            Slog.w(TAG, "backupMms: json error, skip part " + id, je);
+                            continue;
+                        }
+                        w.write(o.toString());
+                        w.write('\n');
+                        if (hasData) withData.add(id);
+                    }
+                }
+                w.flush();
+            } finally {
+                if (c != null) c.close();
+                zos.closeEntry();
+            }
+
+            final byte[] buf = new byte[64 * 1024];
+            int copied = 0;
+            for (long partId : withData) {
+                final Uri u = ContentUris.withAppendedId(Telephony.Mms.Part.CONTENT_URI, partId);
+                try (InputStream in = cr.openInputStream(u)) {
+                    if (in == null) continue;
+                    zos.putNextEntry(new ZipEntry(ENTRY_MMS_PART_DATA_PREFIX + partId));
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) > 0) zos.write(buf, 0, n);
+                    } finally {
+                        zos.closeEntry();
+                    }
+                    copied++;
+                } catch (IOException ioe) {
+                    // 正文文件丢失时只缺这一个附件，part 行仍然恢复
+                    Slog.w(TAG, "backupMms: part " + partId + " body unreadable", ioe);
+                }
+            }
+            Slog.i(TAG, "backupMms: pdus=" + count + " parts=" + withData.size()
+                    + " bodies=" + copied);
+            return count;
+        }
+
+        private JSONArray queryMmsAddrs(ContentResolver cr, long pduId) throws JSONException {
+            final JSONArray arr = new JSONArray();
+            try (Cursor a = cr.query(Telephony.Mms.Addr.getAddrUriForMessage(String.valueOf(pduId)),
+                    MMS_ADDR_COLS, null, null, null)) {
+                if (a == null) return arr;
+                while (a.moveToNext()) {
+                    final JSONObject o = new JSONObject();
+                    cursorRowToJson(a, MMS_ADDR_COLS, o);
+                    arr.put(o);
+                }
+            }
+            return arr;
+        }
+
+        /** 按 MMS_BATCH 条一批插 pdu，再用返回的新 id 一批插它们的 addr。 */
+        private boolean restoreMmsPduFromEntry(RestoreContext ctx, ZipInputStream zis, ContentResolver cr) throws IOException {
+            Slog.i(TAG, "restoreMmsPduFromEntry: begin");
+            final BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+            final HashMap<String, Long> threadIds = new HashMap<>();
+            final ArrayList<JSONObject> pending = new ArrayList<>(MMS_BATCH);
+            int ok = 0;
+            int fail = 0;
+            String line;
+            while (true) {
+                line = br.readLine();
+                if (line != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+                    try {
+                        pending.add(new JSONObject(line));
+                    } catch (JSONException je) {
+                        fail++;
+                        Slog.w(TAG, "restoreMmsPduFromEntry: bad line", je);
+                    }
+                    if (pending.size() < MMS_BATCH) continue;
+                }
+                if (!pending.isEmpty()) {
+                    final int n = flushMmsPdus(ctx, pending, cr, threadIds);
+                    ok += n;
+                    fail += pending.size() - n;
+                    pending.clear();
+                }
+                if (line == null) break;
+            }
+            Slog.i(TAG, "restoreMmsPduFromEntry: ok=" + ok + " fail=" + fail);
+            return fail == 0;
+        }
+
+        private int flushMmsPdus(RestoreContext ctx, ArrayList<JSONObject> pdus, ContentResolver cr,
+                HashMap<String, Long> threadIds) {
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>(pdus.size());
+            for (JSONObject o : pdus) {
+                final ContentValues cv = new ContentValues();
+                for (String k : MMS_PDU_COLS) putJsonToCv(cv, o, k);
+                final long threadId = mmsThreadId(cr, o, threadIds);
+                if (threadId > 0) cv.put(Telephony.BaseMmsColumns.THREAD_ID, threadId);
+                ops.add(ContentProviderOperation.newInsert(Telephony.Mms.CONTENT_URI)
+                        .withValues(cv).build());
+            }
+            final ContentProviderResult[] res;
+            try {
+                res = cr.applyBatch("mms", ops);
+            } catch (Exception e) {
+                Slog.w(TAG, "flushMmsPdus: pdu batch failed", e);
+                return 0;
+            }
+
+            ops.clear();
+            int ok = 0;
+            for (int i = 0; i < pdus.size() && i < res.length; i++) {
+                if (res[i].uri == null) continue;
+                final long newId = ContentUris.parseId(res[i].uri);
+                final JSONObject o = pdus.get(i);
+                ctx.mmsIds.put(o.optLong("_id", -1), newId);
+                ok++;
+                final JSONArray addrs = o.optJSONArray("addr");
+                if (addrs == null) continue;
+                final Uri addrUri = Telephony.Mms.Addr.getAddrUriForMessage(String.valueOf(newId));
+                for (int j = 0; j < addrs.length(); j++) {
+                    final ContentValues cv = new ContentValues();
+                    for (String k : MMS_ADDR_COLS) putJsonToCv(cv, addrs.optJSONObject(j), k);
+                    ops.add(ContentProviderOperation.newInsert(addrUri).withValues(cv).build());
+                }
+            }
+            if (!ops.isEmpty()) {
+                try {
+                    cr.applyBatch("mms", ops);
+                } catch (Exception e) {
+                    // pdu 已经在库里；缺 addr 只影响显示的联系人，不回滚
+                    Slog.w(TAG, "flushMmsPdus: addr batch failed", e);
+                }
+            }
+            return ok;
+        }
+
+        /**
+         * 与 PduPersister 一样按收件人集合取会话：收件箱取 FROM，其余取 TO/CC/BCC。
+         * 同一组收件人只查一次 mms-sms/threadID。
+         */
+        private long mmsThreadId(ContentResolver cr, JSONObject pdu, HashMap<String, Long> cache) {
+            final JSONArray addrs = pdu.optJSONArray("addr");
+            if (addrs == null) return -1;
+            final boolean inbox = pdu.optInt(Telephony.BaseMmsColumns.MESSAGE_BOX)
+                    == Telephony.BaseMmsColumns.MESSAGE_BOX_INBOX;
+            final TreeSet<String> recipients = new TreeSet<>();
+            for (int i = 0; i < addrs.length(); i++) {
+                final JSONObject a = addrs.optJSONObject(i);
+                if (a == null) continue;
+                final int type = a.optInt(Telephony.Mms.Addr.TYPE);
+                final String address = a.optString(Telephony.Mms.Addr.ADDRESS, null);
+                if (TextUtils.isEmpty(address) || "insert-address-token".equals(address)) continue;
+                if (inbox ? type == MMS_ADDR_FROM
+                        : (type == MMS_ADDR_TO || type == MMS_ADDR_CC || type == MMS_ADDR_BCC)) {
+                    recipients.add(address);
+                }
+            }
+            if (recipients.isEmpty()) return -1;
+            final String key = TextUtils.join(";", recipients);
+            final Long cached = cache.get(key);
+            if (cached != null) return cached;
+
+            final Uri.Builder b = Uri.parse("content://mms-sms/threadID").buildUpon();
+            for (String r : recipients) b.appendQueryParameter("recipient", r);
+            long id = -1;
+            try (Cursor c = cr.query(b.build(), new String[]{"_id"}, null, null, null)) {
+                if (c != null && c.moveToFirst()) id = c.getLong(0);
+            } catch (Throwable t) {
+                Slog.w(TAG, "mmsThreadId: lookup failed", t);
+            }
+            if (id > 0) cache.put(key, id);
+            return id;
+        }
+
+        private boolean restoreMmsPartFromEntry(RestoreContext ctx, ZipInputStream zis, ContentResolver cr) throws IOException {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>(MMS_BATCH);
+            final ArrayList<Long> oldIds = new ArrayList<>(MMS_BATCH);
+            int ok = 0;
+            int fail = 0;
+            String line;
+            while (true) {
+                line = br.readLine();
+                if (line != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+                    try {
+                        final JSONObject o = new JSONObject(line);
+                        final long newMid = ctx.mmsIds.get(o.getLong("mid"), -1L);
+                        if (newMid < 0) {
+                            fail++;
+                            continue;
+                        }
+                        final ContentValues cv = new ContentValues();
+                        for (String k : MMS_PART_COLS) putJsonToCv(cv, o, k);
+                        ops.add(ContentProviderOperation.newInsert(
+                                Telephony.Mms.Part.getPartUriForMessage(String.valueOf(newMid)))
+                                .withValues(cv).build());
+                        oldIds.add(o.getLong("_id"));
+                    } catch (JSONException je) {
+                        fail++;
+                        Slog.w(TAG, "restoreMmsPartFromEntry: bad line", je);
+                    }
+                    if (ops.size() < MMS_BATCH) continue;
+                }
+                if (!ops.isEmpty()) {
+                    try {
+                        final ContentProviderResult[] res = cr.applyBatch("mms", ops);
+                        for (int i = 0; i < res.length && i < oldIds.size(); i++) {
+                            if (res[i].uri == null) { fail++; continue; }
+                            ctx.mmsPartUris.put(oldIds.get(i), res[i].uri);
+                            ok++;
+                        }
+                    } catch (Exception e) {
+                        fail += ops.size();
+                        Slog.w(TAG, "restoreMmsPartFromEntry: batch failed", e);
+                    }
+                    ops.clear();
+                    oldIds.clear();
+                }
+                if (line == null) break;
+            }
+            Slog.i(TAG, "restoreMmsPartFromEntry: ok=" + ok + " fail=" + fail);
+            return fail == 0;
+        }
+
+        private boolean restoreMmsPartData(RestoreContext ctx, String entryName, ZipInputStream zis, ContentResolver cr) {
+            final Uri part;
+            try {
+                part = ctx.mmsPartUris.get(
+                        Long.parseLong(entryName.substring(ENTRY_MMS_PART_DATA_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                Slog.w(TAG, "restoreMmsPartData: bad entry " + entryName);
+                drainEntry(zis);
+                return false;
+            }
+            if (part == null) {
+                drainEntry(zis);
+                return false;
+            }
+            try (OutputStream os = cr.openOutputStream(part, "w")) {
+                if (os == null) {
+                    drainEntry(zis);
+                    return false;
+                }
+                final byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = zis.read(buf)) > 0) os.write(buf, 0, n);
+                return true;
+            } catch (Throwable t) {
+                Slog.w(TAG, "restoreMmsPartData: FAILED entry=" + entryName + " uri=" + part, t);
+                drainEntry(zis);
+                return false;
+            }
+        }
+
+        // -------- CallLog --------
+
+        private final String[] CALL_COLS = new String[] {
+                CallLog.Calls.NUMBER,
+                CallLog.Calls.DATE,
+                CallLog.Calls.DURATION,
+                CallLog.Calls.TYPE,
+                CallLog.Calls.NEW
+        };
+
+        private int backupCallLog(ZipOutputStream zos, ContentResolver cr, IdRange range,
+                int pageSize) throws IOException {
+            zos.putNextEntry(new ZipEntry(ENTRY_CALLLOG));
+            try (PagedQuery q = new PagedQuery(cr, CallLog.Calls.CONTENT_URI, CALL_COLS,
+                    CallLog.Calls._ID, IdRange.apply(range, CallLog.Calls._ID, null), pageSize)) {
+                return writePagedJsonl(zos, q, CALL_COLS, "backupCallLog");
+            } finally {
+                zos.closeEntry();
+            }
         }
 
         private boolean restoreCallLogFromEntry(ZipInputStream zis, ContentResolver cr) throws IOException {
@@ -1461,36 +3870,15 @@ public final class MirrorMediaService extends SystemService {
                 "hasAlarm"
         };
 
-        private int backupCalendarEvents(ZipOutputStream zos, ContentResolver cr) throws IOException {
-            int count = 0;
+        private int backupCalendarEvents(ZipOutputStream zos, ContentResolver cr, IdRange range,
+                int pageSize) throws IOException {
             zos.putNextEntry(new ZipEntry(ENTRY_CAL_EVENTS));
-            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
-
-            Cursor c = null;
-            try {
-                c = cr.query(CalendarContract.Events.CONTENT_URI, EVENT_COLS,
-                        CalendarContract.Events.DELETED + "=0", null,
-                        "dtstart ASC");
-                if (c == null) {
-                    Slog.w(TAG, "backupCalendarEvents: query returned null cursor");
-                    return 0;
-                }
-                while (c.moveToNext()) {
-                    final JSONObject o = new JSONObject();
-                    try {
-                        cursorRowToJson(c, EVENT_COLS, o);
-                    } catch (JSONException je) {
-                        Slog.w(TAG, "backupCalendarEvents: json error, skip one row", je);
-                        continue;
-                    }
-                    w.write(o.toString());
-                    w.write('\n');
-                    count++;
-                }
-                w.flush();
-                return count;
+            try (PagedQuery q = new PagedQuery(cr, CalendarContract.Events.CONTENT_URI, EVENT_COLS,
+                    CalendarContract.Events._ID,
+                    IdRange.apply(range, CalendarContract.Events._ID,
+                            CalendarContract.Events.DELETED + "=0"), pageSize)) {
+                return writePagedJsonl(zos, q, EVENT_COLS, "backupCalendarEvents");
             } finally {
-                if (c != null) c.close();
                 zos.closeEntry();
             }
         }
@@ -0,0 +1,337 @@
+package com.android.server.mirror;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Framing tests for {@link MirrorDaemonProtocol}. Everything runs against in-memory streams
+ * standing in for the daemon socket.
+ *
+ * atest FrameworksServicesTests:com.android.server.mirror.MirrorDaemonProtocolTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MirrorDaemonProtocolTest {
+
+    private static MirrorDaemonProtocol.Frame sampleRequest() {
+        final MirrorDaemonProtocol.Frame f =
+                new MirrorDaemonProtocol.Frame(MirrorDaemonProtocol.OP_DUMP);
+        f.flags = MirrorDaemonProtocol.FLAG_WANT_STATUS;
+        f.requestId = 0x12345678;
+        f.fdCount = 1;
+        return f.putString(MirrorDaemonProtocol.TAG_PATH, "/data/data/com.example.app")
+                .putInt(MirrorDaemonProtocol.TAG_UID, 10123)
+                .putString(MirrorDaemonProtocol.TAG_EXCLUDE_GLOB, "cache")
+                .putString(MirrorDaemonProtocol.TAG_EXCLUDE_GLOB, "code_cache")
+                .putLong(MirrorDaemonProtocol.TAG_MAX_FILE_SIZE, 5L << 32)
+                .putBytes(MirrorDaemonProtocol.TAG_INCLUDE_PKG, new byte[0]);
+    }
+
+    /** Body of a frame (what follows the u32 length) built by hand. */
+    private static byte[] body(int version, int opcode, byte[]... tlvs) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(version);
+        bos.write(opcode);
+        bos.write(0);
+        bos.write(0);
+        bos.write(new byte[]{7, 0, 0, 0}, 0, 4);
+        bos.write(0);
+        bos.write(0);
+        for (byte[] t : tlvs) bos.write(t, 0, t.length);
+        return bos.toByteArray();
+    }
+
+    private static byte[] withLength(byte[] body) {
+        final byte[] out = new byte[4 + body.length];
+        final int n = body.length;
+        out[0] = (byte) n;
+        out[1] = (byte) (n >>> 8);
+        out[2] = (byte) (n >>> 16);
+        out[3] = (byte) (n >>> 24);
+        System.arraycopy(body, 0, out, 4, n);
+        return out;
+    }
+
+    private static byte[] tlv(int tag, long declaredLen, byte[] value) {
+        final byte[] t = new byte[6 + value.length];
+        t[0] = (byte) tag;
+        t[1] = (byte) (tag >>> 8);
+        for (int i = 0; i < 4; i++) t[2 + i] = (byte) (declaredLen >>> (8 * i));
+        System.arraycopy(value, 0, t, 6, value.length);
+        return t;
+    }
+
+    private static void assertSameFrame(MirrorDaemonProtocol.Frame want,
+            MirrorDaemonProtocol.Frame got) {
+        assertEquals(want.version, got.version);
+        assertEquals(want.opcode, got.opcode);
+        assertEquals(want.flags, got.flags);
+        assertEquals(want.requestId, got.requestId);
+        assertEquals(want.fdCount, got.fdCount);
+        assertEquals(want.tlvs.size(), got.tlvs.size());
+        for (int i = 0; i < want.tlvs.size(); i++) {
+            assertEquals(want.tlvs.get(i).tag, got.tlvs.get(i).tag);
+            assertArrayEquals(want.tlvs.get(i).value, got.tlvs.get(i).value);
+        }
+    }
+
+    private static void assertReadFails(byte[] wire, Class<? extends IOException> type) {
+        try {
+            MirrorDaemonProtocol.read(new ByteArrayInputStream(wire));
+            fail("expected " + type.getSimpleName());
+        } catch (IOException e) {
+            assertTrue("got " + e, type.isInstance(e));
+        }
+    }
+
+    // ---------- round trip ----------
+
+    @Test
+    public void encodeDecode_roundTrip() throws Exception {
+        final MirrorDaemonProtocol.Frame f = sampleRequest();
+        final byte[] wire = MirrorDaemonProtocol.encode(f);
+
+        assertEquals(wire.length - 4, (wire[0] & 0xff) | (wire[1] & 0xff) << 8);
+        assertEquals(MirrorDaemonProtocol.VERSION, wire[4]);
+        assertEquals(MirrorDaemonProtocol.OP_DUMP, wire[5]);
+
+        final MirrorDaemonProtocol.Frame g =
+                MirrorDaemonProtocol.decodeBody(Arrays.copyOfRange(wire, 4, wire.length));
+        assertSameFrame(f, g);
+        assertEquals("/data/data/com.example.app", g.getString(MirrorDaemonProtocol.TAG_PATH));
+        assertEquals(10123, g.getInt(MirrorDaemonProtocol.TAG_UID, -1));
+        assertEquals(5L << 32, g.getLong(MirrorDaemonProtocol.TAG_MAX_FILE_SIZE, -1));
+        assertArrayEquals(new String[]{"cache", "code_cache"},
+                g.getStrings(MirrorDaemonProtocol.TAG_EXCLUDE_GLOB));
+        assertEquals(0, g.getBytes(MirrorDaemonProtocol.TAG_INCLUDE_PKG).length);
+        assertNull(g.getBytes(MirrorDaemonProtocol.TAG_MESSAGE));
+        assertEquals(-7, g.getInt(MirrorDaemonProtocol.TAG_MESSAGE, -7));
+    }
+
+    @Test
+    public void read_backToBackFramesThenCleanEof() throws Exception {
+        final MirrorDaemonProtocol.Frame a = sampleRequest();
+        final MirrorDaemonProtocol.Frame b = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.OP_CAPS);
+        b.requestId = -2;  // ids wrap; the full u32 must survive
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(MirrorDaemonProtocol.encode(a));
+        bos.write(MirrorDaemonProtocol.encode(b));
+
+        final ByteArrayInputStream in = new ByteArrayInputStream(bos.toByteArray());
+        assertSameFrame(a, MirrorDaemonProtocol.read(in));
+        assertSameFrame(b, MirrorDaemonProtocol.read(in));
+        assertNull(MirrorDaemonProtocol.read(in));
+    }
+
+    @Test
+    public void read_reassemblesFramesSplitAcrossPipeWrites() throws Exception {
+        final MirrorDaemonProtocol.Frame f = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.RSP_STATUS);
+        f.requestId = 3;
+        f.putLong(MirrorDaemonProtocol.TAG_BYTES, 1L << 40)
+                .putBytes(MirrorDaemonProtocol.TAG_MESSAGE, new byte[70 * 1024]);
+        final byte[] wire = MirrorDaemonProtocol.encode(f);
+
+        final PipedInputStream pin = new PipedInputStream(1024);
+        final PipedOutputStream pout = new PipedOutputStream(pin);
+        final Thread writer = new Thread(() -> {
+            try {
+                // 一次写一小段，读端必须跨多次 read() 拼出完整的长度字段和 TLV
+                for (int off = 0; off < wire.length; off += 3) {
+                    pout.write(wire, off, Math.min(3, wire.length - off));
+                }
+                pout.close();
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        try {
+            assertSameFrame(f, MirrorDaemonProtocol.read(pin));
+            assertNull(MirrorDaemonProtocol.read(pin));
+        } finally {
+            writer.join();
+        }
+    }
+
+    // ---------- malformed input ----------
+
+    @Test
+    public void decode_rejectsBadVersion() throws Exception {
+        try {
+            MirrorDaemonProtocol.decodeBody(body(MirrorDaemonProtocol.VERSION + 1,
+                    MirrorDaemonProtocol.RSP_RESULT));
+            fail("accepted a frame with an unknown version");
+        } catch (ProtocolException expected) {
+        }
+        assertReadFails(withLength(body(0, MirrorDaemonProtocol.RSP_RESULT)),
+                ProtocolException.class);
+    }
+
+    @Test
+    public void decode_rejectsTruncatedTlvHeader() {
+        final byte[] half = Arrays.copyOf(tlv(MirrorDaemonProtocol.TAG_PATH, 1, new byte[1]), 5);
+        assertReadFails(withLength(body(MirrorDaemonProtocol.VERSION,
+                MirrorDaemonProtocol.RSP_RESULT, half)), ProtocolException.class);
+    }
+
+    @Test
+    public void decode_rejectsTlvOverrunningFrame() {
+        // 声明 8 字节，实际只有 4 字节
+        assertReadFails(withLength(body(MirrorDaemonProtocol.VERSION,
+                MirrorDaemonProtocol.RSP_RESULT,
+                tlv(MirrorDaemonProtocol.TAG_BYTES, 8, new byte[4]))), ProtocolException.class);
+        // 长度字段按 u32 解释，0xffffffff 不能变成负数绕过检查
+        assertReadFails(withLength(body(MirrorDaemonProtocol.VERSION,
+                MirrorDaemonProtocol.RSP_RESULT,
+                tlv(MirrorDaemonProtocol.TAG_BYTES, 0xffffffffL, new byte[4]))),
+                ProtocolException.class);
+    }
+
+    @Test
+    public void read_rejectsStreamEndingInsideFrame() throws Exception {
+        final byte[] wire = MirrorDaemonProtocol.encode(sampleRequest());
+        assertReadFails(Arrays.copyOf(wire, 2), EOFException.class);
+        assertReadFails(Arrays.copyOf(wire, wire.length - 1), EOFException.class);
+    }
+
+    @Test
+    public void read_rejectsBadFrameLength() {
+        final byte[] tooShort = withLength(new byte[MirrorDaemonProtocol.HEADER_SIZE - 1]);
+        assertReadFails(tooShort, ProtocolException.class);
+
+        // 只给长度字段：超限必须在分配 body 之前就被拒绝
+        final int huge = MirrorDaemonProtocol.MAX_FRAME_SIZE + 1;
+        assertReadFails(new byte[]{(byte) huge, (byte) (huge >>> 8), (byte) (huge >>> 16),
+                (byte) (huge >>> 24)}, ProtocolException.class);
+        assertReadFails(new byte[]{-1, -1, -1, -1}, ProtocolException.class);
+    }
+
+    @Test
+    public void encode_rejectsOversizedFrameAndTooManyFds() throws Exception {
+        final MirrorDaemonProtocol.Frame big = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.OP_ZIP);
+        big.putBytes(MirrorDaemonProtocol.TAG_MESSAGE,
+                new byte[MirrorDaemonProtocol.MAX_FRAME_SIZE]);
+        try {
+            MirrorDaemonProtocol.encode(big);
+            fail("encoded a frame over MAX_FRAME_SIZE");
+        } catch (ProtocolException expected) {
+        }
+
+        final MirrorDaemonProtocol.Frame fds = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.OP_ZIP);
+        fds.fdCount = MirrorDaemonProtocol.MAX_FDS + 1;
+        try {
+            MirrorDaemonProtocol.encode(fds);
+            fail("encoded a frame with too many fds");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    // ---------- RESULT / STATUS parsing ----------
+
+    @Test
+    public void result_parsesAllFields() throws Exception {
+        final MirrorDaemonProtocol.Frame f = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.RSP_RESULT);
+        f.requestId = 42;
+        f.putInt(MirrorDaemonProtocol.TAG_ERROR, MirrorDaemonProtocol.ERR_IO)
+                .putInt(MirrorDaemonProtocol.TAG_ERRNO, 28)
+                .putLong(MirrorDaemonProtocol.TAG_BYTES, 3L << 33)
+                .putLong(MirrorDaemonProtocol.TAG_FILES, 17)
+                .putString(MirrorDaemonProtocol.TAG_MESSAGE, "write output")
+                .putString(MirrorDaemonProtocol.TAG_RAW_FORMAT, "MM01")
+                .putString(MirrorDaemonProtocol.TAG_RAW_FORMAT, "MM02");
+        final byte[] wire = MirrorDaemonProtocol.encode(f);
+
+        final MirrorDaemonProtocol.Result r = MirrorDaemonProtocol.Result.from(
+                MirrorDaemonProtocol.read(new ByteArrayInputStream(wire)));
+        assertEquals(42, r.requestId);
+        assertEquals(MirrorDaemonProtocol.ERR_IO, r.error);
+        assertFalse(r.ok());
+        assertEquals(28, r.errno);
+        assertEquals(3L << 33, r.bytes);
+        assertEquals(17, r.files);
+        assertEquals("write output", r.message);
+        assertArrayEquals(new String[]{"MM01", "MM02"},
+                r.frame.getStrings(MirrorDaemonProtocol.TAG_RAW_FORMAT));
+    }
+
+    @Test
+    public void result_defaultsWhenErrorTagMissing() throws Exception {
+        // RESULT 不带 TAG_ERROR 按失败处理；STATUS 只是进度，缺省为成功
+        final MirrorDaemonProtocol.Result result = MirrorDaemonProtocol.Result.from(
+                MirrorDaemonProtocol.decodeBody(body(MirrorDaemonProtocol.VERSION,
+                        MirrorDaemonProtocol.RSP_RESULT)));
+        assertEquals(MirrorDaemonProtocol.ERR_FAILED, result.error);
+        assertEquals(7, result.requestId);
+        assertNull(result.message);
+
+        final MirrorDaemonProtocol.Result status = MirrorDaemonProtocol.Result.from(
+                MirrorDaemonProtocol.decodeBody(body(MirrorDaemonProtocol.VERSION,
+                        MirrorDaemonProtocol.RSP_STATUS,
+                        tlv(MirrorDaemonProtocol.TAG_BYTES, 4,
+                                new byte[]{0, 0, 0, (byte) 0x80}))));
+        assertTrue(status.ok());
+        // 4 字节的计数按无符号读
+        assertEquals(0x80000000L, status.bytes);
+    }
+
+    @Test
+    public void result_disconnectedHasNoFrame() {
+        final MirrorDaemonProtocol.Result r =
+                MirrorDaemonProtocol.Result.disconnected(9, "timeout");
+        assertEquals(MirrorDaemonProtocol.ERR_DISCONNECTED, r.error);
+        assertFalse(r.ok());
+        assertNull(r.frame);
+    }
+
+    @Test
+    public void groupStat_decode() throws Exception {
+        final MirrorDaemonProtocol.Frame f = new MirrorDaemonProtocol.Frame(
+                MirrorDaemonProtocol.RSP_RESULT);
+        final byte[] v = new byte[16 + 3];
+        v[0] = 5;
+        v[8] = 1;
+        v[10] = 1;
+        System.arraycopy("pkg".getBytes(StandardCharsets.UTF_8), 0, v, 16, 3);
+        f.putBytes(MirrorDaemonProtocol.TAG_GROUP_STAT, v);
+        final byte[] wire = MirrorDaemonProtocol.encode(f);
+        final List<byte[]> all = MirrorDaemonProtocol.decodeBody(
+                Arrays.copyOfRange(wire, 4, wire.length))
+                .getAll(MirrorDaemonProtocol.TAG_GROUP_STAT);
+        assertEquals(1, all.size());
+        final MirrorDaemonProtocol.GroupStat g = MirrorDaemonProtocol.GroupStat.decode(all.get(0));
+        assertEquals("pkg", g.name);
+        assertEquals(5, g.files);
+        assertEquals(0x10001, g.bytes);
+
+        try {
+            MirrorDaemonProtocol.GroupStat.decode(new byte[15]);
+            fail("decoded a short group stat");
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -115,6 +115,8 @@ public class MainActivity extends Activity {
         // 3. 短信 (DB Raw 模式)
         if (cbSms.isChecked()) {
             tasks.add(new MirrorUtil.MirrorTask(MirrorUtil.TaskType.SMS_DB_RAW));
+            // 彩信走个人数据归档（含附件正文），热恢复只覆盖 sms 表
+            tasks.add(new MirrorUtil.MirrorTask(MirrorUtil.TaskType.PIM_MMS));
         }
 
         // 4. 其他 PIM 数据 (Folder 模式)
@@ -3,10 +3,15 @@ package com.example.mirrorclient;
 import android.app.mirror.MirrorMediaManager;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -15,8 +20,16 @@ import java.io.InputStream;
 import java.io.OutputStream; // 务必保留
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -40,7 +53,8 @@ public final class MirrorUtil {
         PIM_CALLLOG,
         PIM_CALENDAR,
         PIM_CONTACTS,
-        PIM_MEDIA
+        PIM_MEDIA,
+        PIM_MMS
     }
 
     public static class MirrorTask {
@@ -82,6 +96,9 @@ public final class MirrorUtil {
                 case PIM_MEDIA:
                     backupPimToFolder(ctx, mgr, MirrorMediaManager.TYPE_MEDIA, "MEDIA", logger);
                     break;
+                case PIM_MMS:
+                    backupPimToFolder(ctx, mgr, MirrorMediaManager.TYPE_MMS, "MMS", logger);
+                    break;
             }
         }
         log(logger, "=== 批量备份结束 ===");
@@ -90,6 +107,11 @@ public final class MirrorUtil {
     public static void batchRestore(Context ctx, MirrorMediaManager mgr, List<MirrorTask> tasks, Logger logger) {
         if (mgr == null) { logErr(logger, "Service is null."); return; }
         log(logger, "=== 开始批量还原 (无过滤模式) ===");
+        // 同批有 PIM_MMS 时彩信由归档恢复，SMS 热恢复不必为彩信退回整库替换
+        boolean mmsSeparately = false;
+        for (MirrorTask task : tasks) {
+            if (task.type == TaskType.PIM_MMS) mmsSeparately = true;
+        }
 
         for (MirrorTask task : tasks) {
             log(logger, ">>> 还原项: " + task.type);
@@ -102,7 +124,7 @@ public final class MirrorUtil {
                     ok = restoreAllExternalDataViaZip(ctx, mgr, logger);
                     break;
                 case SMS_DB_RAW:
-                    ok = restoreSmsRawDb(ctx, mgr, logger);
+                    ok = restoreSmsRawDb(ctx, mgr, mmsSeparately, logger);
                     break;
                 case PIM_CALLLOG:
                     ok = restorePimFromFolder(ctx, mgr, MirrorMediaManager.TYPE_CALLLOG, "CALLLOG", true, logger);
@@ -116,6 +138,9 @@ public final class MirrorUtil {
                 case PIM_MEDIA:
                     ok = restorePimFromFolder(ctx, mgr, MirrorMediaManager.TYPE_MEDIA, "MEDIA", true, logger);
                     break;
+                case PIM_MMS:
+                    ok = restorePimFromFolder(ctx, mgr, MirrorMediaManager.TYPE_MMS, "MMS", true, logger);
+                    break;
             }
             if (ok) log(logger, "  └─ 任务完成: " + task.type);
             else logErr(logger, "  └─ 任务可能部分失败: " + task.type);
@@ -150,18 +175,75 @@ public final class MirrorUtil {
         copyDirIntoAppFilesViaZip(ctx, "/sdcard/Android/data", tmpZip, destDir, mgr, logger);
     }
 
+    // 只要可还原的应用状态：cache/code_cache/no_backup 在 daemon 遍历时直接剪掉
+    private static Bundle appDataExportFilters() {
+        Bundle filters = new Bundle();
+        filters.putStringArray(MirrorMediaManager.OPT_EXCLUDE_GLOBS,
+                MirrorMediaManager.CACHE_EXCLUDE_GLOBS);
+        // 临时 zip 马上解开：已压缩的图片/apk 不再 deflate
+        filters.putBoolean(MirrorMediaManager.OPT_ZIP_AUTO, true);
+        // 数据库等大文件用多核压，0 = 由 daemon 按核数决定
+        filters.putInt(MirrorMediaManager.OPT_ZIP_THREADS, 0);
+        return filters;
+    }
+
+    private static final long PLAN_NO_SPACE = Long.MIN_VALUE;
+
+    // 预扫描：返回预计字节数（-1 表示扫描不可用），空间明显不足时返回 PLAN_NO_SPACE
+    private static long planExport(MirrorMediaManager mgr, String logicalRoot, Bundle filters,
+                                   File workDir, Logger logger) {
+        Bundle scan;
+        try {
+            scan = mgr.scan(logicalRoot, filters);
+        } catch (Exception e) {
+            scan = null;
+        }
+        if (scan == null) {
+            log(logger, "预扫描不可用，按未知大小处理: " + logicalRoot);
+            return -1;
+        }
+        long bytes = scan.getLong(MirrorMediaManager.SCAN_TOTAL_BYTES);
+        long files = scan.getLong(MirrorMediaManager.SCAN_FILE_COUNT);
+        String[] groups = scan.getStringArray(MirrorMediaManager.SCAN_GROUP_NAMES);
+        log(logger, "预扫描: " + files + " 个文件, " + formatSize(bytes)
+                + ", " + (groups != null ? groups.length : 0) + " 个包"
+                + ", 预计 " + (estimateMillis(bytes) / 1000) + "s");
+
+        // 最坏情况（不可压缩）：zip 与解压目录各占一份
+        long need = bytes * 2;
+        long free = workDir.getUsableSpace();
+        if (free < need) {
+            logErr(logger, "空间不足: 需要约 " + formatSize(need) + ", 可用 " + formatSize(free));
+            return PLAN_NO_SPACE;
+        }
+        return bytes;
+    }
+
+    // 粗略吞吐估计（遍历 + 压缩），只用来算 ETA 和等待上限
+    private static final long EXPORT_BYTES_PER_SEC = 20L * 1024 * 1024;
+
+    private static long estimateMillis(long bytes) {
+        return bytes * 1000 / EXPORT_BYTES_PER_SEC;
+    }
+
     private static void copyDirIntoAppFilesViaZip(Context ctx, String logicalRoot, File tmpZip, File destDir, MirrorMediaManager mgr, Logger logger) {
         log(logger, "备份下载: " + tmpZip.getName());
         if (tmpZip.exists()) tmpZip.delete();
 
+        Bundle filters = appDataExportFilters();
+        long expected = planExport(mgr, logicalRoot, filters, ctx.getFilesDir(), logger);
+        if (expected == PLAN_NO_SPACE) return;
+
         try (FileOutputStream fos = new FileOutputStream(tmpZip)) {
-            mgr.streamFolderZip(logicalRoot, fos);
+            mgr.streamFolderZip(logicalRoot, fos, filters);
         } catch (Exception e) {
             logErr(logger, "ZIP 下载失败: " + e);
             return;
         }
         
-        long size = waitForZipStable(tmpZip, 60000, 200);
+        // 等待上限按预扫描结果放大；daemon 边压缩边写，文件完整以结尾的 EOCD 为准
+        long waitMs = Math.max(60000, expected > 0 ? estimateMillis(expected) * 3 : 0);
+        long size = waitForZipStable(tmpZip, waitMs, 200);
         if (size <= 0) {
             logErr(logger, "ZIP 文件无效");
             return;
@@ -223,11 +305,20 @@ public final class MirrorUtil {
 
         boolean allSuccess = true;
         int count = 0;
+        int skipped = 0;
+
+        // daemon 对黑名单包只会读完丢弃；在这里跳过，连本地文件都不打开
+        Set<String> blacklist = blacklistedPackages(mgr, targetBase.startsWith("/data/data"), logger);
 
         for (File pkgDir : packages) {
             if (!pkgDir.isDirectory()) continue;
 
             String pkgName = pkgDir.getName();
+            if (blacklist.contains(pkgName)) {
+                log(logger, "  -> 跳过黑名单包: " + pkgName);
+                skipped++;
+                continue;
+            }
             
             // 构造目标路径
             String targetPath = targetBase.endsWith("/") ? (targetBase + pkgName) : (targetBase + "/" + pkgName);
@@ -248,25 +339,106 @@ public final class MirrorUtil {
                 count++;
             }
         }
-        log(logger, "  -> 已处理包数: " + count);
+        log(logger, "  -> 已处理包数: " + count + ", 跳过: " + skipped);
         return allSuccess;
     }
 
+    // daemon 黑名单缓存：名单编译在 daemon 里，只随系统更新变化，每个进程查一次
+    private static Bundle sBlacklist;
+
+    /**
+     * @param internal true=/data/data 名单，false=/sdcard/Android/data 名单
+     * @return 查询失败时为空集合（不缓存，下次重试）；daemon 仍会兜底跳过
+     */
+    private static synchronized Set<String> blacklistedPackages(MirrorMediaManager mgr, boolean internal, Logger logger) {
+        if (sBlacklist == null) {
+            try {
+                sBlacklist = mgr.getBlacklist();
+            } catch (Exception e) {
+                logErr(logger, "黑名单查询失败: " + e);
+            }
+            if (sBlacklist == null) return Collections.emptySet();
+            log(logger, "黑名单 version=" + Integer.toHexString(sBlacklist.getInt(MirrorMediaManager.BLACKLIST_VERSION)));
+        }
+        String[] pkgs = sBlacklist.getStringArray(internal
+                ? MirrorMediaManager.BLACKLIST_INTERNAL : MirrorMediaManager.BLACKLIST_EXTERNAL);
+        return (pkgs == null) ? Collections.emptySet() : new HashSet<>(Arrays.asList(pkgs));
+    }
+
+    // RAW 检查点间隔：任一条件满足就插一条 'C'（daemon 收到后 syncfs + 写日志，不宜太密）
+    private static final long RAW_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final int RAW_CHECKPOINT_FILES = 1000;
+    // 单个包失败后按检查点续传的次数
+    private static final int RAW_RESUME_ATTEMPTS = 2;
+
     /**
-     * 传输单个包的内容
+     * 传输单个包的内容；中途失败时按 daemon 的检查点续传，只重发尚未落盘的文件
      * @param baseDir 用于计算相对路径的基准目录
      * @param pkgDir  实际要遍历的文件夹
      */
     private static boolean doRawPutSinglePackage(File baseDir, File pkgDir, String targetPath, MirrorMediaManager mgr, Logger logger) {
+        StreamContext sCtx = new StreamContext();
+        boolean ok = doRawPutOnce(baseDir, pkgDir, targetPath, mgr, logger, sCtx, false);
+
+        for (int attempt = 0; !ok && attempt < RAW_RESUME_ATTEMPTS; attempt++) {
+            final boolean mismatch = sCtx.checkpointMismatch;
+            sCtx = new StreamContext();
+            if (mismatch) {
+                // 本地目录在两次传输之间变了，检查点不再可信，从头来
+                log(logger, "  -> 检查点与本地文件不一致，重新完整传输");
+                ok = doRawPutOnce(baseDir, pkgDir, targetPath, mgr, logger, sCtx, false);
+                continue;
+            }
+            Bundle ck = null;
+            try {
+                ck = mgr.getRawCheckpoint(targetPath);
+            } catch (Exception e) {
+                logErr(logger, "检查点查询失败: " + e);
+            }
+            if (ck == null || ck.getLong(MirrorMediaManager.RAW_CHECKPOINT_FILES) <= 0) {
+                log(logger, "  -> 无可用检查点，重新完整传输");
+                ok = doRawPutOnce(baseDir, pkgDir, targetPath, mgr, logger, sCtx, false);
+                continue;
+            }
+            sCtx.skipFiles = ck.getLong(MirrorMediaManager.RAW_CHECKPOINT_FILES);
+            sCtx.skipPath = ck.getString(MirrorMediaManager.RAW_CHECKPOINT_PATH);
+            log(logger, "  -> 从检查点续传: 已落盘 " + sCtx.skipFiles + " 个文件 / "
+                    + formatSize(ck.getLong(MirrorMediaManager.RAW_CHECKPOINT_BYTES)));
+            ok = doRawPutOnce(baseDir, pkgDir, targetPath, mgr, logger, sCtx, true);
+        }
+        return ok;
+    }
+
+    // daemon 接受的 RAW 流格式；查不到（旧 daemon 不认识 CAPS）时按只支持 MM01 缓存
+    private static Set<String> sRawFormats;
+
+    private static synchronized boolean rawFormatSupported(MirrorMediaManager mgr, String format, Logger logger) {
+        if (sRawFormats == null) {
+            String[] formats = null;
+            try {
+                Bundle caps = mgr.getCapabilities();
+                if (caps != null) formats = caps.getStringArray(MirrorMediaManager.CAPS_RAW_FORMATS);
+            } catch (Exception e) {
+                logErr(logger, "能力查询失败: " + e);
+            }
+            sRawFormats = formats != null ? new HashSet<>(Arrays.asList(formats))
+                    : Collections.singleton(MirrorMediaManager.RAW_FORMAT_MM01);
+            log(logger, "RAW 格式: " + sRawFormats);
+        }
+        return sRawFormats.contains(format);
+    }
+
+    private static boolean doRawPutOnce(File baseDir, File pkgDir, String targetPath, MirrorMediaManager mgr,
+                                        Logger logger, StreamContext sCtx, boolean resume) {
+        sCtx.mm02 = rawFormatSupported(mgr, MirrorMediaManager.RAW_FORMAT_MM02, logger);
+        sCtx.pack = rawFormatSupported(mgr, MirrorMediaManager.RAW_FORMAT_PACK, logger);
         PipedOutputStream pos = new PipedOutputStream();
         try (PipedInputStream pis = new PipedInputStream(pos, 256 * 1024)) {
             new Thread(() -> {
                 try (DataOutputStream dos = new DataOutputStream(pos)) {
-                    dos.write(new byte[]{'M', 'M', '0', '1'});
-                    
-                    StreamContext sCtx = new StreamContext();
+                    dos.write(new byte[]{'M', 'M', '0', (byte) (sCtx.mm02 ? '2' : '1')});
                     
-                    File[] children = pkgLocalDirChildren(pkgDir); // 辅助方法防空指针
+                    File[] children = sortedChildren(pkgDir); // 续传要求两次遍历顺序一致
                     if (children != null) {
                         for (File child : children) {
                             // 递归传输
@@ -276,7 +448,8 @@ public final class MirrorUtil {
                         log(logger, "  [警告] 本地包目录为空: " + pkgDir.getName());
                     }
                     
-                    writeEndRecord(dos);
+                    flushPack(dos, sCtx);
+                    writeEndRecord(dos, sCtx);
                     dos.flush();
                 } catch (IOException e) { 
                     logErr(logger, "RAW生产异常: " + e.getMessage()); 
@@ -285,13 +458,19 @@ public final class MirrorUtil {
                 }
             }, "mm-pkg-producer").start();
 
-            return mgr.restoreFromRaw(targetPath, pis);
+            return resume ? mgr.resumeFromRaw(targetPath, pis) : mgr.restoreFromRaw(targetPath, pis);
         } catch (Exception e) {
             logErr(logger, "RAW Put 异常: " + e);
             return false;
         }
     }
     
+    private static File[] sortedChildren(File f) {
+        File[] fs = pkgLocalDirChildren(f);
+        if (fs != null) Arrays.sort(fs);
+        return fs;
+    }
+
     private static File[] pkgLocalDirChildren(File f) {
         if (f == null) return null;
         return f.listFiles();
@@ -316,14 +495,23 @@ public final class MirrorUtil {
         dir.mkdirs();
         File dest = new File(dir, "mmssms.db");
         log(logger, "备份 SMS DB -> " + dest.getPath());
-        boolean ok = mgr.backupSmsDb(dest);
-        if(ok) log(logger,"SMS DB 备份成功"); else logErr(logger,"SMS DB 备份失败");
-        return ok;
+        Bundle r = mgr.backupSmsDb(dest);
+        if (r == null) { logErr(logger,"SMS DB 备份失败"); return false; }
+        log(logger,"SMS DB 备份成功: " + r.getInt(MirrorMediaManager.SMS_DB_PAGES) + " 页 / "
+                + formatSize(r.getLong(MirrorMediaManager.SMS_DB_BYTES)));
+        return true;
     }
-    private static boolean restoreSmsRawDb(Context ctx, MirrorMediaManager mgr, Logger logger) {
+    private static boolean restoreSmsRawDb(Context ctx, MirrorMediaManager mgr, boolean mmsSeparately, Logger logger) {
         File src = new File(ctx.getFilesDir(), "sms_raw_db/mmssms.db");
         if(!src.exists()){ logErr(logger,"备份不存在"); return false; }
-        log(logger,"还原 SMS DB");
+        log(logger,"还原 SMS DB（provider 热恢复）");
+        Bundle opts = new Bundle();
+        opts.putBoolean(MirrorMediaManager.OPT_SMS_ONLY, mmsSeparately);
+        if (mgr.restoreSmsDbLive(src, opts)) return true;
+        // 彩信随后由 PIM_MMS 清空重导，整库替换只会白白重启电话进程，这里直接报失败
+        if (mmsSeparately) { logErr(logger,"热恢复失败（彩信另行恢复，不做整库替换）"); return false; }
+        // 热恢复失败时退回整库替换，需要重启电话进程
+        logErr(logger,"热恢复失败，改为整库替换");
         return mgr.restoreSmsDb(src);
     }
     private static void backupPimToFolder(Context ctx, MirrorMediaManager mgr, int types, String folderName, Logger logger) {
@@ -331,7 +519,8 @@ public final class MirrorUtil {
         File tmpZip = new File(ctx.getFilesDir(), folderName+"_tmp.zip");
         if(destDir.exists()) deleteRecursive(destDir); destDir.mkdirs();
         if(tmpZip.exists()) tmpZip.delete();
-        try(FileOutputStream fos=new FileOutputStream(tmpZip)){ mgr.backupPersonalData(types,fos.getFD(),new Bundle()); }
+        Bundle opts=new Bundle(); opts.putBoolean(MirrorMediaManager.OPT_ZIP_AUTO,true);
+        try(FileOutputStream fos=new FileOutputStream(tmpZip)){ mgr.backupPersonalData(types,fos.getFD(),opts); }
         catch(Exception e){logErr(logger,"PIM备份失败: "+e);return;}
         waitForZipStable(tmpZip,60000,200);
         try{ unzipToDir(tmpZip, destDir); log(logger,"PIM备份成功"); } // Restore standard unzip
@@ -354,6 +543,231 @@ public final class MirrorUtil {
         finally{tmpZip.delete();}
     }
 
+    // =========================================================
+    //  MM01 Inspection & Container Benchmark
+    // =========================================================
+
+    /** 一条 MM01/MM02 流的统计；wireBytes 是 'F' payload 在流里实际占的字节（zstd 含分块长度字段）。 */
+    public static final class RawStats {
+        public int version;       // 1 = MM01，2 = MM02
+        public long dirs, files, zstdFiles, checkpoints, packs;
+        public long pathBytes;    // 路径在流里实际占的字节（MM02 只计后缀）
+        public long rawBytes, wireBytes, streamBytes;
+        public boolean ended;     // 读到了 'E'
+        public boolean digestOk;  // 'E' 摘要与各 'F' 一致
+    }
+
+    // daemon 的 kRawModeZstd；解码窗口上限同 daemon 的 kRawZstdLongWindowLog
+    private static final int RAW_MODE_ZSTD = 0x40000000;
+    private static final long RAW_ZSTD_MAX_WINDOW = 1L << 27;
+
+    /**
+     * 只读地走一遍 MM01/MM02 流（不落盘）。明文和 zstd payload 都按原始数据校验 CRC32 和全流摘要，
+     * zstd 由 ZstdInputStream 在内存里解码。
+     */
+    public static RawStats inspectRaw(InputStream is) throws IOException {
+        CountingInputStream cin = new CountingInputStream(is);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(cin, 256 * 1024));
+        RawStats st = new RawStats();
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (magic[0] != 'M' || magic[1] != 'M' || magic[2] != '0' || (magic[3] != '1' && magic[3] != '2')) throw new IOException("bad MM01/MM02 magic");
+        st.version = magic[3] - '0';
+        byte[] prev = new byte[0];
+        CRC32 streamCrc = new CRC32();
+        byte[] b = new byte[64 * 1024];
+        while (true) {
+            int tag = in.read();
+            if (tag < 0) break;
+            int shared = st.version == 2 ? rd16(in) : 0;
+            int pathLen = rd16(in); int mode = rd32(in); long mtime = rd64(in); long size = rd64(in);
+            if (shared > prev.length) throw new IOException("bad MM02 path prefix " + shared);
+            byte[] p = Arrays.copyOf(prev, shared + pathLen); in.readFully(p, shared, pathLen);
+            st.pathBytes += pathLen;
+            if (st.version == 2) prev = p;
+            if (tag == 'E') {
+                st.ended = true;
+                st.digestOk = (mode & RAW_MODE_CRC32) == 0
+                        || (mtime == st.rawBytes && (int) size == (int) streamCrc.getValue());
+                break;
+            }
+            if (tag == 'D') { st.dirs++; continue; }
+            if (tag == 'C') { st.checkpoints++; continue; }
+            if (tag == 'P') { inspectPack(in, st, new String(p, StandardCharsets.UTF_8), mode, mtime, size, streamCrc); continue; }
+            if (tag != 'F') throw new IOException("unknown MM01 tag " + tag);
+            String rel = new String(p, StandardCharsets.UTF_8);
+            st.files++;
+            st.rawBytes += size;
+            CRC32 crc = new CRC32();
+            if ((mode & RAW_MODE_ZSTD) != 0) {
+                st.zstdFiles++;
+                RawChunkInputStream cs = new RawChunkInputStream(in, rel);
+                ZstdInputStream z = new ZstdInputStream(cs, RAW_ZSTD_MAX_WINDOW);
+                long got = 0;
+                int n;
+                while ((n = z.read(b, 0, b.length)) > 0) {
+                    got += n;
+                    if (got > size) throw new IOException("zstd payload larger than " + size + ": " + rel);
+                    crc.update(b, 0, n); streamCrc.update(b, 0, n);
+                }
+                if (got != size) throw new IOException("zstd payload " + got + " != " + size + ": " + rel);
+                cs.finish();
+                st.wireBytes += cs.wire;
+            } else {
+                for (long left = size; left > 0; ) {
+                    int n = (int) Math.min(b.length, left);
+                    in.readFully(b, 0, n); crc.update(b, 0, n); streamCrc.update(b, 0, n); left -= n;
+                }
+                st.wireBytes += size;
+            }
+            if ((mode & RAW_MODE_CRC32) != 0 && rd32(in) != (int) crc.getValue()) throw new IOException("crc mismatch: " + rel);
+        }
+        st.streamBytes = cin.count;
+        return st;
+    }
+
+    /** 'P'：校验两个 CRC 并核对 index 里的文件大小之和；zstd 包先整体解码（index + data <= 约 390K）。 */
+    private static void inspectPack(DataInputStream in, RawStats st, String dir, int mode, long indexLen, long size,
+                                    CRC32 streamCrc) throws IOException {
+        int count = mode & 0xffff;
+        if (count == 0 || count > RAW_PACK_MAX_COUNT || size > RAW_PACK_MAX_DATA || indexLen > RAW_PACK_MAX_COUNT * (12 + 255)) {
+            throw new IOException("bad pack header in " + dir);
+        }
+        st.packs++;
+        st.files += count;
+        st.rawBytes += size;
+        byte[] index = new byte[(int) indexLen];
+        byte[] data = new byte[(int) size];
+        if ((mode & RAW_MODE_ZSTD) != 0) {
+            st.zstdFiles += count;
+            RawChunkInputStream cs = new RawChunkInputStream(in, "pack " + dir);
+            DataInputStream z = new DataInputStream(new ZstdInputStream(cs, RAW_ZSTD_MAX_WINDOW));
+            z.readFully(index);
+            z.readFully(data);
+            if (z.read() >= 0) throw new IOException("zstd pack larger than " + (indexLen + size) + ": " + dir);
+            cs.finish();
+            st.wireBytes += cs.wire;
+        } else {
+            in.readFully(index);
+            in.readFully(data);
+            st.wireBytes += indexLen + size;
+        }
+        long sum = 0;
+        for (int i = 0, pos = 0; i < count; i++) {
+            if (pos + 12 > index.length) throw new IOException("short pack index in " + dir);
+            int nameLen = (int) rdLe(index, pos, 2);
+            sum += rdLe(index, pos + 8, 4);
+            pos += 12 + nameLen;
+            if (pos > index.length || (i == count - 1 && pos != index.length)) throw new IOException("bad pack index in " + dir);
+        }
+        if (sum != size) throw new IOException("pack sizes " + sum + " != " + size + ": " + dir);
+        CRC32 ic = new CRC32(); ic.update(index);
+        CRC32 dc = new CRC32(); dc.update(data);
+        streamCrc.update(data);
+        if ((mode & RAW_MODE_CRC32) != 0 && (rd32(in) != (int) ic.getValue() | rd32(in) != (int) dc.getValue())) {
+            throw new IOException("pack crc mismatch: " + dir);
+        }
+    }
+
+    /** zstd payload 的分块 [u32 len][len 字节]...[u32 0] 接成连续的压缩流；wire 是分块在流里占的字节。 */
+    private static final class RawChunkInputStream extends InputStream {
+        private final DataInputStream in;
+        private final String what;
+        private int left;
+        private boolean end;
+        long wire;
+        RawChunkInputStream(DataInputStream in, String what) { this.in = in; this.what = what; }
+        @Override public int read() throws IOException { byte[] one = new byte[1]; return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff; }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            while (left == 0) {
+                if (end) return -1;
+                int clen = rd32(in);
+                wire += 4;
+                if (clen == 0) { end = true; return -1; }
+                if (clen < 0 || clen > 1024 * 1024) throw new IOException("bad zstd chunk in " + what);
+                left = clen;
+                wire += clen;
+            }
+            int n = in.read(b, off, Math.min(len, left));
+            if (n < 0) throw new EOFException("truncated zstd chunk in " + what);
+            left -= n;
+            return n;
+        }
+        /** 帧解完后读到结束标记；中间还剩压缩数据说明 payload 损坏。 */
+        void finish() throws IOException { if (read() >= 0) throw new IOException("zstd trailing data in " + what); }
+    }
+
+    /**
+     * 在真实的 /data/data/<pkg> 上对比导出格式：产出字节数、耗时、按原始字节计的吞吐。
+     * 数据只经过内存、不落盘；RAW 变体顺带用 inspectRaw 解码并校验 CRC。
+     * 只测导出侧，解码速度要在还原时看（daemon 日志里的 restore_tree_from_fd / UNZIP 耗时）。
+     */
+    public static void benchmarkAppData(MirrorMediaManager mgr, String pkg, Logger logger) {
+        String path = "/data/data/" + pkg;
+        long raw = -1;
+        try { Bundle s = mgr.scan(path, null); if (s != null) raw = s.getLong(MirrorMediaManager.SCAN_TOTAL_BYTES); } catch (Exception ignored) {}
+        log(logger, "=== 导出格式对比: " + path + " (" + (raw < 0 ? "大小未知" : formatSize(raw)) + ") ===");
+        Bundle zipAuto = new Bundle(); zipAuto.putBoolean(MirrorMediaManager.OPT_ZIP_AUTO, true);
+        benchOne(mgr, path, "ZIP", true, null, raw, logger);
+        benchOne(mgr, path, "ZIP auto", true, zipAuto, raw, logger);
+        benchOne(mgr, path, "MM01", false, null, raw, logger);
+        for (int level : new int[]{1, 3, 9}) benchOne(mgr, path, "MM01+zstd" + level, false, zstdOpts(level, false), raw, logger);
+        benchOne(mgr, path, "MM01+zstd3 long", false, zstdOpts(3, true), raw, logger);
+        Bundle pack = new Bundle(); pack.putBoolean(MirrorMediaManager.OPT_RAW_PACK, true);
+        benchOne(mgr, path, "MM01 pack", false, pack, raw, logger);
+        Bundle zstdPack = zstdOpts(3, false); zstdPack.putBoolean(MirrorMediaManager.OPT_RAW_PACK, true);
+        benchOne(mgr, path, "MM01+zstd3 pack", false, zstdPack, raw, logger);
+        log(logger, "=== 对比结束 ===");
+    }
+
+    private static Bundle zstdOpts(int level, boolean longMatch) {
+        Bundle b = new Bundle();
+        b.putInt(MirrorMediaManager.OPT_RAW_ZSTD_LEVEL, level);
+        b.putBoolean(MirrorMediaManager.OPT_RAW_ZSTD_LONG, longMatch);
+        return b;
+    }
+
+    private static void benchOne(MirrorMediaManager mgr, String path, String label, boolean zip, Bundle opts, long raw, Logger logger) {
+        ParcelFileDescriptor[] pipe = null;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+            long t0 = SystemClock.elapsedRealtime();
+            if (zip) mgr.streamFolderZip(path, pipe[1].getFileDescriptor(), opts);
+            else mgr.streamFolderRaw(path, pipe[1].getFileDescriptor(), opts);
+            pipe[1].close(); // 只剩 daemon 持有写端，读到 EOF 即导出结束
+            long out; String extra = "";
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])) {
+                if (zip) {
+                    CountingInputStream c = new CountingInputStream(in);
+                    byte[] b = new byte[256 * 1024];
+                    while (c.read(b) >= 0) {}
+                    out = c.count;
+                } else {
+                    RawStats st = inspectRaw(in);
+                    out = st.streamBytes;
+                    if (raw < 0) raw = st.rawBytes;
+                    extra = "  files=" + st.files + " zstd=" + st.zstdFiles + " packs=" + st.packs
+                            + (st.ended && st.digestOk ? "" : "  [流不完整]");
+                }
+            }
+            long ms = Math.max(1, SystemClock.elapsedRealtime() - t0);
+            log(logger, String.format(Locale.US, "  %-16s %10s  ratio %5.1f%%  %6d ms  %7.1f MB/s%s",
+                    label, formatSize(out), raw > 0 ? out * 100.0 / raw : 0, ms,
+                    raw > 0 ? raw / 1048576.0 * 1000 / ms : 0, extra));
+        } catch (Exception e) {
+            logErr(logger, "  " + label + " 失败: " + e);
+            if (pipe != null) { try { pipe[1].close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private static final class CountingInputStream extends java.io.FilterInputStream {
+        long count;
+        CountingInputStream(InputStream in) { super(in); }
+        @Override public int read() throws IOException { int r = super.read(); if (r >= 0) count++; return r; }
+        @Override public int read(byte[] b, int off, int len) throws IOException { int n = super.read(b, off, len); if (n > 0) count += n; return n; }
+        @Override public long skip(long n) throws IOException { long s = super.skip(n); count += s; return s; }
+    }
+
     // =========================================================
     //  Utils
     // =========================================================
@@ -386,6 +800,26 @@ public final class MirrorUtil {
         long totalBytes = 0;
         int fileCount = 0;
         long lastLogTime = 0;
+        // 检查点：ordinal/streamBytes 是从流开头算的 'F' 数和字节数，续传跳过的文件也计入
+        long ordinal = 0;
+        long streamBytes = 0;
+        long lastCheckpointOrdinal = 0;
+        long lastCheckpointBytes = 0;
+        long skipFiles = 0;
+        String skipPath;
+        boolean checkpointMismatch = false;
+        // 全流摘要：本流实际发送的 'F' payload 依次拼接的 CRC32（写进 'E'）
+        final CRC32 streamCrc = new CRC32();
+        long digestBytes = 0;
+        // 尚未写出的 'P'：同一目录下连续的小文件；daemon 不认 'P' 时 pack=false，全部走 'F'
+        boolean pack;
+        String packDir;
+        final ByteArrayOutputStream packIndex = new ByteArrayOutputStream();
+        final ByteArrayOutputStream packData = new ByteArrayOutputStream();
+        int packCount = 0;
+        // MM02：路径按上一条记录的路径做前缀压缩
+        boolean mm02;
+        byte[] prevPath = new byte[0];
     }
 
     private static void streamFolderAsRaw(File base, File f, DataOutputStream d, Logger logger, StreamContext sCtx) throws IOException {
@@ -394,11 +828,25 @@ public final class MirrorUtil {
 
         if (f.isDirectory()) {
             String r = relPath(base, f);
-            if (!r.isEmpty()) writeDirRecord(d, r);
-            File[] fs = f.listFiles();
+            // 包只收连续的文件，保证流里的文件顺序与遍历顺序（续传跳过的顺序）一致
+            flushPack(d, sCtx);
+            if (!r.isEmpty()) writeDirRecord(d, r, sCtx);
+            File[] fs = sortedChildren(f);
             if (fs != null) for (File c : fs) streamFolderAsRaw(base, c, d, logger, sCtx);
         } else if (f.isFile()) {
             String rel = relPath(base, f);
+            sCtx.ordinal++;
+            if (sCtx.ordinal <= sCtx.skipFiles) {
+                // 已落盘，不重发；最后一个必须与 daemon 记录的路径一致
+                if (sCtx.ordinal == sCtx.skipFiles && !rel.equals(sCtx.skipPath)) {
+                    sCtx.checkpointMismatch = true;
+                    throw new IOException("checkpoint mismatch at #" + sCtx.ordinal + ": " + rel);
+                }
+                sCtx.streamBytes += f.length();
+                sCtx.lastCheckpointOrdinal = sCtx.ordinal;
+                sCtx.lastCheckpointBytes = sCtx.streamBytes;
+                return;
+            }
             sCtx.fileCount++;
             sCtx.totalBytes += f.length();
             long now = System.currentTimeMillis();
@@ -406,7 +854,21 @@ public final class MirrorUtil {
                 log(logger, "    ... " + rel + " (" + formatSize(sCtx.totalBytes) + ")");
                 sCtx.lastLogTime = now;
             }
-            writeFileRecord(d, rel, f);
+            long len = f.length();
+            if (sCtx.pack && len <= RAW_PACK_MAX_FILE) {
+                addToPack(d, rel, f, len, sCtx);
+            } else {
+                flushPack(d, sCtx);
+                writeFileRecord(d, rel, f, sCtx);
+            }
+            sCtx.streamBytes += len;
+            if (sCtx.streamBytes - sCtx.lastCheckpointBytes >= RAW_CHECKPOINT_BYTES
+                    || sCtx.ordinal - sCtx.lastCheckpointOrdinal >= RAW_CHECKPOINT_FILES) {
+                flushPack(d, sCtx); // 'C' 不能落在包中间
+                writeCheckpointRecord(d, rel, sCtx.ordinal, sCtx.streamBytes, sCtx);
+                sCtx.lastCheckpointOrdinal = sCtx.ordinal;
+                sCtx.lastCheckpointBytes = sCtx.streamBytes;
+            }
         }
     }
     
@@ -431,13 +893,22 @@ public final class MirrorUtil {
         long s=System.currentTimeMillis();long l=-1;int c=0;
         while(System.currentTimeMillis()-s<t){
             long len=f.length();
-            if(len>0&&len==l){if(++c>=3)break;}else{c=0;l=len;}
+            // 流式导出时遍历中途可能短暂停顿，长度不变不代表写完，还要看到结尾记录
+            if(len>0&&len==l){if(++c>=3&&hasZipEnd(f))break;}else{c=0;l=len;}
             try{Thread.sleep(i);}catch(Exception e){break;}
         }
         return f.length();
     }
+    /** 最后 22 字节是无注释的 End of Central Directory 记录（PK\5\6）。 */
+    private static boolean hasZipEnd(File f) {
+        try(RandomAccessFile r=new RandomAccessFile(f,"r")){
+            if(r.length()<22)return false; r.seek(r.length()-22);
+            return r.read()=='P'&&r.read()=='K'&&r.read()==5&&r.read()==6;
+        }catch(IOException e){return false;}
+    }
     private static void zipDirToFile(File s, File d) throws IOException {
-        try(ZipOutputStream z=new ZipOutputStream(new FileOutputStream(d))){ addFileToZip(z,s,s.getCanonicalPath()); }
+        // 只是交给 restore 的中转包，存储即可
+        try(ZipOutputStream z=new ZipOutputStream(new FileOutputStream(d))){ z.setLevel(Deflater.NO_COMPRESSION); addFileToZip(z,s,s.getCanonicalPath()); }
     }
     private static void addFileToZip(ZipOutputStream z, File f, String b) throws IOException {
         String p=f.getCanonicalPath(); String r=p.substring(b.length()+(p.equals(b)?0:1)).replace("\\","/");
@@ -453,15 +924,89 @@ public final class MirrorUtil {
         if(!fp.startsWith(bp))return"";String r=fp.substring(bp.length());
         return(r.startsWith(File.separator)?r.substring(1):r).replace(File.separatorChar,'/');
     }
-    private static void writeDirRecord(DataOutputStream d, String r) throws IOException {
-        d.writeByte('D');le16(d,r.length());le32(d,0700);le64(d,0);le64(d,0);d.write(r.getBytes(StandardCharsets.UTF_8));
-    }
-    private static void writeFileRecord(DataOutputStream d, String r, File f) throws IOException {
-        d.writeByte('F');le16(d,r.length());le32(d,0600);le64(d,f.lastModified()/1000);le64(d,f.length());
-        d.write(r.getBytes(StandardCharsets.UTF_8));
-        try(FileInputStream i=new FileInputStream(f)){byte[] b=new byte[8192];int n;while((n=i.read(b))>0)d.write(b,0,n);}
-    }
-    private static void writeEndRecord(DataOutputStream d) throws IOException { d.writeByte('E');le16(d,0);le32(d,0);le64(d,0);le64(d,0); }
+    /** 记录头 + 路径（UTF-8 字节数）；MM02 时路径写成与上一条路径的公共前缀长度 + 后缀。 */
+    private static void writeRecordHeader(DataOutputStream d, StreamContext sCtx, int tag, byte[] p, int mode, long mtime, long size) throws IOException {
+        d.writeByte(tag);
+        int shared = 0;
+        if (sCtx.mm02) {
+            int max = Math.min(p.length, sCtx.prevPath.length);
+            while (shared < max && p[shared] == sCtx.prevPath[shared]) shared++;
+            le16(d, shared);
+            sCtx.prevPath = p;
+        }
+        le16(d,p.length-shared);le32(d,mode);le64(d,mtime);le64(d,size);d.write(p,shared,p.length-shared);
+    }
+    private static void writeDirRecord(DataOutputStream d, String r, StreamContext sCtx) throws IOException {
+        writeRecordHeader(d,sCtx,'D',r.getBytes(StandardCharsets.UTF_8),0700,0,0);
+    }
+    // MM01 mode 最高位：'F' 的 payload 后跟 u32 CRC32，'E' 带全流摘要（与 daemon 的 kRawModeCrc32 一致）
+    private static final int RAW_MODE_CRC32 = 0x80000000;
+
+    private static void writeFileRecord(DataOutputStream d, String r, File f, StreamContext sCtx) throws IOException {
+        long len=f.length();
+        writeRecordHeader(d,sCtx,'F',r.getBytes(StandardCharsets.UTF_8),0600|RAW_MODE_CRC32,f.lastModified()/1000,len);
+        // 头里已声明长度：只发这么多字节；文件中途变短则流无法自洽，直接中止
+        CRC32 crc=new CRC32();
+        try(FileInputStream i=new FileInputStream(f)){
+            byte[] b=new byte[64*1024];long left=len;
+            while(left>0){
+                int n=i.read(b,0,(int)Math.min(b.length,left));
+                if(n<0)throw new IOException("file shrank while streaming: "+r);
+                crc.update(b,0,n);sCtx.streamCrc.update(b,0,n);d.write(b,0,n);left-=n;
+            }
+        }
+        le32(d,(int)crc.getValue());
+        sCtx.digestBytes+=len;
+    }
+    // 'P' 小文件包的上限，与 daemon 的 kRawPack* 一致
+    private static final int RAW_PACK_MAX_FILE = 4096;
+    private static final int RAW_PACK_MAX_DATA = 256 * 1024;
+    private static final int RAW_PACK_MAX_COUNT = 512;
+
+    private static void addToPack(DataOutputStream d, String r, File f, long len, StreamContext sCtx) throws IOException {
+        int slash = r.lastIndexOf('/');
+        String dir = slash < 0 ? "" : r.substring(0, slash);
+        byte[] name = r.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+        if (sCtx.packCount > 0 && (!dir.equals(sCtx.packDir) || sCtx.packCount >= RAW_PACK_MAX_COUNT
+                || sCtx.packData.size() + len > RAW_PACK_MAX_DATA)) {
+            flushPack(d, sCtx);
+        }
+        sCtx.packDir = dir;
+        // 读到多少算多少：大小写在 index 里，文件中途变化不影响流的自洽
+        byte[] b = new byte[(int) len];
+        int n = 0;
+        try (FileInputStream i = new FileInputStream(f)) {
+            int k;
+            while (n < b.length && (k = i.read(b, n, b.length - n)) > 0) n += k;
+        }
+        le16(sCtx.packIndex, name.length); le16(sCtx.packIndex, 0600);
+        le32(sCtx.packIndex, (int) (f.lastModified() / 1000)); le32(sCtx.packIndex, n);
+        sCtx.packIndex.write(name);
+        sCtx.packData.write(b, 0, n);
+        sCtx.packCount++;
+    }
+    private static void flushPack(DataOutputStream d, StreamContext sCtx) throws IOException {
+        if (sCtx.packCount == 0) return;
+        byte[] index = sCtx.packIndex.toByteArray(), data = sCtx.packData.toByteArray();
+        writeRecordHeader(d,sCtx,'P',sCtx.packDir.getBytes(StandardCharsets.UTF_8),RAW_MODE_CRC32|sCtx.packCount,index.length,data.length);
+        d.write(index); d.write(data);
+        CRC32 ic = new CRC32(); ic.update(index);
+        CRC32 dc = new CRC32(); dc.update(data);
+        le32(d,(int)ic.getValue()); le32(d,(int)dc.getValue());
+        sCtx.streamCrc.update(data);
+        sCtx.digestBytes += data.length;
+        sCtx.packIndex.reset(); sCtx.packData.reset(); sCtx.packCount = 0;
+    }
+    private static void writeCheckpointRecord(DataOutputStream d, String r, long files, long bytes, StreamContext sCtx) throws IOException {
+        writeRecordHeader(d,sCtx,'C',r.getBytes(StandardCharsets.UTF_8),0,files,bytes);
+    }
+    private static void writeEndRecord(DataOutputStream d, StreamContext sCtx) throws IOException {
+        writeRecordHeader(d,sCtx,'E',new byte[0],RAW_MODE_CRC32,sCtx.digestBytes,sCtx.streamCrc.getValue());
+    }
+    private static int rd16(DataInputStream i)throws IOException{int a=i.readUnsignedByte();return a|(i.readUnsignedByte()<<8);}
+    private static int rd32(DataInputStream i)throws IOException{return rd16(i)|(rd16(i)<<16);}
+    private static long rd64(DataInputStream i)throws IOException{return (rd32(i)&0xffffffffL)|((long)rd32(i)<<32);}
+    private static long rdLe(byte[] b,int off,int n){long v=0;for(int k=n-1;k>=0;k--)v=(v<<8)|(b[off+k]&0xff);return v;}
     private static void le16(OutputStream o,int v)throws IOException{o.write(v&0xff);o.write((v>>>8)&0xff);}
     private static void le32(OutputStream o,int v)throws IOException{le16(o,v);le16(o,v>>>16);}
     private static void le64(OutputStream o,long v)throws IOException{le32(o,(int)v);le32(o,(int)(v>>>32));}
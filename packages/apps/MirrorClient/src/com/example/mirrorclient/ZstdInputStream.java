@@ -0,0 +1,677 @@
+package com.example.mirrorclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 纯 Java 的 zstd 单帧解码（RFC 8878），给 MirrorUtil.inspectRaw 在本地核对 zstd payload 的 CRC 用。
+ * 只解一个帧：读到帧尾（含可选的 Content_Checksum，不校验，外层有 CRC32）后返回 -1，帧后面的字节不读。
+ * 不支持字典；窗口超过 maxWindow 的帧直接拒绝，解码内存约为 min(窗口, 原始长度) + 128K。
+ */
+final class ZstdInputStream extends InputStream {
+    private static final int MAGIC = 0xFD2FB528;
+    private static final int BLOCK_MAX = 128 * 1024;
+    private static final int HUF_MAX_BITS = 11;
+
+    private static final int LL_MAX = 35, ML_MAX = 52, OF_MAX = 31;
+    private static final int[] LL_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            16, 18, 20, 22, 24, 28, 32, 40, 48, 64, 128, 256, 512, 1024, 2048, 4096,
+            8192, 16384, 32768, 65536};
+    private static final int[] LL_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 6, 7, 8, 9, 10, 11, 12,
+            13, 14, 15, 16};
+    private static final int[] ML_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+            19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34,
+            35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515, 1027, 2051,
+            4099, 8195, 16387, 32771, 65539};
+    private static final int[] ML_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11,
+            12, 13, 14, 15, 16};
+
+    // 预定义分布（RFC 8878 3.1.1.3.2.2）
+    private static final FseTable LL_DEFAULT = FseTable.build(new short[]{
+            4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1,
+            -1, -1, -1, -1}, 36, 6);
+    private static final FseTable ML_DEFAULT = FseTable.build(new short[]{
+            1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1,
+            -1, -1, -1, -1, -1}, 53, 6);
+    private static final FseTable OF_DEFAULT = FseTable.build(new short[]{
+            1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1}, 29, 5);
+
+    private final InputStream in;
+    private final long maxWindow;
+
+    // 帧状态
+    private boolean started, lastBlock, finished, checksum;
+    private long contentSize = -1;
+    private long windowSize;
+    // 环形窗口：匹配从这里回拷；total 是已解码字节数，[emitted, total) 还没交给调用方
+    private byte[] ring;
+    private int wr;
+    private long total, emitted;
+
+    // 块内状态；Huffman 表、FSE 表和重复偏移在同一帧的块之间沿用
+    private final byte[] block = new byte[BLOCK_MAX];
+    private final byte[] literals = new byte[BLOCK_MAX];
+    private int litLen;
+    private byte[] hufSym;
+    private byte[] hufBits;
+    private int hufMaxBits;
+    private FseTable llTable, ofTable, mlTable;
+    private long rep1 = 1, rep2 = 4, rep3 = 8;
+
+    ZstdInputStream(InputStream in, long maxWindow) {
+        this.in = in;
+        this.maxWindow = maxWindow;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (emitted == total) {
+            if (finished) return -1;
+            try {
+                step();
+            } catch (IndexOutOfBoundsException e) {
+                // 损坏的表/状态越界，按格式错误报
+                throw corrupt("index out of range");
+            }
+        }
+        int idx = (int) (emitted % ring.length);
+        int n = (int) Math.min(len, Math.min(total - emitted, ring.length - idx));
+        System.arraycopy(ring, idx, b, off, n);
+        emitted += n;
+        return n;
+    }
+
+    private void step() throws IOException {
+        if (!started) {
+            readFrameHeader();
+            started = true;
+        } else if (lastBlock) {
+            if (checksum) readFully(block, 0, 4);
+            if (contentSize >= 0 && total != contentSize) {
+                throw corrupt("content size " + total + " != " + contentSize);
+            }
+            finished = true;
+        } else {
+            readBlock();
+        }
+    }
+
+    // ---------- 帧头 ----------
+
+    private void readFrameHeader() throws IOException {
+        readFully(block, 0, 5);
+        if ((int) le(block, 0, 4) != MAGIC) throw new IOException("not a zstd frame");
+        int fhd = block[4] & 0xff;
+        boolean single = (fhd & 0x20) != 0;
+        if ((fhd & 0x08) != 0) throw corrupt("reserved header bit");
+        checksum = (fhd & 0x04) != 0;
+        int dictLen = new int[]{0, 1, 2, 4}[fhd & 3];
+        int fcsFlag = fhd >>> 6;
+        int fcsLen = fcsFlag == 0 ? (single ? 1 : 0) : (1 << fcsFlag);
+        int n = (single ? 0 : 1) + dictLen + fcsLen;
+        readFully(block, 0, n);
+        int p = 0;
+        if (!single) {
+            int wd = block[p++] & 0xff;
+            long base = 1L << (10 + (wd >>> 3));
+            windowSize = base + (base >>> 3) * (wd & 7);
+        }
+        if (dictLen > 0 && le(block, p, dictLen) != 0) throw new IOException("zstd dictionary not supported");
+        p += dictLen;
+        if (fcsLen > 0) {
+            contentSize = le(block, p, fcsLen) + (fcsLen == 2 ? 256 : 0);
+            if (contentSize < 0) throw corrupt("content size");
+        }
+        if (single) windowSize = contentSize;
+        if (windowSize > maxWindow) throw new IOException("zstd window " + windowSize + " > " + maxWindow);
+        long cap = windowSize + BLOCK_MAX;
+        if (contentSize >= 0) cap = Math.min(cap, contentSize);
+        ring = new byte[(int) Math.max(cap, 1)];
+    }
+
+    // ---------- 块 ----------
+
+    private void readBlock() throws IOException {
+        readFully(block, 0, 3);
+        int bh = (int) le(block, 0, 3);
+        lastBlock = (bh & 1) != 0;
+        int type = (bh >>> 1) & 3;
+        int size = bh >>> 3;
+        if (size > BLOCK_MAX) throw corrupt("block size " + size);
+        switch (type) {
+            case 0:
+                readFully(block, 0, size);
+                put(block, 0, size);
+                break;
+            case 1:
+                readFully(block, 0, 1);
+                fill(block[0], size);
+                break;
+            case 2:
+                readFully(block, 0, size);
+                long start = total;
+                decodeCompressed(size);
+                if (total - start > BLOCK_MAX) throw corrupt("block output");
+                break;
+            default:
+                throw corrupt("reserved block type");
+        }
+    }
+
+    private void decodeCompressed(int end) throws IOException {
+        int p = decodeLiterals(end);
+        if (p >= end) throw corrupt("missing sequences section");
+        int b0 = block[p++] & 0xff;
+        int nbSeq;
+        if (b0 < 128) {
+            nbSeq = b0;
+        } else if (b0 < 255) {
+            if (p >= end) throw corrupt("sequence count");
+            nbSeq = ((b0 - 128) << 8) + (block[p++] & 0xff);
+        } else {
+            if (p + 2 > end) throw corrupt("sequence count");
+            nbSeq = (int) le(block, p, 2) + 0x7F00;
+            p += 2;
+        }
+        if (nbSeq == 0) {
+            if (p != end) throw corrupt("trailing bytes after literals");
+            put(literals, 0, litLen);
+            return;
+        }
+        if (p >= end) throw corrupt("missing compression modes");
+        int modes = block[p++] & 0xff;
+        if ((modes & 3) != 0) throw corrupt("reserved compression mode bits");
+        p = selectTable(0, (modes >>> 6) & 3, p, end);
+        p = selectTable(1, (modes >>> 4) & 3, p, end);
+        p = selectTable(2, (modes >>> 2) & 3, p, end);
+
+        final FseTable llT = llTable, ofT = ofTable, mlT = mlTable;
+        BackBits br = new BackBits(block, p, end);
+        int ll = br.read(llT.log);
+        int of = br.read(ofT.log);
+        int ml = br.read(mlT.log);
+        int litPos = 0;
+        for (int i = 0; i < nbSeq; i++) {
+            int ofCode = ofT.sym[of], llCode = llT.sym[ll], mlCode = mlT.sym[ml];
+            long ofValue = (1L << ofCode) + br.readLong(ofCode);
+            int matchLen = ML_BASE[mlCode] + br.read(ML_BITS[mlCode]);
+            int litLenSeq = LL_BASE[llCode] + br.read(LL_BITS[llCode]);
+
+            long offset;
+            if (ofValue > 3) {
+                offset = ofValue - 3;
+                rep3 = rep2;
+                rep2 = rep1;
+                rep1 = offset;
+            } else {
+                int idx = (int) ofValue + (litLenSeq == 0 ? 1 : 0);
+                if (idx == 1) {
+                    offset = rep1;
+                } else {
+                    if (idx == 2) {
+                        offset = rep2;
+                    } else {
+                        offset = idx == 3 ? rep3 : rep1 - 1;
+                        rep3 = rep2;
+                    }
+                    rep2 = rep1;
+                    rep1 = offset;
+                }
+            }
+
+            if (i + 1 < nbSeq) {
+                ll = llT.base[ll] + br.read(llT.bits[ll]);
+                ml = mlT.base[ml] + br.read(mlT.bits[ml]);
+                of = ofT.base[of] + br.read(ofT.bits[of]);
+            }
+
+            if (litLenSeq > litLen - litPos) throw corrupt("literal length");
+            put(literals, litPos, litLenSeq);
+            litPos += litLenSeq;
+            copyMatch(offset, matchLen);
+        }
+        if (br.pos != 0) throw corrupt("sequence bitstream not consumed");
+        put(literals, litPos, litLen - litPos);
+    }
+
+    /** which：0 = literal length，1 = offset，2 = match length。 */
+    private int selectTable(int which, int mode, int p, int end) throws IOException {
+        final int maxSym = which == 0 ? LL_MAX : which == 1 ? OF_MAX : ML_MAX;
+        FseTable t;
+        switch (mode) {
+            case 0:
+                t = which == 0 ? LL_DEFAULT : which == 1 ? OF_DEFAULT : ML_DEFAULT;
+                break;
+            case 1:
+                if (p >= end) throw corrupt("rle table");
+                int sym = block[p++] & 0xff;
+                if (sym > maxSym) throw corrupt("rle symbol " + sym);
+                t = FseTable.rle(sym);
+                break;
+            case 2:
+                t = new FseTable();
+                p += readFseTable(t, block, p, end, maxSym, which == 1 ? 8 : 9);
+                break;
+            default:
+                t = which == 0 ? llTable : which == 1 ? ofTable : mlTable;
+                if (t == null) throw corrupt("repeat table without previous table");
+                break;
+        }
+        if (which == 0) llTable = t; else if (which == 1) ofTable = t; else mlTable = t;
+        return p;
+    }
+
+    // ---------- 字面量 ----------
+
+    private int decodeLiterals(int end) throws IOException {
+        if (end < 1) throw corrupt("empty block");
+        int b0 = block[0] & 0xff;
+        int type = b0 & 3, sf = (b0 >>> 2) & 3;
+        if (type < 2) {
+            int hs, size;
+            if (sf == 1) {
+                hs = 2;
+                size = (int) (le(block, 0, 2) >>> 4);
+            } else if (sf == 3) {
+                hs = 3;
+                size = (int) (le(block, 0, 3) >>> 4);
+            } else {
+                hs = 1;
+                size = b0 >>> 3;
+            }
+            if (size > BLOCK_MAX) throw corrupt("literals size");
+            litLen = size;
+            if (type == 0) {
+                if (hs + size > end) throw corrupt("raw literals");
+                System.arraycopy(block, hs, literals, 0, size);
+                return hs + size;
+            }
+            if (hs + 1 > end) throw corrupt("rle literals");
+            java.util.Arrays.fill(literals, 0, size, block[hs]);
+            return hs + 1;
+        }
+
+        int hs, regen, comp;
+        if (sf < 2) {
+            hs = 3;
+            long h = le(block, 0, 3);
+            regen = (int) (h >>> 4) & 0x3FF;
+            comp = (int) (h >>> 14) & 0x3FF;
+        } else if (sf == 2) {
+            hs = 4;
+            long h = le(block, 0, 4);
+            regen = (int) (h >>> 4) & 0x3FFF;
+            comp = (int) (h >>> 18) & 0x3FFF;
+        } else {
+            hs = 5;
+            long h = le(block, 0, 5);
+            regen = (int) (h >>> 4) & 0x3FFFF;
+            comp = (int) (h >>> 22) & 0x3FFFF;
+        }
+        if (regen > BLOCK_MAX || hs + comp > end) throw corrupt("compressed literals size");
+        litLen = regen;
+        int p = hs, cend = hs + comp;
+        if (type == 2) {
+            p += readHuffmanTable(block, p, cend);
+        } else if (hufSym == null) {
+            throw corrupt("treeless literals without previous table");
+        }
+        if (sf == 0) {
+            decodeHuffmanStream(p, cend, 0, regen);
+        } else {
+            if (cend - p < 6) throw corrupt("jump table");
+            int s1 = (int) le(block, p, 2), s2 = (int) le(block, p + 2, 2), s3 = (int) le(block, p + 4, 2);
+            int a = p + 6, b = a + s1, c = b + s2, d = c + s3;
+            int seg = (regen + 3) / 4;
+            if (d > cend || regen - 3 * seg < 0) throw corrupt("jump table");
+            decodeHuffmanStream(a, b, 0, seg);
+            decodeHuffmanStream(b, c, seg, seg);
+            decodeHuffmanStream(c, d, 2 * seg, seg);
+            decodeHuffmanStream(d, cend, 3 * seg, regen - 3 * seg);
+        }
+        return cend;
+    }
+
+    private void decodeHuffmanStream(int start, int end, int op, int n) throws IOException {
+        BackBits br = new BackBits(block, start, end);
+        final byte[] sym = hufSym, bits = hufBits;
+        final int maxBits = hufMaxBits;
+        for (int i = 0; i < n; i++) {
+            int v = (int) br.peek(maxBits);
+            literals[op + i] = sym[v];
+            br.pos -= bits[v];
+        }
+        if (br.pos != 0) throw corrupt("huffman stream not consumed");
+    }
+
+    /** 读 Huffman 树描述，建按 maxBits 位前缀直接查的表；返回消耗的字节数。 */
+    private int readHuffmanTable(byte[] src, int off, int end) throws IOException {
+        if (off >= end) throw corrupt("huffman header");
+        int hb = src[off] & 0xff;
+        int[] w = new int[256];
+        int nW = 0;
+        int used;
+        if (hb < 128) {
+            // 权重经 FSE 压缩：两个状态交替解码，比特流读过头时输出另一个状态的符号后结束
+            used = 1 + hb;
+            if (off + used > end) throw corrupt("huffman weights");
+            FseTable t = new FseTable();
+            int tl = readFseTable(t, src, off + 1, off + used, 255, 6);
+            BackBits br = new BackBits(src, off + 1 + tl, off + used);
+            int s1 = br.read(t.log), s2 = br.read(t.log);
+            while (true) {
+                if (nW > 253) throw corrupt("too many huffman weights");
+                w[nW++] = t.sym[s1];
+                s1 = t.base[s1] + br.read(t.bits[s1]);
+                if (br.pos < 0) {
+                    w[nW++] = t.sym[s2];
+                    break;
+                }
+                w[nW++] = t.sym[s2];
+                s2 = t.base[s2] + br.read(t.bits[s2]);
+                if (br.pos < 0) {
+                    w[nW++] = t.sym[s1];
+                    break;
+                }
+            }
+        } else {
+            nW = hb - 127;
+            used = 1 + (nW + 1) / 2;
+            if (off + used > end) throw corrupt("huffman weights");
+            for (int i = 0; i < nW; i++) {
+                int v = src[off + 1 + i / 2] & 0xff;
+                w[i] = (i & 1) == 0 ? v >>> 4 : v & 15;
+            }
+        }
+
+        long sum = 0;
+        for (int i = 0; i < nW; i++) {
+            if (w[i] > HUF_MAX_BITS) throw corrupt("huffman weight " + w[i]);
+            if (w[i] > 0) sum += 1L << (w[i] - 1);
+        }
+        if (sum == 0) throw corrupt("empty huffman table");
+        int maxBits = 64 - Long.numberOfLeadingZeros(sum);
+        if (maxBits > HUF_MAX_BITS) throw corrupt("huffman depth " + maxBits);
+        long rest = (1L << maxBits) - sum;
+        if ((rest & (rest - 1)) != 0) throw corrupt("huffman weights do not sum to a power of two");
+        w[nW] = 64 - Long.numberOfLeadingZeros(rest);
+        int nSym = nW + 1;
+
+        // 前缀从最长码（最小权重）开始连续分配，同权重按符号顺序
+        int size = 1 << maxBits;
+        byte[] sym = new byte[size], bits = new byte[size];
+        int pos = 0;
+        for (int weight = 1; weight <= maxBits; weight++) {
+            int len = 1 << (weight - 1);
+            for (int s = 0; s < nSym; s++) {
+                if (w[s] != weight) continue;
+                java.util.Arrays.fill(sym, pos, pos + len, (byte) s);
+                java.util.Arrays.fill(bits, pos, pos + len, (byte) (maxBits + 1 - weight));
+                pos += len;
+            }
+        }
+        hufSym = sym;
+        hufBits = bits;
+        hufMaxBits = maxBits;
+        return used;
+    }
+
+    // ---------- FSE ----------
+
+    /** FSE 解码表：state -> 符号、要读的位数、下一状态的基数。 */
+    private static final class FseTable {
+        int log;
+        int[] sym, bits, base;
+
+        static FseTable rle(int symbol) {
+            FseTable t = new FseTable();
+            t.sym = new int[]{symbol};
+            t.bits = new int[1];
+            t.base = new int[1];
+            return t;
+        }
+
+        static FseTable build(short[] norm, int nSym, int log) {
+            FseTable t = new FseTable();
+            try {
+                t.fill(norm, nSym, log);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return t;
+        }
+
+        void fill(short[] norm, int nSym, int log) throws IOException {
+            int size = 1 << log;
+            this.log = log;
+            sym = new int[size];
+            bits = new int[size];
+            base = new int[size];
+            int high = size - 1;
+            int[] next = new int[nSym];
+            for (int s = 0; s < nSym; s++) {
+                if (norm[s] == -1) {
+                    sym[high--] = s;
+                    next[s] = 1;
+                } else {
+                    next[s] = norm[s];
+                }
+            }
+            int step = (size >>> 1) + (size >>> 3) + 3, mask = size - 1, pos = 0;
+            for (int s = 0; s < nSym; s++) {
+                for (int i = 0; i < norm[s]; i++) {
+                    sym[pos] = s;
+                    do {
+                        pos = (pos + step) & mask;
+                    } while (pos > high);
+                }
+            }
+            if (pos != 0) throw corrupt("fse spread");
+            for (int i = 0; i < size; i++) {
+                int ns = next[sym[i]]++;
+                int nb = log - (31 - Integer.numberOfLeadingZeros(ns));
+                bits[i] = nb;
+                base[i] = (ns << nb) - size;
+            }
+        }
+    }
+
+    /** 读 FSE 表描述（正向、低位在前的比特流）并建表，返回消耗的字节数。 */
+    private static int readFseTable(FseTable t, byte[] src, int off, int end, int maxSym, int maxLog)
+            throws IOException {
+        long bp = 0;
+        int log = (int) fwdBits(src, off, end, bp, 4) + 5;
+        bp += 4;
+        if (log > maxLog) throw corrupt("fse accuracy log " + log);
+        int remaining = (1 << log) + 1, threshold = 1 << log, nbBits = log + 1;
+        short[] norm = new short[maxSym + 1];
+        int symbol = 0;
+        boolean prev0 = false;
+        while (remaining > 1 && symbol <= maxSym) {
+            if (prev0) {
+                int n0 = symbol;
+                while (fwdBits(src, off, end, bp, 16) == 0xFFFF) {
+                    n0 += 24;
+                    bp += 16;
+                }
+                int r;
+                while ((r = (int) fwdBits(src, off, end, bp, 2)) == 3) {
+                    n0 += 3;
+                    bp += 2;
+                }
+                n0 += r;
+                bp += 2;
+                if (n0 > maxSym) throw corrupt("fse zero run");
+                symbol = n0;
+            }
+            int max = (2 * threshold - 1) - remaining;
+            int v = (int) fwdBits(src, off, end, bp, nbBits);
+            int count;
+            if ((v & (threshold - 1)) < max) {
+                count = v & (threshold - 1);
+                bp += nbBits - 1;
+            } else {
+                count = v & (2 * threshold - 1);
+                if (count >= threshold) count -= max;
+                bp += nbBits;
+            }
+            count--;
+            remaining -= Math.abs(count);
+            norm[symbol++] = (short) count;
+            prev0 = count == 0;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>>= 1;
+            }
+        }
+        int used = (int) ((bp + 7) >>> 3);
+        if (remaining != 1 || used > end - off) throw corrupt("fse table description");
+        t.fill(norm, symbol, log);
+        return used;
+    }
+
+    /** 正向比特流在 bit 位置 bp 处的 n 位（n <= 16）；越过 end 的部分按 0。 */
+    private static long fwdBits(byte[] src, int off, int end, long bp, int n) {
+        int i = off + (int) (bp >>> 3);
+        long v = 0;
+        for (int k = 0; k < 4 && i + k < end; k++) v |= (long) (src[i + k] & 0xff) << (8 * k);
+        return (v >>> (bp & 7)) & ((1L << n) - 1);
+    }
+
+    /**
+     * 反向比特流：从最后一个字节的最高位 1（结束标记）之下开始，往低位读。
+     * pos 是还没读的位数；读过头时 pos 变负，缺的位按 0。
+     */
+    private static final class BackBits {
+        final byte[] b;
+        final int start;
+        long pos;
+
+        BackBits(byte[] b, int start, int end) throws IOException {
+            if (end <= start) throw corrupt("empty bitstream");
+            int last = b[end - 1] & 0xff;
+            if (last == 0) throw corrupt("bitstream without end mark");
+            this.b = b;
+            this.start = start;
+            pos = (long) (end - start - 1) * 8 + (31 - Integer.numberOfLeadingZeros(last));
+        }
+
+        long peek(int n) {
+            if (n == 0) return 0;
+            long p = pos - n;
+            if (p >= 0) return (word(p) >>> (p & 7)) & ((1L << n) - 1);
+            if (pos <= 0) return 0;
+            return (word(0) & ((1L << pos) - 1)) << -p;
+        }
+
+        int read(int n) {
+            long v = peek(n);
+            pos -= n;
+            return (int) v;
+        }
+
+        long readLong(int n) {
+            long v = peek(n);
+            pos -= n;
+            return v;
+        }
+
+        private long word(long bitPos) {
+            int i = start + (int) (bitPos >>> 3);
+            int lim = Math.min(8, b.length - i);
+            long v = 0;
+            for (int k = 0; k < lim; k++) v |= (long) (b[i + k] & 0xff) << (8 * k);
+            return v;
+        }
+    }
+
+    // ---------- 输出窗口 ----------
+
+    private void room(long n) throws IOException {
+        if (contentSize >= 0 && total + n > contentSize) throw corrupt("output exceeds content size");
+    }
+
+    private void put(byte[] src, int off, int n) throws IOException {
+        room(n);
+        total += n;
+        while (n > 0) {
+            int c = Math.min(n, ring.length - wr);
+            System.arraycopy(src, off, ring, wr, c);
+            off += c;
+            n -= c;
+            wr += c;
+            if (wr == ring.length) wr = 0;
+        }
+    }
+
+    private void fill(byte v, int n) throws IOException {
+        room(n);
+        total += n;
+        while (n > 0) {
+            int c = Math.min(n, ring.length - wr);
+            java.util.Arrays.fill(ring, wr, wr + c, v);
+            n -= c;
+            wr += c;
+            if (wr == ring.length) wr = 0;
+        }
+    }
+
+    private void copyMatch(long offset, int len) throws IOException {
+        if (offset <= 0 || offset > total || offset > windowSize) throw corrupt("match offset " + offset);
+        room(len);
+        int src = wr - (int) offset;
+        if (src < 0) src += ring.length;
+        if (offset >= len && src + len <= ring.length && wr + len <= ring.length) {
+            System.arraycopy(ring, src, ring, wr, len);
+            wr += len;
+            if (wr == ring.length) wr = 0;
+        } else {
+            for (int i = 0; i < len; i++) {
+                ring[wr] = ring[src];
+                if (++wr == ring.length) wr = 0;
+                if (++src == ring.length) src = 0;
+            }
+        }
+        total += len;
+    }
+
+    // ---------- 工具 ----------
+
+    private void readFully(byte[] b, int off, int n) throws IOException {
+        while (n > 0) {
+            int r = in.read(b, off, n);
+            if (r < 0) throw new EOFException("truncated zstd frame");
+            off += r;
+            n -= r;
+        }
+    }
+
+    private static long le(byte[] b, int off, int n) {
+        long v = 0;
+        for (int k = n - 1; k >= 0; k--) v = (v << 8) | (b[off + k] & 0xff);
+        return v;
+    }
+
+    private static IOException corrupt(String what) {
+        return new IOException("corrupt zstd frame: " + what);
+    }
+}
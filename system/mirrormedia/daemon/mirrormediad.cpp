@@ -6,8 +6,13 @@
 
 #include <log/log.h>
 
-#include <ziparchive/zip_writer.h>
 #include <ziparchive/zip_archive.h> // UNZIP 用
+#include "stream_zip_reader.h"
+#include "stream_zip_writer.h"
+#include "parallel_deflate.h"
+#include <zlib.h>  // MM01 / 原地解压的 CRC32
+#include <zstd.h>  // MM01 的 zstd payload
+#include <sqlite3.h>  // SMS DB 在线备份
 #include <inttypes.h>
 
 #include <sys/socket.h>
@@ -17,6 +22,7 @@
 #include <fcntl.h>
 #include <unistd.h>
 #include <dirent.h>
+#include <fnmatch.h>
 #include <errno.h>
 #include <cstring>
 #include <cstdio>
@@ -24,12 +30,23 @@
 #include <vector>
 #include <sstream>
 #include <algorithm>
+#include <cstdarg>
+#include <csignal>
+#include <ctime>
+#include <deque>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <thread>
 
 #include <unordered_set>
 
 #include <private/android_filesystem_config.h>  // for AID_EXT_DATA_RW, AID_RADIO
 
 extern "C" int selinux_android_restorecon(const char* path, unsigned int flags);
+extern "C" int getfilecon(const char* path, char** con);
+extern "C" int fsetfilecon(int fd, const char* con);
+extern "C" void freecon(char* con);
 
 // 抽象域 socket 名
 static const char* kSockName = "mirrormediad";
@@ -39,6 +56,10 @@ static const char* SMS_DB_PATH = "/data/user/0/com.android.providers.telephony/d
 static const char* SMS_DB_DIR  = "/data/user/0/com.android.providers.telephony/databases";
 static const char* SMS_DB_WAL  = "/data/user/0/com.android.providers.telephony/databases/mmssms.db-wal";
 static const char* SMS_DB_SHM  = "/data/user/0/com.android.providers.telephony/databases/mmssms.db-shm";
+// 在线备份先落到 daemon 私有目录，再整体发给客户端
+static const char* SMS_BACKUP_DIR = "/data/system/mirrormedia";
+// 快照文件名模板；每次备份 mkostemp 一个独立文件，并发的两次备份不会互相覆盖
+static const char* SMS_BACKUP_TMP_NAME = "mmssms.backup.XXXXXX";
 
 
 // ========== 通用工具 ==========
@@ -124,6 +145,79 @@ static bool r16(int fd, uint16_t* v){ return read_fully(fd, v, 2); }
 static bool r32(int fd, uint32_t* v){ return read_fully(fd, v, 4); }
 static bool r64(int fd, uint64_t* v){ return read_fully(fd, v, 8); }
 
+// ========== 命令协议常量（帧格式见文件末尾的连接处理部分）==========
+
+static constexpr uint8_t kProtoVersion = 1;
+
+enum : uint8_t {
+    OP_ZIP            = 1,
+    OP_UNZIP          = 2,
+    OP_DUMP           = 3,
+    OP_PUTRAW         = 4,
+    OP_BACKUP_SMS_DB  = 5,
+    OP_RESTORE_SMS_DB = 6,
+    OP_SCAN           = 7,      // 只读元数据预扫描，不需要 FD
+    OP_BLACKLIST      = 8,      // 查询内部/外部黑名单，不需要 FD
+    OP_CHECKPOINT     = 9,      // 查询 PUTRAW 的检查点日志，不需要 FD
+    OP_CAPS           = 10,     // 查询 daemon 支持的流格式，不需要 FD
+
+    RSP_RESULT        = 0x80,
+    RSP_STATUS        = 0x81,
+};
+
+enum : uint16_t {
+    FLAG_WANT_STATUS  = 1,      // 请求方需要 STATUS 进度帧
+};
+
+enum : uint16_t {
+    TAG_PATH    = 1,            // utf-8 逻辑路径
+    TAG_UID     = 2,            // u32 目标 uid
+    TAG_INCLUDE_PKG  = 3,       // utf-8，可重复：仅导出这些包
+    TAG_EXCLUDE_PKG  = 4,       // utf-8，可重复：额外跳过这些包
+    TAG_INCLUDE_GLOB = 5,       // utf-8，可重复：文件需命中其一
+    TAG_EXCLUDE_GLOB = 6,       // utf-8，可重复：命中即跳过（目录整棵剪掉）
+    TAG_MAX_FILE_SIZE = 7,      // u64：超过此大小的文件跳过，0 = 不限
+    TAG_RESUME  = 8,            // u32 非 0：PUTRAW 续传，保留已有检查点日志
+    TAG_ZIP_LEVEL = 9,          // u32 0–9：ZIP 的 deflate 级别，缺省为 zlib 默认级别
+    TAG_ZIP_AUTO  = 10,         // u32 非 0：按每个文件首块的压缩率决定是否存储
+    TAG_RAW_ZSTD_LEVEL = 11,    // u32 1–ZSTD_maxCLevel()：DUMP 的 'F' payload 用 zstd 压缩
+    TAG_RAW_ZSTD_LONG  = 12,    // u32 非 0：zstd long distance matching（128MB 窗口）
+    TAG_ZIP_THREADS = 13,       // u32：大文件并行 deflate 的线程数，0 = 自动，缺省/1 = 单线程
+    TAG_RAW_PACK = 14,          // u32 非 0：DUMP 把同一目录下的小文件打成 'P' 记录
+    TAG_ERROR   = 0x10,         // u32 ERR_*
+    TAG_BYTES   = 0x11,         // u64
+    TAG_FILES   = 0x12,         // u64
+    TAG_MESSAGE = 0x13,         // utf-8
+    TAG_ERRNO   = 0x14,         // u32
+    TAG_DIRS    = 0x15,         // u64 目录数（SCAN）
+    TAG_GROUP_STAT = 0x16,      // 可重复：u64 files, u64 bytes, utf-8 包名/顶层目录名（SCAN）
+    TAG_BLACKLIST_INTERNAL = 0x17, // 可重复：utf-8 包名（BLACKLIST）
+    TAG_BLACKLIST_EXTERNAL = 0x18, // 可重复：utf-8 包名（BLACKLIST）
+    TAG_BLACKLIST_VERSION  = 0x19, // u32 黑名单内容的版本戳（BLACKLIST）
+    TAG_CKPT_FILES = 0x1A,      // u64 已落盘的 'F' 记录数，从流开头算（PUTRAW 失败 / CHECKPOINT）
+    TAG_CKPT_BYTES = 0x1B,      // u64 这些文件的 payload 字节数
+    TAG_CKPT_PATH  = 0x1C,      // utf-8 最后一个已落盘文件的相对路径
+    TAG_RAW_FORMAT = 0x1D,      // 可重复：utf-8 PUTRAW 接受的流魔数（CAPS）
+    TAG_DB_PAGES   = 0x1E,      // u32 备份出的数据库页数（BACKUP_SMS_DB）
+    TAG_DB_PAGE_SIZE = 0x1F,    // u32 数据库页大小；TAG_BYTES = 页数 × 页大小
+};
+
+enum : uint32_t {
+    ERR_NONE        = 0,
+    ERR_FAILED      = 1,
+    ERR_BAD_REQUEST = 2,
+    ERR_UNKNOWN_OP  = 3,
+    ERR_VERSION     = 4,
+    ERR_IO          = 5,
+    ERR_PATH        = 6,
+};
+
+// 命令执行期间的进度/结果上报（定义见文件末尾的连接处理部分）
+struct Reporter;
+static void report_progress(Reporter* rep, time_t* last, uint64_t files, uint64_t bytes);
+static void report_error(Reporter* rep, uint32_t code, int sys_errno, const char* msg);
+static void report_tlv(Reporter* rep, uint16_t tag, const std::string& value);
+
 
 // ========== 黑名单（内部/外部）==========
 //
@@ -164,38 +258,225 @@ static inline bool is_blacklisted_external(const std::string& pkg) {
     return !pkg.empty() && external_data_blacklist().count(pkg) > 0;
 }
 
+static std::vector<std::string> sorted_list(const std::unordered_set<std::string>& set) {
+    std::vector<std::string> v(set.begin(), set.end());
+    std::sort(v.begin(), v.end());
+    return v;
+}
+
+// 版本戳由名单内容算出（FNV-1a），改名单不需要手工维护版本号；客户端据此判断缓存是否过期
+static uint32_t blacklist_version() {
+    static const uint32_t k = [] {
+        uint32_t h = 2166136261u;
+        auto mix = [&h](const std::string& s) {
+            for (unsigned char c : s) { h ^= c; h *= 16777619u; }
+            h ^= '\n'; h *= 16777619u;
+        };
+        for (const auto& pkg : sorted_list(internal_data_blacklist())) mix("i:" + pkg);
+        for (const auto& pkg : sorted_list(external_data_blacklist())) mix("e:" + pkg);
+        return h;
+    }();
+    return k;
+}
+
+static bool do_query_blacklist(Reporter* rep) {
+    const uint32_t version = blacklist_version();
+    report_tlv(rep, TAG_BLACKLIST_VERSION,
+               std::string(reinterpret_cast<const char*>(&version), sizeof(version)));
+    for (const auto& pkg : sorted_list(internal_data_blacklist())) {
+        report_tlv(rep, TAG_BLACKLIST_INTERNAL, pkg);
+    }
+    for (const auto& pkg : sorted_list(external_data_blacklist())) {
+        report_tlv(rep, TAG_BLACKLIST_EXTERNAL, pkg);
+    }
+    return true;
+}
+
+
+// ========== 导出过滤（包白名单 / 路径 glob / 文件大小）==========
+//
+// 在遍历时、open 之前判定，被跳过的文件不产生任何数据 I/O。
+// 匹配路径 = 逻辑根映射后的相对路径（rel_base + rel），因此 app 数据总是以包名开头：
+//   /data/data            -> "com.foo/cache/a.bin"
+//   /data/data/com.foo    -> "com.foo/cache/a.bin"（同一条规则对整树/单包一致）
+// glob 使用 fnmatch(flags=0)，'*' 可跨越 '/'，例如 "*/cache/*"。
+// 目录用 "path/" 参与排除匹配，命中则整棵子树不再打开。
+
+struct WalkFilter {
+    std::unordered_set<std::string> include_pkgs;
+    std::unordered_set<std::string> exclude_pkgs;
+    std::vector<std::string> include_globs;
+    std::vector<std::string> exclude_globs;
+    uint64_t max_file_size = 0;
+
+    // 由导出函数在解析逻辑路径后设置
+    std::string base_rel;
+    bool app_data = false;
+
+    bool empty() const {
+        return include_pkgs.empty() && exclude_pkgs.empty() && include_globs.empty()
+                && exclude_globs.empty() && max_file_size == 0;
+    }
+
+    void bind(const std::string& rel_base, bool is_app_data) {
+        base_rel = rel_base;
+        app_data = is_app_data;
+    }
+
+    bool skip_dir(const std::string& rel) const {
+        if (empty()) return false;
+        const std::string path = match_path(rel);
+        if (skip_pkg(path)) return true;
+        return match_any(exclude_globs, path + "/");
+    }
+
+    bool skip_file(const std::string& rel, const struct stat& st) const {
+        if (empty()) return false;
+        if (max_file_size > 0 && (uint64_t)st.st_size > max_file_size) return true;
+        const std::string path = match_path(rel);
+        if (skip_pkg(path)) return true;
+        if (match_any(exclude_globs, path)) return true;
+        return !include_globs.empty() && !match_any(include_globs, path);
+    }
+
+private:
+    std::string match_path(const std::string& rel) const {
+        if (base_rel.empty()) return rel;
+        if (rel.empty()) return base_rel;
+        return base_rel + "/" + rel;
+    }
+
+    bool skip_pkg(const std::string& path) const {
+        if (!app_data) return false;
+        const std::string pkg = first_path_component(path);
+        if (pkg.empty()) return false;
+        if (!include_pkgs.empty() && include_pkgs.count(pkg) == 0) return true;
+        return exclude_pkgs.count(pkg) > 0;
+    }
+
+    static bool match_any(const std::vector<std::string>& globs, const std::string& path) {
+        for (const auto& g : globs) {
+            if (::fnmatch(g.c_str(), path.c_str(), 0) == 0) return true;
+        }
+        return false;
+    }
+};
+
 
 // ========== SMS DB 备份与恢复 (新增逻辑) ==========
 
-static bool do_backup_sms_db(int out_fd) {
+// 源库是 WAL 模式，telephony 进程随时在写：直接拷 mmssms.db 会漏掉 -wal 里的事务，
+// 拷贝途中的 checkpoint 还会让前后页来自不同版本。这里用 SQLite 在线备份 API：
+// 只读连接开一个读事务，一次 step(-1) 拷完全部页，得到的是某个提交点的完整快照；
+// WAL 下读事务不挡写，provider 照常工作。
+static constexpr int kSmsBackupBusyRetries = 100;   // 每次 50ms，约 5 秒
+static constexpr int kSmsBackupBusyTimeoutMs = 5000;
+
+static bool sms_db_snapshot(const char* dst_path, int* pages, int* page_size) {
+    sqlite3* src = nullptr;
+    sqlite3* dst = nullptr;
+    bool ok = false;
+    int rc = sqlite3_open_v2(SMS_DB_PATH, &src, SQLITE_OPEN_READONLY, nullptr);
+    if (rc != SQLITE_OK) {
+        ALOGE("sms backup: open %s failed: %s", SMS_DB_PATH, src ? sqlite3_errmsg(src) : sqlite3_errstr(rc));
+    } else if ((rc = sqlite3_open_v2(dst_path, &dst, SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE,
+                                     nullptr)) != SQLITE_OK) {
+        ALOGE("sms backup: open %s failed: %s", dst_path, dst ? sqlite3_errmsg(dst) : sqlite3_errstr(rc));
+    } else {
+        sqlite3_busy_timeout(src, kSmsBackupBusyTimeoutMs);
+        sqlite3_backup* b = sqlite3_backup_init(dst, "main", src, "main");
+        if (b == nullptr) {
+            ALOGE("sms backup: backup_init failed: %s", sqlite3_errmsg(dst));
+        } else {
+            int tries = 0;
+            do {
+                rc = sqlite3_backup_step(b, -1);
+                if (rc == SQLITE_BUSY || rc == SQLITE_LOCKED) sqlite3_sleep(50);
+            } while ((rc == SQLITE_BUSY || rc == SQLITE_LOCKED) && ++tries < kSmsBackupBusyRetries);
+            *pages = sqlite3_backup_pagecount(b);
+            // backup_finish 返回整个备份过程的错误码
+            const int frc = sqlite3_backup_finish(b);
+            if (rc != SQLITE_DONE || frc != SQLITE_OK) {
+                ALOGE("sms backup: step rc=%d finish rc=%d: %s", rc, frc, sqlite3_errmsg(dst));
+            } else {
+                ok = true;
+            }
+        }
+        if (ok) {
+            sqlite3_stmt* st = nullptr;
+            ok = sqlite3_prepare_v2(dst, "PRAGMA page_size", -1, &st, nullptr) == SQLITE_OK &&
+                 sqlite3_step(st) == SQLITE_ROW;
+            if (ok) *page_size = sqlite3_column_int(st, 0);
+            sqlite3_finalize(st);
+        }
+    }
+    // 目标库用的是默认 rollback journal，close 之后磁盘上只剩 dst_path 一个文件
+    if (dst != nullptr && sqlite3_close(dst) != SQLITE_OK) {
+        ALOGE("sms backup: close %s failed", dst_path);
+        ok = false;
+    }
+    if (src != nullptr) sqlite3_close(src);
+    return ok;
+}
+
+static bool do_backup_sms_db(int out_fd, Reporter* rep) {
     ALOGI("Starting SMS DB backup from %s", SMS_DB_PATH);
 
-    android::base::unique_fd ifd(::open(SMS_DB_PATH, O_RDONLY | O_CLOEXEC));
+    if (!ensure_dir_all(SMS_BACKUP_DIR, 0700)) {
+        report_error(rep, ERR_IO, errno, "backup dir");
+        return false;
+    }
+    std::string tmp_path = join_path(SMS_BACKUP_DIR, SMS_BACKUP_TMP_NAME);
+    android::base::unique_fd ifd(::mkostemp(&tmp_path[0], O_CLOEXEC));
     if (ifd.get() < 0) {
-        ALOGE("Failed to open SMS DB: %s", strerror(errno));
+        ALOGE("Failed to create SMS DB snapshot file: %s", strerror(errno));
+        report_error(rep, ERR_IO, errno, "create sms db snapshot");
+        return false;
+    }
+    // sqlite 按路径写进这个空文件；写完即删除，之后只经 ifd 读同一个 inode
+    int pages = 0, page_size = 0;
+    const bool snap_ok = sms_db_snapshot(tmp_path.c_str(), &pages, &page_size);
+    ::unlink(tmp_path.c_str());
+    if (!snap_ok) {
+        report_error(rep, ERR_FAILED, 0, "sms db snapshot");
         return false;
     }
 
-    // 简单的流拷贝：File -> Socket
+    // 流拷贝：快照 -> Socket
     char buf[64 * 1024];
+    uint64_t bytes = 0;
+    time_t last_report = 0;
     while (true) {
         ssize_t n = TEMP_FAILURE_RETRY(::read(ifd.get(), buf, sizeof(buf)));
         if (n < 0) {
-            ALOGE("Read SMS DB failed: %s", strerror(errno));
+            ALOGE("Read SMS DB snapshot failed: %s", strerror(errno));
+            report_error(rep, ERR_IO, errno, "read sms db snapshot");
             return false;
         }
         if (n == 0) break; // EOF
 
         if (!write_fully(out_fd, buf, (size_t)n)) {
             ALOGE("Write to socket failed: %s", strerror(errno));
+            report_error(rep, ERR_IO, errno, "write output");
             return false;
         }
+        bytes += (uint64_t)n;
+        report_progress(rep, &last_report, 0, bytes);
+    }
+    if (bytes != (uint64_t)pages * (uint64_t)page_size) {
+        ALOGE("SMS DB snapshot size %" PRIu64 " != %d pages x %d", bytes, pages, page_size);
+        report_error(rep, ERR_FAILED, 0, "sms db snapshot size");
+        return false;
     }
-    ALOGI("SMS DB backup completed.");
+    const uint32_t pages_v = (uint32_t)pages, page_size_v = (uint32_t)page_size;
+    report_tlv(rep, TAG_DB_PAGES, std::string(reinterpret_cast<const char*>(&pages_v), 4));
+    report_tlv(rep, TAG_DB_PAGE_SIZE, std::string(reinterpret_cast<const char*>(&page_size_v), 4));
+    report_progress(rep, &last_report, 1, bytes);
+    ALOGI("SMS DB backup completed: %d pages x %d bytes", pages, page_size);
     return true;
 }
 
-static bool do_restore_sms_db(int in_fd) {
+static bool do_restore_sms_db(int in_fd, Reporter* rep) {
     ALOGI("Starting SMS DB restore to %s", SMS_DB_PATH);
 
     // 1. 确保目录存在
@@ -216,10 +497,13 @@ static bool do_restore_sms_db(int in_fd) {
 
     // 流拷贝：Socket -> Temp File
     uint8_t buf[64 * 1024];
+    uint64_t bytes = 0;
+    time_t last_report = 0;
     while (true) {
         ssize_t n = TEMP_FAILURE_RETRY(::read(in_fd, buf, sizeof(buf)));
         if (n < 0) {
             ALOGE("Read from socket failed: %s", strerror(errno));
+            report_error(rep, ERR_IO, errno, "read input");
             ::unlink(tmp_path.c_str());
             return false;
         }
@@ -227,9 +511,12 @@ static bool do_restore_sms_db(int in_fd) {
 
         if (!write_fully(ofd.get(), buf, (size_t)n)) {
             ALOGE("Write to temp file failed: %s", strerror(errno));
+            report_error(rep, ERR_IO, errno, "write temp file");
             ::unlink(tmp_path.c_str());
             return false;
         }
+        bytes += (uint64_t)n;
+        report_progress(rep, &last_report, 0, bytes);
     }
     (void)TEMP_FAILURE_RETRY(::fsync(ofd.get()));
     ofd.reset(); // close
@@ -258,6 +545,7 @@ static bool do_restore_sms_db(int in_fd) {
         ALOGW("restorecon failed");
     }
 
+    report_progress(rep, &last_report, 1, bytes);
     ALOGI("SMS DB restore success.");
     return true;
 }
@@ -345,20 +633,150 @@ static bool logical_to_real_root(const std::string& logical,
 
 // ========== ZIP 导出/导入 ==========
 
-static bool add_file_to_zip(ZipWriter* zw, const std::string& abs, const std::string& rel) {
+// ZIP 压缩策略：固定级别，或 auto（先用 level 1 试压首块，压不动的文件改为存储）
+static constexpr size_t kZipSampleSize = 64 * 1024;
+static constexpr size_t kZipMinProbe = 512;          // 太小的文件不值得试压，直接按级别压
+static constexpr uint64_t kZipPoorRatioPercent = 90; // 试压后仍 >= 90%：jpeg/mp4/apk/已加密数据
+// 并行 deflate：小文件分不出几块，线程切换反而更慢
+static constexpr uint64_t kZipParallelMinSize = 1024 * 1024;
+static constexpr int kZipMaxThreads = 8;
+static constexpr int kZipAutoThreads = 4;   // 自动时最多占 4 个核，给前台留余量
+
+struct ZipCodec {
+    int level = Z_DEFAULT_COMPRESSION;
+    bool auto_store = false;
+    int threads = 1;
+
+    std::unique_ptr<ParallelDeflater> pool;   // 第一次遇到大文件时才创建
+
+    z_stream probe{};
+    bool probe_init = false;
+    std::vector<uint8_t> probe_out;
+
+    ZipCodec() = default;
+    ZipCodec(const ZipCodec&) = delete;
+    ZipCodec& operator=(const ZipCodec&) = delete;
+    ~ZipCodec() {
+        if (probe_init) deflateEnd(&probe);
+    }
+
+    // 该文件是否值得 deflate；sample 是文件开头（整个小文件时就是全部内容）
+    bool worth_compressing(const uint8_t* sample, size_t len) {
+        if (level == 0) return false;
+        if (!auto_store || len < kZipMinProbe) return true;
+        int zr;
+        if (!probe_init) {
+            zr = deflateInit2(&probe, 1, Z_DEFLATED, -MAX_WBITS, 8, Z_DEFAULT_STRATEGY);
+            probe_init = (zr == Z_OK);
+        } else {
+            zr = deflateReset(&probe);
+        }
+        if (zr != Z_OK) return true;
+        probe_out.resize(deflateBound(&probe, kZipSampleSize));
+        probe.next_in = const_cast<Bytef*>(sample);
+        probe.avail_in = (uInt)len;
+        probe.next_out = probe_out.data();
+        probe.avail_out = (uInt)probe_out.size();
+        if (deflate(&probe, Z_FINISH) != Z_STREAM_END) return true;
+        return probe.total_out * 100 < (uint64_t)len * kZipPoorRatioPercent;
+    }
+
+    // 按级别压缩的大文件交给线程池；level 0（stored block）没有可并行的工作
+    ParallelDeflater* parallel_for(uint64_t size, int entry_level) {
+        if (threads <= 1 || entry_level == 0 || size < kZipParallelMinSize) return nullptr;
+        if (!pool) pool.reset(new ParallelDeflater(threads, entry_level));
+        return pool.get();
+    }
+};
+
+// ZIP 导出的计数和压缩策略，随递归一起传递
+struct ZipProgress {
+    Reporter* rep = nullptr;
+    time_t last_report = 0;
+    uint64_t files = 0;
+    uint64_t bytes = 0;
+    uint64_t stored = 0;    // 存储（未压缩）的文件数
+    uint64_t parallel = 0;  // 走并行 deflate 的文件数
+    ZipCodec* codec = nullptr;
+};
+
+// 写输出失败时 zw->failed() 为真，归档已不可用；读源文件失败时仍结束该条目，保持归档完整。
+// 先读首块交给 codec 判断：不压缩且整个文件都在首块里时写真正的 STORED 条目（本地头带 CRC），
+// 更大的文件事先不知道 CRC，只能用 deflate level 0（stored block）。
+static bool add_file_to_zip(StreamZipWriter* zw, const std::string& abs, const std::string& rel,
+                            const struct stat& st, ZipProgress* prog, uint64_t* written_out) {
     android::base::unique_fd fd(::open(abs.c_str(), O_RDONLY | O_CLOEXEC | O_NOFOLLOW));
     if (fd.get() < 0) {
         ALOGW("open(%s) failed: %s", abs.c_str(), strerror(errno));
         return false;
     }
-    if (zw->StartEntry(rel.c_str(), ZipWriter::kCompress) != 0) {
+    char buf[256 * 1024];
+    ssize_t n = 0;
+    size_t head = 0;
+    while (head < kZipSampleSize &&
+           (n = TEMP_FAILURE_RETRY(::read(fd.get(), buf + head, kZipSampleSize - head))) > 0) {
+        head += (size_t)n;
+    }
+    const bool head_is_all = (n == 0);
+    if (n < 0) {
+        ALOGW("read(%s) failed: %s", abs.c_str(), strerror(errno));
+        return false;
+    }
+
+    const uint8_t* sample = reinterpret_cast<const uint8_t*>(buf);
+    const bool compress = prog->codec ? prog->codec->worth_compressing(sample, head) : true;
+    if (!compress) prog->stored++;
+    if (!compress && head_is_all) {
+        if (zw->AddStoredEntry(rel, st.st_mtime, st.st_mode, buf, head) != 0) {
+            ALOGW("AddStoredEntry(%s) failed", rel.c_str());
+            return false;
+        }
+        *written_out = head;
+        return true;
+    }
+
+    const int level = !compress ? 0
+            : (prog->codec ? prog->codec->level : Z_DEFAULT_COMPRESSION);
+    ParallelDeflater* pd = (!head_is_all && prog->codec)
+            ? prog->codec->parallel_for((uint64_t)st.st_size, level) : nullptr;
+    const size_t flags = StreamZipWriter::kCompress | (pd ? StreamZipWriter::kPrecompressed : 0);
+    if (zw->StartEntry(rel, flags, st.st_mtime, st.st_mode, level) != 0) {
         ALOGW("StartEntry(%s) failed", rel.c_str());
         return false;
     }
-    char buf[256 * 1024];
-    ssize_t n;
+    if (pd) {
+        prog->parallel++;
+        uint64_t total = 0;
+        int read_err = 0;
+        const bool sink_ok = pd->Compress(fd.get(), sample, head,
+                [zw](const uint8_t* data, size_t len, uint64_t raw_len, uint32_t crc) {
+                    return zw->WriteDeflated(data, len, raw_len, crc) == 0;
+                }, &total, &read_err);
+        if (!sink_ok) {
+            ALOGW("parallel deflate(%s) failed after %llu bytes",
+                  rel.c_str(), (unsigned long long)total);
+            return false;
+        }
+        if (read_err != 0) {
+            ALOGW("read(%s) failed after %llu bytes: %s",
+                  abs.c_str(), (unsigned long long)total, strerror(read_err));
+        }
+        if (zw->FinishEntry() != 0) {
+            ALOGW("FinishEntry(%s) failed", rel.c_str());
+            return false;
+        }
+        *written_out = total;
+        return read_err == 0;
+    }
     uint64_t written = 0;
-    while ((n = TEMP_FAILURE_RETRY(::read(fd.get(), buf, sizeof(buf)))) > 0) {
+    if (head > 0) {
+        if (zw->WriteBytes(buf, head) != 0) {
+            ALOGW("WriteBytes(%s) failed", rel.c_str());
+            return false;
+        }
+        written = head;
+    }
+    while (!head_is_all && (n = TEMP_FAILURE_RETRY(::read(fd.get(), buf, sizeof(buf)))) > 0) {
         if (zw->WriteBytes(buf, n) != 0) {
             ALOGW("WriteBytes(%s) failed after %llu bytes",
                   rel.c_str(), (unsigned long long)written);
@@ -366,22 +784,26 @@ static bool add_file_to_zip(ZipWriter* zw, const std::string& abs, const std::st
         }
         written += (uint64_t)n;
     }
-    if (n < 0) {
-        ALOGW("read(%s) failed: %s", abs.c_str(), strerror(errno));
-        return false;
+    const bool read_ok = (n == 0);
+    if (!read_ok) {
+        ALOGW("read(%s) failed after %llu bytes: %s",
+              abs.c_str(), (unsigned long long)written, strerror(errno));
     }
     if (zw->FinishEntry() != 0) {
         ALOGW("FinishEntry(%s) failed", rel.c_str());
         return false;
     }
-    return true;
+    *written_out = written;
+    return read_ok;
 }
 
-static bool zip_dir_recursive(ZipWriter* zw,
+static bool zip_dir_recursive(StreamZipWriter* zw,
                               const std::string& root,
                               const std::string& dir,
                               const std::unordered_set<std::string>* top_bl,
-                              bool top_filter) {
+                              bool top_filter,
+                              const WalkFilter& filter,
+                              ZipProgress* prog) {
     DIR* d = ::opendir(dir.c_str());
     if (!d) {
         ALOGW("opendir(%s) failed: %s", dir.c_str(), strerror(errno));
@@ -391,7 +813,7 @@ static bool zip_dir_recursive(ZipWriter* zw,
     struct dirent* de;
     bool ok = true;
 
-    while ((de = ::readdir(d)) != nullptr) {
+    while (!zw->failed() && (de = ::readdir(d)) != nullptr) {
         const char* name = de->d_name;
         if (!strcmp(name, ".") || !strcmp(name, "..")) continue;
 
@@ -419,11 +841,20 @@ static bool zip_dir_recursive(ZipWriter* zw,
             }
         }
 
+        if (S_ISDIR(st.st_mode) && filter.skip_dir(rel)) {
+            ALOGD("ZIP filter skip dir: %s", rel.c_str());
+            continue;
+        }
+        if (S_ISREG(st.st_mode) && filter.skip_file(rel, st)) {
+            ALOGD("ZIP filter skip file: %s", rel.c_str());
+            continue;
+        }
+
         if (S_ISDIR(st.st_mode)) {
             std::string rel_dir = rel;
             if (!rel_dir.empty() && rel_dir.back() != '/') rel_dir.push_back('/');
             if (!rel_dir.empty()) {
-                int ret = zw->StartEntry(rel_dir.c_str(), ZipWriter::kCompress);
+                int ret = zw->StartEntry(rel_dir, 0, st.st_mtime, st.st_mode);
                 if (ret == 0) {
                     ret = zw->FinishEntry();
                 }
@@ -431,24 +862,31 @@ static bool zip_dir_recursive(ZipWriter* zw,
                     ALOGW("dir entry failed for %s: %d", rel_dir.c_str(), ret);
                 }
             }
-            if (!zip_dir_recursive(zw, root, abs, top_bl, top_filter)) {
+            if (!zip_dir_recursive(zw, root, abs, top_bl, top_filter, filter, prog)) {
                 ALOGW("recursive failed for %s", abs.c_str());
             }
         } else if (S_ISREG(st.st_mode)) {
-            if (!add_file_to_zip(zw, abs, rel)) {
+            uint64_t written = 0;
+            if (!add_file_to_zip(zw, abs, rel, st, prog, &written)) {
                 ALOGW("add_file_to_zip failed for %s", rel.c_str());
+            } else {
+                prog->files++;
+                prog->bytes += written;
+                report_progress(prog->rep, &prog->last_report, prog->files, prog->bytes);
             }
         }
     }
 
     ::closedir(d);
-    return ok;
+    return ok && !zw->failed();
 }
 
-static bool do_zip_to_fd(const std::string& logical_root, int out_fd) {
+static bool do_zip_to_fd(const std::string& logical_root, int out_fd,
+                         const WalkFilter& filter_in, ZipCodec* codec, Reporter* rep) {
     std::string real_root, rel_base;
     if (!logical_to_real_root(logical_root, &real_root, &rel_base)) {
         ALOGE("unsafe or unsupported logical root: %s", logical_root.c_str());
+        report_error(rep, ERR_PATH, 0, "unsupported logical path");
         return false;
     }
 
@@ -472,6 +910,9 @@ static bool do_zip_to_fd(const std::string& logical_root, int out_fd) {
     const bool is_external_app_data =
             (logical_root == "/sdcard/Android/data") || (logical_root.rfind("/sdcard/Android/data/", 0) == 0);
 
+    WalkFilter filter = filter_in;
+    filter.bind(rel_base, is_internal_data || is_external_app_data);
+
     bool skip_all = false;
 
     // 若请求的是单包或更深路径，按包名整包跳过（internal / external 都做）
@@ -489,46 +930,12 @@ static bool do_zip_to_fd(const std::string& logical_root, int out_fd) {
         }
     }
 
-    // 1) staging 目录
-    const std::string staging_dir("/data/system/mirrormedia");
-    if (!ensure_dir_all(staging_dir, 0770)) {
-        ALOGE("ensure_dir_all(%s) failed", staging_dir.c_str());
-        return false;
-    }
-
-    // 2) 临时文件
-    std::string tmpl = staging_dir + "/mm_zip.XXXXXX";
-    std::vector<char> tmp_path(tmpl.begin(), tmpl.end());
-    tmp_path.push_back('\0');
-
-    int tmp_fd = ::mkstemp(tmp_path.data());
-    if (tmp_fd < 0) {
-        ALOGE("mkstemp(%s) failed: %s", tmpl.c_str(), strerror(errno));
-        return false;
-    }
-    std::string tmp_path_str(tmp_path.data());
-    ALOGI("zip staging file: %s", tmp_path_str.c_str());
-
-    // 3) ZipWriter 绑在临时文件上
-    int zip_fd = ::dup(tmp_fd);
-    if (zip_fd < 0) {
-        ALOGE("dup(tmp_fd) failed: %s", strerror(errno));
-        ::close(tmp_fd);
-        ::unlink(tmp_path_str.c_str());
-        return false;
-    }
-
-    FILE* fp = ::fdopen(zip_fd, "wb+");
-    if (!fp) {
-        ALOGE("fdopen(zip_fd) failed: %s", strerror(errno));
-        ::close(zip_fd);
-        ::close(tmp_fd);
-        ::unlink(tmp_path_str.c_str());
-        return false;
-    }
-
-    ZipWriter zw(fp);
+    // 直接流式写入 out_fd（通常是 pipe）：不落盘、不需要 /data 空间，客户端立刻能读到数据。
+    StreamZipWriter zw(out_fd);
     bool zip_ok = true;
+    ZipProgress prog;
+    prog.rep = rep;
+    prog.codec = codec;
 
     if (!skip_all) {
         // 顶层过滤：仅当 logical 是根（/data/data 或 /sdcard/Android/data）时启用
@@ -541,63 +948,32 @@ static bool do_zip_to_fd(const std::string& logical_root, int out_fd) {
             top_bl = &external_data_blacklist();
         }
 
-        zip_ok = zip_dir_recursive(&zw, base_dir, base_dir, top_bl, top_filter);
+        zip_ok = zip_dir_recursive(&zw, base_dir, base_dir, top_bl, top_filter, filter, &prog);
     }
 
+    if (zw.failed()) {
+        // 对端关闭或写失败：归档已截断，没有必要再写中央目录
+        ALOGE("ZIP write to output failed: %s", strerror(zw.error_errno()));
+        report_error(rep, ERR_IO, zw.error_errno(), "write output");
+        return false;
+    }
     if (!zip_ok) {
         ALOGW("zip_dir_recursive had errors, but continuing to finish");
     }
 
-    int zret = zw.Finish();
-    if (::fflush(fp) != 0) {
-        ALOGW("fflush on zip FILE failed: %s", strerror(errno));
-    }
-    (void)::fsync(zip_fd);
-    ::fclose(fp); // 关闭 zip_fd，但 tmp_fd 仍然有效
-
+    const int32_t zret = zw.Finish();
+    report_progress(rep, &prog.last_report, prog.files, prog.bytes);
     if (zret != 0) {
-        ALOGE("ZipWriter Finish failed: %d", zret);
-        ::close(tmp_fd);
-        ::unlink(tmp_path_str.c_str());
-        return false;
-    }
-
-    // 4) 把临时文件内容写到 out_fd（可以是 pipe）
-    if (::lseek(tmp_fd, 0, SEEK_SET) < 0) {
-        ALOGE("lseek(tmp_fd) failed: %s", strerror(errno));
-        ::close(tmp_fd);
-        ::unlink(tmp_path_str.c_str());
+        ALOGE("StreamZipWriter Finish failed: %d", zret);
+        report_error(rep, ERR_IO, zw.error_errno(), "write output");
         return false;
     }
 
-    char buf[256 * 1024];
-    bool copy_ok = true;
-    while (true) {
-        ssize_t n = TEMP_FAILURE_RETRY(::read(tmp_fd, buf, sizeof(buf)));
-        if (n == 0) break;
-        if (n < 0) {
-            if (errno == EINTR) continue;
-            ALOGE("read(tmp_fd) failed: %s", strerror(errno));
-            copy_ok = false;
-            break;
-        }
-        if (!write_fully(out_fd, buf, (size_t)n)) {
-            ALOGE("write_fully(out_fd) failed: %s", strerror(errno));
-            copy_ok = false;
-            break;
-        }
-    }
-
-    ::close(tmp_fd);
-    ::unlink(tmp_path_str.c_str());
-
-    ALOGI("ZIP staging done logical=%s base_dir=%s zip_ok=%d copy_ok=%d",
-          logical_root.c_str(),
-          base_dir.c_str(),
-          zip_ok ? 1 : 0,
-          copy_ok ? 1 : 0);
-
-    return zip_ok && copy_ok;
+    ALOGI("ZIP stream done logical=%s base_dir=%s files=%" PRIu64 " (stored %" PRIu64
+          ", parallel %" PRIu64 ") bytes=%" PRIu64 " archive=%" PRIu64,
+          logical_root.c_str(), base_dir.c_str(), prog.files, prog.stored, prog.parallel,
+          prog.bytes, zw.bytes_written());
+    return true;
 }
 
 // 为 UNZIP 做的简单 Read/Pread
@@ -679,159 +1055,136 @@ static bool list_zip_names_from_fd(int fd, std::vector<std::string>* names_out)
     return true;
 }
 
-static bool do_unzip_from_fd(int in_fd,
-                             const std::string& logical_dst,
-                             int target_uid) {
-    std::string real_root, rel_base;
-    if (!logical_to_real_root(logical_dst, &real_root, &rel_base)) {
-        ALOGE("unsupported dst path: %s", logical_dst.c_str());
+// UNZIP 目标：映射后的根目录、属主和黑名单规则，两种解压模式共用
+struct UnzipTarget {
+    std::string base_dir;
+    int uid = -1;
+    bool is_internal_data = false;
+    bool is_external_app_data = false;
+    std::string target_pkg;  // 单包 restore 时的包名
+    bool skip_all = false;   // 目标包在黑名单中：照常读完输入，但什么都不写
+};
+
+struct UnzipStats {
+    Reporter* rep = nullptr;
+    time_t last_report = 0;
+    uint64_t files = 0;
+    uint64_t bytes = 0;
+};
+
+// 条目名清理 + 黑名单过滤；返回 false 表示跳过该条目
+static bool unzip_accept(const UnzipTarget& t, const std::string& name, std::string* rel,
+                         bool* is_dir) {
+    *rel = name;
+    if (!sanitize_rel(rel)) {
+        ALOGW("skip suspicious: %s", name.c_str());
         return false;
     }
-    // 计算真正解压根目录
-    std::string base_dir = real_root;
-    if (!rel_base.empty()) {
-        base_dir = join_path(real_root, rel_base);
-    }
+    *is_dir = (!rel->empty() && rel->back() == '/');
 
-    ALOGI("unzip to logical=%s real_root=%s rel_base=%s base_dir=%s uid=%d",
-          logical_dst.c_str(),
-          real_root.c_str(),
-          rel_base.c_str(),
-          base_dir.c_str(),
-          target_uid);
-
-    const bool is_internal_data =
-            (logical_dst == "/data/data") || (logical_dst.rfind("/data/data/", 0) == 0);
+    if (t.skip_all) return false;
 
-    const bool is_external_app_data =
-            (logical_dst == "/sdcard/Android/data") || (logical_dst.rfind("/sdcard/Android/data/", 0) == 0);
-
-    std::string target_pkg;
-    if (!rel_base.empty()) {
-        target_pkg = first_path_component(rel_base);
-    }
-
-    if (target_uid < 0) {
-        ALOGE("target uid missing");
-        return false;
+    // root restore（/data/data 或 /sdcard/Android/data）时：用 entry 的第一段当 pkg 过滤
+    if (t.target_pkg.empty() && (t.is_internal_data || t.is_external_app_data)) {
+        const std::string pkg = first_path_component(*rel);
+        const bool blocked = t.is_internal_data ? is_blacklisted_internal(pkg)
+                                                : is_blacklisted_external(pkg);
+        if (blocked) {
+            if (*is_dir && rel->find('/') == rel->size() - 1) {
+                ALOGI("UNZIP skip %s blacklisted package: %s",
+                      t.is_internal_data ? "INTERNAL" : "EXTERNAL", pkg.c_str());
+            }
+            return false;
+        }
     }
+    return true;
+}
 
-    if (!ensure_dir_all(base_dir, 0770)) {
-        ALOGE("ensure_dir_all(%s) failed", base_dir.c_str());
+static bool unzip_make_dir(const UnzipTarget& t, const std::string& rel) {
+    const std::string out_dir = join_path(t.base_dir, rel);
+    if (!ensure_dir_all(out_dir, 0770)) {
+        ALOGW("ensure_dir_all(%s) failed", out_dir.c_str());
         return false;
     }
+    (void)::chown(out_dir.c_str(), t.uid, t.uid);
+    (void)::chmod(out_dir.c_str(), 0770);
+    (void)selinux_android_restorecon(out_dir.c_str(), 0);
+    return true;
+}
 
-    // staging 文件
-    if (!ensure_dir_all("/data/system/mirrormedia", 0755)) {
-        ALOGE("ensure_dir_all(/data/system/mirrormedia) failed");
-        return false;
+static android::base::unique_fd unzip_open_file(const UnzipTarget& t, const std::string& rel,
+                                                std::string* out_path) {
+    *out_path = join_path(t.base_dir, rel);
+    if (!ensure_dir_all(dirname_of(*out_path), 0770)) {
+        ALOGW("ensure parent(%s) failed", out_path->c_str());
+        return android::base::unique_fd();
     }
-    char tmpl[] = "/data/system/mirrormedia/mm_inzip.XXXXXX";
-    android::base::unique_fd tmp_fd(::mkstemp(tmpl));
-    if (tmp_fd.get() < 0) {
-        ALOGE("mkstemp failed: %s", strerror(errno));
-        return false;
+    android::base::unique_fd ofd(::open(out_path->c_str(),
+                                        O_CREAT | O_TRUNC | O_WRONLY | O_CLOEXEC | O_NOFOLLOW,
+                                        0600));
+    if (ofd.get() < 0) {
+        ALOGW("open(%s) failed: %s", out_path->c_str(), strerror(errno));
     }
+    return ofd;
+}
 
-    uint8_t ibuf[256*1024];
-    ssize_t n;
-    uint64_t recv_bytes = 0;
-    while ((n = TEMP_FAILURE_RETRY(::read(in_fd, ibuf, sizeof(ibuf)))) > 0) {
-        ssize_t w = TEMP_FAILURE_RETRY(::write(tmp_fd.get(), ibuf, n));
-        if (w != n) {
-            ALOGE("write tmp failed: %s", strerror(errno));
-            ::unlink(tmpl);
-            return false;
-        }
-        recv_bytes += (uint64_t)w;
-    }
-    if (n < 0) {
-        ALOGE("read(in_fd) failed: %s", strerror(errno));
-        ::unlink(tmpl);
-        return false;
-    }
-    (void)TEMP_FAILURE_RETRY(::fsync(tmp_fd.get()));
-    if (TEMP_FAILURE_RETRY(::lseek(tmp_fd.get(), 0, SEEK_SET)) < 0) {
-        ALOGE("lseek tmp failed: %s", strerror(errno));
-        ::unlink(tmpl);
+static void unzip_finish_file(const UnzipTarget& t, int fd, const std::string& out_path,
+                              uint64_t len, UnzipStats* st) {
+    (void)::fchown(fd, t.uid, t.uid);
+    (void)::fchmod(fd, 0600);
+    (void)selinux_android_restorecon(out_path.c_str(), 0);
+
+    st->files++;
+    st->bytes += len;
+    ALOGI("unzipping: wrote %s len=%" PRIu64, out_path.c_str(), len);
+    report_progress(st->rep, &st->last_report, st->files, st->bytes);
+}
+
+// ProcessZipEntryContents 回调：写文件的同时累计 CRC32
+struct CrcFileSink {
+    int fd = -1;
+    uint32_t crc = 0;
+    bool write_failed = false;
+};
+
+static bool crc_file_sink_append(const uint8_t* buf, size_t len, void* cookie) {
+    CrcFileSink* sink = static_cast<CrcFileSink*>(cookie);
+    sink->crc = (uint32_t)crc32(sink->crc, buf, (uInt)len);
+    if (!write_fully(sink->fd, buf, len)) {
+        sink->write_failed = true;
         return false;
     }
-    ALOGI("unzip staging: received %" PRIu64 " bytes -> %s", recv_bytes, tmpl);
+    return true;
+}
 
+// 随机访问模式：输入本身是普通文件，直接按中央目录解压，不复制。
+// 打不开（*opened=false）时什么都没写，调用方可以改用流式模式。
+static bool unzip_in_place(const UnzipTarget& t, int in_fd, UnzipStats* st, bool* opened) {
+    *opened = false;
     ZipArchiveHandle za;
-    int open_ret = ::OpenArchiveFd(tmp_fd.get(), "in.zip", &za, /*assume_ownership=*/false);
+    int open_ret = ::OpenArchiveFd(in_fd, "in.zip", &za, /*assume_ownership=*/false);
     if (open_ret != 0) {
-        ALOGE("OpenArchiveFd failed: %d", open_ret);
-        ::unlink(tmpl);
+        ALOGW("OpenArchiveFd failed: %d", open_ret);
+        ::CloseArchive(za);
         return false;
     }
 
     std::vector<std::string> names;
-    if (!list_zip_names_from_fd(tmp_fd.get(), &names)) {
-        ALOGE("failed to list names");
+    if (!list_zip_names_from_fd(in_fd, &names)) {
+        ALOGW("failed to list names");
         ::CloseArchive(za);
-        ::unlink(tmpl);
         return false;
     }
+    *opened = true;
 
-    // 若是单包 restore，目标包在黑名单中：整包跳过（但仍正常 consume zip entries）
-    const bool skip_all_internal = (is_internal_data && !target_pkg.empty() && is_blacklisted_internal(target_pkg));
-    const bool skip_all_external = (is_external_app_data && !target_pkg.empty() && is_blacklisted_external(target_pkg));
-    if (skip_all_internal) {
-        ALOGI("UNZIP: target INTERNAL package is blacklisted (%s), skip ALL entries", target_pkg.c_str());
-    }
-    if (skip_all_external) {
-        ALOGI("UNZIP: target EXTERNAL package is blacklisted (%s), skip ALL entries", target_pkg.c_str());
-    }
-
-    uint64_t files = 0, bytes = 0;
     bool ok_all = true;
-
     for (const std::string& name : names) {
-        std::string rel = name;
-        if (!sanitize_rel(&rel)) {
-            ALOGW("skip suspicious: %s", name.c_str());
-            continue;
-        }
-        const bool is_dir = (!rel.empty() && rel.back() == '/');
-
-        // 黑名单过滤
-        if (skip_all_internal || skip_all_external) {
-            continue;
-        }
-
-        // root restore（/data/data 或 /sdcard/Android/data）时：用 entry 的第一段当 pkg 过滤
-        if (target_pkg.empty()) {
-            if (is_internal_data) {
-                std::string pkg = first_path_component(rel);
-                if (is_blacklisted_internal(pkg)) {
-                    if (is_dir && rel.find('/') == rel.size() - 1) {
-                        ALOGI("UNZIP skip INTERNAL blacklisted package: %s", pkg.c_str());
-                    }
-                    continue;
-                }
-            }
-            if (is_external_app_data) {
-                std::string pkg = first_path_component(rel);
-                if (is_blacklisted_external(pkg)) {
-                    if (is_dir && rel.find('/') == rel.size() - 1) {
-                        ALOGI("UNZIP skip EXTERNAL blacklisted package: %s", pkg.c_str());
-                    }
-                    continue;
-                }
-            }
-        }
+        std::string rel;
+        bool is_dir = false;
+        if (!unzip_accept(t, name, &rel, &is_dir)) continue;
 
         if (is_dir) {
-            std::string out_dir = join_path(base_dir, rel);
-            if (!ensure_dir_all(out_dir, 0770)) {
-                ALOGW("ensure_dir_all(%s) failed", out_dir.c_str());
-                ok_all = false;
-            } else {
-                (void)::chown(out_dir.c_str(), target_uid, target_uid);
-                (void)::chmod(out_dir.c_str(), 0770);
-                (void)selinux_android_restorecon(out_dir.c_str(), 0);
-            }
+            if (!unzip_make_dir(t, rel)) ok_all = false;
             continue;
         }
 
@@ -843,69 +1196,627 @@ static bool do_unzip_from_fd(int in_fd,
             continue;
         }
 
-        std::string out_path = join_path(base_dir, rel);
-        if (!ensure_dir_all(dirname_of(out_path), 0770)) {
-            ALOGW("ensure parent(%s) failed", out_path.c_str());
+        std::string out_path;
+        android::base::unique_fd ofd = unzip_open_file(t, rel, &out_path);
+        if (ofd.get() < 0) {
             ok_all = false;
             continue;
         }
 
-        android::base::unique_fd ofd(::open(out_path.c_str(),
-                                            O_CREAT | O_TRUNC | O_WRONLY | O_CLOEXEC | O_NOFOLLOW,
-                                            0600));
-        if (ofd.get() < 0) {
-            ALOGW("open(%s) failed: %s", out_path.c_str(), strerror(errno));
+        // Android 11 的 libziparchive 关闭了 CRC 校验（kCrcChecksEnabled=false），
+        // 这里在解压回调里边写边算，不需要再读一遍
+        CrcFileSink sink;
+        sink.fd = ofd.get();
+        int32_t er = ::ProcessZipEntryContents(za, &entry, crc_file_sink_append, &sink);
+        if (er != 0) {
+            ALOGW("ProcessZipEntryContents(%s) failed: %d%s", out_path.c_str(), er,
+                  sink.write_failed ? " (write failed)" : "");
+            (void)::unlink(out_path.c_str());
             ok_all = false;
             continue;
         }
-
-        int32_t er = ::ExtractEntryToFile(za, &entry, ofd.get());
-        if (er != 0) {
-            ALOGW("ExtractEntryToFile(%s) failed: %d", out_path.c_str(), er);
+        if (sink.crc != entry.crc32) {
+            ALOGE("unzip: %s crc mismatch %08x/%08x", out_path.c_str(), sink.crc, entry.crc32);
+            (void)::unlink(out_path.c_str());
+            report_error(st->rep, ERR_IO, 0, "zip entry crc mismatch");
             ok_all = false;
             continue;
         }
-
-        (void)::fchown(ofd.get(), target_uid, target_uid);
-        (void)::fchmod(ofd.get(), 0600);
-        (void)selinux_android_restorecon(out_path.c_str(), 0);
-
-        files++;
-        bytes += (uint64_t)entry.uncompressed_length;
-        ALOGI("unzipping: wrote %s len=%" PRIu32, out_path.c_str(), entry.uncompressed_length);
+        unzip_finish_file(t, ofd.get(), out_path, entry.uncompressed_length, st);
     }
 
     ::CloseArchive(za);
-    ::unlink(tmpl);
-
-    ALOGI("UNZIP done ok=%d files=%" PRIu64 " bytes=%" PRIu64, ok_all?1:0, files, bytes);
     return ok_all;
 }
 
+// 流式模式：按本地头顺序边读边写，输入可以是 pipe（CRC 由 StreamZipReader 校验）
+static bool unzip_stream(const UnzipTarget& t, int in_fd, UnzipStats* st) {
+    StreamZipReader zr(in_fd);
+    StreamZipReader::Entry e;
+    bool ok_all = true;
+    char buf[256 * 1024];
+    int32_t r;
+
+    while ((r = zr.Next(&e)) > 0) {
+        std::string rel;
+        bool is_dir = false;
+        if (!unzip_accept(t, e.name, &rel, &is_dir)) continue;  // Next() 会跳过数据
 
-// ========== RAW（无压缩）导出/导入 ==========
+        if (is_dir) {
+            if (!unzip_make_dir(t, rel)) ok_all = false;
+            continue;
+        }
+
+        std::string out_path;
+        android::base::unique_fd ofd = unzip_open_file(t, rel, &out_path);
+        if (ofd.get() < 0) {
+            ok_all = false;
+            continue;
+        }
+
+        uint64_t written = 0;
+        bool write_ok = true;
+        ssize_t n;
+        while ((n = zr.Read(buf, sizeof(buf))) > 0) {
+            if (write_ok && !write_fully(ofd.get(), buf, (size_t)n)) {
+                ALOGW("write(%s) failed: %s", out_path.c_str(), strerror(errno));
+                write_ok = false;  // 继续读完该条目，保持流同步
+            }
+            written += (uint64_t)n;
+        }
+        if (n < 0) {
+            // 数据损坏或输入中断：流已失去同步，不能继续
+            (void)::unlink(out_path.c_str());
+            r = (int32_t)n;
+            break;
+        }
+        if (!write_ok) {
+            (void)::unlink(out_path.c_str());
+            ok_all = false;
+            continue;
+        }
+        unzip_finish_file(t, ofd.get(), out_path, written, st);
+    }
+
+    if (r < 0) {
+        ALOGE("UNZIP stream failed: %d after %" PRIu64 " bytes", r, zr.bytes_read());
+        report_error(st->rep, r == StreamZipReader::kIoError ? ERR_IO : ERR_FAILED,
+                     zr.error_errno(), "bad zip stream");
+        ok_all = false;
+    }
+    zr.Drain();
+    return ok_all;
+}
 
-// 递归导出树到 out_fd：魔数 "MM01" + [D/F/E 记录]
-static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
+static bool do_unzip_from_fd(int in_fd,
+                             const std::string& logical_dst,
+                             int target_uid,
+                             Reporter* rep) {
     std::string real_root, rel_base;
-    if (!logical_to_real_root(logical_src, &real_root, &rel_base)) {
-        ALOGE("unsupported src path: %s", logical_src.c_str());
+    if (!logical_to_real_root(logical_dst, &real_root, &rel_base)) {
+        ALOGE("unsupported dst path: %s", logical_dst.c_str());
+        report_error(rep, ERR_PATH, 0, "unsupported logical path");
         return false;
     }
-    // 计算导出的根目录
-    std::string base_dir = real_root;
+
+    UnzipTarget t;
+    // 计算真正解压根目录
+    t.base_dir = real_root;
     if (!rel_base.empty()) {
-        base_dir = join_path(real_root, rel_base);
+        t.base_dir = join_path(real_root, rel_base);
     }
-    ALOGI("dump_tree_to_fd: logical=%s real_root=%s rel_base=%s base_dir=%s",
-          logical_src.c_str(), real_root.c_str(), rel_base.c_str(), base_dir.c_str());
+    t.uid = target_uid;
 
-    const bool is_internal_data =
-            (logical_src == "/data/data") || (logical_src.rfind("/data/data/", 0) == 0);
-    const bool is_external_app_data =
-            (logical_src == "/sdcard/Android/data") || (logical_src.rfind("/sdcard/Android/data/", 0) == 0);
+    ALOGI("unzip to logical=%s real_root=%s rel_base=%s base_dir=%s uid=%d",
+          logical_dst.c_str(),
+          real_root.c_str(),
+          rel_base.c_str(),
+          t.base_dir.c_str(),
+          target_uid);
+
+    t.is_internal_data =
+            (logical_dst == "/data/data") || (logical_dst.rfind("/data/data/", 0) == 0);
+
+    t.is_external_app_data =
+            (logical_dst == "/sdcard/Android/data") || (logical_dst.rfind("/sdcard/Android/data/", 0) == 0);
 
-    // 若是单包 dump（/data/data/<pkg> 或 /sdcard/Android/data/<pkg>），目标包在黑名单则导出空流
+    if (!rel_base.empty()) {
+        t.target_pkg = first_path_component(rel_base);
+    }
+
+    if (target_uid < 0) {
+        ALOGE("target uid missing");
+        return false;
+    }
+
+    if (!ensure_dir_all(t.base_dir, 0770)) {
+        ALOGE("ensure_dir_all(%s) failed", t.base_dir.c_str());
+        return false;
+    }
+
+    // 若是单包 restore，目标包在黑名单中：整包跳过（但仍正常 consume zip entries）
+    if (t.is_internal_data && !t.target_pkg.empty() && is_blacklisted_internal(t.target_pkg)) {
+        ALOGI("UNZIP: target INTERNAL package is blacklisted (%s), skip ALL entries", t.target_pkg.c_str());
+        t.skip_all = true;
+    }
+    if (t.is_external_app_data && !t.target_pkg.empty() && is_blacklisted_external(t.target_pkg)) {
+        ALOGI("UNZIP: target EXTERNAL package is blacklisted (%s), skip ALL entries", t.target_pkg.c_str());
+        t.skip_all = true;
+    }
+
+    UnzipStats st;
+    st.rep = rep;
+    bool ok_all;
+
+    // Java 侧传来的若是普通文件（FileInputStream），原地随机访问打开；
+    // OpenArchiveFd 不认 zip64（R 的 libziparchive），失败时从头流式读同一个 fd。
+    struct stat in_st{};
+    bool opened = false;
+    if (::fstat(in_fd, &in_st) == 0 && S_ISREG(in_st.st_mode)) {
+        ok_all = unzip_in_place(t, in_fd, &st, &opened);
+        if (opened) {
+            ALOGI("UNZIP in place (%" PRId64 " bytes)", (int64_t)in_st.st_size);
+        } else if (TEMP_FAILURE_RETRY(::lseek(in_fd, 0, SEEK_SET)) != 0) {
+            ALOGE("lseek(in_fd) failed: %s", strerror(errno));
+            report_error(rep, ERR_IO, errno, "seek input");
+            return false;
+        }
+    }
+    if (!opened) {
+        ok_all = unzip_stream(t, in_fd, &st);
+    }
+    report_progress(rep, &st.last_report, st.files, st.bytes);
+
+    ALOGI("UNZIP done ok=%d files=%" PRIu64 " bytes=%" PRIu64, ok_all?1:0, st.files, st.bytes);
+    return ok_all;
+}
+
+
+// ========== RAW（无压缩）导出/导入 ==========
+
+// ========== MM01 完整性（CRC32 trailer + 全流摘要）==========
+//
+// mode 最高位 kRawModeCrc32：
+//   'F'：payload 之后跟 u32 CRC32（payload 的 CRC）
+//   'E'：mtime = 本流内所有 'F' payload 的总字节数，size 低 32 位 = 这些 payload 依次拼接后的 CRC32
+// 不带该位的旧流照常接受，只是不校验。CRC 在数据经过时顺带计算，不需要第二遍读。
+// 续传的流只覆盖本次实际发送的文件。
+
+static constexpr uint32_t kRawModeCrc32 = 0x80000000u;
+
+struct RawDigest {
+    uint32_t crc = 0;
+    uint64_t bytes = 0;
+
+    // crc32_combine 按长度拼接，不必把每个字节再算一遍
+    void add(uint32_t file_crc, uint64_t len) {
+        crc = (uint32_t)crc32_combine(crc, file_crc, (z_off_t)len);
+        bytes += len;
+    }
+};
+
+// ========== MM01 zstd payload ==========
+//
+// mode 次高位 kRawModeZstd（只出现在 'F'，且总与 kRawModeCrc32 同时出现）：
+//   size 仍是原始长度（进度、检查点、摘要都按原始字节算），payload 换成若干
+//   [u32 len][len 字节] 分块，以 len == 0 结束；分块依次拼起来是一个 zstd 帧。
+//   分块只是让读端不必缓冲、也不必解码就知道 payload 在哪里结束。
+//   CRC trailer 仍是原始数据的 CRC。
+// 只有带 TAG_RAW_ZSTD_LEVEL 的 DUMP 才会产生；PUTRAW 两种都接受。
+
+static constexpr uint32_t kRawModeZstd = 0x40000000u;
+static constexpr uint64_t kRawZstdMinSize = 128;        // 更小的文件帧头开销比省下的还多
+static constexpr uint32_t kRawZstdMaxChunk = 1024 * 1024;
+static constexpr int kRawZstdLongWindowLog = 27;        // 解码端默认接受的最大窗口
+
+struct RawCodec {
+    int level = 0;  // 0 = 不压缩（经典 MM01）
+    bool long_match = false;
+    bool pack = false;  // 小文件打成 'P' 记录
+    ZSTD_CCtx* cctx = nullptr;
+    std::vector<uint8_t> out;
+
+    RawCodec() = default;
+    RawCodec(const RawCodec&) = delete;
+    RawCodec& operator=(const RawCodec&) = delete;
+    ~RawCodec() { ZSTD_freeCCtx(cctx); }
+
+    bool init() {
+        if (level == 0) return true;
+        cctx = ZSTD_createCCtx();
+        if (!cctx) return false;
+        if (ZSTD_isError(ZSTD_CCtx_setParameter(cctx, ZSTD_c_compressionLevel, level))) return false;
+        if (long_match &&
+            (ZSTD_isError(ZSTD_CCtx_setParameter(cctx, ZSTD_c_enableLongDistanceMatching, 1)) ||
+             ZSTD_isError(ZSTD_CCtx_setParameter(cctx, ZSTD_c_windowLog, kRawZstdLongWindowLog)))) {
+            return false;
+        }
+        out.resize(ZSTD_CStreamOutSize());
+        return true;
+    }
+};
+
+struct RawDecoder {
+    ZSTD_DCtx* dctx = nullptr;
+    std::vector<uint8_t> chunk;
+
+    RawDecoder() = default;
+    RawDecoder(const RawDecoder&) = delete;
+    RawDecoder& operator=(const RawDecoder&) = delete;
+    ~RawDecoder() { ZSTD_freeDCtx(dctx); }
+
+    // 每个帧开始前调用；dctx 在整条流里复用
+    bool begin() {
+        if (dctx) return !ZSTD_isError(ZSTD_DCtx_reset(dctx, ZSTD_reset_session_only));
+        dctx = ZSTD_createDCtx();
+        if (!dctx) return false;
+        (void)ZSTD_DCtx_setParameter(dctx, ZSTD_d_windowLogMax, kRawZstdLongWindowLog);
+        return true;
+    }
+};
+
+// 读一个 'F' 的 payload（不含 trailer），原始数据写到 out_fd，*crc 为原始数据的 CRC
+static bool read_raw_payload(int in_fd, int out_fd, uint64_t size, uint32_t mode,
+                             RawDecoder* dec, uint32_t* crc_out) {
+    uint8_t buf[256 * 1024];
+    uint32_t crc = 0;
+    if (!(mode & kRawModeZstd)) {
+        uint64_t left = size;
+        while (left) {
+            ssize_t r = TEMP_FAILURE_RETRY(::read(in_fd, buf, std::min<uint64_t>(left, sizeof(buf))));
+            if (r <= 0) return false;
+            crc = (uint32_t)crc32(crc, buf, (uInt)r);
+            if (!write_fully(out_fd, buf, (size_t)r)) return false;
+            left -= (uint64_t)r;
+        }
+        *crc_out = crc;
+        return true;
+    }
+
+    if (!dec->begin()) return false;
+    uint64_t produced = 0;
+    size_t zr = 1;  // 0 = 帧已结束
+    while (true) {
+        uint32_t clen = 0;
+        if (!r32(in_fd, &clen)) return false;
+        if (clen == 0) break;
+        if (clen > kRawZstdMaxChunk || zr == 0) {
+            ALOGE("MM01 zstd chunk %u bytes after %" PRIu64 "/%" PRIu64, clen, produced, size);
+            return false;
+        }
+        dec->chunk.resize(clen);
+        if (!read_fully(in_fd, dec->chunk.data(), clen)) return false;
+        ZSTD_inBuffer in{dec->chunk.data(), clen, 0};
+        bool full = true;
+        // 输入吃完后解码器里可能还压着输出，直到输出缓冲不再被填满；
+        // 帧已结束（zr == 0）就不能再调，否则会当作下一帧开始而把 zr 改掉
+        while (zr != 0 && (in.pos < in.size || full)) {
+            ZSTD_outBuffer ob{buf, sizeof(buf), 0};
+            zr = ZSTD_decompressStream(dec->dctx, &ob, &in);
+            if (ZSTD_isError(zr)) {
+                ALOGE("MM01 zstd decode failed: %s", ZSTD_getErrorName(zr));
+                return false;
+            }
+            produced += ob.pos;
+            if (produced > size) {
+                ALOGE("MM01 zstd payload larger than declared %" PRIu64, size);
+                return false;
+            }
+            crc = (uint32_t)crc32(crc, buf, (uInt)ob.pos);
+            if (ob.pos && !write_fully(out_fd, buf, ob.pos)) return false;
+            full = (ob.pos == ob.size);
+        }
+        if (zr == 0 && in.pos < in.size) {
+            ALOGE("MM01 zstd trailing data in payload");
+            return false;
+        }
+    }
+    if (zr != 0 || produced != size) {
+        ALOGE("MM01 zstd payload truncated: %" PRIu64 "/%" PRIu64, produced, size);
+        return false;
+    }
+    *crc_out = crc;
+    return true;
+}
+
+// 读并丢弃一个 'F' 的 payload（及 trailer）并计入摘要。
+// 明文 payload 照常校验 CRC；zstd payload 只按分块跳过、不解码，摘要用 trailer 里的 CRC
+static bool skip_raw_payload(int in_fd, uint64_t size, uint32_t mode, RawDigest* dg) {
+    uint8_t tmp[64 * 1024];
+    uint32_t crc = 0;
+    if (mode & kRawModeZstd) {
+        uint32_t clen = 0;
+        while (r32(in_fd, &clen) && clen != 0) {
+            if (clen > kRawZstdMaxChunk) return false;
+            while (clen) {
+                ssize_t r = TEMP_FAILURE_RETRY(::read(in_fd, tmp, std::min<uint32_t>(clen, sizeof(tmp))));
+                if (r <= 0) return false;
+                clen -= (uint32_t)r;
+            }
+        }
+        if (clen != 0 || !r32(in_fd, &crc)) return false;
+        if (dg) dg->add(crc, size);
+        return true;
+    }
+    uint64_t left = size;
+    while (left) {
+        ssize_t r = TEMP_FAILURE_RETRY(::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
+        if (r <= 0) return false;
+        crc = (uint32_t)crc32(crc, tmp, (uInt)r);
+        left -= (uint64_t)r;
+    }
+    if (!(mode & kRawModeCrc32)) return true;
+    uint32_t expect = 0;
+    if (!r32(in_fd, &expect)) return false;
+    if (expect != crc) {
+        ALOGE("MM01 payload crc mismatch %08x/%08x (skipped file)", crc, expect);
+        return false;
+    }
+    if (dg) dg->add(crc, size);
+    return true;
+}
+
+static bool write_raw_chunk(int out_fd, const void* p, size_t n) {
+    return w32(out_fd, (uint32_t)n) && write_fully(out_fd, p, n);
+}
+
+// 把 n 字节送进当前 zstd 帧，产出按分块写出；end 时结束帧。*zout 累加压缩后字节数
+static bool write_zstd_part(int out_fd, RawCodec* codec, const void* p, size_t n, bool end,
+                            uint64_t* zout) {
+    const ZSTD_EndDirective op = end ? ZSTD_e_end : ZSTD_e_continue;
+    ZSTD_inBuffer in{p, n, 0};
+    size_t rem;
+    do {
+        ZSTD_outBuffer ob{codec->out.data(), codec->out.size(), 0};
+        rem = ZSTD_compressStream2(codec->cctx, &ob, &in, op);
+        if (ZSTD_isError(rem)) {
+            ALOGE("zstd compress failed: %s", ZSTD_getErrorName(rem));
+            return false;
+        }
+        if (ob.pos && !write_raw_chunk(out_fd, ob.dst, ob.pos)) return false;
+        *zout += ob.pos;
+    } while (end ? rem != 0 : in.pos < in.size);
+    return true;
+}
+
+// ========== MM01 小文件打包（'P' 记录）==========
+//
+// 同一目录下的一批小文件（每个 <= 4K）合成一条记录，省掉每个文件的记录头、完整路径和 CRC trailer；
+// 还原时整包校验通过后才落盘，目录只建一次、chown 一次，SELinux 标签也只查一次：
+//   'P' u16 pathLen, u32 mode, u64 indexLen, u64 size, path（所在目录，根目录为空）
+//   mode：kRawModeCrc32 | [kRawModeZstd] | 文件数（低 16 位，1–512）
+//   body：index（indexLen 字节）+ data（size 字节，<= 256K，各文件内容依次拼接）
+//         每个文件一条 index：u16 nameLen, u16 perm, u32 mtime, u32 size, name（不含 '/'）
+//   trailer：u32 CRC32(index), u32 CRC32(data)
+// 带 kRawModeZstd 时 body 整体是一个 zstd 帧，分块方式与 'F' 相同，trailer 不变。
+// 全流摘要和检查点都按文件计：一条 'P' 等价于依次发送其中每个 'F'，'C' 不会落在包中间。
+// 只有带 TAG_RAW_PACK 的 DUMP 和 MirrorUtil 的写端会产生；PUTRAW 接受并在 CAPS 里报 "PACK"，
+// 写端没看到 "PACK"（旧 daemon）时只发 'F'。
+
+static constexpr uint64_t kRawPackMaxFile = 4096;
+static constexpr size_t kRawPackMaxData = 256 * 1024;
+static constexpr uint32_t kRawPackMaxCount = 512;
+static constexpr uint32_t kRawPackCountMask = 0xffff;
+static constexpr size_t kRawPackEntryHeader = 12;
+static constexpr size_t kRawPackMaxIndex = kRawPackMaxCount * (kRawPackEntryHeader + NAME_MAX);
+
+struct RawPack {
+    std::string dir;
+    std::vector<uint8_t> index;
+    std::vector<uint8_t> data;
+    uint32_t count = 0;
+
+    bool fits(uint64_t size) const {
+        return count < kRawPackMaxCount && data.size() + size <= kRawPackMaxData;
+    }
+    void clear() {
+        index.clear();
+        data.clear();
+        count = 0;
+    }
+};
+
+struct RawPackEntry {
+    std::string name;
+    mode_t perm;
+    size_t off;   // 在 data 里的偏移
+    size_t size;
+};
+
+template <typename T>
+static void put_le(std::vector<uint8_t>* b, T v) {
+    const uint8_t* p = reinterpret_cast<const uint8_t*>(&v);
+    b->insert(b->end(), p, p + sizeof(v));
+}
+
+// 把一个小文件读进包；以实际读到的字节为准，文件在遍历中途变化也不会让流失去自洽
+static bool raw_pack_add(RawPack* pk, const std::string& name, const std::string& full,
+                         const struct stat& st) {
+    android::base::unique_fd fd(::open(full.c_str(), O_RDONLY | O_NOFOLLOW | O_CLOEXEC));
+    if (fd.get() < 0) {
+        ALOGW("open(%s) failed: %s", full.c_str(), strerror(errno));
+        return false;
+    }
+    const size_t off = pk->data.size();
+    const size_t want = (size_t)st.st_size;
+    pk->data.resize(off + want);
+    size_t got = 0;
+    while (got < want) {
+        ssize_t r = TEMP_FAILURE_RETRY(::read(fd.get(), pk->data.data() + off + got, want - got));
+        if (r < 0) {
+            ALOGW("read(%s) failed: %s", full.c_str(), strerror(errno));
+            pk->data.resize(off);
+            return false;
+        }
+        if (r == 0) break;
+        got += (size_t)r;
+    }
+    pk->data.resize(off + got);
+    put_le(&pk->index, (uint16_t)name.size());
+    put_le(&pk->index, (uint16_t)(st.st_mode & 0777));
+    put_le(&pk->index, (uint32_t)st.st_mtime);
+    put_le(&pk->index, (uint32_t)got);
+    pk->index.insert(pk->index.end(), name.begin(), name.end());
+    pk->count++;
+    return true;
+}
+
+// 写出一条 'P'；*data_crc 为 data 的 CRC（计入全流摘要）
+static bool write_raw_pack(int out_fd, const RawPack& pk, RawCodec* codec, uint32_t* data_crc,
+                           uint64_t* zstd_out) {
+    const bool zstd = codec->cctx && pk.index.size() + pk.data.size() >= kRawZstdMinSize;
+    const uint32_t mode = kRawModeCrc32 | (zstd ? kRawModeZstd : 0) | pk.count;
+    if (!(w8(out_fd,'P') && w16(out_fd,(uint16_t)pk.dir.size()) && w32(out_fd,mode) &&
+          w64(out_fd,pk.index.size()) && w64(out_fd,pk.data.size()) &&
+          write_fully(out_fd, pk.dir.data(), pk.dir.size()))) return false;
+    if (zstd) {
+        (void)ZSTD_CCtx_reset(codec->cctx, ZSTD_reset_session_only);
+        (void)ZSTD_CCtx_setPledgedSrcSize(codec->cctx, pk.index.size() + pk.data.size());
+        if (!write_zstd_part(out_fd, codec, pk.index.data(), pk.index.size(), false, zstd_out) ||
+            !write_zstd_part(out_fd, codec, pk.data.data(), pk.data.size(), true, zstd_out) ||
+            !w32(out_fd, 0)) {
+            return false;
+        }
+    } else if (!write_fully(out_fd, pk.index.data(), pk.index.size()) ||
+               !write_fully(out_fd, pk.data.data(), pk.data.size())) {
+        return false;
+    }
+    *data_crc = (uint32_t)crc32(0, pk.data.data(), (uInt)pk.data.size());
+    return w32(out_fd, (uint32_t)crc32(0, pk.index.data(), (uInt)pk.index.size())) &&
+           w32(out_fd, *data_crc);
+}
+
+// 把一个 zstd 分块帧完整解到内存；原始长度必须正好是 len
+static bool read_zstd_to_buf(int in_fd, RawDecoder* dec, std::vector<uint8_t>* out, size_t len) {
+    if (!dec->begin()) return false;
+    // 多留 1 字节：帧比声明的长时能当场发现，不会卡在输出缓冲已满
+    out->resize(len + 1);
+    size_t produced = 0;
+    size_t zr = 1;
+    while (true) {
+        uint32_t clen = 0;
+        if (!r32(in_fd, &clen)) return false;
+        if (clen == 0) break;
+        if (clen > kRawZstdMaxChunk || zr == 0) return false;
+        dec->chunk.resize(clen);
+        if (!read_fully(in_fd, dec->chunk.data(), clen)) return false;
+        ZSTD_inBuffer in{dec->chunk.data(), clen, 0};
+        while (in.pos < in.size) {
+            ZSTD_outBuffer ob{out->data(), out->size(), produced};
+            zr = ZSTD_decompressStream(dec->dctx, &ob, &in);
+            if (ZSTD_isError(zr)) {
+                ALOGE("MM01 zstd decode failed: %s", ZSTD_getErrorName(zr));
+                return false;
+            }
+            produced = ob.pos;
+            if (produced > len || (zr == 0 && in.pos < in.size)) return false;
+        }
+    }
+    if (zr != 0 || produced != len) return false;
+    out->resize(len);
+    return true;
+}
+
+// 读一条 'P' 的 body 和 trailer，校验后拆出 index；index_len/size 是记录头里的 mtime/size。
+// *data_crc 为 data 的 CRC（计入全流摘要）
+static bool read_raw_pack(int in_fd, uint32_t mode, uint64_t index_len, uint64_t size,
+                          RawDecoder* dec, std::vector<uint8_t>* body,
+                          std::vector<RawPackEntry>* entries, uint32_t* data_crc) {
+    const uint32_t count = mode & kRawPackCountMask;
+    if (count == 0 || count > kRawPackMaxCount || index_len > kRawPackMaxIndex ||
+        size > kRawPackMaxData) {
+        ALOGE("MM01 pack out of range: count=%u index=%" PRIu64 " size=%" PRIu64,
+              count, index_len, size);
+        return false;
+    }
+    const size_t total = (size_t)(index_len + size);
+    if (mode & kRawModeZstd) {
+        if (!read_zstd_to_buf(in_fd, dec, body, total)) return false;
+    } else {
+        body->resize(total);
+        if (!read_fully(in_fd, body->data(), total)) return false;
+    }
+    const uint8_t* idx = body->data();
+    const uint8_t* data = idx + index_len;
+    *data_crc = (uint32_t)crc32(0, data, (uInt)size);
+    if (mode & kRawModeCrc32) {
+        uint32_t icrc = 0, dcrc = 0;
+        if (!r32(in_fd, &icrc) || !r32(in_fd, &dcrc)) return false;
+        if (icrc != (uint32_t)crc32(0, idx, (uInt)index_len) || dcrc != *data_crc) {
+            ALOGE("MM01 pack crc mismatch");
+            return false;
+        }
+    }
+
+    entries->clear();
+    size_t pos = 0, off = 0;
+    for (uint32_t i = 0; i < count; ++i) {
+        if (index_len - pos < kRawPackEntryHeader) return false;
+        uint16_t name_len, perm;
+        uint32_t mtime, fsize;
+        memcpy(&name_len, idx + pos, 2);
+        memcpy(&perm, idx + pos + 2, 2);
+        memcpy(&mtime, idx + pos + 4, 4);
+        memcpy(&fsize, idx + pos + 8, 4);
+        pos += kRawPackEntryHeader;
+        if (index_len - pos < name_len || size - off < fsize) return false;
+        RawPackEntry e;
+        e.name.assign(reinterpret_cast<const char*>(idx + pos), name_len);
+        pos += name_len;
+        if (e.name.empty() || e.name == "." || e.name == ".." ||
+            e.name.find_first_of(std::string("/\0", 2)) != std::string::npos) {
+            ALOGE("MM01 pack bad name");
+            return false;
+        }
+        e.perm = perm & 0777;
+        e.off = off;
+        e.size = fsize;
+        off += fsize;
+        entries->push_back(std::move(e));
+    }
+    return pos == index_len && off == size;
+}
+
+// 丢弃一条记录的 payload（'F'/'P'）并计入摘要；其它记录没有 payload
+static bool skip_raw_record(int in_fd, uint8_t tag, uint32_t mode, uint64_t mtime, uint64_t size,
+                            RawDecoder* dec, RawDigest* dg) {
+    if (tag == 'F') return skip_raw_payload(in_fd, size, mode, dg);
+    if (tag != 'P') return true;
+    // 包不大，直接整包读进来校验
+    std::vector<uint8_t> body;
+    std::vector<RawPackEntry> entries;
+    uint32_t crc = 0;
+    if (!read_raw_pack(in_fd, mode, mtime, size, dec, &body, &entries, &crc)) return false;
+    if (dg) dg->add(crc, size);
+    return true;
+}
+
+// 递归导出树到 out_fd：魔数 "MM01" + [D/F/E 记录]（导出侧不产生 C 记录）
+static bool dump_tree_to_fd(int out_fd, const std::string& logical_src,
+                            const WalkFilter& filter_in, RawCodec* codec, Reporter* rep) {
+    std::string real_root, rel_base;
+    if (!logical_to_real_root(logical_src, &real_root, &rel_base)) {
+        ALOGE("unsupported src path: %s", logical_src.c_str());
+        report_error(rep, ERR_PATH, 0, "unsupported logical path");
+        return false;
+    }
+    // 计算导出的根目录
+    std::string base_dir = real_root;
+    if (!rel_base.empty()) {
+        base_dir = join_path(real_root, rel_base);
+    }
+    ALOGI("dump_tree_to_fd: logical=%s real_root=%s rel_base=%s base_dir=%s",
+          logical_src.c_str(), real_root.c_str(), rel_base.c_str(), base_dir.c_str());
+
+    const bool is_internal_data =
+            (logical_src == "/data/data") || (logical_src.rfind("/data/data/", 0) == 0);
+    const bool is_external_app_data =
+            (logical_src == "/sdcard/Android/data") || (logical_src.rfind("/sdcard/Android/data/", 0) == 0);
+
+    WalkFilter filter = filter_in;
+    filter.bind(rel_base, is_internal_data || is_external_app_data);
+
+    // 若是单包 dump（/data/data/<pkg> 或 /sdcard/Android/data/<pkg>），目标包在黑名单则导出空流
     if (!rel_base.empty()) {
         const std::string pkg = first_path_component(rel_base);
         if (is_internal_data && is_blacklisted_internal(pkg)) {
@@ -932,6 +1843,11 @@ static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
     std::vector<std::string> stack;
     stack.push_back(""); // 以 base_dir 为基准，rel="" 表示根
 
+    uint64_t sent_files = 0, sent_bytes = 0;
+    uint64_t zstd_files = 0, zstd_in = 0, zstd_out = 0;
+    time_t last_report = 0;
+    RawDigest digest;
+
     auto send_dir = [&](const std::string& rel)->bool{
         return w8(out_fd,'D') && w16(out_fd, (uint16_t)rel.size())
             && w32(out_fd, 0770) && w64(out_fd, 0) && w64(out_fd, 0)
@@ -953,19 +1869,64 @@ static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
         }
 
         uint64_t sz = (uint64_t)st.st_size;
+        const bool zstd = codec->cctx && sz >= kRawZstdMinSize;
+        uint32_t mode = (uint32_t)(st.st_mode & 0777) | kRawModeCrc32;
+        if (zstd) mode |= kRawModeZstd;
         if (!(w8(out_fd,'F') && w16(out_fd,(uint16_t)rel.size()) &&
-              w32(out_fd,(uint32_t)(st.st_mode & 0777)) &&
+              w32(out_fd,mode) &&
               w64(out_fd,(uint64_t)st.st_mtime) && w64(out_fd,sz) &&
               write_fully(out_fd, rel.data(), rel.size()))) return false;
+        if (zstd) {
+            // 帧头里带上原始长度，zstd 也据此把窗口缩到文件大小
+            (void)ZSTD_CCtx_reset(codec->cctx, ZSTD_reset_session_only);
+            (void)ZSTD_CCtx_setPledgedSrcSize(codec->cctx, sz);
+        }
 
         uint8_t buf[256*1024];
         uint64_t left = sz;
+        uint32_t crc = 0;
         while (left) {
             ssize_t r = TEMP_FAILURE_RETRY(::read(fd.get(), buf, std::min<uint64_t>(left, sizeof(buf))));
             if (r <= 0) return false;
-            if (!write_fully(out_fd, buf, (size_t)r)) return false;
+            crc = (uint32_t)crc32(crc, buf, (uInt)r);
             left -= (uint64_t)r;
+            if (!zstd) {
+                if (!write_fully(out_fd, buf, (size_t)r)) return false;
+                continue;
+            }
+            if (!write_zstd_part(out_fd, codec, buf, (size_t)r, left == 0, &zstd_out)) {
+                ALOGE("zstd(%s) failed", full.c_str());
+                return false;
+            }
         }
+        if (zstd) {
+            if (!w32(out_fd, 0)) return false;
+            zstd_files++;
+            zstd_in += sz;
+        }
+        if (!w32(out_fd, crc)) return false;
+        digest.add(crc, sz);
+        sent_files++;
+        sent_bytes += sz;
+        report_progress(rep, &last_report, sent_files, sent_bytes);
+        return true;
+    };
+
+    RawPack pack;
+    uint64_t packs = 0;
+    auto flush_pack = [&]()->bool{
+        if (pack.count == 0) return true;
+        uint32_t crc = 0;
+        if (!write_raw_pack(out_fd, pack, codec, &crc, &zstd_out)) return false;
+        if (codec->cctx && pack.index.size() + pack.data.size() >= kRawZstdMinSize) {
+            zstd_in += pack.index.size() + pack.data.size();
+        }
+        digest.add(crc, pack.data.size());
+        sent_files += pack.count;
+        sent_bytes += pack.data.size();
+        packs++;
+        pack.clear();
+        report_progress(rep, &last_report, sent_files, sent_bytes);
         return true;
     };
 
@@ -998,6 +1959,7 @@ static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
             ::closedir(d);
             return false;
         }
+        pack.dir = rel;
 
         struct dirent* de;
         while ((de = ::readdir(d)) != nullptr) {
@@ -1021,8 +1983,24 @@ static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
                         continue;
                     }
                 }
+                if (filter.skip_dir(childRel)) {
+                    ALOGD("DUMP filter skip dir: %s", childRel.c_str());
+                    continue;
+                }
                 stack.push_back(childRel);
             } else if (S_ISREG(st.st_mode)) {
+                if (filter.skip_file(childRel, st)) {
+                    ALOGD("DUMP filter skip file: %s", childRel.c_str());
+                    continue;
+                }
+                if (codec->pack && (uint64_t)st.st_size <= kRawPackMaxFile) {
+                    if (!pack.fits((uint64_t)st.st_size) && !flush_pack()) {
+                        ::closedir(d);
+                        return false;
+                    }
+                    (void)raw_pack_add(&pack, de->d_name, childFull, st);
+                    continue;
+                }
                 if (!send_file(childRel, childFull)) {
                     ::closedir(d);
                     return false;
@@ -1032,61 +2010,220 @@ static bool dump_tree_to_fd(int out_fd, const std::string& logical_src) {
             }
         }
         ::closedir(d);
+        if (!flush_pack()) return false;
     }
 
-    // 结束
+    // 结束（带全流摘要）
     (void)w8(out_fd,'E');
     (void)w16(out_fd,0);
-    (void)w32(out_fd,0);
-    (void)w64(out_fd,0);
-    (void)w64(out_fd,0);
+    (void)w32(out_fd,kRawModeCrc32);
+    (void)w64(out_fd,digest.bytes);
+    (void)w64(out_fd,digest.crc);
+    ALOGI("DUMP done files=%" PRIu64 " bytes=%" PRIu64 " packs=%" PRIu64
+          " zstd(level=%d long=%d) files=%" PRIu64 " %" PRIu64 " -> %" PRIu64,
+          sent_files, sent_bytes, packs, codec->level, codec->long_match ? 1 : 0,
+          zstd_files, zstd_in, zstd_out);
+    return true;
+}
+
+// ========== MM02：前缀压缩路径 ==========
+//
+// 魔数 "MM02"，记录和 payload 与 MM01 完全相同，只是路径字段按上一条记录（任何类型，'E' 为空）的路径
+// 做前缀压缩，深目录下的 'F' 通常只剩文件名：
+//   u8 tag, u16 shared, u16 suffixLen, u32 mode, u64 mtime, u64 size, suffix
+//   path = 上一条路径的前 shared 字节 + suffix
+// daemon 只读不写（DUMP 仍输出 MM01）；写端先用 CAPS 确认 daemon 接受 MM02，否则写 MM01。
+//
+// CAPS 的 TAG_RAW_FORMAT 除了流魔数还报可选的记录类型："PACK" 表示 PUTRAW 认识 'P'。
+
+static const char* const kRawFormats[] = {"MM01", "MM02", "PACK"};
+
+struct RawPathState {
+    bool mm02 = false;
+    std::string prev;
+};
+
+static bool read_raw_magic(int in_fd, RawPathState* ps) {
+    char magic[4];
+    if (!read_fully(in_fd, magic, 4)) return false;
+    if (::memcmp(magic, "MM01", 4) == 0) return true;
+    ps->mm02 = ::memcmp(magic, "MM02", 4) == 0;
+    return ps->mm02;
+}
+
+// 读 tag 之后的记录头和完整路径
+static bool read_raw_header(int in_fd, RawPathState* ps, uint32_t* mode, uint64_t* mtime,
+                            uint64_t* size, std::string* path) {
+    uint16_t shared = 0, len = 0;
+    if ((ps->mm02 && !r16(in_fd, &shared)) || !r16(in_fd, &len) || !r32(in_fd, mode) ||
+        !r64(in_fd, mtime) || !r64(in_fd, size)) {
+        return false;
+    }
+    if (shared > ps->prev.size() || (size_t)shared + len > 0xffff) {
+        ALOGE("MM02 bad path prefix %u/%zu", shared, ps->prev.size());
+        return false;
+    }
+    path->assign(ps->prev, 0, shared);
+    path->resize((size_t)shared + len);
+    if (len && !read_fully(in_fd, &(*path)[shared], len)) return false;
+    if (ps->mm02) ps->prev = *path;
+    return true;
+}
+
+static bool do_query_caps(Reporter* rep) {
+    for (const char* f : kRawFormats) report_tlv(rep, TAG_RAW_FORMAT, f);
     return true;
 }
 
 // 丢弃 RAW stream（读到 END），用于“目标黑名单包 restore”时 consume 输入避免协议不同步
 static bool discard_raw_stream(int in_fd) {
-    // 校验魔数
-    char magic[4];
-    if (!read_fully(in_fd, magic, 4) || ::memcmp(magic, "MM01", 4) != 0) {
+    RawPathState paths;
+    if (!read_raw_magic(in_fd, &paths)) {
         ALOGE("discard_raw_stream: bad stream magic");
         return false;
     }
 
     uint8_t tag;
+    RawDecoder decoder;
+    std::string path;
     while (true) {
         if (!r8(in_fd, &tag)) return false;
 
-        if (tag == 'E') {
-            uint16_t pl; uint32_t md; uint64_t mt, sz;
-            if (!r16(in_fd,&pl) || !r32(in_fd,&md) || !r64(in_fd,&mt) || !r64(in_fd,&sz)) return false;
-            return true;
-        }
+        uint32_t mode; uint64_t mtime; uint64_t size;
+        if (!read_raw_header(in_fd, &paths, &mode, &mtime, &size, &path)) return false;
+        if (tag == 'E') return true;
 
-        uint16_t pathLen; uint32_t mode; uint64_t mtime; uint64_t size;
-        if (!r16(in_fd,&pathLen) || !r32(in_fd,&mode) || !r64(in_fd,&mtime) || !r64(in_fd,&size)) return false;
+        if (!skip_raw_record(in_fd, tag, mode, mtime, size, &decoder, nullptr)) return false;
+    }
+}
 
-        if (pathLen) {
-            std::vector<uint8_t> tmp(pathLen);
-            if (!read_fully(in_fd, tmp.data(), pathLen)) return false;
-        }
+// ========== PUTRAW 检查点（'C' 记录 + 日志）==========
+//
+// 写端每隔若干文件在 MM01 流里插入一条检查点记录，头部与 D/F/E 相同：
+//   'C' u16 pathLen, u32 0, u64 files, u64 bytes, path
+// files/bytes 是从流开头（不是本次续传开头）累计的 'F' 记录数和 payload 字节数，
+// path 是其前最后一个 'F' 的相对路径。daemon 读到 'C' 时先 syncfs 让之前写入的文件落盘，
+// 再原子替换日志，所以日志里记录的位置之前的文件在进程崩溃或掉电后也是完整的。
+// 日志按逻辑目标路径区分：读到 'E' 后删除；不带 TAG_RESUME 的 PUTRAW 开始时也删除旧日志。
+
+static const char* kRawJournalDir = "/data/system/mirrormedia/raw_journal";
+static const char kRawJournalMagic[4] = {'M', 'M', 'C', 'K'};
+
+struct RawCheckpoint {
+    uint64_t files = 0;
+    uint64_t bytes = 0;
+    std::string path;
+};
+
+static std::string raw_journal_path(const std::string& logical_dst) {
+    // FNV-1a 64；日志里另存完整目标路径，碰撞时按“无检查点”处理
+    uint64_t h = 14695981039346656037ull;
+    for (unsigned char c : logical_dst) { h ^= c; h *= 1099511628211ull; }
+    char name[32];
+    snprintf(name, sizeof(name), "%016" PRIx64 ".ck", h);
+    return join_path(kRawJournalDir, name);
+}
 
-        if (tag == 'F') {
-            uint8_t buf[4096];
-            uint64_t left = size;
-            while (left) {
-                ssize_t r = TEMP_FAILURE_RETRY(::read(in_fd, buf, std::min<uint64_t>(left, sizeof(buf))));
-                if (r <= 0) return false;
-                left -= (uint64_t)r;
-            }
+static bool load_raw_checkpoint(const std::string& logical_dst, RawCheckpoint* ck) {
+    const std::string path = raw_journal_path(logical_dst);
+    android::base::unique_fd fd(::open(path.c_str(), O_RDONLY | O_CLOEXEC | O_NOFOLLOW));
+    if (fd.get() < 0) {
+        if (errno != ENOENT) ALOGW("open(%s) failed: %s", path.c_str(), strerror(errno));
+        return false;
+    }
+    char magic[4];
+    RawCheckpoint c;
+    uint16_t target_len = 0, path_len = 0;
+    if (!read_fully(fd.get(), magic, 4) || ::memcmp(magic, kRawJournalMagic, 4) != 0 ||
+        !r64(fd.get(), &c.files) || !r64(fd.get(), &c.bytes) || !r16(fd.get(), &target_len)) {
+        ALOGW("raw journal %s is corrupt, ignored", path.c_str());
+        return false;
+    }
+    std::string target(target_len, '\0');
+    if ((target_len && !read_fully(fd.get(), target.data(), target_len)) ||
+        !r16(fd.get(), &path_len)) {
+        ALOGW("raw journal %s is corrupt, ignored", path.c_str());
+        return false;
+    }
+    if (target != logical_dst) {
+        ALOGW("raw journal %s belongs to %s, ignored", path.c_str(), target.c_str());
+        return false;
+    }
+    c.path.resize(path_len);
+    if (path_len && !read_fully(fd.get(), c.path.data(), path_len)) {
+        ALOGW("raw journal %s is corrupt, ignored", path.c_str());
+        return false;
+    }
+    *ck = std::move(c);
+    return true;
+}
+
+// 写临时文件 + fsync + rename，再 fsync 目录：任何时刻磁盘上要么是旧日志，要么是新日志
+static bool save_raw_checkpoint(const std::string& logical_dst, const RawCheckpoint& ck) {
+    if (!ensure_dir_all(kRawJournalDir, 0700)) return false;
+    const std::string path = raw_journal_path(logical_dst);
+    const std::string tmp = path + ".tmp";
+    {
+        android::base::unique_fd fd(::open(tmp.c_str(),
+                O_CREAT | O_TRUNC | O_WRONLY | O_CLOEXEC | O_NOFOLLOW, 0600));
+        if (fd.get() < 0) {
+            ALOGW("open(%s) failed: %s", tmp.c_str(), strerror(errno));
+            return false;
+        }
+        const bool ok = write_fully(fd.get(), kRawJournalMagic, 4) &&
+                w64(fd.get(), ck.files) && w64(fd.get(), ck.bytes) &&
+                w16(fd.get(), (uint16_t)logical_dst.size()) &&
+                write_fully(fd.get(), logical_dst.data(), logical_dst.size()) &&
+                w16(fd.get(), (uint16_t)ck.path.size()) &&
+                write_fully(fd.get(), ck.path.data(), ck.path.size());
+        if (!ok || TEMP_FAILURE_RETRY(::fsync(fd.get())) != 0) {
+            ALOGW("write raw journal %s failed: %s", tmp.c_str(), strerror(errno));
+            (void)::unlink(tmp.c_str());
+            return false;
         }
     }
+    if (::rename(tmp.c_str(), path.c_str()) != 0) {
+        ALOGW("rename(%s) failed: %s", tmp.c_str(), strerror(errno));
+        (void)::unlink(tmp.c_str());
+        return false;
+    }
+    android::base::unique_fd dfd(::open(kRawJournalDir, O_RDONLY | O_DIRECTORY | O_CLOEXEC));
+    if (dfd.get() >= 0) (void)TEMP_FAILURE_RETRY(::fsync(dfd.get()));
+    return true;
+}
+
+static void clear_raw_checkpoint(const std::string& logical_dst) {
+    const std::string path = raw_journal_path(logical_dst);
+    if (::unlink(path.c_str()) != 0 && errno != ENOENT) {
+        ALOGW("unlink(%s) failed: %s", path.c_str(), strerror(errno));
+    }
+}
+
+static void report_raw_checkpoint(Reporter* rep, const RawCheckpoint& ck) {
+    report_tlv(rep, TAG_CKPT_FILES, std::string(reinterpret_cast<const char*>(&ck.files), 8));
+    report_tlv(rep, TAG_CKPT_BYTES, std::string(reinterpret_cast<const char*>(&ck.bytes), 8));
+    report_tlv(rep, TAG_CKPT_PATH, ck.path);
+}
+
+// CHECKPOINT：没有日志时只回 ERR_NONE，不带 TAG_CKPT_*
+static bool do_query_raw_checkpoint(const std::string& logical_dst, Reporter* rep) {
+    RawCheckpoint ck;
+    if (load_raw_checkpoint(logical_dst, &ck)) {
+        ALOGI("CHECKPOINT %s: files=%" PRIu64 " bytes=%" PRIu64 " last=%s",
+              logical_dst.c_str(), ck.files, ck.bytes, ck.path.c_str());
+        report_raw_checkpoint(rep, ck);
+    }
+    return true;
 }
 
 // 从 in_fd 还原树到 logical_dst，所有对象 chown/chmod/restorecon
-static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int target_uid) {
+// resume=false 时先丢弃该目标的旧检查点；流中的 'C' 记录推进检查点，'E' 结束时删除
+static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int target_uid,
+                                 bool resume, Reporter* rep) {
     std::string real_root, rel_base;
     if (!logical_to_real_root(logical_dst, &real_root, &rel_base)) {
         ALOGE("restore_tree_from_fd: unsupported dst path: %s", logical_dst.c_str());
+        report_error(rep, ERR_PATH, 0, "unsupported logical path");
         return false;
     }
     if (target_uid < 0) {
@@ -1157,15 +2294,24 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
         return false;
     }
 
-    // 校验魔数
-    char magic[4];
-    if (!read_fully(in_fd, magic, 4) || ::memcmp(magic, "MM01", 4) != 0) {
+    if (!resume) clear_raw_checkpoint(logical_dst);
+    // syncfs 只需要目标文件系统上的任意 fd
+    android::base::unique_fd root_fd(::open(real_root.c_str(), O_RDONLY | O_DIRECTORY | O_CLOEXEC));
+
+    // 校验魔数（MM01 / MM02）
+    RawPathState paths;
+    if (!read_raw_magic(in_fd, &paths)) {
         ALOGE("restore_tree_from_fd: bad stream magic");
         return false;
     }
 
     uint8_t tag;
     uint64_t dir_count = 0, file_count = 0, byte_count = 0;
+    time_t last_report = 0;
+    RawDigest digest;
+    RawDecoder decoder;
+    std::vector<uint8_t> pack_body;
+    std::vector<RawPackEntry> pack_entries;
 
     while (true) {
         if (!r8(in_fd, &tag)) {
@@ -1173,39 +2319,53 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
             return false;
         }
 
+        uint32_t mode; uint64_t mtime; uint64_t size;
+        std::string rel;
+        if (!read_raw_header(in_fd, &paths, &mode, &mtime, &size, &rel)) {
+            ALOGE("restore_tree_from_fd: failed to read %s", tag == 'E' ? "END record" : "header");
+            return false;
+        }
+
         if (tag == 'E') {
-            uint16_t pl; uint32_t md; uint64_t mt, sz;
-            (void)r16(in_fd,&pl); (void)r32(in_fd,&md);
-            (void)r64(in_fd,&mt); (void)r64(in_fd,&sz);
+            if ((mode & kRawModeCrc32) && (mtime != digest.bytes || (uint32_t)size != digest.crc)) {
+                // 每个文件都已单独校验过，走到这里说明有 'F' 记录整条丢失或多出
+                ALOGE("restore_tree_from_fd: stream digest mismatch bytes=%" PRIu64 "/%" PRIu64
+                      " crc=%08x/%08x", digest.bytes, mtime, digest.crc, (uint32_t)size);
+                report_error(rep, ERR_IO, 0, "MM01 stream digest mismatch");
+                return false;
+            }
             ALOGI("restore_tree_from_fd: reached END record");
+            clear_raw_checkpoint(logical_dst);
             break;
         }
 
-        uint16_t pathLen; uint32_t mode; uint64_t mtime; uint64_t size;
-        if (!r16(in_fd,&pathLen) || !r32(in_fd,&mode) ||
-            !r64(in_fd,&mtime)   || !r64(in_fd,&size)) {
-            ALOGE("restore_tree_from_fd: failed to read header");
-            return false;
-        }
-
-        std::string rel(pathLen, '\0');
-        if (pathLen && !read_fully(in_fd, rel.data(), pathLen)) {
-            ALOGE("restore_tree_from_fd: failed to read rel path");
-            return false;
+        if (tag == 'C') {
+            // ------- 检查点 -------
+            // path 只用于续传时核对写端顺序，不落地，因此不需要 sanitize
+            RawCheckpoint ck;
+            ck.files = mtime;
+            ck.bytes = size;
+            ck.path = std::move(rel);
+            int sr = 0;
+            if (root_fd.get() >= 0) {
+                sr = ::syncfs(root_fd.get());
+            } else {
+                ::sync();
+            }
+            if (sr != 0) {
+                ALOGW("restore_tree_from_fd: syncfs(%s) failed: %s, checkpoint not advanced",
+                      real_root.c_str(), strerror(errno));
+            } else if (save_raw_checkpoint(logical_dst, ck)) {
+                ALOGD("restore_tree_from_fd: C files=%" PRIu64 " bytes=%" PRIu64 " last='%s'",
+                      ck.files, ck.bytes, ck.path.c_str());
+            }
+            continue;
         }
 
         if (!sanitize_rel(&rel)) {
             ALOGW("restore_tree_from_fd: skip suspicious rel=%s", rel.c_str());
-            // 若为文件，必须丢弃 payload
-            if (tag=='F') {
-                uint8_t tmp[4096]; uint64_t left = size;
-                while (left) {
-                    ssize_t r = TEMP_FAILURE_RETRY(
-                            ::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
-                    if (r <= 0) return false;
-                    left -= (uint64_t)r;
-                }
-            }
+            // 若为文件/小文件包，必须丢弃 payload
+            if (!skip_raw_record(in_fd, tag, mode, mtime, size, &decoder, &digest)) return false;
             continue;
         }
 
@@ -1214,15 +2374,7 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
             std::string pkg = first_path_component(rel);
             if (is_blacklisted_external(pkg)) {
                 // 目录：直接跳过创建；文件：必须丢弃 payload
-                if (tag == 'F') {
-                    uint8_t tmp[4096]; uint64_t left = size;
-                    while (left) {
-                        ssize_t r = TEMP_FAILURE_RETRY(
-                                ::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
-                        if (r <= 0) return false;
-                        left -= (uint64_t)r;
-                    }
-                }
+                if (!skip_raw_record(in_fd, tag, mode, mtime, size, &decoder, &digest)) return false;
                 continue;
             }
         }
@@ -1231,15 +2383,7 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
         if (!is_ext_data_tree && internal_target_pkg.empty() && logical_dst == "/data/data" && !rel.empty()) {
             std::string pkg = first_path_component(rel);
             if (is_blacklisted_internal(pkg)) {
-                if (tag == 'F') {
-                    uint8_t tmp[4096]; uint64_t left = size;
-                    while (left) {
-                        ssize_t r = TEMP_FAILURE_RETRY(
-                                ::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
-                        if (r <= 0) return false;
-                        left -= (uint64_t)r;
-                    }
-                }
+                if (!skip_raw_record(in_fd, tag, mode, mtime, size, &decoder, &digest)) return false;
                 continue;
             }
         }
@@ -1296,13 +2440,7 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
             if (!ensure_dir_all(parent, parentMode)) {
                 ALOGW("restore_tree_from_fd: ensure parent(%s) failed", parent.c_str());
                 // 丢掉 payload
-                uint8_t tmp[4096]; uint64_t left = size;
-                while (left) {
-                    ssize_t r = TEMP_FAILURE_RETRY(
-                            ::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
-                    if (r <= 0) return false;
-                    left -= (uint64_t)r;
-                }
+                if (!skip_raw_payload(in_fd, size, mode, &digest)) return false;
                 continue;
             }
             (void)::chown(parent.c_str(), uid, gid);
@@ -1315,30 +2453,33 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
                 ALOGW("restore_tree_from_fd: open %s failed: %s",
                       outPath.c_str(), strerror(errno));
                 // 丢掉 payload
-                uint8_t tmp[4096]; uint64_t left = size;
-                while (left) {
-                    ssize_t r = TEMP_FAILURE_RETRY(
-                            ::read(in_fd, tmp, std::min<uint64_t>(left, sizeof(tmp))));
-                    if (r <= 0) return false;
-                    left -= (uint64_t)r;
-                }
+                if (!skip_raw_payload(in_fd, size, mode, &digest)) return false;
                 continue;
             }
 
-            uint8_t buf[256*1024]; uint64_t left = size;
-            while (left) {
-                ssize_t r = TEMP_FAILURE_RETRY(
-                        ::read(in_fd, buf, std::min<uint64_t>(left, sizeof(buf))));
-                if (r <= 0) {
-                    ALOGE("restore_tree_from_fd: read file payload failed");
+            uint32_t crc = 0;
+            if (!read_raw_payload(in_fd, ofd.get(), size, mode, &decoder, &crc)) {
+                ALOGE("restore_tree_from_fd: %s payload failed: %s", outPath.c_str(),
+                      strerror(errno));
+                return false;
+            }
+            if (mode & kRawModeCrc32) {
+                uint32_t expect = 0;
+                if (!r32(in_fd, &expect)) {
+                    ALOGE("restore_tree_from_fd: read crc trailer failed");
                     return false;
                 }
-                if (!write_fully(ofd.get(), buf, (size_t)r)) {
-                    ALOGE("restore_tree_from_fd: write file payload failed");
+                if (expect != crc) {
+                    // 传输中损坏：删掉这个文件并中止，之后的字节也不可信
+                    ALOGE("restore_tree_from_fd: %s crc mismatch %08x/%08x",
+                          outPath.c_str(), crc, expect);
+                    ofd.reset();
+                    (void)::unlink(outPath.c_str());
+                    report_error(rep, ERR_IO, 0, "MM01 file crc mismatch");
                     return false;
                 }
-                left -= (uint64_t)r;
             }
+            digest.add(crc, size);
 
             (void)::fchown(ofd.get(), uid, gid);
             (void)::fchmod(ofd.get(), fileMode);
@@ -1346,10 +2487,69 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
 
             file_count++;
             byte_count += size;
+            report_progress(rep, &last_report, file_count, byte_count);
 
             ALOGD("restore_tree_from_fd: F rel='%s' out='%s' mode=%o size=%" PRIu64,
                   rel.c_str(), outPath.c_str(), fileMode, size);
 
+        } else if (tag == 'P') {
+            // ------- 小文件包：rel 是所在目录 -------
+            // 整包校验通过才落盘；损坏的包一个文件也不写
+            uint32_t crc = 0;
+            if (!read_raw_pack(in_fd, mode, mtime, size, &decoder, &pack_body, &pack_entries, &crc)) {
+                ALOGE("restore_tree_from_fd: bad pack in '%s'", rel.c_str());
+                report_error(rep, ERR_IO, 0, "MM01 pack corrupt");
+                return false;
+            }
+            digest.add(crc, size);
+
+            mode_t dirMode;
+            if (is_ext_data_tree) {
+                dirMode = (outPath == real_root) ? 02770 : 02700;
+            } else {
+                dirMode = 0700;
+            }
+            if (!ensure_dir_all(outPath, dirMode)) {
+                ALOGW("restore_tree_from_fd: ensure pack dir(%s) failed", outPath.c_str());
+                continue;
+            }
+            (void)::chown(outPath.c_str(), uid, gid);
+            (void)::chmod(outPath.c_str(), dirMode);
+
+            // 同一目录的文件标签相同：第一个文件 restorecon，其余直接 fsetfilecon 同一个上下文
+            char* con = nullptr;
+            const uint8_t* data = pack_body.data() + mtime;
+            for (const RawPackEntry& e : pack_entries) {
+                const std::string filePath = join_path(outPath, e.name);
+                const mode_t fileMode = e.perm ? e.perm : 0600;
+                android::base::unique_fd ofd(::open(filePath.c_str(),
+                        O_CREAT|O_TRUNC|O_WRONLY|O_CLOEXEC|O_NOFOLLOW, fileMode));
+                if (ofd.get() < 0) {
+                    ALOGW("restore_tree_from_fd: open %s failed: %s",
+                          filePath.c_str(), strerror(errno));
+                    continue;
+                }
+                if (!write_fully(ofd.get(), data + e.off, e.size)) {
+                    ALOGE("restore_tree_from_fd: write %s failed: %s",
+                          filePath.c_str(), strerror(errno));
+                    if (con) freecon(con);
+                    return false;
+                }
+                (void)::fchown(ofd.get(), uid, gid);
+                (void)::fchmod(ofd.get(), fileMode);
+                if (!con || ::fsetfilecon(ofd.get(), con) != 0) {
+                    (void)selinux_android_restorecon(filePath.c_str(), 0);
+                    if (!con && ::getfilecon(filePath.c_str(), &con) < 0) con = nullptr;
+                }
+                file_count++;
+                byte_count += e.size;
+            }
+            if (con) freecon(con);
+            report_progress(rep, &last_report, file_count, byte_count);
+
+            ALOGD("restore_tree_from_fd: P rel='%s' files=%zu size=%" PRIu64,
+                  rel.c_str(), pack_entries.size(), size);
+
         } else {
             ALOGW("restore_tree_from_fd: unknown tag %02x", tag);
             return false;
@@ -1363,42 +2563,572 @@ static bool restore_tree_from_fd(int in_fd, const std::string& logical_dst, int
 
 
 
-// ========== FD/命令收发 & main ==========
+// ========== SCAN：只读元数据的预扫描 ==========
+//
+// 与 ZIP/DUMP 使用同样的逻辑路径映射、黑名单与 WalkFilter，但只做 readdir + lstat，
+// 不打开任何文件。结果按分组统计：app 数据按包名，其它路径按顶层目录名，
+// 直接位于根下的文件归入 "."。
+
+struct ScanGroup {
+    uint64_t files = 0;
+    uint64_t bytes = 0;
+};
 
-static int recv_one_fd(int sock) {
-    char dummy;
-    struct iovec iov = { &dummy, 1 };
-    char cmsgbuf[CMSG_SPACE(sizeof(int))];
-    struct msghdr msg = {};
-    msg.msg_iov = &iov; msg.msg_iovlen = 1;
-    msg.msg_control = cmsgbuf; msg.msg_controllen = sizeof(cmsgbuf);
-    if (::recvmsg(sock, &msg, 0) < 0) {
-        ALOGW("recvmsg failed: %s", strerror(errno));
-        return -1;
+static bool do_scan(const std::string& logical, const WalkFilter& filter_in, Reporter* rep) {
+    std::string real_root, rel_base;
+    if (!logical_to_real_root(logical, &real_root, &rel_base)) {
+        ALOGE("SCAN: unsupported path: %s", logical.c_str());
+        report_error(rep, ERR_PATH, 0, "unsupported logical path");
+        return false;
     }
-    struct cmsghdr* cmsg = CMSG_FIRSTHDR(&msg);
-    if (!cmsg || cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) {
-        ALOGW("no fd received");
-        return -1;
+    std::string base_dir = real_root;
+    if (!rel_base.empty()) {
+        base_dir = join_path(real_root, rel_base);
     }
-    int fd = -1;
-    ::memcpy(&fd, CMSG_DATA(cmsg), sizeof(int));
-    return fd;
+
+    const bool is_internal_data =
+            (logical == "/data/data") || (logical.rfind("/data/data/", 0) == 0);
+    const bool is_external_app_data =
+            (logical == "/sdcard/Android/data") || (logical.rfind("/sdcard/Android/data/", 0) == 0);
+    const bool app_data = is_internal_data || is_external_app_data;
+
+    WalkFilter filter = filter_in;
+    filter.bind(rel_base, app_data);
+
+    uint64_t files = 0, bytes = 0, dirs = 0;
+    time_t last_report = 0;
+    std::map<std::string, ScanGroup> groups;
+
+    bool skip_all = false;
+    if (!rel_base.empty()) {
+        const std::string pkg = first_path_component(rel_base);
+        skip_all = (is_internal_data && is_blacklisted_internal(pkg))
+                || (is_external_app_data && is_blacklisted_external(pkg));
+    }
+
+    std::vector<std::string> stack;
+    if (!skip_all) stack.push_back("");
+
+    while (!stack.empty()) {
+        std::string rel = std::move(stack.back());
+        stack.pop_back();
+
+        std::string dir = rel.empty() ? base_dir : join_path(base_dir, rel);
+        DIR* d = ::opendir(dir.c_str());
+        if (!d) {
+            ALOGW("SCAN opendir(%s) failed: %s", dir.c_str(), strerror(errno));
+            continue;
+        }
+        dirs++;
+
+        struct dirent* de;
+        while ((de = ::readdir(d)) != nullptr) {
+            if (!strcmp(de->d_name, ".") || !strcmp(de->d_name, "..")) continue;
+            std::string child_rel = rel.empty() ? de->d_name : (rel + "/" + de->d_name);
+
+            struct stat st{};
+            if (TEMP_FAILURE_RETRY(::fstatat(::dirfd(d), de->d_name, &st, AT_SYMLINK_NOFOLLOW)) != 0) {
+                continue;
+            }
+
+            if (S_ISDIR(st.st_mode)) {
+                if (app_data && rel.empty() && rel_base.empty()) {
+                    if ((is_internal_data && is_blacklisted_internal(de->d_name)) ||
+                        (is_external_app_data && is_blacklisted_external(de->d_name))) {
+                        continue;
+                    }
+                }
+                if (filter.skip_dir(child_rel)) continue;
+                stack.push_back(std::move(child_rel));
+            } else if (S_ISREG(st.st_mode)) {
+                if (filter.skip_file(child_rel, st)) continue;
+
+                std::string key;
+                if (!rel_base.empty()) {
+                    key = first_path_component(rel_base);
+                } else if (child_rel.find('/') != std::string::npos) {
+                    key = first_path_component(child_rel);
+                } else {
+                    key = ".";
+                }
+                ScanGroup& g = groups[key];
+                g.files++;
+                g.bytes += (uint64_t)st.st_size;
+                files++;
+                bytes += (uint64_t)st.st_size;
+                report_progress(rep, &last_report, files, bytes);
+            }
+        }
+        ::closedir(d);
+    }
+
+    report_progress(rep, &last_report, files, bytes);
+    std::string dirs_v(reinterpret_cast<const char*>(&dirs), sizeof(dirs));
+    report_tlv(rep, TAG_DIRS, dirs_v);
+    for (const auto& it : groups) {
+        std::string v;
+        v.append(reinterpret_cast<const char*>(&it.second.files), sizeof(uint64_t));
+        v.append(reinterpret_cast<const char*>(&it.second.bytes), sizeof(uint64_t));
+        v.append(it.first);
+        report_tlv(rep, TAG_GROUP_STAT, v);
+    }
+
+    ALOGI("SCAN done logical=%s dirs=%" PRIu64 " files=%" PRIu64 " bytes=%" PRIu64 " groups=%zu",
+          logical.c_str(), dirs, files, bytes, groups.size());
+    return true;
 }
 
-static std::string recv_line(int sock) {
-    std::string line;
-    char ch;
-    while (true) {
-        ssize_t n = TEMP_FAILURE_RETRY(::read(sock, &ch, 1));
-        if (n <= 0) break;
-        if (ch == '\n') break;
-        if (ch != '\0') line.push_back(ch);
+
+// ========== 持久连接 / 多路复用命令通道 ==========
+//
+// 一条连接可以承载任意多条命令，命令之间互不阻塞（每条命令在独立线程执行）。
+// 每条消息是一个二进制帧（小端，与 MM01 一致）：
+//
+//   u32 len                 其后字节数（不含本字段）
+//   u8  version             kProtoVersion
+//   u8  opcode              OP_*（请求）/ RSP_*（响应）
+//   u16 flags               FLAG_*
+//   u32 request_id
+//   u8  nfds                随本帧通过 SCM_RIGHTS 发送的 FD 个数
+//   u8  reserved
+//   TLV*                    u16 tag, u32 len, value；同一 tag 可重复
+//
+// 每个请求返回 0..N 个 RSP_STATUS 帧（仅当请求带 FLAG_WANT_STATUS）以及恰好一个 RSP_RESULT 帧，
+// RESULT 中带 TAG_ERROR / TAG_FILES / TAG_BYTES，失败时可带 TAG_ERRNO / TAG_MESSAGE。
+// system_server 侧复用同一条连接；daemon 重启后由对端自动重连。
+
+static constexpr size_t kMaxFdsPerMsg = 8;
+static constexpr size_t kFrameHeaderSize = 10;
+static constexpr uint32_t kMaxFrameSize = 1024 * 1024;
+
+struct Frame {
+    uint8_t version = kProtoVersion;
+    uint8_t opcode = 0;
+    uint16_t flags = 0;
+    uint32_t id = 0;
+    uint8_t nfds = 0;
+    std::vector<std::pair<uint16_t, std::string>> tlvs;
+
+    const std::string* get(uint16_t tag) const {
+        for (const auto& t : tlvs) {
+            if (t.first == tag) return &t.second;
+        }
+        return nullptr;
+    }
+    bool get_str(uint16_t tag, std::string* out) const {
+        const std::string* v = get(tag);
+        if (!v) return false;
+        *out = *v;
+        return true;
+    }
+    bool get_u32(uint16_t tag, uint32_t* out) const {
+        const std::string* v = get(tag);
+        if (!v || v->size() != 4) return false;
+        memcpy(out, v->data(), 4);
+        return true;
+    }
+
+    void put_str(uint16_t tag, const std::string& v) { tlvs.emplace_back(tag, v); }
+    void put_u32(uint16_t tag, uint32_t v) {
+        tlvs.emplace_back(tag, std::string(reinterpret_cast<const char*>(&v), sizeof(v)));
+    }
+    void put_u64(uint16_t tag, uint64_t v) {
+        tlvs.emplace_back(tag, std::string(reinterpret_cast<const char*>(&v), sizeof(v)));
+    }
+
+    // 编码为完整帧（含前导 u32 len）
+    std::string encode() const {
+        std::string out(4 + kFrameHeaderSize, '\0');
+        for (const auto& t : tlvs) {
+            uint16_t tag = t.first;
+            uint32_t len = (uint32_t)t.second.size();
+            out.append(reinterpret_cast<const char*>(&tag), 2);
+            out.append(reinterpret_cast<const char*>(&len), 4);
+            out.append(t.second);
+        }
+        uint32_t len = (uint32_t)(out.size() - 4);
+        memcpy(&out[0], &len, 4);
+        out[4] = (char)version;
+        out[5] = (char)opcode;
+        memcpy(&out[6], &flags, 2);
+        memcpy(&out[8], &id, 4);
+        out[12] = (char)nfds;
+        out[13] = 0;
+        return out;
+    }
+};
+
+// 解析帧体（len 之后的部分）。头部总能解析出来；TLV 非法时返回 false，
+// 由于帧按长度分隔，调用方仍可以回复错误并继续处理下一帧。
+static bool decode_frame_body(const std::vector<uint8_t>& body, Frame* f) {
+    const uint8_t* p = body.data();
+    f->version = p[0];
+    f->opcode = p[1];
+    memcpy(&f->flags, p + 2, 2);
+    memcpy(&f->id, p + 4, 4);
+    f->nfds = p[8];
+    f->tlvs.clear();
+    if (f->version != kProtoVersion) return true; // TLV 布局未知，由调用方回复 ERR_VERSION
+
+    size_t off = kFrameHeaderSize;
+    while (off < body.size()) {
+        if (body.size() - off < 6) return false;
+        uint16_t tag; uint32_t len;
+        memcpy(&tag, p + off, 2);
+        memcpy(&len, p + off + 2, 4);
+        off += 6;
+        if (len > body.size() - off) return false;
+        f->tlvs.emplace_back(tag, std::string(reinterpret_cast<const char*>(p + off), len));
+        off += len;
+    }
+    return true;
+}
+
+class Connection {
+public:
+    explicit Connection(int sock) : sock_(sock) {}
+    ~Connection() {
+        for (int fd : fds_) ::close(fd);
+        ::close(sock_);
+    }
+
+    // 读取一帧；读取过程中随字节到达的 FD 依次进入 FD 队列。
+    // 返回 false 表示连接结束或帧长度非法（此时帧边界已丢失，只能断开）。
+    bool read_frame(Frame* f, bool* body_ok) {
+        uint32_t len = 0;
+        if (!read_exact(&len, sizeof(len))) return false;
+        if (len < kFrameHeaderSize || len > kMaxFrameSize) {
+            ALOGE("bad frame length %u", len);
+            return false;
+        }
+        std::vector<uint8_t> body(len);
+        if (!read_exact(body.data(), len)) return false;
+        *body_ok = decode_frame_body(body, f);
+        return true;
+    }
+
+    // 取出一个已到达的 FD；没有则返回 -1
+    int take_fd() {
+        if (fds_.empty()) return -1;
+        int fd = fds_.front();
+        fds_.pop_front();
+        return fd;
+    }
+
+    void send_frame(const Frame& f) {
+        std::string bytes = f.encode();
+        std::lock_guard<std::mutex> lock(write_mu_);
+        if (!write_fully(sock_, bytes.data(), bytes.size())) {
+            ALOGW("send_frame(id=%u op=0x%02x) failed: %s", f.id, f.opcode, strerror(errno));
+        }
+    }
+
+private:
+    bool read_exact(void* dst, size_t n) {
+        uint8_t* out = static_cast<uint8_t*>(dst);
+        while (n > 0) {
+            if (pos_ == len_ && !fill()) return false;
+            size_t k = std::min(n, len_ - pos_);
+            memcpy(out, buf_ + pos_, k);
+            pos_ += k;
+            out += k;
+            n -= k;
+        }
+        return true;
+    }
+
+    bool fill() {
+        struct iovec iov = { buf_, sizeof(buf_) };
+        char cmsgbuf[CMSG_SPACE(sizeof(int) * kMaxFdsPerMsg)];
+        struct msghdr msg = {};
+        msg.msg_iov = &iov; msg.msg_iovlen = 1;
+        msg.msg_control = cmsgbuf; msg.msg_controllen = sizeof(cmsgbuf);
+
+        ssize_t n = TEMP_FAILURE_RETRY(::recvmsg(sock_, &msg, MSG_CMSG_CLOEXEC));
+        if (n <= 0) {
+            if (n < 0) ALOGW("recvmsg failed: %s", strerror(errno));
+            return false;
+        }
+        for (struct cmsghdr* c = CMSG_FIRSTHDR(&msg); c; c = CMSG_NXTHDR(&msg, c)) {
+            if (c->cmsg_level != SOL_SOCKET || c->cmsg_type != SCM_RIGHTS) continue;
+            size_t count = (c->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+            const int* p = reinterpret_cast<const int*>(CMSG_DATA(c));
+            for (size_t i = 0; i < count; ++i) fds_.push_back(p[i]);
+        }
+        if (msg.msg_flags & MSG_CTRUNC) {
+            ALOGW("ancillary data truncated, some fds were dropped");
+        }
+        pos_ = 0;
+        len_ = (size_t)n;
+        return true;
     }
-    return line;
+
+    int sock_;
+    std::mutex write_mu_;
+    std::deque<int> fds_;
+    uint8_t buf_[4096];
+    size_t pos_ = 0;
+    size_t len_ = 0;
+};
+
+// 单条命令的上报句柄：累计计数，按需发送 STATUS，最后组装 RESULT
+struct Reporter {
+    std::shared_ptr<Connection> conn;
+    uint32_t id = 0;
+    bool want_status = false;
+
+    uint64_t files = 0;
+    uint64_t bytes = 0;
+    uint32_t err = ERR_NONE;
+    int sys_errno = 0;
+    std::string message;
+    std::vector<std::pair<uint16_t, std::string>> extra;   // 命令相关的附加 RESULT TLV
+
+    void send(uint8_t opcode) const {
+        Frame f;
+        f.opcode = opcode;
+        f.id = id;
+        if (opcode == RSP_RESULT) f.put_u32(TAG_ERROR, err);
+        f.put_u64(TAG_FILES, files);
+        f.put_u64(TAG_BYTES, bytes);
+        if (sys_errno != 0) f.put_u32(TAG_ERRNO, (uint32_t)sys_errno);
+        if (!message.empty()) f.put_str(TAG_MESSAGE, message);
+        if (opcode == RSP_RESULT) {
+            for (const auto& t : extra) f.tlvs.push_back(t);
+        }
+        conn->send_frame(f);
+    }
+};
+
+static void report_progress(Reporter* rep, time_t* last, uint64_t files, uint64_t bytes) {
+    if (!rep) return;
+    rep->files = files;
+    rep->bytes = bytes;
+    if (!rep->want_status) return;
+    time_t now = ::time(nullptr);
+    if (now == *last) return;
+    *last = now;
+    rep->send(RSP_STATUS);
+}
+
+// 记录第一处具体失败原因；后续的笼统失败不覆盖它
+static void report_error(Reporter* rep, uint32_t code, int sys_errno, const char* msg) {
+    if (!rep || rep->err != ERR_NONE) return;
+    rep->err = code;
+    rep->sys_errno = sys_errno;
+    if (msg) rep->message = msg;
+}
+
+// 从请求 TLV 组装导出过滤条件
+static bool parse_walk_filter(const Frame& req, WalkFilter* f) {
+    for (const auto& t : req.tlvs) {
+        switch (t.first) {
+            case TAG_INCLUDE_PKG:  f->include_pkgs.insert(t.second); break;
+            case TAG_EXCLUDE_PKG:  f->exclude_pkgs.insert(t.second); break;
+            case TAG_INCLUDE_GLOB: f->include_globs.push_back(t.second); break;
+            case TAG_EXCLUDE_GLOB: f->exclude_globs.push_back(t.second); break;
+            case TAG_MAX_FILE_SIZE:
+                if (t.second.size() != sizeof(uint64_t)) return false;
+                memcpy(&f->max_file_size, t.second.data(), sizeof(uint64_t));
+                break;
+            default: break;
+        }
+    }
+    return true;
+}
+
+// 从请求 TLV 组装 ZIP 压缩策略
+static bool parse_zip_codec(const Frame& req, ZipCodec* c) {
+    uint32_t v = 0;
+    if (req.get(TAG_ZIP_LEVEL)) {
+        if (!req.get_u32(TAG_ZIP_LEVEL, &v) || v > 9) return false;
+        c->level = (int)v;
+    }
+    if (req.get_u32(TAG_ZIP_AUTO, &v)) c->auto_store = (v != 0);
+    if (req.get(TAG_ZIP_THREADS)) {
+        if (!req.get_u32(TAG_ZIP_THREADS, &v)) return false;
+        if (v == 0) {
+            const unsigned cores = std::thread::hardware_concurrency();
+            v = std::min<uint32_t>(cores > 0 ? cores : 1, kZipAutoThreads);
+        }
+        c->threads = (int)std::min<uint32_t>(v, kZipMaxThreads);
+    }
+    return true;
+}
+
+// 从请求 TLV 组装 DUMP 的 zstd 策略；没有 TAG_RAW_ZSTD_LEVEL 时输出经典 MM01
+static bool parse_raw_codec(const Frame& req, RawCodec* c) {
+    uint32_t v = 0;
+    if (req.get(TAG_RAW_ZSTD_LEVEL)) {
+        if (!req.get_u32(TAG_RAW_ZSTD_LEVEL, &v) || v > (uint32_t)ZSTD_maxCLevel()) return false;
+        c->level = (int)v;
+    }
+    if (req.get_u32(TAG_RAW_ZSTD_LONG, &v)) c->long_match = (v != 0);
+    if (req.get_u32(TAG_RAW_PACK, &v)) c->pack = (v != 0);
+    return true;
+}
+
+static void report_tlv(Reporter* rep, uint16_t tag, const std::string& value) {
+    if (!rep) return;
+    rep->extra.emplace_back(tag, value);
+}
+
+static void run_command(std::shared_ptr<Connection> conn, Frame req, std::vector<int> fds) {
+    Reporter rep;
+    rep.conn = conn;
+    rep.id = req.id;
+    rep.want_status = (req.flags & FLAG_WANT_STATUS) != 0;
+
+    android::base::unique_fd io_fd(fds.empty() ? -1 : fds[0]);
+    for (size_t i = 1; i < fds.size(); ++i) ::close(fds[i]);
+
+    std::string path;
+    uint32_t uid = 0;
+    const bool has_path = req.get_str(TAG_PATH, &path) && !path.empty();
+    const bool has_uid = req.get_u32(TAG_UID, &uid) && (int)uid >= 0;
+
+    bool ok = false;
+    if (req.opcode == OP_SCAN) {
+        WalkFilter filter;
+        if (!has_path) {
+            report_error(&rep, ERR_BAD_REQUEST, 0, "missing path");
+        } else if (!parse_walk_filter(req, &filter)) {
+            report_error(&rep, ERR_BAD_REQUEST, 0, "bad filter");
+        } else {
+            ok = do_scan(path, filter, &rep);
+        }
+    } else if (req.opcode == OP_BLACKLIST) {
+        ok = do_query_blacklist(&rep);
+    } else if (req.opcode == OP_CAPS) {
+        ok = do_query_caps(&rep);
+    } else if (req.opcode == OP_CHECKPOINT) {
+        if (!has_path) {
+            report_error(&rep, ERR_BAD_REQUEST, 0, "missing path");
+        } else {
+            ok = do_query_raw_checkpoint(path, &rep);
+        }
+    } else if (io_fd.get() < 0) {
+        ALOGW("cmd id=%u op=%u has no fd", req.id, req.opcode);
+        report_error(&rep, ERR_BAD_REQUEST, 0, "missing fd");
+    } else {
+        switch (req.opcode) {
+            case OP_ZIP:
+            case OP_DUMP:
+            {
+                WalkFilter filter;
+                if (!has_path) {
+                    report_error(&rep, ERR_BAD_REQUEST, 0, "missing path");
+                } else if (!parse_walk_filter(req, &filter)) {
+                    report_error(&rep, ERR_BAD_REQUEST, 0, "bad filter");
+                } else if (req.opcode == OP_ZIP) {
+                    ZipCodec codec;
+                    if (!parse_zip_codec(req, &codec)) {
+                        report_error(&rep, ERR_BAD_REQUEST, 0, "bad zip options");
+                    } else {
+                        ok = do_zip_to_fd(path, io_fd.get(), filter, &codec, &rep);
+                    }
+                } else {
+                    RawCodec codec;
+                    if (!parse_raw_codec(req, &codec)) {
+                        report_error(&rep, ERR_BAD_REQUEST, 0, "bad zstd level");
+                    } else if (!codec.init()) {
+                        report_error(&rep, ERR_FAILED, 0, "zstd init failed");
+                    } else {
+                        ok = dump_tree_to_fd(io_fd.get(), path, filter, &codec, &rep);
+                    }
+                }
+                break;
+            }
+            case OP_UNZIP:
+            case OP_PUTRAW:
+                if (!has_path || !has_uid) {
+                    report_error(&rep, ERR_BAD_REQUEST, 0, "missing path or uid");
+                } else if (req.opcode == OP_UNZIP) {
+                    ok = do_unzip_from_fd(io_fd.get(), path, (int)uid, &rep);
+                } else {
+                    uint32_t resume = 0;
+                    (void)req.get_u32(TAG_RESUME, &resume);
+                    ok = restore_tree_from_fd(io_fd.get(), path, (int)uid, resume != 0, &rep);
+                    // 失败时回报已落盘的位置，客户端据此续传（daemon 崩溃时改用 CHECKPOINT 查询）
+                    RawCheckpoint ck;
+                    if (!ok && load_raw_checkpoint(path, &ck)) report_raw_checkpoint(&rep, ck);
+                }
+                break;
+            case OP_BACKUP_SMS_DB:
+                ok = do_backup_sms_db(io_fd.get(), &rep);
+                break;
+            case OP_RESTORE_SMS_DB:
+                ok = do_restore_sms_db(io_fd.get(), &rep);
+                break;
+            default:
+                ALOGW("unknown opcode %u (id=%u)", req.opcode, req.id);
+                report_error(&rep, ERR_UNKNOWN_OP, 0, "unknown opcode");
+                break;
+        }
+    }
+    if (!ok) report_error(&rep, ERR_FAILED, 0, nullptr);
+
+    // 先关闭数据 FD，对端读到 EOF 后再收到完成消息
+    io_fd.reset();
+    rep.send(RSP_RESULT);
+}
+
+// 不进入执行线程、直接以错误结束的请求
+static void reply_error(const std::shared_ptr<Connection>& conn, uint32_t id, uint32_t code,
+                        const char* msg) {
+    Reporter rep;
+    rep.conn = conn;
+    rep.id = id;
+    report_error(&rep, code, 0, msg);
+    rep.send(RSP_RESULT);
+}
+
+static void serve_connection(int sock) {
+    auto conn = std::make_shared<Connection>(sock);
+    Frame req;
+    bool body_ok = false;
+
+    while (conn->read_frame(&req, &body_ok)) {
+        if (req.nfds > kMaxFdsPerMsg) {
+            ALOGW("request id=%u claims %u fds, closing connection", req.id, req.nfds);
+            break;
+        }
+        std::vector<int> fds;
+        for (size_t i = 0; i < req.nfds; ++i) {
+            int fd = conn->take_fd();
+            if (fd < 0) break;
+            fds.push_back(fd);
+        }
+
+        const char* bad = nullptr;
+        uint32_t code = ERR_BAD_REQUEST;
+        if (req.version != kProtoVersion) {
+            bad = "unsupported protocol version";
+            code = ERR_VERSION;
+        } else if (!body_ok) {
+            bad = "malformed TLV";
+        } else if (fds.size() != req.nfds) {
+            bad = "missing fds";
+        }
+        if (bad) {
+            ALOGW("reject request id=%u op=%u: %s", req.id, req.opcode, bad);
+            for (int fd : fds) ::close(fd);
+            reply_error(conn, req.id, code, bad);
+            continue;
+        }
+
+        ALOGI("received request id=%u op=%u fds=%zu tlvs=%zu",
+              req.id, req.opcode, fds.size(), req.tlvs.size());
+        std::thread(run_command, conn, std::move(req), std::move(fds)).detach();
+        req = Frame();
+    }
+    ALOGI("connection closed");
 }
 
 int main() {
+    // 对端断开时写 socket/pipe 不应杀死 daemon
+    ::signal(SIGPIPE, SIG_IGN);
+
     int s = ::socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
     if (s < 0) {
         ALOGE("socket failed: %s", strerror(errno));
@@ -1428,76 +3158,7 @@ int main() {
             ALOGW("accept4 failed: %s", strerror(errno));
             continue;
         }
-
-        int io_fd = recv_one_fd(c);
-        if (io_fd < 0) {
-            ::close(c);
-            continue;
-        }
-        std::string line = recv_line(c);
-        ALOGI("received cmd: '%s'", line.c_str());
-
-        bool ok = false;
-
-        if (line.rfind("ZIP ", 0) == 0) {
-            std::string logical = line.substr(4);
-            ok = do_zip_to_fd(logical, io_fd);
-            ::close(io_fd);
-            /*
-             * 返回ACK
-            const char* resp = ok? "OK\n" : "ERR\n";
-            (void)TEMP_FAILURE_RETRY(::write(c, resp, strlen(resp)));
-            */
-        } else if (line.rfind("UNZIP ", 0) == 0) {
-            std::string dst; int target_uid = -1;
-            {
-                std::istringstream iss(line);
-                std::string op, tok; iss >> op; iss >> dst;
-                while (iss >> tok) {
-                    if (tok == "UID") { iss >> target_uid; break; }
-                }
-            }
-            ok = (target_uid >= 0) && do_unzip_from_fd(io_fd, dst, target_uid);
-            ::close(io_fd);
-            const char* resp = ok ? "OK\n" : "ERR\n";
-            (void)TEMP_FAILURE_RETRY(::write(c, resp, ::strlen(resp)));
-        } else if (line.rfind("DUMP ", 0) == 0) {
-            std::string src = line.substr(5);
-            ok = dump_tree_to_fd(io_fd, src);
-            ::close(io_fd);
-            const char* resp = ok ? "OK\n" : "ERR\n";
-            (void)TEMP_FAILURE_RETRY(::write(c, resp, ::strlen(resp)));
-        } else if (line.rfind("PUTRAW ", 0) == 0) {
-            std::string dst; int target_uid = -1;
-            {
-                std::istringstream iss(line);
-                std::string op, tok; iss >> op; iss >> dst;
-                while (iss >> tok) {
-                    if (tok == "UID") { iss >> target_uid; break; }
-                }
-            }
-            ok = (target_uid >= 0) && restore_tree_from_fd(io_fd, dst, target_uid);
-            ::close(io_fd);
-            const char* resp = ok ? "OK\n" : "ERR\n";
-            (void)TEMP_FAILURE_RETRY(::write(c, resp, ::strlen(resp)));
-        }
-        // ---------------- [新增] SMS DB Backup/Restore ----------------
-        else if (line.rfind("BACKUP_SMS_DB", 0) == 0) {
-            ok = do_backup_sms_db(io_fd);
-            ::close(io_fd);
-            // 备份是出流，无需ACK
-        } else if (line.rfind("RESTORE_SMS_DB", 0) == 0) {
-            ok = do_restore_sms_db(io_fd);
-            ::close(io_fd);
-            const char* resp = ok ? "OK\n" : "ERR\n";
-            (void)TEMP_FAILURE_RETRY(::write(c, resp, ::strlen(resp)));
-        }
-        // -------------------------------------------------------------
-        else {
-            ALOGW("unknown cmd: %s", line.c_str());
-            ::close(io_fd);
-        }
-        ::close(c);
+        std::thread(serve_connection, c).detach();
     }
     return 0;
 }
@@ -0,0 +1,172 @@
+// system/mirrormedia/daemon/parallel_deflate.cpp
+#include "parallel_deflate.h"
+
+#define LOG_TAG "mirrormediad"
+#include <log/log.h>
+
+#include <errno.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+namespace {
+
+// 与 pigz 默认块大小相同：块越小并行越均匀，但每块都丢掉跨块 32K 之外的匹配
+constexpr size_t kBlockSize = 128 * 1024;
+constexpr size_t kDictSize = 32 * 1024;
+// 每个 worker 最多排两块，读端领先太多只会多占内存
+constexpr size_t kJobsPerWorker = 2;
+
+}  // namespace
+
+ParallelDeflater::ParallelDeflater(int workers, int level) : workers_(workers), level_(level) {}
+
+ParallelDeflater::~ParallelDeflater() {
+    {
+        std::lock_guard<std::mutex> lock(mu_);
+        quit_ = true;
+    }
+    work_cv_.notify_all();
+    for (auto& t : threads_) t.join();
+}
+
+void ParallelDeflater::Start() {
+    if (!threads_.empty()) return;
+    for (int i = 0; i < workers_; ++i) {
+        threads_.emplace_back(&ParallelDeflater::WorkerLoop, this);
+    }
+}
+
+void ParallelDeflater::WorkerLoop() {
+    z_stream z{};
+    const bool z_ok =
+            deflateInit2(&z, level_, Z_DEFLATED, -MAX_WBITS, 8, Z_DEFAULT_STRATEGY) == Z_OK;
+    if (!z_ok) ALOGE("parallel deflate: worker init failed");
+
+    while (true) {
+        std::shared_ptr<Job> job;
+        {
+            std::unique_lock<std::mutex> lock(mu_);
+            work_cv_.wait(lock, [this] { return quit_ || !todo_.empty(); });
+            if (quit_ && todo_.empty()) break;
+            job = std::move(todo_.front());
+            todo_.pop_front();
+        }
+        const bool ok = z_ok && Deflate(&z, job.get());
+        {
+            std::lock_guard<std::mutex> lock(mu_);
+            job->ok = ok;
+            job->done = true;
+        }
+        done_cv_.notify_all();
+    }
+    if (z_ok) deflateEnd(&z);
+}
+
+bool ParallelDeflater::Deflate(z_stream* z, Job* job) {
+    if (deflateReset(z) != Z_OK) return false;
+    if (job->dict_len > 0 &&
+        deflateSetDictionary(z, job->in.data(), (uInt)job->dict_len) != Z_OK) {
+        return false;
+    }
+    const uint8_t* data = job->in.data() + job->dict_len;
+    const size_t len = job->in.size() - job->dict_len;
+    job->crc = (uint32_t)crc32(0, data, (uInt)len);
+
+    // deflateBound 按 Z_FINISH 估算，再留出 sync flush 的空 stored block
+    job->out.resize(deflateBound(z, len) + 16);
+    z->next_in = const_cast<Bytef*>(data);
+    z->avail_in = (uInt)len;
+    size_t produced = 0;
+    const int flush = job->last ? Z_FINISH : Z_SYNC_FLUSH;
+    while (true) {
+        z->next_out = job->out.data() + produced;
+        z->avail_out = (uInt)(job->out.size() - produced);
+        const int zr = deflate(z, flush);
+        if (zr == Z_STREAM_ERROR) return false;
+        produced = job->out.size() - z->avail_out;
+        if (job->last ? zr == Z_STREAM_END : (z->avail_in == 0 && z->avail_out > 0)) break;
+        job->out.resize(job->out.size() * 2);
+    }
+    job->out.resize(produced);
+    return true;
+}
+
+bool ParallelDeflater::Compress(int fd, const uint8_t* head, size_t head_len, const Sink& sink,
+                                uint64_t* raw_total, int* read_errno) {
+    Start();
+    *raw_total = 0;
+    *read_errno = 0;
+
+    std::deque<std::shared_ptr<Job>> inflight;  // 按文件顺序
+    std::shared_ptr<Job> prev;
+    bool eof = false;
+    bool ok = true;
+    size_t head_off = 0;
+    const size_t max_inflight = (size_t)workers_ * kJobsPerWorker;
+
+    while (ok && (!eof || !inflight.empty())) {
+        if (!eof && inflight.size() < max_inflight) {
+            auto job = std::make_shared<Job>();
+            if (prev) {
+                const size_t prev_len = prev->in.size() - prev->dict_len;
+                job->dict_len = std::min(prev_len, kDictSize);
+                job->in.assign(prev->in.end() - job->dict_len, prev->in.end());
+            }
+            job->in.resize(job->dict_len + kBlockSize);
+            size_t got = 0;
+            if (head_off < head_len) {
+                got = std::min(head_len - head_off, kBlockSize);
+                memcpy(job->in.data() + job->dict_len, head + head_off, got);
+                head_off += got;
+            }
+            while (got < kBlockSize) {
+                const ssize_t n = TEMP_FAILURE_RETRY(
+                        ::read(fd, job->in.data() + job->dict_len + got, kBlockSize - got));
+                if (n <= 0) {
+                    // 读错误也按 EOF 收尾：条目仍以 final block 结束，归档保持完整
+                    if (n < 0) *read_errno = errno;
+                    eof = true;
+                    break;
+                }
+                got += (size_t)n;
+            }
+            job->in.resize(job->dict_len + got);
+            // EOF 恰好落在块边界时最后一块是空的，Z_FINISH 只产生一个空的 final block
+            job->last = eof;
+            *raw_total += got;
+            {
+                std::lock_guard<std::mutex> lock(mu_);
+                todo_.push_back(job);
+            }
+            work_cv_.notify_one();
+            inflight.push_back(job);
+            prev = std::move(job);
+            continue;
+        }
+
+        std::shared_ptr<Job> front = inflight.front();
+        {
+            std::unique_lock<std::mutex> lock(mu_);
+            done_cv_.wait(lock, [&front] { return front->done; });
+        }
+        inflight.pop_front();
+        if (!front->ok) {
+            ALOGE("parallel deflate: block failed");
+            ok = false;
+            break;
+        }
+        ok = sink(front->out.data(), front->out.size(), front->in.size() - front->dict_len,
+                  front->crc);
+        front->out.clear();
+        front->out.shrink_to_fit();
+    }
+
+    // 出错提前退出时，已派出的块仍在 worker 手里，等它们结束再返回
+    for (auto& job : inflight) {
+        std::unique_lock<std::mutex> lock(mu_);
+        done_cv_.wait(lock, [&job] { return job->done; });
+    }
+    return ok;
+}
@@ -0,0 +1,66 @@
+// system/mirrormedia/daemon/parallel_deflate.h
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+#include <zlib.h>
+
+#include <condition_variable>
+#include <deque>
+#include <functional>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// pigz-style parallel deflate for one large input: the input is cut into fixed blocks, each block
+// is compressed on a worker with the previous 32K as its dictionary, and the outputs are handed to
+// the sink in order.
+//
+// 非最后一块以 Z_SYNC_FLUSH 结束（字节对齐、不带 final 位），最后一块 Z_FINISH，
+// 所以按顺序拼接就是一个普通的 raw deflate 流，任何 inflate 都能解。
+// 代价是每块多 4–5 字节的空 stored block，以及跨块匹配只能看到前 32K（与单线程 deflate 相同的窗口）。
+class ParallelDeflater {
+  public:
+    // data/len 是一块压缩结果，raw_len/crc 是这块对应的原始字节数和 CRC32；返回 false 时停止。
+    using Sink = std::function<bool(const uint8_t* data, size_t len, uint64_t raw_len, uint32_t crc)>;
+
+    // workers >= 2；线程在第一次 Compress() 时启动，析构时结束。
+    ParallelDeflater(int workers, int level);
+    ~ParallelDeflater();
+
+    ParallelDeflater(const ParallelDeflater&) = delete;
+    ParallelDeflater& operator=(const ParallelDeflater&) = delete;
+
+    // head 是调用方已经读出的文件开头；之后从 fd 读到 EOF。
+    // 返回 true 表示读完且全部交给了 sink；*read_errno 非 0 时流仍然完整结束，只是文件被截断。
+    bool Compress(int fd, const uint8_t* head, size_t head_len, const Sink& sink,
+                  uint64_t* raw_total, int* read_errno);
+
+    int workers() const { return workers_; }
+
+  private:
+    struct Job {
+        std::vector<uint8_t> in;   // [dict_len 字节字典][块数据]
+        size_t dict_len = 0;
+        bool last = false;
+        std::vector<uint8_t> out;
+        uint32_t crc = 0;
+        bool done = false;
+        bool ok = false;
+    };
+
+    void Start();
+    void WorkerLoop();
+    bool Deflate(z_stream* z, Job* job);
+
+    const int workers_;
+    const int level_;
+    std::vector<std::thread> threads_;
+
+    std::mutex mu_;
+    std::condition_variable work_cv_;  // todo_ 有新任务 / 退出
+    std::condition_variable done_cv_;  // 某个任务完成
+    std::deque<std::shared_ptr<Job>> todo_;
+    bool quit_ = false;
+};
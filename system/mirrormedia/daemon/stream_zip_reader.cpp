@@ -0,0 +1,296 @@
+// system/mirrormedia/daemon/stream_zip_reader.cpp
+#include "stream_zip_reader.h"
+
+#define LOG_TAG "mirrormediad"
+#include <log/log.h>
+
+#include <errno.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+namespace {
+
+constexpr uint32_t kLocalFileHeaderSig = 0x04034b50;
+constexpr uint32_t kDataDescriptorSig = 0x08074b50;
+constexpr uint32_t kCentralDirSig = 0x02014b50;
+constexpr uint32_t kZip64EocdSig = 0x06064b50;
+constexpr uint32_t kEocdSig = 0x06054b50;
+
+constexpr uint16_t kFlagEncrypted = 1 << 0;
+constexpr uint16_t kFlagDataDescriptor = 1 << 3;
+
+constexpr uint16_t kMethodStored = 0;
+constexpr uint16_t kMethodDeflated = 8;
+
+constexpr uint16_t kZip64ExtraTag = 0x0001;
+constexpr uint32_t kMax32 = 0xffffffffu;
+
+constexpr size_t kLocalHeaderSize = 30;
+// 本地头最大 30 + 64K 名字 + 64K extra，缓冲必须能一次放下
+constexpr size_t kBufferSize = 256 * 1024;
+
+inline uint16_t get16(const uint8_t* p) {
+    return (uint16_t)(p[0] | (p[1] << 8));
+}
+
+inline uint32_t get32(const uint8_t* p) {
+    return (uint32_t)get16(p) | ((uint32_t)get16(p + 2) << 16);
+}
+
+inline uint64_t get64(const uint8_t* p) {
+    return (uint64_t)get32(p) | ((uint64_t)get32(p + 4) << 32);
+}
+
+}  // namespace
+
+StreamZipReader::StreamZipReader(int fd) : fd_(fd), buf_(kBufferSize) {}
+
+StreamZipReader::~StreamZipReader() {
+    if (z_init_) inflateEnd(&z_);
+}
+
+int32_t StreamZipReader::Fail(int32_t code, int err) {
+    state_ = State::kError;
+    errno_ = err;
+    return code;
+}
+
+// 保证缓冲里至少有 n 个连续字节；EOF 或读错误时返回 false
+bool StreamZipReader::Need(size_t n) {
+    if (len_ - pos_ >= n) return true;
+    if (n > buf_.size()) return false;
+    if (pos_ > 0) {
+        memmove(buf_.data(), buf_.data() + pos_, len_ - pos_);
+        len_ -= pos_;
+        pos_ = 0;
+    }
+    while (len_ < n && !eof_) {
+        ssize_t r = TEMP_FAILURE_RETRY(::read(fd_, buf_.data() + len_, buf_.size() - len_));
+        if (r < 0) {
+            errno_ = errno;
+            return false;
+        }
+        if (r == 0) {
+            eof_ = true;
+            break;
+        }
+        len_ += (size_t)r;
+    }
+    return len_ - pos_ >= n;
+}
+
+void StreamZipReader::Consume(size_t n) {
+    pos_ += n;
+    consumed_ += n;
+}
+
+int32_t StreamZipReader::Next(Entry* entry) {
+    // 上一个条目没读完：解压丢弃，同时照常校验
+    if (state_ == State::kData) {
+        uint8_t scratch[64 * 1024];
+        ssize_t r;
+        while ((r = Read(scratch, sizeof(scratch))) > 0) {
+        }
+        if (r < 0) return (int32_t)r;
+    }
+    if (state_ == State::kError) return kFormatError;
+    if (state_ == State::kEnd) return 0;
+
+    if (!Need(4)) {
+        if (errno_ != 0) return Fail(kIoError, errno_);
+        // 恰好在条目边界结束：没有中央目录，归档被截断，但已读出的条目都是完整的
+        ALOGW("zip stream ended without a central directory after %llu bytes",
+              (unsigned long long)consumed_);
+        state_ = State::kEnd;
+        return 0;
+    }
+    const uint32_t sig = get32(Peek());
+    if (sig == kCentralDirSig || sig == kZip64EocdSig || sig == kEocdSig) {
+        state_ = State::kEnd;
+        return 0;
+    }
+    if (sig != kLocalFileHeaderSig) {
+        ALOGE("bad local header signature 0x%08x at %llu", sig, (unsigned long long)consumed_);
+        return Fail(kFormatError, 0);
+    }
+    if (!Need(kLocalHeaderSize)) return Fail(errno_ ? kIoError : kFormatError, errno_);
+
+    const uint8_t* h = Peek();
+    cur_ = Entry();
+    cur_.flags = get16(h + 6);
+    cur_.method = get16(h + 8);
+    cur_.crc = get32(h + 14);
+    cur_.compressed = get32(h + 18);
+    cur_.uncompressed = get32(h + 22);
+    const size_t name_len = get16(h + 26);
+    const size_t extra_len = get16(h + 28);
+    if (!Need(kLocalHeaderSize + name_len + extra_len)) {
+        return Fail(errno_ ? kIoError : kFormatError, errno_);
+    }
+    h = Peek();
+    cur_.name.assign(reinterpret_cast<const char*>(h + kLocalHeaderSize), name_len);
+
+    // zip64 extra：只包含本地头里被置为 0xffffffff 的大小，顺序为 uncompressed, compressed
+    zip64_ = false;
+    const uint8_t* x = h + kLocalHeaderSize + name_len;
+    const uint8_t* x_end = x + extra_len;
+    while (x + 4 <= x_end) {
+        const uint16_t tag = get16(x);
+        const uint16_t size = get16(x + 2);
+        const uint8_t* v = x + 4;
+        if (v + size > x_end) break;
+        if (tag == kZip64ExtraTag) {
+            zip64_ = true;
+            const uint8_t* q = v;
+            if (cur_.uncompressed == kMax32 && q + 8 <= v + size) {
+                cur_.uncompressed = get64(q);
+                q += 8;
+            }
+            if (cur_.compressed == kMax32 && q + 8 <= v + size) {
+                cur_.compressed = get64(q);
+            }
+        }
+        x = v + size;
+    }
+    Consume(kLocalHeaderSize + name_len + extra_len);
+
+    descriptor_ = (cur_.flags & kFlagDataDescriptor) != 0;
+    if (cur_.flags & kFlagEncrypted) {
+        ALOGE("encrypted entry not supported: %s", cur_.name.c_str());
+        return Fail(kUnsupported, 0);
+    }
+    if (cur_.method == kMethodStored) {
+        if (descriptor_) {
+            ALOGE("STORED entry with data descriptor cannot be streamed: %s", cur_.name.c_str());
+            return Fail(kUnsupported, 0);
+        }
+        remaining_ = cur_.uncompressed;
+    } else if (cur_.method == kMethodDeflated) {
+        int zr;
+        if (!z_init_) {
+            zr = inflateInit2(&z_, -MAX_WBITS);
+            z_init_ = (zr == Z_OK);
+        } else {
+            zr = inflateReset(&z_);
+        }
+        if (zr != Z_OK) {
+            ALOGE("inflate init failed: %d", zr);
+            return Fail(kZlibError, 0);
+        }
+    } else {
+        ALOGE("unsupported method %u: %s", cur_.method, cur_.name.c_str());
+        return Fail(kUnsupported, 0);
+    }
+
+    in_count_ = 0;
+    out_count_ = 0;
+    crc_ = 0;
+    entry_done_ = false;
+    state_ = State::kData;
+    *entry = cur_;
+    return 1;
+}
+
+ssize_t StreamZipReader::Read(void* out, size_t len) {
+    if (state_ == State::kError) return kFormatError;
+    if (state_ != State::kData || entry_done_) return 0;
+    if (len == 0) return 0;
+
+    uint8_t* dst = static_cast<uint8_t*>(out);
+    size_t produced = 0;
+
+    if (cur_.method == kMethodStored) {
+        if (remaining_ > 0) {
+            if (!Need(1)) return Fail(errno_ ? kIoError : kFormatError, errno_);
+            const size_t n = (size_t)std::min<uint64_t>(
+                    std::min(len, len_ - pos_), remaining_);
+            memcpy(dst, Peek(), n);
+            Consume(n);
+            remaining_ -= n;
+            in_count_ += n;
+            produced = n;
+        }
+        if (remaining_ == 0) {
+            crc_ = (uint32_t)crc32(crc_, dst, (uInt)produced);
+            out_count_ += produced;
+            const int32_t r = FinishEntry();
+            if (r != kNoError) return r;
+            return (ssize_t)produced;
+        }
+    } else {
+        while (produced == 0) {
+            if (pos_ == len_ && !Need(1)) {
+                ALOGE("zip stream truncated in %s", cur_.name.c_str());
+                return Fail(errno_ ? kIoError : kFormatError, errno_);
+            }
+            z_.next_in = buf_.data() + pos_;
+            z_.avail_in = (uInt)(len_ - pos_);
+            z_.next_out = dst;
+            z_.avail_out = (uInt)std::min(len, (size_t)kMax32);
+            const int zr = inflate(&z_, Z_NO_FLUSH);
+            const size_t used = (len_ - pos_) - z_.avail_in;
+            Consume(used);
+            in_count_ += used;
+            produced = std::min(len, (size_t)kMax32) - z_.avail_out;
+            if (zr == Z_STREAM_END) {
+                crc_ = (uint32_t)crc32(crc_, dst, (uInt)produced);
+                out_count_ += produced;
+                const int32_t r = FinishEntry();
+                if (r != kNoError) return r;
+                return (ssize_t)produced;
+            }
+            if (zr != Z_OK && zr != Z_BUF_ERROR) {
+                ALOGE("inflate(%s) failed: %d", cur_.name.c_str(), zr);
+                return Fail(kZlibError, 0);
+            }
+        }
+    }
+
+    crc_ = (uint32_t)crc32(crc_, dst, (uInt)produced);
+    out_count_ += produced;
+    return (ssize_t)produced;
+}
+
+// 条目数据结束：读 data descriptor（如有）并校验 CRC 和长度
+int32_t StreamZipReader::FinishEntry() {
+    uint32_t crc = cur_.crc;
+    uint64_t compressed = cur_.compressed;
+    uint64_t uncompressed = cur_.uncompressed;
+
+    if (descriptor_) {
+        if (!Need(4)) return Fail(errno_ ? kIoError : kFormatError, errno_);
+        if (get32(Peek()) == kDataDescriptorSig) Consume(4);
+        // 与写端约定一致：任一大小到达 32 位上限（或本地头带 zip64 extra）时用 8 字节
+        const bool wide = zip64_ || in_count_ >= kMax32 || out_count_ >= kMax32;
+        const size_t n = wide ? 20 : 12;
+        if (!Need(n)) return Fail(errno_ ? kIoError : kFormatError, errno_);
+        const uint8_t* d = Peek();
+        crc = get32(d);
+        compressed = wide ? get64(d + 4) : get32(d + 4);
+        uncompressed = wide ? get64(d + 12) : get32(d + 8);
+        Consume(n);
+    }
+
+    if (crc != crc_ || compressed != in_count_ || uncompressed != out_count_) {
+        ALOGE("zip entry %s corrupt: crc %08x/%08x size %llu/%llu compressed %llu/%llu",
+              cur_.name.c_str(), crc_, crc,
+              (unsigned long long)out_count_, (unsigned long long)uncompressed,
+              (unsigned long long)in_count_, (unsigned long long)compressed);
+        return Fail(kCrcError, 0);
+    }
+    entry_done_ = true;
+    return kNoError;
+}
+
+void StreamZipReader::Drain() {
+    pos_ = len_ = 0;
+    if (eof_) return;
+    while (true) {
+        ssize_t r = TEMP_FAILURE_RETRY(::read(fd_, buf_.data(), buf_.size()));
+        if (r <= 0) break;
+        consumed_ += (uint64_t)r;
+    }
+    eof_ = true;
+}
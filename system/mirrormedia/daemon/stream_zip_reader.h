@@ -0,0 +1,87 @@
+// system/mirrormedia/daemon/stream_zip_reader.h
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+#include <zlib.h>
+
+#include <string>
+#include <vector>
+
+// Forward-only ZIP reader: walks local file headers as they arrive on a pipe, never seeks and
+// never needs the central directory.
+//
+// 支持 STORED / DEFLATED、bit 3 data descriptor（带或不带签名）和 zip64 大小。
+// 每个条目读完时校验 CRC32 和长度。STORED + data descriptor 无法在流中确定长度，
+// 返回 kUnsupported（Java ZipOutputStream 和 StreamZipWriter 都不会产生这种条目）。
+class StreamZipReader {
+  public:
+    struct Entry {
+        std::string name;
+        uint16_t method = 0;
+        uint16_t flags = 0;
+        uint32_t crc = 0;           // from the local header; 0 when a descriptor follows
+        uint64_t compressed = 0;    // ditto
+        uint64_t uncompressed = 0;  // ditto
+    };
+
+    enum {
+        kNoError = 0,
+        kIoError = -1,
+        kZlibError = -2,
+        kFormatError = -3,
+        kCrcError = -4,
+        kUnsupported = -5,
+    };
+
+    explicit StreamZipReader(int fd);
+    ~StreamZipReader();
+
+    StreamZipReader(const StreamZipReader&) = delete;
+    StreamZipReader& operator=(const StreamZipReader&) = delete;
+
+    // 1 = *entry is the next entry, 0 = no more entries (central directory reached), <0 = error.
+    // The unread rest of the previous entry is skipped (and still verified).
+    int32_t Next(Entry* entry);
+
+    // Uncompressed bytes of the current entry; 0 once the entry is complete and verified,
+    // <0 on error. Errors are sticky: the stream position is lost.
+    ssize_t Read(void* buf, size_t len);
+
+    // Consume the rest of the input (central directory etc.) so the writer never sees EPIPE.
+    void Drain();
+
+    int error_errno() const { return errno_; }
+    uint64_t bytes_read() const { return consumed_; }
+
+  private:
+    enum class State { kHeader, kData, kError, kEnd };
+
+    bool Need(size_t n);
+    void Consume(size_t n);
+    const uint8_t* Peek() const { return buf_.data() + pos_; }
+    int32_t Fail(int32_t code, int err);
+    int32_t FinishEntry();
+
+    int fd_;
+    State state_ = State::kHeader;
+    int errno_ = 0;
+
+    std::vector<uint8_t> buf_;
+    size_t pos_ = 0;
+    size_t len_ = 0;
+    bool eof_ = false;
+    uint64_t consumed_ = 0;
+
+    Entry cur_;
+    bool descriptor_ = false;
+    bool zip64_ = false;  // local header carried a zip64 extra
+    bool entry_done_ = false;
+    uint64_t remaining_ = 0;  // STORED bytes left
+    uint64_t in_count_ = 0;   // compressed bytes consumed for this entry
+    uint64_t out_count_ = 0;  // uncompressed bytes produced for this entry
+    uint32_t crc_ = 0;
+
+    z_stream z_{};
+    bool z_init_ = false;
+};
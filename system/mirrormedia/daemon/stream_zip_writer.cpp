@@ -0,0 +1,358 @@
+// system/mirrormedia/daemon/stream_zip_writer.cpp
+#include "stream_zip_writer.h"
+
+#define LOG_TAG "mirrormediad"
+#include <log/log.h>
+
+#include <errno.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+namespace {
+
+constexpr uint32_t kLocalFileHeaderSig = 0x04034b50;
+constexpr uint32_t kDataDescriptorSig = 0x08074b50;
+constexpr uint32_t kCentralDirSig = 0x02014b50;
+constexpr uint32_t kZip64EocdSig = 0x06064b50;
+constexpr uint32_t kZip64LocatorSig = 0x07064b50;
+constexpr uint32_t kEocdSig = 0x06054b50;
+
+constexpr uint16_t kFlagDataDescriptor = 1 << 3;
+constexpr uint16_t kFlagUtf8 = 1 << 11;
+
+constexpr uint16_t kMethodStored = 0;
+constexpr uint16_t kMethodDeflated = 8;
+
+constexpr uint16_t kVersionDefault = 20;
+constexpr uint16_t kVersionZip64 = 45;
+constexpr uint16_t kMadeByUnix = 3 << 8;
+
+constexpr uint16_t kZip64ExtraTag = 0x0001;
+constexpr uint32_t kMax32 = 0xffffffffu;
+constexpr uint16_t kMax16 = 0xffffu;
+
+// 缓冲到 64K 就写出：既避免对 pipe 的小写入，第一批数据也能在毫秒级到达客户端。
+constexpr size_t kFlushSize = 64 * 1024;
+constexpr size_t kDeflateChunk = 64 * 1024;
+
+void to_dos_time(time_t t, uint16_t* dos_time, uint16_t* dos_date) {
+    struct tm tm {};
+    if (localtime_r(&t, &tm) == nullptr || tm.tm_year < 80) {
+        // ZIP 无法表示 1980 年以前的时间
+        *dos_time = 0;
+        *dos_date = (1 << 5) | 1;
+        return;
+    }
+    *dos_time = (uint16_t)((tm.tm_hour << 11) | (tm.tm_min << 5) | (tm.tm_sec >> 1));
+    *dos_date = (uint16_t)(((tm.tm_year - 80) << 9) | ((tm.tm_mon + 1) << 5) | tm.tm_mday);
+}
+
+}  // namespace
+
+StreamZipWriter::StreamZipWriter(int fd) : fd_(fd) {
+    buf_.reserve(kFlushSize + kDeflateChunk);
+}
+
+StreamZipWriter::~StreamZipWriter() {
+    if (z_init_) deflateEnd(&z_);
+}
+
+int32_t StreamZipWriter::Fail(int32_t code, int err) {
+    state_ = State::kError;
+    errno_ = err;
+    return code;
+}
+
+void StreamZipWriter::Put(const void* p, size_t n) {
+    const uint8_t* b = static_cast<const uint8_t*>(p);
+    buf_.insert(buf_.end(), b, b + n);
+    offset_ += n;
+}
+
+// ZIP 是小端序
+void StreamZipWriter::Put16(uint16_t v) {
+    const uint8_t b[2] = {(uint8_t)v, (uint8_t)(v >> 8)};
+    Put(b, sizeof(b));
+}
+
+void StreamZipWriter::Put32(uint32_t v) {
+    Put16((uint16_t)v);
+    Put16((uint16_t)(v >> 16));
+}
+
+void StreamZipWriter::Put64(uint64_t v) {
+    Put32((uint32_t)v);
+    Put32((uint32_t)(v >> 32));
+}
+
+bool StreamZipWriter::Flush() {
+    size_t off = 0;
+    while (off < buf_.size()) {
+        ssize_t n = TEMP_FAILURE_RETRY(::write(fd_, buf_.data() + off, buf_.size() - off));
+        if (n <= 0) {
+            const int err = (n < 0) ? errno : EIO;
+            ALOGE("zip stream write failed: %s", strerror(err));
+            buf_.clear();
+            Fail(kIoError, err);
+            return false;
+        }
+        off += (size_t)n;
+    }
+    buf_.clear();
+    return true;
+}
+
+bool StreamZipWriter::FlushIfFull() {
+    return buf_.size() < kFlushSize || Flush();
+}
+
+int32_t StreamZipWriter::StartEntry(const std::string& path, size_t flags, time_t mtime,
+                                    mode_t mode, int level) {
+    if (state_ != State::kIdle) return state_ == State::kError ? kIoError : kInvalidState;
+    if (path.empty() || path.size() > kMax16) return kInvalidState;
+
+    const bool is_dir = path.back() == '/';
+    cur_ = Entry();
+    cur_.name = path;
+    cur_.method = (flags & kCompress) ? kMethodDeflated : kMethodStored;
+    // STORED 条目必须在本地头里给出大小（ZipInputStream 不支持 STORED + descriptor），
+    // 因此只允许大小为 0 的目录条目走 STORED。
+    if (cur_.method == kMethodStored && !is_dir) return kInvalidState;
+    cur_.descriptor = !is_dir;
+    cur_.precompressed = cur_.method == kMethodDeflated && (flags & kPrecompressed) && !is_dir;
+    cur_.local_offset = offset_;
+    cur_.external_attr = ((uint32_t)(mode & 0xffff) << 16) | (is_dir ? 0x10 : 0);
+    to_dos_time(mtime, &cur_.dos_time, &cur_.dos_date);
+
+    if (cur_.method == kMethodDeflated && !cur_.precompressed) {
+        int zr;
+        if (!z_init_) {
+            zr = deflateInit2(&z_, level, Z_DEFLATED, -MAX_WBITS, 8, Z_DEFAULT_STRATEGY);
+            z_init_ = (zr == Z_OK);
+            z_level_ = level;
+        } else {
+            zr = deflateReset(&z_);
+            // reset 之后还没有输入，deflateParams 只切换参数，不会产生输出
+            if (zr == Z_OK && level != z_level_) {
+                zr = deflateParams(&z_, level, Z_DEFAULT_STRATEGY);
+                if (zr == Z_OK) z_level_ = level;
+            }
+        }
+        if (zr != Z_OK) {
+            ALOGE("deflate init failed: %d", zr);
+            return Fail(kZlibError, 0);
+        }
+    }
+
+    Put32(kLocalFileHeaderSig);
+    Put16(kVersionDefault);
+    Put16(kFlagUtf8 | (cur_.descriptor ? kFlagDataDescriptor : 0));
+    Put16(cur_.method);
+    Put16(cur_.dos_time);
+    Put16(cur_.dos_date);
+    Put32(0);  // crc, sizes: in the data descriptor (or 0 for directories)
+    Put32(0);
+    Put32(0);
+    Put16((uint16_t)cur_.name.size());
+    Put16(0);  // extra
+    Put(cur_.name.data(), cur_.name.size());
+
+    state_ = State::kEntry;
+    return FlushIfFull() ? kNoError : kIoError;
+}
+
+int32_t StreamZipWriter::AddStoredEntry(const std::string& path, time_t mtime, mode_t mode,
+                                        const void* data, size_t len) {
+    if (state_ != State::kIdle) return state_ == State::kError ? kIoError : kInvalidState;
+    if (path.empty() || path.size() > kMax16 || path.back() == '/') return kInvalidState;
+    if ((uint64_t)len >= kMax32) return kInvalidState;  // 本地头里放不下，走 StartEntry
+
+    cur_ = Entry();
+    cur_.name = path;
+    cur_.method = kMethodStored;
+    cur_.descriptor = false;
+    cur_.local_offset = offset_;
+    cur_.external_attr = (uint32_t)(mode & 0xffff) << 16;
+    cur_.crc = (uint32_t)crc32(0, static_cast<const Bytef*>(data), (uInt)len);
+    cur_.compressed = len;
+    cur_.uncompressed = len;
+    to_dos_time(mtime, &cur_.dos_time, &cur_.dos_date);
+
+    Put32(kLocalFileHeaderSig);
+    Put16(kVersionDefault);
+    Put16(kFlagUtf8);
+    Put16(cur_.method);
+    Put16(cur_.dos_time);
+    Put16(cur_.dos_date);
+    Put32(cur_.crc);
+    Put32((uint32_t)len);
+    Put32((uint32_t)len);
+    Put16((uint16_t)cur_.name.size());
+    Put16(0);  // extra
+    Put(cur_.name.data(), cur_.name.size());
+    Put(data, len);
+
+    entries_.push_back(std::move(cur_));
+    cur_ = Entry();
+    return FlushIfFull() ? kNoError : kIoError;
+}
+
+int32_t StreamZipWriter::Deflate(const uint8_t* data, size_t len, int flush) {
+    z_.next_in = const_cast<Bytef*>(data);
+    z_.avail_in = (uInt)len;
+    uint8_t out[kDeflateChunk];
+    int zr;
+    do {
+        z_.next_out = out;
+        z_.avail_out = sizeof(out);
+        zr = deflate(&z_, flush);
+        if (zr == Z_STREAM_ERROR) {
+            ALOGE("deflate(%s) failed", cur_.name.c_str());
+            return Fail(kZlibError, 0);
+        }
+        const size_t have = sizeof(out) - z_.avail_out;
+        if (have > 0) {
+            Put(out, have);
+            cur_.compressed += have;
+            if (!FlushIfFull()) return kIoError;
+        }
+    } while (z_.avail_out == 0 || (flush == Z_FINISH && zr != Z_STREAM_END));
+    return kNoError;
+}
+
+int32_t StreamZipWriter::WriteBytes(const void* data, size_t len) {
+    if (state_ != State::kEntry) return state_ == State::kError ? kIoError : kInvalidState;
+    if (len == 0) return kNoError;
+    if (cur_.method != kMethodDeflated || cur_.precompressed) return kInvalidState;
+
+    const uint8_t* p = static_cast<const uint8_t*>(data);
+    cur_.uncompressed += len;
+    // crc32() 的长度是 uInt，大块分段算
+    for (size_t off = 0; off < len;) {
+        const size_t n = std::min(len - off, (size_t)kMax32);
+        cur_.crc = (uint32_t)crc32(cur_.crc, p + off, (uInt)n);
+        const int32_t r = Deflate(p + off, n, Z_NO_FLUSH);
+        if (r != kNoError) return r;
+        off += n;
+    }
+    return kNoError;
+}
+
+int32_t StreamZipWriter::WriteDeflated(const void* data, size_t len, uint64_t raw_len,
+                                       uint32_t crc) {
+    if (state_ != State::kEntry) return state_ == State::kError ? kIoError : kInvalidState;
+    if (!cur_.precompressed) return kInvalidState;
+
+    cur_.crc = (uint32_t)crc32_combine(cur_.crc, crc, (z_off_t)raw_len);
+    cur_.uncompressed += raw_len;
+    cur_.compressed += len;
+    Put(data, len);
+    return FlushIfFull() ? kNoError : kIoError;
+}
+
+int32_t StreamZipWriter::FinishEntry() {
+    if (state_ != State::kEntry) return state_ == State::kError ? kIoError : kInvalidState;
+
+    if (cur_.method == kMethodDeflated && !cur_.precompressed) {
+        const int32_t r = Deflate(nullptr, 0, Z_FINISH);
+        if (r != kNoError) return r;
+    }
+
+    if (cur_.descriptor) {
+        Put32(kDataDescriptorSig);
+        Put32(cur_.crc);
+        // 与 ZipInputStream 的判断一致：任一大小超过 32 位时才用 8 字节
+        if (cur_.compressed >= kMax32 || cur_.uncompressed >= kMax32) {
+            Put64(cur_.compressed);
+            Put64(cur_.uncompressed);
+        } else {
+            Put32((uint32_t)cur_.compressed);
+            Put32((uint32_t)cur_.uncompressed);
+        }
+    }
+
+    entries_.push_back(std::move(cur_));
+    cur_ = Entry();
+    state_ = State::kIdle;
+    return FlushIfFull() ? kNoError : kIoError;
+}
+
+int32_t StreamZipWriter::Finish() {
+    if (state_ != State::kIdle) return state_ == State::kError ? kIoError : kInvalidState;
+
+    const uint64_t cd_offset = offset_;
+    for (const Entry& e : entries_) {
+        const bool big_u = e.uncompressed >= kMax32;
+        const bool big_c = e.compressed >= kMax32;
+        const bool big_o = e.local_offset >= kMax32;
+        const uint16_t extra_len =
+                (big_u || big_c || big_o) ? (uint16_t)(4 + 8 * (big_u + big_c + big_o)) : 0;
+        const uint16_t version = extra_len ? kVersionZip64 : kVersionDefault;
+
+        Put32(kCentralDirSig);
+        Put16(kMadeByUnix | version);
+        Put16(version);
+        Put16(kFlagUtf8 | (e.descriptor ? kFlagDataDescriptor : 0));
+        Put16(e.method);
+        Put16(e.dos_time);
+        Put16(e.dos_date);
+        Put32(e.crc);
+        Put32(big_c ? kMax32 : (uint32_t)e.compressed);
+        Put32(big_u ? kMax32 : (uint32_t)e.uncompressed);
+        Put16((uint16_t)e.name.size());
+        Put16(extra_len);
+        Put16(0);  // comment
+        Put16(0);  // disk number start
+        Put16(0);  // internal attributes
+        Put32(e.external_attr);
+        Put32(big_o ? kMax32 : (uint32_t)e.local_offset);
+        Put(e.name.data(), e.name.size());
+        if (extra_len) {
+            // zip64 extra 中只出现被置为 0xffffffff 的字段，顺序固定
+            Put16(kZip64ExtraTag);
+            Put16((uint16_t)(extra_len - 4));
+            if (big_u) Put64(e.uncompressed);
+            if (big_c) Put64(e.compressed);
+            if (big_o) Put64(e.local_offset);
+        }
+        if (!FlushIfFull()) return kIoError;
+    }
+    const uint64_t cd_size = offset_ - cd_offset;
+    const uint64_t count = entries_.size();
+
+    if (count >= kMax16 || cd_size >= kMax32 || cd_offset >= kMax32) {
+        const uint64_t zip64_eocd_offset = offset_;
+        Put32(kZip64EocdSig);
+        Put64(44);  // size of the remaining record
+        Put16(kMadeByUnix | kVersionZip64);
+        Put16(kVersionZip64);
+        Put32(0);  // this disk
+        Put32(0);  // disk with the central directory
+        Put64(count);
+        Put64(count);
+        Put64(cd_size);
+        Put64(cd_offset);
+
+        Put32(kZip64LocatorSig);
+        Put32(0);
+        Put64(zip64_eocd_offset);
+        Put32(1);  // total disks
+    }
+
+    Put32(kEocdSig);
+    Put16(0);
+    Put16(0);
+    Put16((uint16_t)std::min<uint64_t>(count, kMax16));
+    Put16((uint16_t)std::min<uint64_t>(count, kMax16));
+    Put32((uint32_t)std::min<uint64_t>(cd_size, kMax32));
+    Put32((uint32_t)std::min<uint64_t>(cd_offset, kMax32));
+    Put16(0);  // comment
+
+    if (!Flush()) return kIoError;
+    entries_.clear();
+    entries_.shrink_to_fit();
+    state_ = State::kFinished;
+    return kNoError;
+}
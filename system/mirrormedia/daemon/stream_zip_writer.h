@@ -0,0 +1,99 @@
+// system/mirrormedia/daemon/stream_zip_writer.h
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+#include <time.h>
+#include <zlib.h>
+
+#include <string>
+#include <vector>
+
+// Forward-only ZIP writer: never seeks, so the archive goes straight into a pipe or socket.
+//
+// 文件条目使用 general purpose bit 3：本地头里 CRC/大小为 0，数据后面跟 data descriptor；
+// 目录条目和 AddStoredEntry() 的整块数据大小已知，不带 descriptor。条目或偏移超过 4GB 时使用 zip64
+// （descriptor 用 8 字节大小，中央目录加 zip64 extra，结尾加 zip64 EOCD）。
+// 输出可被 libziparchive 和 java.util.zip.ZipInputStream 读取。
+class StreamZipWriter {
+  public:
+    enum {
+        kCompress = 0x01,  // deflate；否则 STORED（只用于目录这种大小已知的条目）
+        kPrecompressed = 0x02,  // 与 kCompress 同用：调用方自己产生 raw deflate 流，经 WriteDeflated() 写入
+    };
+
+    enum {
+        kNoError = 0,
+        kIoError = -1,
+        kZlibError = -2,
+        kInvalidState = -3,
+    };
+
+    explicit StreamZipWriter(int fd);
+    ~StreamZipWriter();
+
+    StreamZipWriter(const StreamZipWriter&) = delete;
+    StreamZipWriter& operator=(const StreamZipWriter&) = delete;
+
+    // mode 只写入中央目录的 external attributes（unix 权限位）。
+    // level 是 deflate 级别（0–9 或 Z_DEFAULT_COMPRESSION）；0 仍是 DEFLATED 方法，只是全部用
+    // stored block，几乎不耗 CPU，适合事先不知道 CRC 的大块不可压缩数据。
+    int32_t StartEntry(const std::string& path, size_t flags, time_t mtime, mode_t mode,
+                       int level = Z_DEFAULT_COMPRESSION);
+    // 一次写出完整的 STORED 条目：CRC 和大小直接写进本地头（调用方已把整个文件读进内存）。
+    int32_t AddStoredEntry(const std::string& path, time_t mtime, mode_t mode,
+                           const void* data, size_t len);
+    int32_t WriteBytes(const void* data, size_t len);
+    // kPrecompressed 条目：追加一段 raw deflate 数据，raw_len/crc 是这段对应的原始字节数和 CRC32。
+    // 各段按顺序拼起来必须是一个完整的 deflate 流（最后一段带 final block）。
+    int32_t WriteDeflated(const void* data, size_t len, uint64_t raw_len, uint32_t crc);
+    int32_t FinishEntry();
+    // 写中央目录和 EOCD 并刷出缓冲；之后不能再写。
+    int32_t Finish();
+
+    // 写输出失败后整个归档都不可用，调用方应停止遍历。
+    bool failed() const { return state_ == State::kError; }
+    int error_errno() const { return errno_; }
+    uint64_t bytes_written() const { return offset_; }
+
+  private:
+    struct Entry {
+        std::string name;
+        uint16_t method = 0;
+        uint16_t dos_time = 0;
+        uint16_t dos_date = 0;
+        uint32_t crc = 0;
+        uint64_t compressed = 0;
+        uint64_t uncompressed = 0;
+        uint64_t local_offset = 0;
+        uint32_t external_attr = 0;
+        bool descriptor = false;
+        bool precompressed = false;
+    };
+
+    enum class State { kIdle, kEntry, kFinished, kError };
+
+    int32_t Deflate(const uint8_t* data, size_t len, int flush);
+    int32_t Fail(int32_t code, int err);
+
+    void Put(const void* p, size_t n);
+    void Put16(uint16_t v);
+    void Put32(uint32_t v);
+    void Put64(uint64_t v);
+    bool FlushIfFull();
+    bool Flush();
+
+    int fd_;
+    State state_ = State::kIdle;
+    int errno_ = 0;
+
+    z_stream z_{};
+    bool z_init_ = false;
+    int z_level_ = Z_DEFAULT_COMPRESSION;
+
+    Entry cur_;
+    std::vector<Entry> entries_;
+
+    std::vector<uint8_t> buf_;
+    uint64_t offset_ = 0;  // archive bytes produced so far, including buf_
+};